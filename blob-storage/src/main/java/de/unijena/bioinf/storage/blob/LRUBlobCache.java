@@ -0,0 +1,297 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.storage.blob;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
+import de.unijena.bioinf.storage.blob.file.FileBlobStorage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded LRU cache on top of an arbitrary {@link BlobStorage} (e.g. {@link de.unijena.bioinf.storage.blob.memory.InMemoryBlobStorage}
+ * or {@link de.unijena.bioinf.storage.blob.file.FileBlobStorage}).
+ * The total number of bytes of all cached blobs is kept below the given budget by deleting the least recently used blobs.
+ * Concurrent loads of the same key are coalesced so that the source is requested only once (single flight).
+ * <p>
+ * Blobs already existing in the cache storage are indexed on first access (in arbitrary LRU order).
+ * The cache storage should not be modified from outside. Use {@link #of(BlobStorage, long)} to share one cache
+ * instance for all users of the same storage.
+ */
+public class LRUBlobCache {
+
+    // file storages are shared by location, since callers usually create a new storage object for each request.
+    private static final ConcurrentHashMap<String, LRUBlobCache> FILE_CACHES = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the process wide cache for the given file storage location. Other storages cannot be identified by
+     * location, so they get their own instance. The byte budget of the first request for a location is used.
+     */
+    public static LRUBlobCache of(@NotNull BlobStorage cache, long maxBytes) {
+        if (cache instanceof FileBlobStorage)
+            return FILE_CACHES.computeIfAbsent(cache.getBucketLocation(), k -> new LRUBlobCache(cache, maxBytes));
+        return new LRUBlobCache(cache, maxBytes);
+    }
+
+    private final BlobStorage cache;
+    private final long maxBytes;
+
+    //access ordered key -> size in bytes
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+    private boolean indexed = false;
+
+    private final ConcurrentHashMap<String, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(), coalesced = new AtomicLong();
+
+    public LRUBlobCache(@NotNull BlobStorage cache, long maxBytes) {
+        this.cache = cache;
+        this.maxBytes = maxBytes;
+    }
+
+    public BlobStorage getCacheStorage() {
+        return cache;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCachedBytes() {
+        ensureIndexed();
+        return cachedBytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Number of requests that have been served by waiting for an already running load of the same key
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public synchronized boolean contains(@NotNull Path relative) {
+        ensureIndexed();
+        return index.containsKey(relative.toString());
+    }
+
+    /**
+     * @return Stream of the cached blob or NULL if the blob is not cached. Counts as hit or miss.
+     */
+    public @Nullable InputStream reader(@NotNull Path relative) throws IOException {
+        final boolean cached;
+        synchronized (this) {
+            ensureIndexed();
+            cached = index.get(relative.toString()) != null; //get updates access order
+        }
+        if (cached) {
+            final InputStream s = cache.reader(relative);
+            if (s != null) {
+                hits.incrementAndGet();
+                return s;
+            }
+            remove(relative.toString());
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Writes the given blob to the cache and evicts least recently used blobs if the budget is exceeded.
+     */
+    public void write(@NotNull Path relative, @NotNull IOFunctions.IOConsumer<OutputStream> withStream) throws IOException {
+        final AtomicLong size = new AtomicLong();
+        cache.withWriter(relative, w -> {
+            final CountingOutputStream c = new CountingOutputStream(w);
+            withStream.accept(c);
+            c.flush();
+            size.set(c.count);
+        });
+        synchronized (this) {
+            ensureIndexed();
+            record(relative.toString(), size.get());
+        }
+        evict();
+    }
+
+    /**
+     * Runs the given loader for the given key. If a load for the same key is already running,
+     * the result of the running load is returned instead.
+     */
+    public <T> T singleFlight(@NotNull Path relative, @NotNull IOFunctions.IOSupplier<T> loader) throws IOException {
+        return singleFlight(relative, loader, null);
+    }
+
+    /**
+     * Runs the given loader for the given key and writes the (non-null) result to the cache in background.
+     * If a load for the same key is already running or its result is still being written,
+     * the result of the running load is returned instead, so that the source is not requested again before the
+     * blob is available from the cache.
+     *
+     * @param serializer writes the loaded value to the cache, NULL if the value should not be cached.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T singleFlight(@NotNull Path relative, @NotNull IOFunctions.IOSupplier<T> loader, @Nullable IOFunctions.BiIOConsumer<T, OutputStream> serializer) throws IOException {
+        final String key = relative.toString();
+        final CompletableFuture<T> own = new CompletableFuture<>();
+        final CompletableFuture<T> running = (CompletableFuture<T>) inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw e;
+            }
+        }
+
+        boolean writing = false;
+        try {
+            final T result = loader.get();
+            own.complete(result);
+            if (serializer != null && result != null) {
+                // key stays in flight until the blob is written.
+                SiriusJobs.runInBackgroundIO(() -> {
+                    try {
+                        write(relative, w -> serializer.accept(result, w));
+                    } finally {
+                        inFlight.remove(key, own);
+                    }
+                });
+                writing = true;
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (!writing)
+                inFlight.remove(key, own);
+        }
+    }
+
+    public void clear() throws IOException {
+        synchronized (this) {
+            index.clear();
+            cachedBytes = 0;
+            indexed = true;
+        }
+        cache.clear();
+    }
+
+    // has to be called while holding the lock
+    private void ensureIndexed() {
+        if (indexed)
+            return;
+        indexed = true;
+        try {
+            final Iterator<BlobStorage.Blob> it = cache.listBlobs();
+            while (it.hasNext()) {
+                final BlobStorage.Blob blob = it.next();
+                if (!blob.isDirectory() && !index.containsKey(blob.getKey()))
+                    record(blob.getKey(), blob.size());
+            }
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not index cache storage '" + cache.getName() + "'. Existing blobs will be requested again.", e);
+        }
+        if (cachedBytes > maxBytes)
+            SiriusJobs.runInBackground(this::evict);
+    }
+
+    private void record(String key, long size) {
+        final Long old = index.put(key, size);
+        cachedBytes += size - (old == null ? 0 : old);
+    }
+
+    private synchronized void remove(String key) {
+        final Long old = index.remove(key);
+        if (old != null)
+            cachedBytes -= old;
+    }
+
+    private void evict() {
+        while (true) {
+            final String key;
+            synchronized (this) {
+                if (cachedBytes <= maxBytes || index.size() <= 1)
+                    return;
+                final Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+                final Map.Entry<String, Long> eldest = it.next();
+                key = eldest.getKey();
+                cachedBytes -= eldest.getValue();
+                it.remove();
+            }
+            try {
+                cache.deleteBlob(Path.of(key));
+                evictions.incrementAndGet();
+            } catch (IOException e) {
+                LoggerFactory.getLogger(getClass()).warn("Could not evict blob '" + key + "' from cache '" + cache.getName() + "'.", e);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
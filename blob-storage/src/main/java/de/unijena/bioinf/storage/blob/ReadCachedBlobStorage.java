@@ -20,7 +20,6 @@
 
 package de.unijena.bioinf.storage.blob;
 
-import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
 import org.jetbrains.annotations.NotNull;
 
@@ -37,6 +36,9 @@ import java.util.Map;
  * {@link ReadCachedBlobStorage} are READ_ONLY storages.
  * The cache storage should be significantly faster to access to have any positive effect on performance.
  *
+ * The cache is bounded by a byte budget (see {@link LRUBlobCache}). Least recently used blobs are evicted
+ * and concurrent requests for the same uncached blob are fetched only once from the source.
+ *
  * Tags are already cached by most BlobStorage implementations.
  * So that the cache storage will neither contains any tags nor cache the tags of the source storage
  *
@@ -48,10 +50,23 @@ public class ReadCachedBlobStorage<Source extends BlobStorage, Cache extends Blo
 
     private final Source source;
     private final Cache cache;
+    private final LRUBlobCache lru;
 
     public ReadCachedBlobStorage(Source source, Cache cache) {
+        this(source, cache, Long.MAX_VALUE);
+    }
+
+    public ReadCachedBlobStorage(Source source, Cache cache, long maxCacheBytes) {
         this.source = source;
         this.cache = cache;
+        this.lru = LRUBlobCache.of(cache, maxCacheBytes);
+    }
+
+    /**
+     * @return the cache layer providing hit/miss/eviction statistics
+     */
+    public LRUBlobCache getCache() {
+        return lru;
     }
 
     @Override
@@ -66,7 +81,7 @@ public class ReadCachedBlobStorage<Source extends BlobStorage, Cache extends Blo
 
     @Override
     public boolean hasBlob(Path relative) throws IOException {
-        if (cache.hasBlob(relative)) {
+        if (lru.contains(relative)) {
             return true;
         } else {
             return source.hasBlob(relative);
@@ -85,16 +100,17 @@ public class ReadCachedBlobStorage<Source extends BlobStorage, Cache extends Blo
 
     @Override
     public InputStream reader(Path relative) throws IOException {
-        if (cache.hasBlob(relative))
-            return cache.reader(relative);
-        final byte[] buffer = source.reader(relative).readAllBytes();
+        final InputStream cached = lru.reader(relative);
+        if (cached != null)
+            return cached;
 
-        SiriusJobs.runInBackground(() -> {
-            cache.withWriter(relative, (w) -> w.write(buffer));
-            return true;
-        });
+        final byte[] buffer = lru.singleFlight(relative, () -> {
+            try (InputStream s = source.reader(relative)) {
+                return s == null ? null : s.readAllBytes();
+            }
+        }, (bytes, w) -> w.write(bytes));
 
-        return new ByteArrayInputStream(buffer);
+        return buffer == null ? null : new ByteArrayInputStream(buffer);
     }
 
     @Override
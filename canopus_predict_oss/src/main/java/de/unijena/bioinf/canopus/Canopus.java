@@ -31,6 +31,7 @@ import org.ejml.data.FMatrixRMaj;
 import java.io.*;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -310,6 +311,93 @@ public class Canopus {
     }
 
 
+    /**
+     * Predicts the latent vectors of many compounds at once. Formula and fingerprint features of all compounds are
+     * stacked into one matrix, such that each layer is evaluated with a single matrix multiplication.
+     * @return matrix with one latent vector per row, in the order of the given compounds
+     */
+    public FMatrixRMaj predictLatentVectors(List<MolecularFormula> formulas, List<ProbabilityFingerprint> fingerprints) {
+        if (formulas.size() != fingerprints.size())
+            throw new IllegalArgumentException("Number of formulas and fingerprints differ: " + formulas.size() + " vs. " + fingerprints.size());
+        final int n = formulas.size();
+        FMatrixRMaj formulaInput = null, fpInput = null;
+        for (int row = 0; row < n; ++row) {
+            final double[] ff = getNormalizedFormulaVector(formulas.get(row));
+            final double[] fp = getNormalizedFingerprintVector(fingerprints.get(row));
+            if (formulaInput == null) {
+                formulaInput = new FMatrixRMaj(n, ff.length);
+                fpInput = new FMatrixRMaj(n, fp.length);
+            }
+            for (int i = 0, offset = row * ff.length; i < ff.length; ++i) formulaInput.data[offset + i] = (float) ff[i];
+            for (int i = 0, offset = row * fp.length; i < fp.length; ++i) fpInput.data[offset + i] = (float) fp[i];
+        }
+        if (n == 0)
+            return new FMatrixRMaj(0, innerLayers.length > 0 ? innerLayers[innerLayers.length - 1].getOutputSize() : 0);
+
+        for (FullyConnectedLayer l : formulaLayers)
+            formulaInput = l.eval(formulaInput);
+        for (FullyConnectedLayer l : fingerprintLayers)
+            fpInput = l.eval(fpInput);
+
+        final int formulaCols = formulaInput.numCols, fpCols = fpInput.numCols;
+        FMatrixRMaj combined = new FMatrixRMaj(n, formulaCols + fpCols);
+        for (int row = 0; row < n; ++row) {
+            System.arraycopy(formulaInput.data, row * formulaCols, combined.data, row * combined.numCols, formulaCols);
+            System.arraycopy(fpInput.data, row * fpCols, combined.data, row * combined.numCols + formulaCols, fpCols);
+        }
+
+        for (FullyConnectedLayer l : innerLayers)
+            combined = l.eval(combined);
+        return combined;
+    }
+
+    /**
+     * Batch version of {@link #predictProbabilities(MolecularFormula, ProbabilityFingerprint, EnumSet)}.
+     * @return one matrix per predictable (in order of {@link Predictable}) with one row per compound
+     */
+    public FMatrixRMaj[] predictProbabilities(List<MolecularFormula> formulas, List<ProbabilityFingerprint> fingerprints, EnumSet<Predictable> topredict) {
+        if (topredict.contains(Predictable.Fingerprint)) {
+            throw new UnsupportedOperationException("Not implemented yet.");
+        }
+        final FMatrixRMaj latent = predictLatentVectors(formulas, fingerprints);
+        final FMatrixRMaj[] values = new FMatrixRMaj[topredict.size()];
+        int k=0;
+        if (topredict.contains(Predictable.ClassyFire)) {
+            values[k] = this.plattLayer.eval(this.outputLayer.eval(latent));
+            ++k;
+        }
+        if (topredict.contains(Predictable.NPC)) {
+            values[k] = this.npcPlattLayer.eval(this.npcLayer.eval(latent));
+            ++k;
+        }
+        return values;
+    }
+
+    /**
+     * Batch version of {@link #predictFingerprints(MolecularFormula, ProbabilityFingerprint, EnumSet)}.
+     * @return for each compound the predicted fingerprints (in order of {@link Predictable})
+     */
+    public ProbabilityFingerprint[][] predictFingerprints(List<MolecularFormula> formulas, List<ProbabilityFingerprint> fingerprints, EnumSet<Predictable> topredict) {
+        final FMatrixRMaj[] values = predictProbabilities(formulas, fingerprints, topredict);
+        final ProbabilityFingerprint[][] fps = new ProbabilityFingerprint[formulas.size()][topredict.size()];
+        for (int row = 0; row < fps.length; ++row) {
+            int k=0;
+            if (topredict.contains(Predictable.ClassyFire)) {
+                fps[row][k] = new ProbabilityFingerprint(classyFireMask, getRow(values[k], row));
+                ++k;
+            }
+            if (topredict.contains(Predictable.NPC)) {
+                fps[row][k] = npcMask.mask(new ProbabilityFingerprint(npcFingerprintVersion, getRow(values[k], row)));
+                ++k;
+            }
+        }
+        return fps;
+    }
+
+    private static float[] getRow(FMatrixRMaj matrix, int row) {
+        return Arrays.copyOfRange(matrix.data, row * matrix.numCols, (row + 1) * matrix.numCols);
+    }
+
 
     public double[] getNormalizedFormulaVector(MolecularFormula formula) {
         final double[] ff = getFormulaFeatures(formula);
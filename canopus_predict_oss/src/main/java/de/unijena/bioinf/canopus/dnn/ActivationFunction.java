@@ -20,16 +20,36 @@
 
 package de.unijena.bioinf.canopus.dnn;
 
+import java.util.Arrays;
+
 public interface ActivationFunction {
 
     void eval(float[] values);
 
+    /**
+     * Applies the function to values[from] ... values[to-1].
+     */
+    default void eval(float[] values, int from, int to) {
+        if (from == 0 && to == values.length) {
+            eval(values);
+            return;
+        }
+        final float[] part = Arrays.copyOfRange(values, from, to);
+        eval(part);
+        System.arraycopy(part, 0, values, from, part.length);
+    }
+
     class Identity implements ActivationFunction {
 
         @Override
         public void eval(float[] values) {
 
         }
+
+        @Override
+        public void eval(float[] values, int from, int to) {
+
+        }
     }
 
     class SELU implements ActivationFunction {
@@ -37,7 +57,12 @@ public interface ActivationFunction {
         private final static double lambda = 1.0507009873554804934193349852946;
         @Override
         public void eval(float[] values) {
-            for (int i=0; i < values.length; ++i) {
+            eval(values, 0, values.length);
+        }
+
+        @Override
+        public void eval(float[] values, int from, int to) {
+            for (int i=from; i < to; ++i) {
                 final double x = values[i];
                 values[i] = (float)((x > 0) ? lambda*x : lambda*(alpha*Math.exp(x) - alpha));
             }
@@ -47,7 +72,12 @@ public interface ActivationFunction {
     class Tanh implements ActivationFunction {
         @Override
         public void eval(float[] values) {
-            for (int i=0; i < values.length; ++i) {
+            eval(values, 0, values.length);
+        }
+
+        @Override
+        public void eval(float[] values, int from, int to) {
+            for (int i=from; i < to; ++i) {
                 values[i] = (float)Math.tanh(values[i]);
             }
         }
@@ -56,7 +86,12 @@ public interface ActivationFunction {
     class ReLu implements ActivationFunction {
         @Override
         public void eval(float[] values) {
-            for (int i=0; i < values.length; ++i) {
+            eval(values, 0, values.length);
+        }
+
+        @Override
+        public void eval(float[] values, int from, int to) {
+            for (int i=from; i < to; ++i) {
                 values[i] = Math.max(0, values[i]);
             }
         }
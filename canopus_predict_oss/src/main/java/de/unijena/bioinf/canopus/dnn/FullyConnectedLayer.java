@@ -20,14 +20,48 @@
 
 package de.unijena.bioinf.canopus.dnn;
 
+import de.unijena.bioinf.ms.properties.PropertyManager;
 import org.ejml.data.FMatrixRMaj;
 import org.ejml.dense.row.CommonOps_FDRM;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 
 public class FullyConnectedLayer {
+
+    /**
+     * EJML computes the matrix product and applies bias and activation in separate passes. FUSED computes bias,
+     * product and activation in one pass over blocks of input rows, using plain loops over contiguous arrays
+     * that the JIT compiles to SIMD instructions.
+     */
+    public enum Backend {EJML, FUSED}
+
+    private static final String BACKEND_PROPERTY = "de.unijena.bioinf.canopus.dnn.backend";
+
+    private static volatile Backend defaultBackend = parseBackend(PropertyManager.getProperty(BACKEND_PROPERTY, null, Backend.EJML.name()));
+
+    // number of input rows that share one pass over the weight matrix
+    private static final int ROW_BLOCK = 4;
+
+    static Backend parseBackend(String value) {
+        try {
+            return Backend.valueOf(value.trim().toUpperCase());
+        } catch (RuntimeException e) {
+            LoggerFactory.getLogger(FullyConnectedLayer.class).warn("Unknown value '" + value + "' for property '" + BACKEND_PROPERTY + "'. Falling back to " + Backend.EJML + ".");
+            return Backend.EJML;
+        }
+    }
+
+    public static Backend getDefaultBackend() {
+        return defaultBackend;
+    }
+
+    public static void setDefaultBackend(Backend backend) {
+        defaultBackend = backend;
+    }
+
     protected FMatrixRMaj W;
     protected float[] B;
     protected ActivationFunction activationFunction;
@@ -69,6 +103,14 @@ public class FullyConnectedLayer {
     }
 
     public FMatrixRMaj eval(FMatrixRMaj input) {
+        return eval(input, defaultBackend);
+    }
+
+    public FMatrixRMaj eval(FMatrixRMaj input, Backend backend) {
+        return backend == Backend.FUSED ? evalFused(input) : evalEjml(input);
+    }
+
+    protected FMatrixRMaj evalEjml(FMatrixRMaj input) {
         final float[] storage = new float[B.length*input.numRows];
         final FMatrixRMaj output;
         {
@@ -85,6 +127,30 @@ public class FullyConnectedLayer {
         return output;
     }
 
+    protected FMatrixRMaj evalFused(FMatrixRMaj input) {
+        final int nrows = input.numRows, nin = W.numRows, nout = W.numCols;
+        if (input.numCols != nin)
+            throw new IllegalArgumentException("Input has " + input.numCols + " columns but layer expects " + nin);
+        final float[] x = input.data, w = W.data;
+        final float[] storage = new float[nrows * nout];
+        for (int r0 = 0; r0 < nrows; r0 += ROW_BLOCK) {
+            final int r1 = Math.min(nrows, r0 + ROW_BLOCK);
+            for (int r = r0; r < r1; ++r)
+                System.arraycopy(B, 0, storage, r * nout, nout);
+            for (int k = 0; k < nin; ++k) {
+                final int wOffset = k * nout;
+                for (int r = r0; r < r1; ++r) {
+                    final float a = x[r * nin + k];
+                    final int offset = r * nout;
+                    for (int j = 0; j < nout; ++j)
+                        storage[offset + j] += a * w[wOffset + j];
+                }
+            }
+            activationFunction.eval(storage, r0 * nout, r1 * nout);
+        }
+        return FMatrixRMaj.wrap(nrows, nout, storage);
+    }
+
     public void dump(ObjectOutputStream stream) throws IOException {
         stream.writeInt(activationFunction instanceof ActivationFunction.Identity ? 0 : (activationFunction instanceof ActivationFunction.Tanh ? 1 : (activationFunction instanceof ActivationFunction.ReLu ? 2 : (activationFunction instanceof ActivationFunction.SELU ? 3 : 1000))));
         stream.writeInt(W.numCols);
@@ -0,0 +1,79 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.canopus.dnn;
+
+import org.ejml.data.FMatrixRMaj;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the {@link FullyConnectedLayer.Backend}s on random layers with shapes in the range of the CANOPUS
+ * network, once for single compounds and once for batches.
+ * Usage: LayerBenchmark [batch size] [repetitions] [seed]
+ */
+public class LayerBenchmark {
+
+    // input size, output size
+    private static final int[][] SHAPES = new int[][]{{28, 64}, {64, 64}, {3000, 1000}, {1064, 2000}, {2000, 2000}, {2000, 2500}};
+
+    public static void main(String[] args) {
+        final int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        final int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        final Random random = new Random(seed);
+
+        System.out.println("shape\trows\tEJML ms\tFUSED ms\tspeedup\tmax abs diff");
+        for (int[] shape : SHAPES) {
+            final FullyConnectedLayer layer = new FullyConnectedLayer(shape[0], shape[1],
+                    randomArray(random, shape[0] * shape[1], 1f / (float) Math.sqrt(shape[0])), randomArray(random, shape[1], 0.1f), new ActivationFunction.Tanh());
+            for (int rows : new int[]{1, batchSize}) {
+                final FMatrixRMaj input = FMatrixRMaj.wrap(rows, shape[0], randomArray(random, rows * shape[0], 1f));
+                // warm up
+                for (int i = 0; i < 3; ++i) {
+                    layer.eval(input, FullyConnectedLayer.Backend.EJML);
+                    layer.eval(input, FullyConnectedLayer.Backend.FUSED);
+                }
+                final double ejml = time(layer, input, FullyConnectedLayer.Backend.EJML, repetitions);
+                final double fused = time(layer, input, FullyConnectedLayer.Backend.FUSED, repetitions);
+                final float[] a = layer.eval(input, FullyConnectedLayer.Backend.EJML).data;
+                final float[] b = layer.eval(input, FullyConnectedLayer.Backend.FUSED).data;
+                float diff = 0f;
+                for (int i = 0; i < a.length; ++i) diff = Math.max(diff, Math.abs(a[i] - b[i]));
+                System.out.println(String.format(Locale.US, "%dx%d\t%d\t%.3f\t%.3f\t%.2f\t%.2e",
+                        shape[0], shape[1], rows, ejml, fused, ejml / fused, diff));
+            }
+        }
+    }
+
+    private static double time(FullyConnectedLayer layer, FMatrixRMaj input, FullyConnectedLayer.Backend backend, int repetitions) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < repetitions; ++i)
+            layer.eval(input, backend);
+        return (System.nanoTime() - start) / 1e6 / repetitions;
+    }
+
+    private static float[] randomArray(Random random, int size, float scale) {
+        final float[] values = new float[size];
+        for (int i = 0; i < size; ++i) values[i] = (float) random.nextGaussian() * scale;
+        return values;
+    }
+}
@@ -0,0 +1,43 @@
+package de.unijena.bioinf.canopus.dnn;
+
+import org.ejml.data.FMatrixRMaj;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FullyConnectedLayerTest {
+
+    @Test
+    public void testFusedEqualsEjml() {
+        final ActivationFunction[] functions = {new ActivationFunction.Identity(), new ActivationFunction.Tanh(),
+                new ActivationFunction.ReLu(), new ActivationFunction.SELU()};
+        final Random random = new Random(5);
+        for (ActivationFunction function : functions) {
+            final int nin = 37, nout = 23;
+            final float[] w = new float[nin * nout], b = new float[nout];
+            for (int i = 0; i < w.length; ++i) w[i] = (float) random.nextGaussian() * 0.3f;
+            for (int i = 0; i < b.length; ++i) b[i] = (float) random.nextGaussian() * 0.1f;
+            final FullyConnectedLayer layer = new FullyConnectedLayer(nin, nout, w, b, function);
+
+            //7 rows to cover an incomplete row block, zero inputs as they occur after ReLu
+            final FMatrixRMaj input = new FMatrixRMaj(7, nin);
+            for (int i = 0; i < input.data.length; ++i)
+                input.data[i] = random.nextBoolean() ? 0f : (float) random.nextGaussian();
+
+            final FMatrixRMaj ejml = layer.eval(input, FullyConnectedLayer.Backend.EJML);
+            final FMatrixRMaj fused = layer.eval(input, FullyConnectedLayer.Backend.FUSED);
+            assertEquals(ejml.numRows, fused.numRows);
+            assertEquals(ejml.numCols, fused.numCols);
+            for (int i = 0; i < ejml.data.length; ++i)
+                assertEquals(function.getClass().getSimpleName(), ejml.data[i], fused.data[i], 1e-4f);
+        }
+    }
+
+    @Test
+    public void testInvalidBackendFallsBackToEjml() {
+        assertEquals(FullyConnectedLayer.Backend.FUSED, FullyConnectedLayer.parseBackend("fused"));
+        assertEquals(FullyConnectedLayer.Backend.EJML, FullyConnectedLayer.parseBackend("gpu"));
+    }
+}
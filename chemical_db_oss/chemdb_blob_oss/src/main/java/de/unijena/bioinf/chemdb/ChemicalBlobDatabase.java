@@ -36,23 +36,26 @@ import de.unijena.bioinf.storage.blob.AbstractCompressible;
 import de.unijena.bioinf.storage.blob.BlobStorage;
 import de.unijena.bioinf.storage.blob.BlobStorages;
 import de.unijena.bioinf.storage.blob.Compressible;
+import de.unijena.bioinf.storage.blob.file.FileBlobStorage;
 import gnu.trove.map.TObjectLongMap;
 import gnu.trove.map.hash.TObjectLongHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
-public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractCompressible implements AbstractChemicalDatabase {
+public class ChemicalBlobDatabase<Storage extends BlobStorage> extends AbstractCompressible implements AbstractChemicalDatabase, SearchCandidateBlockByFormula {
 public enum Format {
-    CSV(".csv"), JSON(".json");
+    CSV(".csv"), JSON(".json"), BINARY(".bin");
     public final String ext;
 
     Format(@NotNull String ext) {
@@ -73,6 +76,8 @@ public enum Format {
             return CSV;
         if (s.endsWith(JSON.ext()))
             return JSON;
+        if (s.endsWith(BINARY.ext()))
+            return BINARY;
         return null;
     }
 }
@@ -88,7 +93,7 @@ public enum Format {
     public static final Set<String> CONFIG_BLOBS = Set.of(BLOB_FORMULAS, BLOB_SETTINGS);
 
     protected final Storage storage;
-    protected Format format; // csv or json
+    protected Format format; // csv, json or binary
     protected CompoundReader reader;
     protected MolecularFormula[] formulas;
     protected final TObjectLongMap<MolecularFormula> formulaFlags = new TObjectLongHashMap<>();
@@ -139,7 +144,7 @@ public enum Format {
             while (it.hasNext()) {
                 BlobStorage.Blob blob = it.next();
                 String fname = blob.getFileName();
-                if (!blob.isDirectory() && !fname.toUpperCase().startsWith(BLOB_SETTINGS)) {
+                if (!blob.isDirectory() && !fname.toUpperCase().startsWith(BLOB_SETTINGS) && !fname.startsWith(BLOB_FORMULAS + ".")) {
                     compression = Compression.fromName(fname);
                     format = Format.fromName(fname.substring(0, fname.length() - compression.ext().length()));
                     break;
@@ -155,9 +160,19 @@ public enum Format {
             }
         }
 
-        this.reader = format == Format.CSV ? new CSVReader() : new JSONReader();
+        switch (format) {
+            case CSV:
+                this.reader = new CSVReader();
+                break;
+            case BINARY:
+                this.reader = new CandidateBlockReader();
+                break;
+            default:
+                this.reader = new JSONReader();
+        }
 
-        @NotNull Optional<Reader> optReader = getReader(BLOB_FORMULAS);
+        @NotNull Optional<Reader> optReader = getStream(BLOB_FORMULAS, getFormulaIndexFormat())
+                .map(inputStream -> new InputStreamReader(inputStream, storage.getCharset()));
         if (optReader.isPresent()) {
             try (Reader r = optReader.get()) {
                 final Map<String, String> map = new ObjectMapper().readValue(r, new TypeReference<>() {
@@ -190,6 +205,13 @@ public enum Format {
         }
     }
 
+    /**
+     * The formula index is always JSON. Binary databases name it accordingly, all other formats use the format of the database.
+     */
+    protected Format getFormulaIndexFormat() {
+        return format == Format.BINARY ? Format.JSON : format;
+    }
+
     @NotNull
     public Optional<Reader> getCompoundReader(@NotNull MolecularFormula formula) throws IOException {
         return getReader(formula.toString());
@@ -215,7 +237,12 @@ public enum Format {
          */
     @NotNull
     public Optional<InputStream> getStream(@NotNull String name) throws IOException {
-        return Compressible.decompressRawStream(storage.reader(Path.of(name + format.ext() + getCompression().ext())), getCompression(), isDecompressStreams());
+        return getStream(name, format);
+    }
+
+    @NotNull
+    protected Optional<InputStream> getStream(@NotNull String name, @NotNull Format fileFormat) throws IOException {
+        return Compressible.decompressRawStream(storage.reader(Path.of(name + fileFormat.ext() + getCompression().ext())), getCompression(), isDecompressStreams());
     }
 
     /**
@@ -230,6 +257,69 @@ public enum Format {
     }
 
 
+    @Override
+    public FingerprintVersion getFingerprintVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the candidates of the given formula as binary {@link CandidateBlock} without deserializing them.
+     * Uncompressed blobs of a {@link FileBlobStorage} are memory mapped, all other blobs are read into memory.
+     * Candidates of other formats are converted on the fly.
+     *
+     * @return candidate block or empty if the formula is not contained
+     */
+    @Override
+    public Optional<CandidateBlock> lookupCandidateBlock(@NotNull MolecularFormula formula) throws ChemicalDatabaseException {
+        try {
+            if (format == Format.BINARY) {
+                if (storage instanceof FileBlobStorage && getCompression() == Compression.NONE) {
+                    final ByteBuffer mapped = ((FileBlobStorage) storage).map(Path.of(formula + format.ext()));
+                    return mapped == null ? Optional.empty() : Optional.of(CandidateBlock.wrap(mapped));
+                }
+                try (InputStream in = getCompoundStream(formula).orElse(null)) {
+                    return in == null ? Optional.empty() : Optional.of(CandidateBlock.read(in));
+                }
+            }
+
+            final List<FingerprintCandidate> candidates = lookupStructuresAndFingerprintsByFormula(formula);
+            if (candidates.isEmpty())
+                return Optional.empty();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CandidateBlock.write(candidates, out);
+            return Optional.of(CandidateBlock.wrap(ByteBuffer.wrap(out.toByteArray())));
+        } catch (IOException e) {
+            throw new ChemicalDatabaseException(e);
+        }
+    }
+
+    /**
+     * Converts all formula blobs of this database into binary candidate blocks and writes them into the given storage.
+     * Formula index and tags are copied. Use {@link Compression#NONE} to allow memory mapping of the blocks.
+     */
+    public void convertToBinary(@NotNull BlobStorage target, @NotNull Compression targetCompression) throws IOException {
+        for (MolecularFormula formula : formulas) {
+            final List<FingerprintCandidate> candidates = lookupStructuresAndFingerprintsByFormula(formula);
+            target.withWriter(Path.of(formula + Format.BINARY.ext() + targetCompression.ext()), out ->
+                    Compressible.withCompression(out, targetCompression, compressed -> CandidateBlock.write(candidates, compressed)));
+        }
+
+        if (!formulaFlags.isEmpty()) {
+            final Map<String, String> index = new HashMap<>(formulaFlags.size());
+            formulaFlags.forEachEntry((f, flag) -> {
+                index.put(f.toString(), String.valueOf(flag));
+                return true;
+            });
+            target.withWriter(Path.of(BLOB_FORMULAS + Format.JSON.ext() + targetCompression.ext()), out ->
+                    Compressible.withCompression(out, targetCompression, compressed -> new ObjectMapper().writeValue(compressed, index)));
+        }
+
+        final Map<String, String> tags = new HashMap<>(storage.getTags());
+        tags.put(TAG_FORMAT, Format.BINARY.name());
+        tags.put(TAG_COMPRESSION, targetCompression.name());
+        target.setTags(tags);
+    }
+
     public boolean containsFormula(MolecularFormula formula) {
         return ChemDBs.containsFormula(formulas, formula);
     }
@@ -282,6 +372,13 @@ public enum Format {
 
     @Override
     public <T extends Collection<FingerprintCandidate>> T lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, T fingerprintCandidates) throws ChemicalDatabaseException {
+        if (format == Format.BINARY) {
+            lookupCandidateBlock(formula).ifPresent(block -> {
+                for (int i = 0; i < block.size(); i++)
+                    fingerprintCandidates.add(block.getFingerprintCandidate(i, version));
+            });
+            return fingerprintCandidates;
+        }
         try (final InputStream blobReader = getCompoundStream(formula).orElse(null)) {
             if (blobReader != null) {
                 try (final CloseableIterator<FingerprintCandidate> iter = reader.readFingerprints(version, blobReader)) {
@@ -27,9 +27,11 @@ import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.auth.AuthService;
 import de.unijena.bioinf.fingerid.utils.FingerIDProperties;
 import de.unijena.bioinf.jjobs.Partition;
+import de.unijena.bioinf.ms.properties.PropertyManager;
 import de.unijena.bioinf.ms.rest.client.chemdb.ChemDBClient;
 import de.unijena.bioinf.ms.rest.client.chemdb.StructureSearchClient;
 import de.unijena.bioinf.storage.blob.BlobStorage;
+import de.unijena.bioinf.storage.blob.Compressible;
 import de.unijena.bioinf.storage.blob.file.FileBlobStorage;
 import okhttp3.OkHttpClient;
 import org.jetbrains.annotations.NotNull;
@@ -55,6 +57,13 @@ public class RESTDatabase implements AbstractChemicalDatabase {
     protected long filter;
 
 
+    /**
+     * Maximum size of the local structure cache in bytes. Least recently used formulas are evicted.
+     */
+    public static long defaultCacheMaxBytes() {
+        return PropertyManager.getLong("de.unijena.bioinf.chemdb.cache.maxBytes", Long.MAX_VALUE);
+    }
+
     public static BlobStorage defaultCache() {
         final String val = System.getenv("CSI_FINGERID_STORAGE");
         if (val != null) return new FileBlobStorage(Path.of(val));
@@ -90,7 +99,7 @@ public class RESTDatabase implements AbstractChemicalDatabase {
                     throw new ChemicalDatabaseException(e);
                 }
             }
-        });
+        }, Compressible.Compression.GZIP, defaultCacheMaxBytes());
     }
 
     // closes clients
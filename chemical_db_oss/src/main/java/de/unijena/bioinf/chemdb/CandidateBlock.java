@@ -0,0 +1,379 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.fp.ArrayFingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
+import gnu.trove.list.array.TShortArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Columnar binary representation of all candidates of one molecular formula.
+ * The block is a read only view on a (possibly memory mapped) {@link ByteBuffer}. Fingerprints and numeric
+ * values can be accessed without deserializing any strings.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * int magic, int format version, int number of candidates n, int number of fingerprint words w
+ * long[n]   db flags
+ * double[n] xlogp
+ * int[n]    pLayer
+ * int[n]    qLayer
+ * long[n*w] fingerprints as bitsets of relative indices, w = (fingerprint version size + 64) / 64 or 0 if no candidate has a fingerprint
+ * int[n*6+1] offsets of the strings (inchikey, inchi, smiles, name, links, pubmed ids) in the string heap
+ * byte[]    UTF-8 string heap
+ * </pre>
+ * Fingerprint bitsets use the relative indices of the fingerprint version the candidates were written with, usually
+ * the full (unmasked) fingerprint version of the database. The same fingerprint version has to be used for reading.
+ * Scorers work on the relative indices of a masked version instead, use an {@link IndexMapping} to read bitsets
+ * in the indices of such a version without unpacking the fingerprints.
+ */
+public class CandidateBlock {
+    public static final int MAGIC = 0x53434231; // SCB1
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int INCHIKEY = 0, INCHI = 1, SMILES = 2, NAME = 3, LINKS = 4, PUBMED = 5, STRING_COLUMNS = 6;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    private static final char LINK_SEP = '\u001E', ID_SEP = '\u001F';
+
+    private final ByteBuffer buffer;
+    private final int size, fingerprintWords;
+    private final int flagsPos, xlogpPos, pLayerPos, qLayerPos, fingerprintPos, stringOffsetsPos, heapPos;
+
+    private CandidateBlock(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC)
+            throw new IOException("Data is not a binary candidate block.");
+        if (buffer.getInt(4) != FORMAT_VERSION)
+            throw new IOException("Unsupported candidate block version: " + buffer.getInt(4));
+        this.size = buffer.getInt(8);
+        this.fingerprintWords = buffer.getInt(12);
+        this.flagsPos = HEADER_BYTES;
+        this.xlogpPos = flagsPos + size * Long.BYTES;
+        this.pLayerPos = xlogpPos + size * Double.BYTES;
+        this.qLayerPos = pLayerPos + size * Integer.BYTES;
+        this.fingerprintPos = qLayerPos + size * Integer.BYTES;
+        this.stringOffsetsPos = fingerprintPos + size * fingerprintWords * Long.BYTES;
+        this.heapPos = stringOffsetsPos + (size * STRING_COLUMNS + 1) * Integer.BYTES;
+        if (heapPos > buffer.limit() || heapPos + buffer.getInt(heapPos - Integer.BYTES) > buffer.limit())
+            throw new IOException("Candidate block is truncated.");
+    }
+
+    /**
+     * Creates a view on the given buffer. The data is not copied.
+     */
+    public static CandidateBlock wrap(@NotNull ByteBuffer buffer) throws IOException {
+        return new CandidateBlock(buffer.slice());
+    }
+
+    public static CandidateBlock read(@NotNull InputStream in) throws IOException {
+        return wrap(ByteBuffer.wrap(in.readAllBytes()));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean hasFingerprints() {
+        return fingerprintWords > 0;
+    }
+
+    public long getBitset(int i) {
+        return buffer.getLong(flagsPos + i * Long.BYTES);
+    }
+
+    public double getXlogp(int i) {
+        return buffer.getDouble(xlogpPos + i * Double.BYTES);
+    }
+
+    public int getpLayer(int i) {
+        return buffer.getInt(pLayerPos + i * Integer.BYTES);
+    }
+
+    public int getqLayer(int i) {
+        return buffer.getInt(qLayerPos + i * Integer.BYTES);
+    }
+
+    public boolean isSet(int i, int relativeIndex) {
+        final int word = relativeIndex >>> 6;
+        if (word >= fingerprintWords) return false;
+        return (buffer.getLong(fingerprintPos + (i * fingerprintWords + word) * Long.BYTES) & (1L << relativeIndex)) != 0;
+    }
+
+    /**
+     * Copies the fingerprint of the i-th candidate as bitset of relative indices into the given buffer.
+     * Words beyond the stored ones are cleared. A new buffer is allocated only if the given one is null or too small.
+     */
+    public long[] getFingerprintWords(int i, @Nullable long[] words) {
+        if (words == null || words.length < fingerprintWords) words = new long[fingerprintWords];
+        final int offset = fingerprintPos + i * fingerprintWords * Long.BYTES;
+        for (int w = 0; w < fingerprintWords; w++)
+            words[w] = buffer.getLong(offset + w * Long.BYTES);
+        Arrays.fill(words, fingerprintWords, words.length, 0L);
+        return words;
+    }
+
+    /**
+     * Copies the fingerprint of the i-th candidate as bitset of relative indices of the mapping's target version into
+     * the given buffer. The bitset has (target size + 64) / 64 words, i.e. one spare bit, as expected by scorers on
+     * bitsets. A new buffer is allocated only if the given one is null or too small.
+     */
+    public long[] getFingerprintWords(int i, @NotNull IndexMapping mapping, @Nullable long[] words) {
+        checkVersion(mapping.source);
+        final int targetWords = mapping.getTargetWords();
+        if (words == null || words.length < targetWords) words = new long[targetWords];
+        else Arrays.fill(words, 0L);
+        final int[] sourceToTarget = mapping.sourceToTarget;
+        final int offset = fingerprintPos + i * fingerprintWords * Long.BYTES;
+        for (int w = 0; w < fingerprintWords; w++) {
+            long word = buffer.getLong(offset + w * Long.BYTES);
+            while (word != 0) {
+                final int target = sourceToTarget[(w << 6) + Long.numberOfTrailingZeros(word)];
+                if (target >= 0) words[target >>> 6] |= 1L << target;
+                word &= word - 1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return the fingerprint of the i-th candidate in the mapping's target version
+     */
+    public ArrayFingerprint getFingerprint(int i, @NotNull IndexMapping mapping) {
+        checkVersion(mapping.source);
+        final int[] sourceToTarget = mapping.sourceToTarget;
+        final TShortArrayList indizes = new TShortArrayList();
+        final int offset = fingerprintPos + i * fingerprintWords * Long.BYTES;
+        for (int w = 0; w < fingerprintWords; w++) {
+            long word = buffer.getLong(offset + w * Long.BYTES);
+            while (word != 0) {
+                final int target = sourceToTarget[(w << 6) + Long.numberOfTrailingZeros(word)];
+                if (target >= 0) indizes.add((short) mapping.target.getAbsoluteIndexOf(target));
+                word &= word - 1;
+            }
+        }
+        return new ArrayFingerprint(mapping.target, indizes.toArray());
+    }
+
+    private void checkVersion(FingerprintVersion version) {
+        if (fingerprintWords > 0 && fingerprintWords != (version.size() + 64) >>> 6)
+            throw new IllegalArgumentException("Fingerprint version of size " + version.size() + " does not match the candidate block.");
+    }
+
+    /**
+     * @param version the fingerprint version the block was written with. Blocks without fingerprints yield empty fingerprints.
+     */
+    public ArrayFingerprint getFingerprint(int i, @NotNull FingerprintVersion version) {
+        checkVersion(version);
+        final TShortArrayList indizes = new TShortArrayList();
+        final int offset = fingerprintPos + i * fingerprintWords * Long.BYTES;
+        for (int w = 0; w < fingerprintWords; w++) {
+            long word = buffer.getLong(offset + w * Long.BYTES);
+            while (word != 0) {
+                indizes.add((short) version.getAbsoluteIndexOf((w << 6) + Long.numberOfTrailingZeros(word)));
+                word &= word - 1;
+            }
+        }
+        return new ArrayFingerprint(version, indizes.toArray());
+    }
+
+    public String getInchiKey(int i) {
+        return getString(i, INCHIKEY);
+    }
+
+    public String getInchi(int i) {
+        return getString(i, INCHI);
+    }
+
+    public String getSmiles(int i) {
+        return getString(i, SMILES);
+    }
+
+    public String getName(int i) {
+        return getString(i, NAME);
+    }
+
+    public ArrayList<DBLink> getLinks(int i) {
+        final ArrayList<DBLink> links = new ArrayList<>();
+        final String s = getString(i, LINKS);
+        if (s == null) return links;
+        for (String link : s.split(String.valueOf(LINK_SEP))) {
+            final int sep = link.indexOf(ID_SEP);
+            links.add(sep < 0 ? new DBLink(link, null) : new DBLink(link.substring(0, sep), link.substring(sep + 1)));
+        }
+        return links;
+    }
+
+    @Nullable
+    public PubmedLinks getPubmedIDs(int i) {
+        final String s = getString(i, PUBMED);
+        return s == null ? null : PubmedLinks.fromString(s);
+    }
+
+    public CompoundCandidate getCompound(int i) {
+        return new CompoundCandidate(new InChI(getInchiKey(i), getInchi(i)), getName(i), getSmiles(i),
+                getpLayer(i), getqLayer(i), getXlogp(i), null, getBitset(i), getLinks(i), getPubmedIDs(i));
+    }
+
+    public FingerprintCandidate getFingerprintCandidate(int i, @NotNull FingerprintVersion version) {
+        return new FingerprintCandidate(getCompound(i), getFingerprint(i, version));
+    }
+
+    public List<FingerprintCandidate> getFingerprintCandidates(@NotNull FingerprintVersion version) {
+        final List<FingerprintCandidate> candidates = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            candidates.add(getFingerprintCandidate(i, version));
+        return candidates;
+    }
+
+    /**
+     * Maps the relative indices of the version a block was written with to the relative indices of a masked version,
+     * e.g. the version of a predicted fingerprint. Properties that are not part of the masked version are dropped.
+     * A mapping is immutable and can be shared between threads and blocks.
+     */
+    public static final class IndexMapping {
+        private final FingerprintVersion source;
+        private final MaskedFingerprintVersion target;
+        private final int[] sourceToTarget;
+
+        public IndexMapping(@NotNull FingerprintVersion source, @NotNull MaskedFingerprintVersion target) {
+            this.source = source;
+            this.target = target;
+            // one spare entry, as bitsets may have unused bits up to the next word
+            this.sourceToTarget = new int[((source.size() + 64) >>> 6) << 6];
+            Arrays.fill(sourceToTarget, -1);
+            for (int relative = 0; relative < source.size(); relative++) {
+                final int absolute = source.getAbsoluteIndexOf(relative);
+                if (target.hasProperty(absolute)) sourceToTarget[relative] = target.getRelativeIndexOf(absolute);
+            }
+        }
+
+        public FingerprintVersion getSource() {
+            return source;
+        }
+
+        public MaskedFingerprintVersion getTarget() {
+            return target;
+        }
+
+        public int getTargetWords() {
+            return (target.size() + 64) >>> 6;
+        }
+    }
+
+    @Nullable
+    private String getString(int i, int column) {
+        final int idx = stringOffsetsPos + (i * STRING_COLUMNS + column) * Integer.BYTES;
+        final int start = buffer.getInt(idx), end = buffer.getInt(idx + Integer.BYTES);
+        if (start == end) return null;
+        final byte[] bytes = new byte[end - start];
+        buffer.duplicate().position(heapPos + start).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the given candidates as binary candidate block. Empty strings are stored like null values.
+     * All fingerprints have to share the same fingerprint version, candidates without fingerprint are stored with an empty one.
+     */
+    public static void write(@NotNull Collection<? extends CompoundCandidate> candidates, @NotNull OutputStream out) throws IOException {
+        final int size = candidates.size();
+        FingerprintVersion version = null;
+        for (CompoundCandidate c : candidates) {
+            final Fingerprint fp = c instanceof FingerprintCandidate ? ((FingerprintCandidate) c).getFingerprint() : null;
+            if (fp == null) continue;
+            if (version == null) version = fp.getFingerprintVersion();
+            else if (!version.identical(fp.getFingerprintVersion()))
+                throw new IllegalArgumentException("All fingerprints of a candidate block must share the same fingerprint version.");
+        }
+        final int fingerprintWords = version == null ? 0 : (version.size() + 64) >>> 6;
+
+        final ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        final int[] offsets = new int[size * STRING_COLUMNS + 1];
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(size);
+        data.writeInt(fingerprintWords);
+        for (CompoundCandidate c : candidates) data.writeLong(c.getBitset());
+        for (CompoundCandidate c : candidates) data.writeDouble(c.getXlogp());
+        for (CompoundCandidate c : candidates) data.writeInt(c.getpLayer());
+        for (CompoundCandidate c : candidates) data.writeInt(c.getqLayer());
+
+        final long[] words = new long[fingerprintWords];
+        int k = 0;
+        for (CompoundCandidate c : candidates) {
+            if (fingerprintWords > 0) {
+                if (c instanceof FingerprintCandidate && ((FingerprintCandidate) c).getFingerprint() != null)
+                    ((FingerprintCandidate) c).getFingerprint().toBitset(words);
+                else
+                    Arrays.fill(words, 0L);
+                for (long word : words) data.writeLong(word);
+            }
+
+            offsets[k++] = heap.size();
+            writeString(heap, c.getInchiKey2D());
+            offsets[k++] = heap.size();
+            writeString(heap, c.getInchi() == null ? null : c.getInchi().in3D);
+            offsets[k++] = heap.size();
+            writeString(heap, c.getSmiles());
+            offsets[k++] = heap.size();
+            writeString(heap, c.getName());
+            offsets[k++] = heap.size();
+            writeString(heap, linksToString(c.getLinks()));
+            offsets[k++] = heap.size();
+            writeString(heap, c.getPubmedIDs() == null || c.getPubmedIDs().getNumberOfPubmedIDs() == 0 ? null : c.getPubmedIDs().toString());
+        }
+        offsets[k] = heap.size();
+
+        for (int offset : offsets) data.writeInt(offset);
+        heap.writeTo(data);
+        data.flush();
+    }
+
+    private static void writeString(ByteArrayOutputStream heap, @Nullable String s) {
+        if (s != null && !s.isEmpty())
+            heap.writeBytes(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Nullable
+    private static String linksToString(@Nullable List<DBLink> links) {
+        if (links == null || links.isEmpty()) return null;
+        final StringBuilder buf = new StringBuilder();
+        for (DBLink link : links) {
+            if (buf.length() > 0) buf.append(LINK_SEP);
+            buf.append(link.name);
+            if (link.id != null) buf.append(ID_SEP).append(link.id);
+        }
+        return buf.toString();
+    }
+}
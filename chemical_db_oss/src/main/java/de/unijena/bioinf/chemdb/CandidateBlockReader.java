@@ -0,0 +1,82 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.babelms.CloseableIterator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+
+/**
+ * Reads candidates from a binary {@link CandidateBlock}.
+ */
+class CandidateBlockReader extends CompoundReader {
+
+    @Override
+    public CloseableIterator<CompoundCandidate> readCompounds(InputStream reader) throws IOException {
+        return readCompounds(CandidateBlock.read(reader));
+    }
+
+    @Override
+    public CloseableIterator<FingerprintCandidate> readFingerprints(FingerprintVersion version, InputStream reader) throws IOException {
+        return readFingerprints(version, CandidateBlock.read(reader));
+    }
+
+    public CloseableIterator<CompoundCandidate> readCompounds(CandidateBlock block) {
+        return new READ<>(block.size(), block::getCompound);
+    }
+
+    /**
+     * Candidates of blocks without fingerprints are returned with empty fingerprints.
+     */
+    public CloseableIterator<FingerprintCandidate> readFingerprints(FingerprintVersion version, CandidateBlock block) {
+        return new READ<>(block.size(), i -> block.getFingerprintCandidate(i, version));
+    }
+
+    private static class READ<C extends CompoundCandidate> implements CloseableIterator<C> {
+        private final int size;
+        private final IntFunction<C> get;
+        private int next = 0;
+
+        private READ(int size, IntFunction<C> get) {
+            this.size = size;
+            this.get = get;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public C next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return get.apply(next++);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -22,11 +22,11 @@ package de.unijena.bioinf.chemdb;
 
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
-import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.babelms.CloseableIterator;
 import de.unijena.bioinf.storage.blob.AbstractCompressible;
 import de.unijena.bioinf.storage.blob.BlobStorage;
 import de.unijena.bioinf.storage.blob.Compressible;
+import de.unijena.bioinf.storage.blob.LRUBlobCache;
 import de.unijena.bioinf.storage.blob.file.FileBlobStorage;
 import de.unijena.bioinf.storage.blob.memory.InMemoryBlobStorage;
 import org.jetbrains.annotations.NotNull;
@@ -43,20 +43,34 @@ import java.util.stream.Collectors;
  * Class to read-cache any kind of {@link SearchStructureByFormula} using a {@link BlobStorage}.
  * Using a local {@link FileBlobStorage} or an {@link InMemoryBlobStorage} as cache is recommended
  * to ensure that the cache is faster enough to have positive impact on performance compared to the  actual resource.
+ * The cache size can be bounded by a byte budget, least recently used formulas are evicted (see {@link LRUBlobCache}).
  */
 public class ChemDBFileCache extends AbstractCompressible {
 
     protected final BlobStorage cacheStorage;
     protected final SearchStructureByFormula structureProvider;
+    protected final LRUBlobCache cache;
 
     public ChemDBFileCache(@NotNull BlobStorage cacheStorage, @NotNull SearchStructureByFormula structureProvider1) {
         this(cacheStorage, structureProvider1, Compression.GZIP);
     }
 
     public ChemDBFileCache(@NotNull BlobStorage cacheStorage, @NotNull SearchStructureByFormula structureProvider1, Compression compression) {
+        this(cacheStorage, structureProvider1, compression, Long.MAX_VALUE);
+    }
+
+    public ChemDBFileCache(@NotNull BlobStorage cacheStorage, @NotNull SearchStructureByFormula structureProvider1, Compression compression, long maxCacheBytes) {
         super(compression);
         this.cacheStorage = cacheStorage;
         this.structureProvider = structureProvider1;
+        this.cache = LRUBlobCache.of(cacheStorage, maxCacheBytes);
+    }
+
+    /**
+     * @return the cache layer providing hit/miss/eviction statistics
+     */
+    public LRUBlobCache getCache() {
+        return cache;
     }
 
     public List<FingerprintCandidate> lookupStructuresAndFingerprintsByFormula(MolecularFormula formula, long filter) throws ChemicalDatabaseException {
@@ -68,9 +82,10 @@ public class ChemDBFileCache extends AbstractCompressible {
 
         try {
             List<FingerprintCandidate> fpcs = new ArrayList<>();
-            if (cacheStorage.hasBlob(blobKey)) {
+            final InputStream cached = cache.reader(blobKey);
+            if (cached != null) {
                 try {
-                    try(InputStream i = cacheStorage.reader(blobKey)){
+                    try(InputStream i = cached){
                         try (final CloseableIterator<FingerprintCandidate> fciter = new JSONReader().readFingerprints(CdkFingerprintVersion.getDefault(),
                                 Compressible.decompressRawStream(i, getCompression()).get())) {
                             while (fciter.hasNext())
@@ -92,14 +107,10 @@ public class ChemDBFileCache extends AbstractCompressible {
     }
 
     private List<FingerprintCandidate> requestFormulaAndCache(final @NotNull Path relative, MolecularFormula formula) throws IOException {
-        //get unfiltered list from server to write cache.
-        final List<FingerprintCandidate> fpcs = structureProvider.lookupStructuresAndFingerprintsByFormula(formula);
-
-        // write cache in background -> cache has to be unfiltered
-        SiriusJobs.runInBackgroundIO(() ->
-                cacheStorage.withWriter(relative, w -> Compressible.withCompression(w, getCompression(), cw -> FingerprintCandidate.toJSONList(fpcs, cw))));
-
-        return fpcs;
+        // concurrent requests for the same formula wait for the first one
+        // get unfiltered list from server, the cache is written in background -> cache has to be unfiltered
+        return cache.singleFlight(relative, () -> structureProvider.lookupStructuresAndFingerprintsByFormula(formula),
+                (fpcs, w) -> Compressible.withCompression(w, getCompression(), cw -> FingerprintCandidate.toJSONList(fpcs, cw)));
     }
 }
 
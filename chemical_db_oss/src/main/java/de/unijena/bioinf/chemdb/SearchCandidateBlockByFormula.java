@@ -0,0 +1,43 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Optional;
+
+/**
+ * Structure search that can also provide the candidates of a formula as packed {@link CandidateBlock}, so they
+ * can be scored without creating a {@link FingerprintCandidate} for every entry.
+ */
+public interface SearchCandidateBlockByFormula extends SearchStructureByFormula {
+    /**
+     * @return candidate block or empty if the formula is not contained
+     */
+    Optional<CandidateBlock> lookupCandidateBlock(@NotNull MolecularFormula formula) throws ChemicalDatabaseException;
+
+    /**
+     * @return the fingerprint version the candidate blocks are written with
+     */
+    FingerprintVersion getFingerprintVersion();
+}
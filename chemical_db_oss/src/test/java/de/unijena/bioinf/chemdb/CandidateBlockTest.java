@@ -0,0 +1,120 @@
+package de.unijena.bioinf.chemdb;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.fp.ArrayFingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.CustomFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CandidateBlockTest {
+
+    //every third property is masked out, so relative and absolute indices differ
+    private static MaskedFingerprintVersion maskedVersion() {
+        final MaskedFingerprintVersion.Builder b = MaskedFingerprintVersion.buildMaskFor(new CustomFingerprintVersion("test", 150));
+        for (int k = 0; k < 150; k += 3) b.disable(k);
+        return b.toMask();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final MaskedFingerprintVersion version = maskedVersion();
+        final List<FingerprintCandidate> candidates = new ArrayList<>();
+        final ArrayList<DBLink> links = new ArrayList<>();
+        links.add(new DBLink("PubChem", "702"));
+        links.add(new DBLink("Custom", null));
+        candidates.add(new FingerprintCandidate(new CompoundCandidate(new InChI("LFQSCWFLJHTTHZ", "InChI=1S/C2H6O/c1-2-3/h3H,2H2,1H3"),
+                "ethanol", "CCO", 1, 0, -0.31, null, 12L, links, new PubmedLinks(1, 42)),
+                new ArrayFingerprint(version, new short[]{1, 4, 50, 149})));
+        candidates.add(new FingerprintCandidate(new CompoundCandidate(new InChI("IKHGUXGNUITLKF", "InChI=1S/C2H4O/c1-2-3/h2H,1H3"),
+                null, "CC=O", 0, 0, -0.2, null, 0L, new ArrayList<>(), null),
+                new ArrayFingerprint(version, new short[0])));
+
+        final CandidateBlock block = roundTrip(candidates);
+        assertEquals(2, block.size());
+        assertTrue(block.hasFingerprints());
+        for (int i = 0; i < candidates.size(); i++) {
+            final FingerprintCandidate expected = candidates.get(i), actual = block.getFingerprintCandidate(i, version);
+            assertEquals(expected.getInchiKey2D(), actual.getInchiKey2D());
+            assertEquals(expected.getInchi().in3D, actual.getInchi().in3D);
+            assertEquals(expected.getSmiles(), actual.getSmiles());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getBitset(), actual.getBitset());
+            assertEquals(expected.getpLayer(), actual.getpLayer());
+            assertEquals(expected.getqLayer(), actual.getqLayer());
+            assertEquals(expected.getXlogp(), actual.getXlogp(), 0d);
+            assertEquals(expected.getLinks(), actual.getLinks());
+            assertArrayEquals(expected.getFingerprint().toIndizesArray(), actual.getFingerprint().toIndizesArray());
+        }
+        assertArrayEquals(new int[]{1, 42}, block.getPubmedIDs(0).getCopyOfPubmedIDs());
+        assertNull(block.getPubmedIDs(1));
+    }
+
+    @Test
+    public void testBitsetsUseRelativeIndices() throws IOException {
+        final MaskedFingerprintVersion version = maskedVersion();
+        final ArrayFingerprint fp = new ArrayFingerprint(version, new short[]{1, 4, 50, 149});
+        final CandidateBlock block = roundTrip(List.of(new FingerprintCandidate(new InChI("LFQSCWFLJHTTHZ", null), fp)));
+
+        final long[] expected = fp.toBitset(new long[(version.size() + 64) >>> 6]);
+        assertArrayEquals(expected, block.getFingerprintWords(0, null));
+        //words beyond the stored ones are cleared when a larger buffer is reused
+        final long[] reused = block.getFingerprintWords(0, new long[]{-1L, -1L, -1L});
+        assertArrayEquals(expected, Arrays.copyOf(reused, expected.length));
+        assertEquals(0L, reused[expected.length]);
+        for (int relative = 0; relative < version.size(); relative++)
+            assertEquals(fp.isSet(version.getAbsoluteIndexOf(relative)), block.isSet(0, relative));
+    }
+
+    @Test
+    public void testMappingToMaskedVersion() throws IOException {
+        final MaskedFingerprintVersion masked = maskedVersion();
+        final FingerprintVersion full = masked.getMaskedFingerprintVersion();
+        //3 and 99 are masked out and have to be dropped
+        final CandidateBlock block = roundTrip(List.of(new FingerprintCandidate(new InChI("LFQSCWFLJHTTHZ", null),
+                new ArrayFingerprint(full, new short[]{1, 3, 4, 50, 99, 149}))));
+        final ArrayFingerprint expected = new ArrayFingerprint(masked, new short[]{1, 4, 50, 149});
+
+        final CandidateBlock.IndexMapping mapping = new CandidateBlock.IndexMapping(full, masked);
+        assertArrayEquals(expected.toBitset(new long[mapping.getTargetWords()]), block.getFingerprintWords(0, mapping, null));
+        final ArrayFingerprint actual = block.getFingerprint(0, mapping);
+        assertEquals(masked, actual.getFingerprintVersion());
+        assertArrayEquals(expected.toIndizesArray(), actual.toIndizesArray());
+    }
+
+    @Test
+    public void testBlockWithoutFingerprints() throws IOException {
+        final MaskedFingerprintVersion version = maskedVersion();
+        final CandidateBlock block = roundTrip(List.of(new CompoundCandidate(new InChI("LFQSCWFLJHTTHZ", null))));
+        assertFalse(block.hasFingerprints());
+        try (CloseableIterator<FingerprintCandidate> it = new CandidateBlockReader().readFingerprints(version, block)) {
+            assertTrue(it.hasNext());
+            assertEquals(0, it.next().getFingerprint().cardinality());
+            assertFalse(it.hasNext());
+        }
+    }
+
+    @Test
+    public void testEmptyBlock() throws IOException {
+        final CandidateBlock block = roundTrip(List.of());
+        assertEquals(0, block.size());
+        assertTrue(block.getFingerprintCandidates(maskedVersion()).isEmpty());
+    }
+
+    private static CandidateBlock roundTrip(Collection<? extends CompoundCandidate> candidates) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CandidateBlock.write(candidates, out);
+        return CandidateBlock.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
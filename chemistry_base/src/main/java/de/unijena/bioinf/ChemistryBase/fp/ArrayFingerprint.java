@@ -84,6 +84,16 @@ public class ArrayFingerprint extends Fingerprint {
         return indizes.clone();
     }
 
+    @Override
+    public long[] toBitset(long[] buffer) {
+        buffer = clearBitset(buffer, fingerprintVersion.size());
+        for (short index : indizes) {
+            final int relative = fingerprintVersion.getRelativeIndexOf(index);
+            buffer[relative >>> 6] |= 1L << relative;
+        }
+        return buffer;
+    }
+
     @Override
     public double tanimoto(Fingerprint other) {
         if (other instanceof ArrayFingerprint) return tanimoto((ArrayFingerprint)other);
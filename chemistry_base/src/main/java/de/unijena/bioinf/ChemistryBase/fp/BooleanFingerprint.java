@@ -63,6 +63,15 @@ public class BooleanFingerprint extends Fingerprint {
         return fingerprint.clone();
     }
 
+    @Override
+    public long[] toBitset(long[] buffer) {
+        buffer = clearBitset(buffer, fingerprint.length);
+        for (int k=0; k < fingerprint.length; ++k) {
+            if (fingerprint[k]) buffer[k >>> 6] |= 1L << k;
+        }
+        return buffer;
+    }
+
     @Override
     public short[] toIndizesArray() {
         TShortArrayList indizes = new TShortArrayList(400);
@@ -22,6 +22,8 @@ package de.unijena.bioinf.ChemistryBase.fp;
 
 import gnu.trove.list.array.TShortArrayList;
 
+import java.util.Arrays;
+
 public abstract class Fingerprint extends AbstractFingerprint {
 
     public Fingerprint(FingerprintVersion fingerprintVersion) {
@@ -36,6 +38,27 @@ public abstract class Fingerprint extends AbstractFingerprint {
     public abstract boolean[] toBooleanArray();
     public abstract short[] toIndizesArray();
 
+    /**
+     * Writes this fingerprint as bitset of relative indizes into the given buffer. The buffer is cleared first.
+     * A new buffer is allocated only if the given one is null or too small.
+     * @return the buffer containing the bitset
+     */
+    public long[] toBitset(long[] buffer) {
+        buffer = clearBitset(buffer, fingerprintVersion.size());
+        for (FPIter iter : presentFingerprints()) {
+            final int relative = fingerprintVersion.getRelativeIndexOf(iter.getIndex());
+            buffer[relative >>> 6] |= 1L << relative;
+        }
+        return buffer;
+    }
+
+    protected static long[] clearBitset(long[] buffer, int numberOfBits) {
+        final int words = (numberOfBits + 63) >>> 6;
+        if (buffer == null || buffer.length < words) return new long[words];
+        Arrays.fill(buffer, 0L);
+        return buffer;
+    }
+
     public static ArrayFingerprint fromOneZeroString(FingerprintVersion version, String fp) {
         fp = fp.trim();
         if (fp.length() != version.size()) throw new RuntimeException("Fingerprint version does not match given string: " + version.size() + " bits vs. " + fp.length());
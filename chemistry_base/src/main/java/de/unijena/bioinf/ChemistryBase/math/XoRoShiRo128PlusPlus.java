@@ -0,0 +1,115 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.ChemistryBase.math;
+
+import java.util.Random;
+
+/**
+ * xoroshiro128++ generator by David Blackman and Sebastiano Vigna (http://prng.di.unimi.it/).
+ * Small state, fast and of high statistical quality. In contrast to {@link HighQualityRandom} this class is NOT thread-safe:
+ * each thread should use its own instance. Independent instances for parallel computations are created by {@link #split()},
+ * which returns a generator whose sequence starts 2^64 steps ahead, so the streams never overlap.
+ */
+public class XoRoShiRo128PlusPlus extends Random {
+    private static final long[] JUMP = {0x2bd7a6a6e99c2ddcL, 0x0992ccaf6a6fca05L};
+
+    private long s0, s1;
+
+    public XoRoShiRo128PlusPlus() {
+        this(System.nanoTime() ^ Double.doubleToLongBits(Math.random()));
+    }
+
+    public XoRoShiRo128PlusPlus(long seed) {
+        super(seed);
+    }
+
+    private XoRoShiRo128PlusPlus(long s0, long s1) {
+        super(0);
+        this.s0 = s0;
+        this.s1 = s1;
+    }
+
+    /**
+     * initializes the state from the seed via SplitMix64
+     */
+    @Override
+    public void setSeed(long seed) {
+        long z = seed;
+        s0 = splitMix64(z += 0x9e3779b97f4a7c15L);
+        s1 = splitMix64(z + 0x9e3779b97f4a7c15L);
+        if ((s0 | s1) == 0) s1 = 1;
+    }
+
+    private static long splitMix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public long nextLong() {
+        final long t0 = s0;
+        long t1 = s1;
+        final long result = Long.rotateLeft(t0 + t1, 17) + t0;
+        t1 ^= t0;
+        s0 = Long.rotateLeft(t0, 49) ^ t1 ^ (t1 << 21);
+        s1 = Long.rotateLeft(t1, 28);
+        return result;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * advances this generator by 2^64 steps
+     */
+    public void jump() {
+        long t0 = 0, t1 = 0;
+        for (long jump : JUMP) {
+            for (int b = 0; b < 64; b++) {
+                if ((jump & (1L << b)) != 0) {
+                    t0 ^= s0;
+                    t1 ^= s1;
+                }
+                nextLong();
+            }
+        }
+        s0 = t0;
+        s1 = t1;
+    }
+
+    /**
+     * @return a generator with the current state of this generator. This generator is advanced by 2^64 steps,
+     * such that both generate non-overlapping sequences.
+     */
+    public XoRoShiRo128PlusPlus split() {
+        final XoRoShiRo128PlusPlus copy = new XoRoShiRo128PlusPlus(s0, s1);
+        jump();
+        return copy;
+    }
+}
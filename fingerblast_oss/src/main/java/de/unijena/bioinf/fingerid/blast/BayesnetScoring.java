@@ -25,6 +25,7 @@ import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.PredictionPerformance;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
 import de.unijena.bioinf.ChemistryBase.math.Statistics;
+import de.unijena.bioinf.chemdb.CandidateBlock;
 import de.unijena.bioinf.fingerid.blast.parameters.ParameterStore;
 import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.map.hash.TIntObjectHashMap;
@@ -389,6 +390,7 @@ public class BayesnetScoring implements FingerblastScoringMethod<BayesnetScoring
                 prepare(node);
             }
 
+            compile();
         }
 
         protected double[] getSmoothedPlatt(ProbabilityFingerprint predicted){
@@ -437,14 +439,153 @@ public class BayesnetScoring implements FingerblastScoringMethod<BayesnetScoring
         }
 
 
+        /*
+        compiled form of the tree: for each node the relative fingerprint indices of the node and its (up to two) parents
+        and a table with the log score of all 8 possible assignments, indexed by this + 2*parent0 + 4*parent1.
+        Missing parents point to an index behind the fingerprint which is never set.
+         */
+        protected boolean useCompiledScoring = true;
+        protected int[] compiledChildren, compiledParents0, compiledParents1;
+        protected double[] compiledLogScores;
+        protected int compiledFingerprintSize;
+        private final ThreadLocal<long[]> bitsetBuffer = new ThreadLocal<>();
+
+        public boolean isCompiledScoring() {
+            return compiledLogScores != null;
+        }
+
+        /**
+         * enable or disable the allocation-free compiled scoring. Takes effect with the next call of prepare.
+         */
+        public void setCompiledScoring(boolean useCompiledScoring) {
+            this.useCompiledScoring = useCompiledScoring;
+        }
+
+        /*
+        flatten the tree into primitive arrays and precompute the log scores of all assignments by evaluating
+        the side-effect free logConditional() once per node and assignment. Thus, subclasses overriding
+        logConditional() are compiled correctly. If some assignment yields a NaN or infinite score, the tree is not
+        compiled and the non-compiled scoring reports the bad score as soon as such a candidate occurs.
+         */
+        protected void compile() {
+            compiledLogScores = null;
+            if (!useCompiledScoring) return;
+            final int size = smoothedPlatt.length;
+            final int[] children = new int[nodeList.length], parents0 = new int[nodeList.length], parents1 = new int[nodeList.length];
+            final double[] logScores = new double[nodeList.length * 8];
+            try {
+                for (int n = 0; n < nodeList.length; n++) {
+                    final AbstractCorrelationTreeNode node = nodeList[n];
+                    final int numberOfParents = node.numberOfParents();
+                    if (numberOfParents > 2) return;
+                    final AbstractCorrelationTreeNode[] parents = numberOfParents == 0 ? null : node.getParents();
+                    children[n] = node.getFingerprintIndex();
+                    parents0[n] = numberOfParents > 0 ? parents[0].getFingerprintIndex() : size;
+                    parents1[n] = numberOfParents > 1 ? parents[1].getFingerprintIndex() : size;
+                    for (int a = 0; a < (2 << numberOfParents); a++) {
+                        final double score = logConditional(node, (a & 1) != 0, (a & 2) != 0, (a & 4) != 0);
+                        if (numberOfParents > 0 && (Double.isNaN(score) || Double.isInfinite(score))) {
+                            Log.debug("Could not compile scoring tree: bad score for node {}. Falling back to non-compiled scoring.", node.getFingerprintIndex());
+                            return;
+                        }
+                        logScores[8 * n + a] = score;
+                    }
+                }
+            } catch (RuntimeException e) {
+                //some assignment cannot be scored. Keep the non-compiled scoring which fails only if such a candidate occurs.
+                Log.debug("Could not compile scoring tree. Falling back to non-compiled scoring.", e);
+                return;
+            }
+            compiledChildren = children;
+            compiledParents0 = parents0;
+            compiledParents1 = parents1;
+            compiledFingerprintSize = size;
+            compiledLogScores = logScores;
+            //compiled scoring always scores every node
+            numberOfScoredNodes = nodeList.length;
+        }
+
+        /**
+         * Scores a candidate given as bitset of relative fingerprint indices against the prepared fingerprint.
+         * Requires compiled scoring.
+         */
+        public double score(long[] databaseEntryBitset) {
+            final double[] logScores = compiledLogScores;
+            if (logScores == null)
+                throw new IllegalStateException("Scorer is not prepared for compiled scoring.");
+            final int[] children = compiledChildren, parents0 = compiledParents0, parents1 = compiledParents1;
+            double logProbability = 0d;
+            for (int n = 0; n < children.length; n++) {
+                logProbability += logScores[(n << 3) | bit(databaseEntryBitset, children[n]) | (bit(databaseEntryBitset, parents0[n]) << 1) | (bit(databaseEntryBitset, parents1[n]) << 2)];
+            }
+            return logProbability;
+        }
+
+        private int bit(long[] bitset, int index) {
+            return (int) (bitset[index >>> 6] >>> index) & 1;
+        }
+
+        /**
+         * Thread safe for disjoint ranges only if the scoring tree is compiled. Otherwise, this falls back to the
+         * non-compiled score() which updates lastFP and numberOfScoredNodes, so such a scorer must not be shared
+         * between threads.
+         */
+        @Override
+        public void scoreBatch(ProbabilityFingerprint fingerprint, Fingerprint[] databaseEntries, int from, int to, double[] scores) {
+            if (compiledLogScores == null) {
+                FingerblastScoring.super.scoreBatch(fingerprint, databaseEntries, from, to, scores);
+                return;
+            }
+            if (preparedProbabilityFingerprint != fingerprint && !preparedProbabilityFingerprint.equals(fingerprint)){
+                throw new RuntimeException("the prepared fingerprint differs from the currently used one.");
+            }
+            final long[] buffer = new long[(compiledFingerprintSize + 64) >>> 6];
+            for (int i = from; i < to; i++) {
+                if (databaseEntries[i].getFingerprintVersion().size() == compiledFingerprintSize) {
+                    databaseEntries[i].toBitset(buffer);
+                    scores[i] = score(buffer);
+                } else {
+                    scores[i] = score(fingerprint, databaseEntries[i]);
+                }
+            }
+        }
+
+        /**
+         * Reads the candidates as bitsets directly from the block if the scoring tree is compiled, so no fingerprint
+         * objects are created. Thread safe for disjoint ranges under the same conditions as the array variant.
+         */
+        @Override
+        public void scoreBatch(ProbabilityFingerprint fingerprint, CandidateBlock block, CandidateBlock.IndexMapping mapping, int from, int to, double[] scores) {
+            if (compiledLogScores == null || mapping.getTarget().size() != compiledFingerprintSize) {
+                FingerblastScoring.super.scoreBatch(fingerprint, block, mapping, from, to, scores);
+                return;
+            }
+            if (preparedProbabilityFingerprint != fingerprint && !preparedProbabilityFingerprint.equals(fingerprint)){
+                throw new RuntimeException("the prepared fingerprint differs from the currently used one.");
+            }
+            final long[] buffer = new long[(compiledFingerprintSize + 64) >>> 6];
+            for (int i = from; i < to; i++)
+                scores[i] = score(block.getFingerprintWords(i, mapping, buffer));
+        }
+
         ProbabilityFingerprint lastFP = null;
         boolean output = false;
         protected int numberOfScoredNodes;
         @Override
         public double score(ProbabilityFingerprint fingerprint, Fingerprint databaseEntry) {
-            if (!preparedProbabilityFingerprint.equals(fingerprint)){
+            if (preparedProbabilityFingerprint != fingerprint && !preparedProbabilityFingerprint.equals(fingerprint)){
                 throw new RuntimeException("the prepared fingerprint differs from the currently used one.");
             }
+            if (compiledLogScores != null && databaseEntry.getFingerprintVersion().size() == compiledFingerprintSize) {
+                //one extra bit for missing parents
+                long[] buffer = bitsetBuffer.get();
+                if (buffer == null || buffer.length < ((compiledFingerprintSize + 64) >>> 6)) {
+                    buffer = new long[(compiledFingerprintSize + 64) >>> 6];
+                    bitsetBuffer.set(buffer);
+                }
+                databaseEntry.toBitset(buffer);
+                return score(buffer);
+            }
             numberOfScoredNodes = 0;
             if (fingerprint!=lastFP) output = true;
 
@@ -461,52 +602,40 @@ public class BayesnetScoring implements FingerblastScoringMethod<BayesnetScoring
 
 
         protected double conditional(boolean[] databaseEntry, AbstractCorrelationTreeNode x) {
+            final int numberOfParents = x.numberOfParents();
+            final AbstractCorrelationTreeNode[] parents = numberOfParents == 0 ? null : x.getParents();
+            final boolean real = databaseEntry[x.getFingerprintIndex()];
+            final boolean realParent0 = numberOfParents > 0 && databaseEntry[parents[0].getFingerprintIndex()];
+            final boolean realParent1 = numberOfParents > 1 && databaseEntry[parents[1].getFingerprintIndex()];
+            final double score = logConditional(x, real, realParent0, realParent1);
+            if (numberOfParents > 0 && (Double.isNaN(score) || Double.isInfinite(score)))
+                reportBadScore(databaseEntry, x, score);
+            ++numberOfScoredNodes;
+            return score;
+        }
+
+        /**
+         * log probability of node x given its own and its parents' assignment. Overestimated scores are capped if only
+         * negative scores are allowed. This method must not have side effects, as it is also used by compile().
+         */
+        protected double logConditional(AbstractCorrelationTreeNode x, boolean real, boolean realParent0, boolean realParent1) {
             if (x.numberOfParents()==0){
                 final int i = x.getFingerprintIndex();
-                final boolean real = databaseEntry[i];
-                numberOfScoredNodes++;
-                if (real){
-                    return Math.log(getProbability(i, true));
-                } else {
-                    return Math.log(1d-getProbability(i,false));
-                }
+                return real ? Math.log(getProbability(i, true)) : Math.log(1d-getProbability(i,false));
             }
-
-            double score;
             if (x instanceof CorrelationTreeNode){
-                CorrelationTreeNode v = (CorrelationTreeNode)x;
-                final AbstractCorrelationTreeNode u = v.parent;
-                final int i = u.getFingerprintIndex();
-                final int j = v.getFingerprintIndex();
-                final boolean real = databaseEntry[j];
-                final boolean realParent = databaseEntry[i];
-                final double p_i = getProbability(i, realParent);
-
-                double correspondingEntry = getABCDMatrixEntry(v, real, realParent);
-
-
                 //already normalized
-                score = Math.log(correspondingEntry);
-
-
-                //changed
-                if (allowOnlyNegativeScores && score>0){
-                    Log.debug("overestimated: %f for parent: %d and child: %d with predictions %f and %f and cov %f%n", Math.exp(score), (realParent?1:0), (real?1:0), p_i, getProbability(j, real), v.getCovariance(0, real, realParent));
-                    score = 0;
-                } else if (score>0) {
-                    Log.debug("strange: overestimated: %f for parent: %d and child: %d with predictions %f and %f and cov %f%n", Math.exp(score), (realParent?1:0), (real?1:0), p_i, getProbability(j, real), v.getCovariance(0, real, realParent));
-                }
-
-
-                assert !Double.isNaN(score);
-                assert !Double.isInfinite(score);
-
-            } else {
-                throw new RuntimeException("unknown class for AbstractCorrelationTreeNode");
+                final double score = Math.log(getABCDMatrixEntry(x, real, realParent0));
+                return (allowOnlyNegativeScores && score>0) ? 0 : score;
             }
+            throw new RuntimeException("unknown class for AbstractCorrelationTreeNode");
+        }
 
-            ++numberOfScoredNodes;
-            return score;
+        /**
+         * called by conditional() if a non-root node x gets a NaN or infinite score for the given candidate.
+         */
+        protected void reportBadScore(boolean[] databaseEntry, AbstractCorrelationTreeNode x, double score) {
+            assert false : "bad score: " + score;
         }
 
         protected double[] computeABCD(double covariance, double p_i, double p_j) {
@@ -130,65 +130,30 @@ public class BayesnetScoringCorrelation extends BayesnetScoring {
 
 
         @Override
-        protected double conditional(boolean[] databaseEntry, AbstractCorrelationTreeNode x) {
-            if (x.numberOfParents()==0){
-                final int i = x.getFingerprintIndex();
-                final boolean real = databaseEntry[i];
-                numberOfScoredNodes++;
-                if (real){
-//                    return Math.log(smoothedPlatt[i]);
-                    return Math.log(getProbability(i, true));
-                } else {
-//                    return Math.log(1d-smoothedPlatt[i]);
-                    return Math.log(1d-getProbability(i,false));
-                }
-            }
-
-            double score;
+        protected double logConditional(AbstractCorrelationTreeNode x, boolean real, boolean realParent0, boolean realParent1) {
+            if (x.numberOfParents()==0) return super.logConditional(x, real, realParent0, realParent1);
             if (x instanceof CorrelationTreeNodeCorrelation){
-                CorrelationTreeNodeCorrelation v = (CorrelationTreeNodeCorrelation)x;
-                final AbstractCorrelationTreeNode u = v.parent;
-                final int i = u.getFingerprintIndex();
-                final int j = v.getFingerprintIndex();
-                final boolean real = databaseEntry[j];
-                final boolean realParent = databaseEntry[i];
-                final double p_i = getProbability(i, realParent);
-
-                double correspondingEntry = getABCDMatrixEntry(v, real, realParent);
-
-
                 //changed already normalized
-                score = Math.log(correspondingEntry);
-
-
-                //changed
-                if (allowOnlyNegativeScores && score>0){
-                    System.out.printf("overestimated: %f for parent: %d and child: %d with predictions %f and %f and cov %f%n", Math.exp(score), (realParent?1:0), (real?1:0), p_i, getProbability(j, real), v.getCovariance(0, real, realParent));
-                    score = 0;
-                } else if (score>0) {
-                    System.out.printf("strange: overestimated: %f for parent: %d and child: %d with predictions %f and %f and cov %f%n", Math.exp(score), (realParent?1:0), (real?1:0), p_i, getProbability(j, real), v.getCovariance(0, real, realParent));
-                }
-
-                if (Double.isNaN(score) || Double.isInfinite(score)){
-                    System.err.println("NaN score for the following fingerprints:");
-                    System.err.println(Arrays.toString(smoothedPlatt));
-                    System.err.println(Arrays.toString(databaseEntry));
-                    System.err.println("for tree node u (" + u.getFingerprintIndex() + ") -> v (" + v.getFingerprintIndex() + ")");
-                    System.err.println("with covariance:");
-                    System.err.println(Arrays.toString(v.covariances));
-//                System.err.printf(Locale.US, "and a = %f, b = %f, c = %f, d = %f\n", a, b, c, d);
-                    System.err.printf(Locale.US, "p_i = %f\n", p_i);
-                    System.err.printf(Locale.US, "alpha = %f\n", alpha);
-                    throw new RuntimeException("bad score: "+score);
-                }
-
-            } else {
-                throw new RuntimeException("unknown scoring structure. not supported");
-
+                final double score = Math.log(getABCDMatrixEntry(x, real, realParent0));
+                return (allowOnlyNegativeScores && score>0) ? 0 : score;
             }
+            throw new RuntimeException("unknown scoring structure. not supported");
+        }
 
-            ++numberOfScoredNodes;
-            return score;
+        @Override
+        protected void reportBadScore(boolean[] databaseEntry, AbstractCorrelationTreeNode x, double score) {
+            final CorrelationTreeNodeCorrelation v = (CorrelationTreeNodeCorrelation)x;
+            final AbstractCorrelationTreeNode u = v.parent;
+            final double p_i = getProbability(u.getFingerprintIndex(), databaseEntry[u.getFingerprintIndex()]);
+            System.err.println("NaN score for the following fingerprints:");
+            System.err.println(Arrays.toString(smoothedPlatt));
+            System.err.println(Arrays.toString(databaseEntry));
+            System.err.println("for tree node u (" + u.getFingerprintIndex() + ") -> v (" + v.getFingerprintIndex() + ")");
+            System.err.println("with covariance:");
+            System.err.println(Arrays.toString(v.covariances));
+            System.err.printf(Locale.US, "p_i = %f\n", p_i);
+            System.err.printf(Locale.US, "alpha = %f\n", alpha);
+            throw new RuntimeException("bad score: "+score);
         }
 
         @Override
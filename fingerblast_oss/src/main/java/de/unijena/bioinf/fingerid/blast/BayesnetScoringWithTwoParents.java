@@ -370,109 +370,39 @@ public class BayesnetScoringWithTwoParents extends BayesnetScoring {
         }
 
         @Override
-        protected double conditional(boolean[] databaseEntry, AbstractCorrelationTreeNode x) {
-            if (x.numberOfParents()==0){
-                final int i = x.getFingerprintIndex();
-                final boolean real = databaseEntry[i];
-                numberOfScoredNodes++;
-                if (real){
-                    return Math.log(getProbability(i, true));
-                } else {
-                    return Math.log(1d-getProbability(i,false));
-                }
+        protected double logConditional(AbstractCorrelationTreeNode x, boolean real, boolean realParent0, boolean realParent1) {
+            if (x instanceof TwoParentsCorrelationTreeNode){
+                // already normalized
+                final double score = Math.log(getABCDMatrixEntry(x, real, realParent0, realParent1));
+                return (allowOnlyNegativeScores && score>0.01) ? 0 : score;
             }
+            return super.logConditional(x, real, realParent0, realParent1);
+        }
 
-            double score;
-            if (x instanceof CorrelationTreeNode){
-                CorrelationTreeNode v = (CorrelationTreeNode)x;
-                final AbstractCorrelationTreeNode u = v.parent;
-                final int i = u.getFingerprintIndex();
-                final int j = v.getFingerprintIndex();
-                final boolean real = databaseEntry[j];
-                final boolean realParent = databaseEntry[i];
-                final double p_i = getProbability(i, realParent);
-
-                double correspondingEntry = getABCDMatrixEntry(v, real, realParent);
-
-
-                //already normalized
-                score = Math.log(correspondingEntry);
-
-
-                //changed
-                if (allowOnlyNegativeScores && score>0){
-                    Log.debug("overestimated: %f for parent: %d and child: %d with predictions %f and %f and cov %f%n", Math.exp(score), (realParent?1:0), (real?1:0), p_i, getProbability(j, real), v.getCovariance(0, real, realParent));
-                    score = 0;
-                } else if (score>0) {
-                    Log.debug("strange: overestimated: %f for parent: %d and child: %d with predictions %f and %f and cov %f%n", Math.exp(score), (realParent?1:0), (real?1:0), p_i, getProbability(j, real), v.getCovariance(0, real, realParent));
-                }
-
-
-                assert !Double.isNaN(score);
-                assert !Double.isInfinite(score);
-                if (Double.isNaN(score) || Double.isInfinite(score)){
-                    System.err.println("NaN score for the following fingerprints:");
-                    System.err.println(Arrays.toString(smoothedPlatt));
-                    System.err.println(Arrays.toString(databaseEntry));
-                    System.err.println("for tree node u (" + u.getFingerprintIndex() + ") -> v (" + v.getFingerprintIndex() + ")");
-                    System.err.println("with covariance:");
-                    System.err.println(Arrays.toString(v.covariances));
-                    System.err.printf(Locale.US, "p_i = %f\n", p_i);
-                    System.err.printf(Locale.US, "alpha = %f\n", alpha);
-                    throw new RuntimeException("bad score: "+score);
-                }
-
-
-            } else {
+        @Override
+        protected void reportBadScore(boolean[] databaseEntry, AbstractCorrelationTreeNode x, double score) {
+            final AbstractCorrelationTreeNode[] parents = x.getParents();
+            final int i = x.getFingerprintIndex();
+            System.err.println("NaN score for the following fingerprints:");
+            System.err.println(Arrays.toString(smoothedPlatt));
+            System.err.println(Arrays.toString(databaseEntry));
+            if (x instanceof TwoParentsCorrelationTreeNode){
                 TwoParentsCorrelationTreeNode v = (TwoParentsCorrelationTreeNode)x;
-                final AbstractCorrelationTreeNode[] parents = v.getParents();
-                final int i = v.getFingerprintIndex();
-                final int j = parents[0].getFingerprintIndex();
-                final int k = parents[1].getFingerprintIndex();
-
-                final boolean real = databaseEntry[i];
-                final boolean realParent0 = databaseEntry[j];
-                final boolean realParent1 = databaseEntry[k];
-
-                final double p_i = getProbability(i, real);
-                final double p_j = getProbability(j, realParent0);
-                final double p_k = getProbability(k, realParent1);
-
-
-
-                double correspondingEntry = Math.log(getABCDMatrixEntry(v, real, realParent0, realParent1));
-
-
-                // already normalized
-                score = correspondingEntry;
-
-
-                if (allowOnlyNegativeScores && score>0.01){
-                    Log.debug("overestimated2: %f for parent1: %d parent2: %d and child: %d with predictions %f and %f and %f and parent_cov %f%n", Math.exp(score), (realParent1?1:0), (realParent1?1:0), (real?1:0), p_j, p_k, p_i, v.getCovariance(v.getCovIdx(false, true, true), real, realParent0, realParent1));
-                    score = 0;
-                }
-
-                assert !Double.isNaN(score);
-                assert !Double.isInfinite(score);
-                if (Double.isNaN(score) || Double.isInfinite(score)){
-                    System.err.println("NaN score for the following fingerprints:");
-                    System.err.println(Arrays.toString(smoothedPlatt));
-                    System.err.println(Arrays.toString(databaseEntry));
-                    System.err.println("for tree node u (" + parents[0].getFingerprintIndex() + ", " + parents[1].getFingerprintIndex() + ") -> v (" + v.getFingerprintIndex() + ")");
-                    System.err.println("with covariances: ");
-                    for (double[] row : v.covariances) {
-                        System.err.println("\t" + Arrays.toString(row));
-                    }
-//                System.err.printf(Locale.US, "and a = %f, b = %f, c = %f, d = %f\n", a, b, c, d);
-                    System.err.printf(Locale.US, "p_i = %f\n", p_i);
-                    System.err.printf(Locale.US, "alpha = %f\n", alpha);
-                    throw new RuntimeException("bad score: "+score);
+                System.err.println("for tree node u (" + parents[0].getFingerprintIndex() + ", " + parents[1].getFingerprintIndex() + ") -> v (" + i + ")");
+                System.err.println("with covariances: ");
+                for (double[] row : v.covariances) {
+                    System.err.println("\t" + Arrays.toString(row));
                 }
-
+                System.err.printf(Locale.US, "p_i = %f\n", getProbability(i, databaseEntry[i]));
+            } else {
+                CorrelationTreeNode v = (CorrelationTreeNode)x;
+                System.err.println("for tree node u (" + parents[0].getFingerprintIndex() + ") -> v (" + i + ")");
+                System.err.println("with covariance:");
+                System.err.println(Arrays.toString(v.covariances));
+                System.err.printf(Locale.US, "p_i = %f\n", getProbability(parents[0].getFingerprintIndex(), databaseEntry[parents[0].getFingerprintIndex()]));
             }
-
-            ++numberOfScoredNodes;
-            return score;
+            System.err.printf(Locale.US, "alpha = %f\n", alpha);
+            throw new RuntimeException("bad score: "+score);
         }
 
         protected double[][][] computeContingencyTable(double p_i, double p_j, double p_k, double cov_ij, double cov_ik, double cov_jk, double cov_ijk, double pseudoCount) {
@@ -23,25 +23,30 @@ package de.unijena.bioinf.fingerid.blast;
 import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
-import de.unijena.bioinf.chemdb.ChemicalDatabaseException;
-import de.unijena.bioinf.chemdb.FingerprintCandidate;
-import de.unijena.bioinf.chemdb.SearchStructureByFormula;
+import de.unijena.bioinf.chemdb.*;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.JJob;
-import de.unijena.bioinf.jjobs.Partition;
 import de.unijena.bioinf.ms.properties.PropertyManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class Fingerblast<P> {
+    //number of candidates that are masked and scored at once by scoreTopK
+    private static final int CHUNK_SIZE = 2048;
+    /*
+    number of candidates a scoring job takes from the shared cursor at once. Much smaller than the number of
+    candidates per thread, so jobs that are slowed down (e.g. by candidates with non-compiled scoring or a busy
+    core) just take fewer chunks instead of delaying the whole search.
+     */
+    private static final int JOB_CHUNK_SIZE = 256;
 
     private SearchStructureByFormula searchEngine;
     private FingerblastScoringMethod<? extends FingerblastScoring<P>> scoringMethod;
@@ -72,6 +77,24 @@ public class Fingerblast<P> {
         return score(candidates, fingerprint, parameter);
     }
 
+    /**
+     * Like {@link #search} but keeps only the k best candidates. If the search engine provides packed candidate
+     * blocks, candidates are scored directly on the block and only the k hits are unpacked.
+     * @return the k best candidates sorted by descending score
+     */
+    public List<Scored<FingerprintCandidate>> searchTopK(@NotNull MolecularFormula formula, @NotNull ProbabilityFingerprint fingerprint, @Nullable P parameter, int k) throws ChemicalDatabaseException {
+        final FingerblastScoring<P> scorer = scoringMethod.getScoring();
+        scorer.prepare(parameter);
+        if (searchEngine instanceof SearchCandidateBlockByFormula) {
+            final SearchCandidateBlockByFormula blockSearch = (SearchCandidateBlockByFormula) searchEngine;
+            final Optional<CandidateBlock> block = blockSearch.lookupCandidateBlock(formula);
+            return block.isPresent()
+                    ? scoreTopK(scorer, block.get(), blockSearch.getFingerprintVersion(), fingerprint, k)
+                    : new ArrayList<>();
+        }
+        return scoreTopK(scorer, searchEngine.lookupStructuresAndFingerprintsByFormula(formula), fingerprint, k);
+    }
+
     public List<Scored<FingerprintCandidate>> score(@NotNull List<FingerprintCandidate> candidates, @NotNull ProbabilityFingerprint fingerprint, @Nullable P parameter) throws ChemicalDatabaseException {
         //this would make the P parameter obsolete
         final FingerblastScoring<P> scorer = scoringMethod.getScoring();
@@ -80,29 +103,233 @@ public class Fingerblast<P> {
     }
 
     public static <P> List<Scored<FingerprintCandidate>> score(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final List<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint) {
-        final ArrayList<Scored<FingerprintCandidate>> results = new ArrayList<>();
-        MaskedFingerprintVersion mask = null;
-        if (fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion)
-            mask = (MaskedFingerprintVersion) fingerprint.getFingerprintVersion();
-        for (FingerprintCandidate fp : candidates) {
-            final Fingerprint fpm = (mask == null || fp.getFingerprint().getFingerprintVersion().equals(mask)) ? fp.getFingerprint() : mask.mask(fp.getFingerprint());
-            results.add(new Scored<>(new FingerprintCandidate(fp, fpm), preparedScorer.score(fingerprint, fpm)));
-        }
+        final FingerprintCandidate[] candidateArray = candidates.toArray(FingerprintCandidate[]::new);
+        final Fingerprint[] masked = maskAll(candidateArray, fingerprint);
+        final double[] scores = preparedScorer.scoreBatch(fingerprint, masked);
+        final ArrayList<Scored<FingerprintCandidate>> results = new ArrayList<>(candidateArray.length);
+        for (int i = 0; i < candidateArray.length; i++)
+            results.add(new Scored<>(new FingerprintCandidate(candidateArray[i], masked[i]), scores[i]));
         results.sort(Comparator.reverseOrder());
         return results;
     }
 
+    /**
+     * Scores all candidates but keeps only the k best scoring ones in a bounded heap. Candidates are masked and scored
+     * in chunks, so besides the k hits only one chunk of masked fingerprints is kept in memory.
+     * @return the k best candidates sorted by descending score
+     */
+    public static <P> List<Scored<FingerprintCandidate>> scoreTopK(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final List<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint, int k) {
+        checkK(k);
+        final MaskedFingerprintVersion mask = (fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion)
+                ? (MaskedFingerprintVersion) fingerprint.getFingerprintVersion() : null;
+        final TopKHeap heap = new TopKHeap(k);
+        final Fingerprint[] chunk = new Fingerprint[Math.min(CHUNK_SIZE, candidates.size())];
+        final double[] scores = new double[chunk.length];
+        for (int from = 0; from < candidates.size(); from += chunk.length)
+            offerChunk(preparedScorer, candidates, from, Math.min(from + chunk.length, candidates.size()), fingerprint, mask, heap, chunk, scores);
+        return heap.toResults(candidates);
+    }
+
+    /**
+     * Scores the candidates [from, to) and offers them to the heap. Chunk and scores are buffers with at least
+     * to - from entries.
+     */
+    private static <P> void offerChunk(FingerblastScoring<P> preparedScorer, List<FingerprintCandidate> candidates, int from, int to, ProbabilityFingerprint fingerprint, @Nullable MaskedFingerprintVersion mask, TopKHeap heap, Fingerprint[] chunk, double[] scores) {
+        final int length = to - from;
+        for (int i = 0; i < length; i++)
+            chunk[i] = mask(candidates.get(from + i).getFingerprint(), mask);
+        preparedScorer.scoreBatch(fingerprint, chunk, 0, length, scores);
+        for (int i = 0; i < length; i++)
+            heap.offer(scores[i], from + i, chunk[i]);
+    }
+
+    /**
+     * Scores all candidates of a packed block without unpacking them and unpacks only the k best ones.
+     * @param blockVersion the fingerprint version the block was written with
+     * @return the k best candidates sorted by descending score
+     */
+    public static <P> List<Scored<FingerprintCandidate>> scoreTopK(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final CandidateBlock block, @NotNull FingerprintVersion blockVersion, @NotNull final ProbabilityFingerprint fingerprint, int k) {
+        checkK(k);
+        final CandidateBlock.IndexMapping mapping = new CandidateBlock.IndexMapping(blockVersion, maskOf(fingerprint));
+        final double[] scores = new double[block.size()];
+        preparedScorer.scoreBatch(fingerprint, block, mapping, 0, block.size(), scores);
+        final TopKHeap heap = new TopKHeap(k);
+        for (int i = 0; i < block.size(); i++)
+            heap.offer(scores[i], i, null);
+        return heap.toResults(block, mapping);
+    }
+
+    private static MaskedFingerprintVersion maskOf(ProbabilityFingerprint fingerprint) {
+        return (fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion)
+                ? (MaskedFingerprintVersion) fingerprint.getFingerprintVersion()
+                : MaskedFingerprintVersion.allowAll(fingerprint.getFingerprintVersion());
+    }
+
+    /**
+     * Merges the results of jobs created by {@link #makeTopKScoringJobs} into the k best candidates overall.
+     * @return the k best candidates sorted by descending score
+     */
+    public static List<Scored<FingerprintCandidate>> mergeTopK(@NotNull final Collection<? extends JJob<List<Scored<FingerprintCandidate>>>> topKJobs, int k) {
+        checkK(k);
+        final List<Scored<FingerprintCandidate>> merged = topKJobs.stream().flatMap(j -> j.takeResult().stream())
+                .sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        return merged.size() > k ? new ArrayList<>(merged.subList(0, k)) : merged;
+    }
+
+    private static void checkK(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("Number of candidates to keep must not be negative but is " + k);
+    }
+
+    private static Fingerprint[] maskAll(FingerprintCandidate[] candidates, ProbabilityFingerprint fingerprint) {
+        final Fingerprint[] masked = new Fingerprint[candidates.length];
+        final MaskedFingerprintVersion mask = (fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion)
+                ? (MaskedFingerprintVersion) fingerprint.getFingerprintVersion() : null;
+        for (int i = 0; i < candidates.length; i++)
+            masked[i] = mask(candidates[i].getFingerprint(), mask);
+        return masked;
+    }
+
+    private static Fingerprint mask(Fingerprint fp, @Nullable MaskedFingerprintVersion mask) {
+        return (mask == null || fp.getFingerprintVersion().equals(mask)) ? fp : mask.mask(fp);
+    }
+
+    /**
+     * Bounded min heap of (score, candidate index, masked fingerprint) entries keeping the k highest scores.
+     */
+    private static class TopKHeap {
+        private final double[] scores;
+        private final int[] indices;
+        private final Fingerprint[] fingerprints;
+        private int size;
+
+        private TopKHeap(int k) {
+            this.scores = new double[k];
+            this.indices = new int[k];
+            this.fingerprints = new Fingerprint[k];
+        }
+
+        private void offer(double score, int index, Fingerprint fingerprint) {
+            if (size < scores.length) {
+                int i = size++;
+                while (i > 0) {
+                    final int parent = (i - 1) >>> 1;
+                    if (scores[parent] <= score) break;
+                    set(i, scores[parent], indices[parent], fingerprints[parent]);
+                    i = parent;
+                }
+                set(i, score, index, fingerprint);
+            } else if (size > 0 && score > scores[0]) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && scores[child + 1] < scores[child]) ++child;
+                    if (scores[child] >= score) break;
+                    set(i, scores[child], indices[child], fingerprints[child]);
+                    i = child;
+                }
+                set(i, score, index, fingerprint);
+            }
+        }
+
+        private void set(int i, double score, int index, Fingerprint fingerprint) {
+            scores[i] = score;
+            indices[i] = index;
+            fingerprints[i] = fingerprint;
+        }
+
+        private List<Scored<FingerprintCandidate>> toResults(List<FingerprintCandidate> candidates) {
+            final ArrayList<Scored<FingerprintCandidate>> results = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                final FingerprintCandidate fp = candidates.get(indices[i]);
+                results.add(new Scored<>(fingerprints[i] == fp.getFingerprint() ? fp : new FingerprintCandidate(fp, fingerprints[i]), scores[i]));
+            }
+            results.sort(Comparator.reverseOrder());
+            return results;
+        }
 
+        private List<Scored<FingerprintCandidate>> toResults(CandidateBlock block, CandidateBlock.IndexMapping mapping) {
+            final ArrayList<Scored<FingerprintCandidate>> results = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                results.add(new Scored<>(new FingerprintCandidate(block.getCompound(indices[i]), block.getFingerprint(indices[i], mapping)), scores[i]));
+            results.sort(Comparator.reverseOrder());
+            return results;
+        }
+    }
+
+    /**
+     * Creates one job per thread. The jobs take small chunks of candidates from a shared cursor until all candidates
+     * are scored, so the load is balanced even if some candidates or threads are slower than others.
+     * The scorer has to be thread safe for disjoint ranges.
+     */
     public static <P> List<JJob<List<Scored<FingerprintCandidate>>>> makeScoringJobs(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final Collection<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint) {
-        final List<List<FingerprintCandidate>> inputs = Partition.ofNumber(candidates, PropertyManager.getNumberOfThreads());
-
-        return inputs.stream().map(can ->
-                new BasicJJob<List<Scored<FingerprintCandidate>>>(JJob.JobType.CPU) {
-                    @Override
-                    protected List<Scored<FingerprintCandidate>> compute() {
-                        return score(preparedScorer, can, fingerprint);
-                    }
+        final List<FingerprintCandidate> candidateList = new ArrayList<>(candidates);
+        final AtomicInteger cursor = new AtomicInteger();
+        return makeWorkerJobs(candidateList.size(), () -> {
+            final ArrayList<Scored<FingerprintCandidate>> results = new ArrayList<>();
+            for (int from = cursor.getAndAdd(JOB_CHUNK_SIZE); from < candidateList.size(); from = cursor.getAndAdd(JOB_CHUNK_SIZE))
+                results.addAll(score(preparedScorer, candidateList.subList(from, Math.min(from + JOB_CHUNK_SIZE, candidateList.size())), fingerprint));
+            results.sort(Comparator.reverseOrder());
+            return results;
+        });
+    }
+
+    /**
+     * Like {@link #makeScoringJobs} but every job only returns the k best candidates of the chunks it scored.
+     * Use {@link #mergeTopK} to combine the results.
+     */
+    public static <P> List<JJob<List<Scored<FingerprintCandidate>>>> makeTopKScoringJobs(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final Collection<FingerprintCandidate> candidates, @NotNull final ProbabilityFingerprint fingerprint, int k) {
+        checkK(k);
+        final List<FingerprintCandidate> candidateList = new ArrayList<>(candidates);
+        final MaskedFingerprintVersion mask = (fingerprint.getFingerprintVersion() instanceof MaskedFingerprintVersion)
+                ? (MaskedFingerprintVersion) fingerprint.getFingerprintVersion() : null;
+        final AtomicInteger cursor = new AtomicInteger();
+        return makeWorkerJobs(candidateList.size(), () -> {
+            final TopKHeap heap = new TopKHeap(k);
+            final Fingerprint[] chunk = new Fingerprint[JOB_CHUNK_SIZE];
+            final double[] scores = new double[JOB_CHUNK_SIZE];
+            for (int from = cursor.getAndAdd(JOB_CHUNK_SIZE); from < candidateList.size(); from = cursor.getAndAdd(JOB_CHUNK_SIZE))
+                offerChunk(preparedScorer, candidateList, from, Math.min(from + JOB_CHUNK_SIZE, candidateList.size()), fingerprint, mask, heap, chunk, scores);
+            return heap.toResults(candidateList);
+        });
+    }
+
+    /**
+     * Like {@link #makeTopKScoringJobs} but scores a packed candidate block without unpacking it. Every job returns
+     * the k best candidates of the chunks it scored, use {@link #mergeTopK} to combine the results.
+     * @param blockVersion the fingerprint version the block was written with
+     */
+    public static <P> List<JJob<List<Scored<FingerprintCandidate>>>> makeTopKScoringJobs(@NotNull final FingerblastScoring<P> preparedScorer, @NotNull final CandidateBlock block, @NotNull FingerprintVersion blockVersion, @NotNull final ProbabilityFingerprint fingerprint, int k) {
+        checkK(k);
+        final CandidateBlock.IndexMapping mapping = new CandidateBlock.IndexMapping(blockVersion, maskOf(fingerprint));
+        //jobs write disjoint ranges
+        final double[] scores = new double[block.size()];
+        final AtomicInteger cursor = new AtomicInteger();
+        return makeWorkerJobs(block.size(), () -> {
+            final TopKHeap heap = new TopKHeap(k);
+            for (int from = cursor.getAndAdd(JOB_CHUNK_SIZE); from < block.size(); from = cursor.getAndAdd(JOB_CHUNK_SIZE)) {
+                final int to = Math.min(from + JOB_CHUNK_SIZE, block.size());
+                preparedScorer.scoreBatch(fingerprint, block, mapping, from, to, scores);
+                for (int i = from; i < to; i++)
+                    heap.offer(scores[i], i, null);
+            }
+            return heap.toResults(block, mapping);
+        });
+    }
+
+    private static List<JJob<List<Scored<FingerprintCandidate>>>> makeWorkerJobs(int numberOfCandidates, Supplier<List<Scored<FingerprintCandidate>>> work) {
+        final int numberOfChunks = (numberOfCandidates + JOB_CHUNK_SIZE - 1) / JOB_CHUNK_SIZE;
+        final int numberOfJobs = Math.max(1, Math.min(PropertyManager.getNumberOfThreads(), numberOfChunks));
+        final List<JJob<List<Scored<FingerprintCandidate>>>> jobs = new ArrayList<>(numberOfJobs);
+        for (int j = 0; j < numberOfJobs; j++) {
+            jobs.add(new BasicJJob<List<Scored<FingerprintCandidate>>>(JJob.JobType.CPU) {
+                @Override
+                protected List<Scored<FingerprintCandidate>> compute() {
+                    return work.get();
                 }
-        ).collect(Collectors.toList());
+            });
+        }
+        return jobs;
     }
 }
@@ -22,6 +22,7 @@ package de.unijena.bioinf.fingerid.blast;
 
 import de.unijena.bioinf.ChemistryBase.fp.Fingerprint;
 import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.chemdb.CandidateBlock;
 import de.unijena.bioinf.fingerid.blast.parameters.ParameterStore;
 
 public interface FingerblastScoring<Parameter> {
@@ -45,6 +46,32 @@ public interface FingerblastScoring<Parameter> {
 
     double score(ProbabilityFingerprint fingerprint, Fingerprint databaseEntry);
 
+    /**
+     * Scores the database entries in [from, to) and writes the scores into scores[from, to).
+     * Implementations may override this to reuse buffers over the whole batch. Calls for disjoint ranges are only
+     * thread safe if score() is.
+     */
+    default void scoreBatch(ProbabilityFingerprint fingerprint, Fingerprint[] databaseEntries, int from, int to, double[] scores) {
+        for (int i = from; i < to; i++)
+            scores[i] = score(fingerprint, databaseEntries[i]);
+    }
+
+    default double[] scoreBatch(ProbabilityFingerprint fingerprint, Fingerprint[] databaseEntries) {
+        final double[] scores = new double[databaseEntries.length];
+        scoreBatch(fingerprint, databaseEntries, 0, databaseEntries.length, scores);
+        return scores;
+    }
+
+    /**
+     * Scores the candidates [from, to) of a packed candidate block and writes the scores into scores[from, to).
+     * The mapping translates the block's fingerprints into the version of the given fingerprint. This default
+     * unpacks every candidate fingerprint, implementations working on bitsets should read them from the block.
+     */
+    default void scoreBatch(ProbabilityFingerprint fingerprint, CandidateBlock block, CandidateBlock.IndexMapping mapping, int from, int to, double[] scores) {
+        for (int i = from; i < to; i++)
+            scores[i] = score(fingerprint, block.getFingerprint(i, mapping));
+    }
+
     double getThreshold();
 
     void setThreshold(double threshold);
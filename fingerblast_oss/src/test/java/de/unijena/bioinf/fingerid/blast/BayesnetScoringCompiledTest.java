@@ -0,0 +1,161 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2021 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.fingerid.blast;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.fp.*;
+import de.unijena.bioinf.chemdb.CandidateBlock;
+import de.unijena.bioinf.chemdb.FingerprintCandidate;
+import gnu.trove.list.array.TShortArrayList;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class BayesnetScoringCompiledTest {
+
+    private static final int NUMBER_OF_PROPERTIES = 12;
+    private static final int[][] TREE = new int[][]{{0, 1}, {0, 2}, {1, 3}, {1, 4}, {2, 5}, {5, 6}, {7, 8}, {7, 9}};
+
+    @Test
+    public void testCompiledEqualsLegacyScoring() {
+        final Random random = new Random(42);
+        for (boolean allowOnlyNegativeScores : new boolean[]{false, true}) {
+            final BayesnetScoring[] scorings = trainScorings(random, allowOnlyNegativeScores);
+            for (BayesnetScoring scoring : scorings) {
+                for (int query = 0; query < 10; query++) {
+                    final ProbabilityFingerprint fp = randomPrediction(random, randomFingerprint(random));
+                    final BayesnetScoring.Scorer compiled = scoring.getScoring();
+                    compiled.prepare(fp);
+                    final BayesnetScoring.Scorer legacy = scoring.getScoring();
+                    legacy.setCompiledScoring(false);
+                    legacy.prepare(fp);
+                    Assert.assertNotNull("scoring tree was not compiled", compiled.compiledLogScores);
+                    for (int c = 0; c < 50; c++) {
+                        final Fingerprint candidate = randomFingerprint(random);
+                        Assert.assertEquals(legacy.score(fp, candidate), compiled.score(fp, candidate), 1e-9);
+                        Assert.assertEquals(legacy.numberOfScoredNodes, compiled.numberOfScoredNodes);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBlockScoringEqualsCandidateScoring() throws IOException {
+        final Random random = new Random(7);
+        final BayesnetScoring scoring = trainScorings(random, false)[0];
+        final List<FingerprintCandidate> candidates = new ArrayList<>();
+        for (int c = 0; c < 100; c++)
+            candidates.add(new FingerprintCandidate(new InChI("KEY" + c, null), randomFingerprint(random)));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CandidateBlock.write(candidates, out);
+        final CandidateBlock block = CandidateBlock.read(new ByteArrayInputStream(out.toByteArray()));
+        final CandidateBlock.IndexMapping mapping = new CandidateBlock.IndexMapping(VERSION, MaskedFingerprintVersion.allowAll(VERSION));
+
+        final ProbabilityFingerprint fp = randomPrediction(random, randomFingerprint(random));
+        for (boolean compiledScoring : new boolean[]{true, false}) {
+            final BayesnetScoring.Scorer scorer = scoring.getScoring();
+            scorer.setCompiledScoring(compiledScoring);
+            scorer.prepare(fp);
+            final double[] scores = new double[block.size()];
+            scorer.scoreBatch(fp, block, mapping, 0, block.size(), scores);
+            for (int c = 0; c < candidates.size(); c++)
+                Assert.assertEquals(scorer.score(fp, candidates.get(c).getFingerprint()), scores[c], 1e-9);
+
+            final List<Scored<FingerprintCandidate>> fromList = Fingerblast.scoreTopK(scorer, candidates, fp, 10);
+            final List<Scored<FingerprintCandidate>> fromBlock = Fingerblast.scoreTopK(scorer, block, VERSION, fp, 10);
+            Assert.assertEquals(fromList.size(), fromBlock.size());
+            for (int i = 0; i < fromList.size(); i++)
+                Assert.assertEquals(fromList.get(i).getScore(), fromBlock.get(i).getScore(), 1e-9);
+        }
+    }
+
+    private BayesnetScoring[] trainScorings(Random random, boolean allowOnlyNegativeScores) {
+        final int numberOfSamples = 200;
+        final Fingerprint[] correct = new Fingerprint[numberOfSamples];
+        final ProbabilityFingerprint[] predicted = new ProbabilityFingerprint[numberOfSamples];
+        for (int i = 0; i < numberOfSamples; i++) {
+            correct[i] = randomFingerprint(random);
+            predicted[i] = randomPrediction(random, correct[i]);
+        }
+        final PredictionPerformance[] performances = new PredictionPerformance[NUMBER_OF_PROPERTIES];
+        for (int i = 0; i < performances.length; i++) {
+            performances[i] = new PredictionPerformance(40, 10, 140, 10);
+        }
+        return new BayesnetScoring[]{
+                BayesnetScoringBuilder.createScoringMethod(performances, predicted, correct, TREE, allowOnlyNegativeScores),
+                BayesnetScoringCorrelationBuilder.createScoringMethod(performances, predicted, correct, TREE, allowOnlyNegativeScores)
+        };
+    }
+
+    //children mostly copy their parent's bit, so that the tree edges carry some covariance
+    private Fingerprint randomFingerprint(Random random) {
+        final boolean[] bits = new boolean[NUMBER_OF_PROPERTIES];
+        for (int i = 0; i < bits.length; i++) bits[i] = random.nextBoolean();
+        for (int[] edge : TREE) {
+            if (random.nextDouble() < 0.8) bits[edge[1]] = bits[edge[0]];
+        }
+        final TShortArrayList indices = new TShortArrayList();
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i]) indices.add((short) i);
+        }
+        return new ArrayFingerprint(VERSION, indices.toArray());
+    }
+
+    private ProbabilityFingerprint randomPrediction(Random random, Fingerprint correct) {
+        final boolean[] bits = correct.toBooleanArray();
+        final double[] probabilities = new double[bits.length];
+        for (int i = 0; i < bits.length; i++) {
+            final double noise = 0.6 * random.nextDouble();
+            probabilities[i] = bits[i] ? 1d - noise : noise;
+        }
+        return new ProbabilityFingerprint(VERSION, probabilities);
+    }
+
+    private static final FingerprintVersion VERSION = new FingerprintVersion() {
+        @Override
+        public MolecularProperty getMolecularProperty(int index) {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return NUMBER_OF_PROPERTIES;
+        }
+
+        @Override
+        public boolean compatible(FingerprintVersion fingerprintVersion) {
+            return fingerprintVersion == this;
+        }
+
+        @Override
+        public boolean identical(FingerprintVersion fingerprintVersion) {
+            return fingerprintVersion == this;
+        }
+    };
+}
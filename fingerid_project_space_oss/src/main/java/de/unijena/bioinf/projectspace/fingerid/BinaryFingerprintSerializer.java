@@ -0,0 +1,155 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.fingerid.FingerprintResult;
+import de.unijena.bioinf.ms.rest.model.fingerid.FingerIdData;
+import de.unijena.bioinf.projectspace.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Optional;
+
+import static de.unijena.bioinf.projectspace.fingerid.FingerIdLocations.FINGERPRINTS;
+import static de.unijena.bioinf.projectspace.fingerid.FingerIdLocations.FINGERPRINTS_BINARY;
+
+/**
+ * Stores the predicted fingerprint as binary vector of float32 or 16 bit quantized probabilities instead of
+ * a text file of decimal doubles. Fingerprints stored in the legacy text format ({@link FingerprintSerializer})
+ * are still read and are replaced by the binary format on the next write.
+ */
+public class BinaryFingerprintSerializer implements ComponentSerializer<FormulaResultId, FormulaResult, FingerprintResult> {
+    public static final int MAGIC = 0x46504231; // FPB1
+
+    public enum Encoding {
+        /**
+         * 4 bytes per probability, lossless for all values representable as float
+         */
+        FLOAT32,
+        /**
+         * 2 bytes per probability, absolute error is at most 1/131070
+         */
+        QUANTIZED16
+    }
+
+    private static final double QUANTIZATION_LEVELS = 0xFFFF;
+
+    private final Encoding encoding;
+
+    public BinaryFingerprintSerializer() {
+        this(Encoding.FLOAT32);
+    }
+
+    public BinaryFingerprintSerializer(@NotNull Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Registers a binary fingerprint serializer for the {@link FingerprintResult}s of formula results. Replaces a
+     * {@link FingerprintSerializer} registered before, so this can be called after the default fingerid components
+     * have been registered.
+     */
+    public static void register(@NotNull ProjectSpaceConfiguration configuration, @NotNull Encoding encoding) {
+        configuration.registerComponent(FormulaResult.class, FingerprintResult.class, new BinaryFingerprintSerializer(encoding));
+    }
+
+    @Override
+    public FingerprintResult read(ProjectReader reader, FormulaResultId id, FormulaResult container) throws IOException {
+        final boolean binary = reader.exists(FINGERPRINTS_BINARY.relFilePath(id));
+        if (!binary && !reader.exists(FINGERPRINTS.relFilePath(id)))
+            return null;
+
+        return reader.inDirectory(FINGERPRINTS.relDir(), () -> {
+            final FingerIdData fingerIdData = reader.getProjectSpaceProperty(FingerIdDataProperty.class)
+                    .map(p -> p.getByIonType(id.getIonType())).orElseThrow();
+
+            final double[] probabilities = binary
+                    ? reader.binaryFile(FINGERPRINTS_BINARY.fileName(id), BinaryFingerprintSerializer::readProbabilities)
+                    : reader.doubleVector(FINGERPRINTS.fileName(id));
+            return new FingerprintResult(new ProbabilityFingerprint(fingerIdData.getFingerprintVersion(), probabilities));
+        });
+    }
+
+    @Override
+    public void write(ProjectWriter writer, FormulaResultId id, FormulaResult container, Optional<FingerprintResult> optPrint) throws IOException {
+        final FingerprintResult fingerprintResult = optPrint.orElseThrow(() -> new IllegalArgumentException("Could not find finderprint to write for ID: " + id));
+        writer.inDirectory(FINGERPRINTS.relDir(), () -> {
+            writer.binaryFile(FINGERPRINTS_BINARY.fileName(id), out -> writeProbabilities(out, fingerprintResult.fingerprint.toProbabilityArray(), encoding));
+            writer.deleteIfExists(FINGERPRINTS.fileName(id));
+            return true;
+        });
+    }
+
+    @Override
+    public void delete(ProjectWriter writer, FormulaResultId id) throws IOException {
+        writer.deleteIfExists(FINGERPRINTS_BINARY.relFilePath(id));
+        writer.deleteIfExists(FINGERPRINTS.relFilePath(id));
+    }
+
+    @Override
+    public void deleteAll(ProjectWriter writer) throws IOException {
+        writer.deleteIfExists(FINGERPRINTS.relDir());
+    }
+
+    public static void writeProbabilities(@NotNull OutputStream out, @NotNull double[] probabilities, @NotNull Encoding encoding) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeByte(encoding.ordinal());
+        data.writeInt(probabilities.length);
+        switch (encoding) {
+            case FLOAT32:
+                for (double p : probabilities)
+                    data.writeFloat((float) p);
+                break;
+            case QUANTIZED16:
+                for (double p : probabilities)
+                    data.writeShort((int) Math.round(Math.min(1d, Math.max(0d, p)) * QUANTIZATION_LEVELS));
+                break;
+        }
+        data.flush();
+    }
+
+    public static double[] readProbabilities(@NotNull InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC)
+            throw new IOException("Data is not a binary fingerprint.");
+        final int encoding = data.readUnsignedByte();
+        if (encoding >= Encoding.values().length)
+            throw new IOException("Unknown fingerprint encoding: " + encoding);
+        final double[] probabilities = new double[data.readInt()];
+        switch (Encoding.values()[encoding]) {
+            case FLOAT32:
+                for (int i = 0; i < probabilities.length; i++)
+                    probabilities[i] = data.readFloat();
+                break;
+            case QUANTIZED16:
+                for (int i = 0; i < probabilities.length; i++)
+                    probabilities[i] = data.readUnsignedShort() / QUANTIZATION_LEVELS;
+                break;
+        }
+        return probabilities;
+    }
+}
@@ -27,7 +27,8 @@ public interface FingerIdLocations {
     Location
             FINGERBLAST = new Location("fingerid", "tsv", FormulaResultId::fileName),
             FINGERBLAST_FPs = new Location("fingerid", "fps", FormulaResultId::fileName),
-            FINGERPRINTS = new Location("fingerprints", "fpt", FormulaResultId::fileName);
+            FINGERPRINTS = new Location("fingerprints", "fpt", FormulaResultId::fileName),
+            FINGERPRINTS_BINARY = new Location("fingerprints", "fpb", FormulaResultId::fileName);
 
     String
             FINGERID_CLIENT_DATA = "csi_fingerid.tsv",
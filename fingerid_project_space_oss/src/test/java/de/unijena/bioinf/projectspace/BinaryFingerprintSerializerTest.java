@@ -0,0 +1,126 @@
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.fp.CdkFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.PredictionPerformance;
+import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.fingerid.FingerprintResult;
+import de.unijena.bioinf.ms.rest.model.fingerid.FingerIdData;
+import de.unijena.bioinf.projectspace.fingerid.BinaryFingerprintSerializer;
+import de.unijena.bioinf.projectspace.fingerid.FingerIdDataProperty;
+import de.unijena.bioinf.projectspace.fingerid.FingerIdLocations;
+import de.unijena.bioinf.projectspace.fingerid.FingerprintSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+// in the project space package to create compound ids without a project space
+public class BinaryFingerprintSerializerTest {
+
+    private Path root;
+    private PathProjectSpaceIOProvider provider;
+    private Function<Class<ProjectSpaceProperty>, Optional<ProjectSpaceProperty>> properties;
+    private MaskedFingerprintVersion version;
+    private FormulaResultId id;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("binary-fingerprints");
+        provider = new PathProjectSpaceIOProvider(root, null);
+        version = MaskedFingerprintVersion.allowAll(CdkFingerprintVersion.getDefault());
+        final PredictionPerformance[] performances = new PredictionPerformance[version.size()];
+        Arrays.fill(performances, new PredictionPerformance(10, 1, 10, 1));
+        final FingerIdData data = new FingerIdData(version, performances);
+        final FingerIdDataProperty property = new FingerIdDataProperty(data, data);
+        properties = k -> k.equals(FingerIdDataProperty.class) ? Optional.<ProjectSpaceProperty>of(property) : Optional.empty();
+        final CompoundContainerId cid = CompoundContainerId.fromKeyValuePairs("1_test", Map.of("index", "1", "name", "test"));
+        id = new FormulaResultId(cid, MolecularFormula.parseOrThrow("C6H12O6"), PrecursorIonType.getPrecursorIonType("[M+H]+"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        provider.close();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testRegistrationReplacesTextSerializer() {
+        final ProjectSpaceConfiguration configuration = new ProjectSpaceConfiguration();
+        configuration.registerComponent(FormulaResult.class, FingerprintResult.class, new FingerprintSerializer());
+        BinaryFingerprintSerializer.register(configuration, BinaryFingerprintSerializer.Encoding.QUANTIZED16);
+
+        final ComponentSerializer<FormulaResultId, FormulaResult, FingerprintResult> serializer =
+                configuration.getComponentSerializer(FormulaResult.class, FingerprintResult.class);
+        assertTrue(serializer instanceof BinaryFingerprintSerializer);
+        assertEquals(BinaryFingerprintSerializer.Encoding.QUANTIZED16, ((BinaryFingerprintSerializer) serializer).getEncoding());
+        assertEquals(1, configuration.getAllComponentsForContainer(FormulaResult.class).stream().filter(FingerprintResult.class::equals).count());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (BinaryFingerprintSerializer.Encoding encoding : BinaryFingerprintSerializer.Encoding.values()) {
+            final double[] probabilities = randomProbabilities(new Random(encoding.ordinal()));
+            final BinaryFingerprintSerializer serializer = new BinaryFingerprintSerializer(encoding);
+            write(serializer, probabilities);
+            assertTrue(exists(FingerIdLocations.FINGERPRINTS_BINARY.relFilePath(id)));
+            final double tolerance = encoding == BinaryFingerprintSerializer.Encoding.FLOAT32 ? 1e-7 : 1d / 131070;
+            assertArrayEquals(probabilities, read(serializer), tolerance);
+        }
+    }
+
+    @Test
+    public void testReadsAndReplacesTextFormat() throws IOException {
+        final double[] probabilities = randomProbabilities(new Random(5));
+        write(new FingerprintSerializer(), probabilities);
+        final BinaryFingerprintSerializer serializer = new BinaryFingerprintSerializer();
+        assertArrayEquals(probabilities, read(serializer), 1e-9);
+
+        write(serializer, probabilities);
+        assertFalse(exists(FingerIdLocations.FINGERPRINTS.relFilePath(id)));
+        assertArrayEquals(probabilities, read(serializer), 1e-7);
+    }
+
+    private double[] randomProbabilities(Random random) {
+        final double[] probabilities = new double[version.size()];
+        for (int i = 0; i < probabilities.length; i++)
+            probabilities[i] = random.nextDouble();
+        return probabilities;
+    }
+
+    private void write(ComponentSerializer<FormulaResultId, FormulaResult, FingerprintResult> serializer, double[] probabilities) throws IOException {
+        final ProjectWriter writer = provider.newWriter(properties);
+        final FingerprintResult result = new FingerprintResult(new ProbabilityFingerprint(version, probabilities));
+        writer.inDirectory(id.getParentId().getDirectoryName(), () -> {
+            serializer.write(writer, id, null, Optional.of(result));
+            return true;
+        });
+    }
+
+    private double[] read(ComponentSerializer<FormulaResultId, FormulaResult, FingerprintResult> serializer) throws IOException {
+        final ProjectReader reader = provider.newReader(properties);
+        return reader.inDirectory(id.getParentId().getDirectoryName(), () -> serializer.read(reader, id, null))
+                .fingerprint.toProbabilityArray();
+    }
+
+    private boolean exists(String relativePath) throws IOException {
+        final ProjectReader reader = provider.newReader(properties);
+        return reader.inDirectory(id.getParentId().getDirectoryName(), () -> reader.exists(relativePath));
+    }
+}
@@ -237,7 +237,12 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
             if (tss != null) tss.fastReplace(pinput, new TreeSizeScorer.TreeSizeBonus(treeSize));
             results.clear();
             final TreeBuilder builder = useHeuristic ? getHeuristicTreeBuilder() : analyzer.getTreeBuilder();
-            final List<TreeComputationJob> jobs = decompositions.stream().filter(d -> !Double.isInfinite(d.getScore())).map(d -> (TreeComputationJob) new TreeComputationJob(builder, null, d).withEndTime(getEndTime()).withTimeLimit(millisPerTree)).collect(Collectors.toList());
+            final ScoreBoundPruning pruning = new ScoreBoundPruning(Math.max(this.numberOfResultsToKeep + 10, MIN_NUMBER_OF_TREES_CHECK_FOR_INTENSITY),
+                    this.numberOfResultsToKeepPerIonization <= 0 ? 0 : this.numberOfResultsToKeepPerIonization + 5);
+            // promising candidates first, so that the pruning bound is tight early
+            final List<TreeComputationJob> jobs = decompositions.stream().filter(d -> !Double.isInfinite(d.getScore()))
+                    .sorted(Comparator.comparingDouble(Decomposition::getScore).reversed())
+                    .map(d -> (TreeComputationJob) new TreeComputationJob(builder, null, d, pruning).withEndTime(getEndTime()).withTimeLimit(millisPerTree)).collect(Collectors.toList());
             checkForInterruption();
             submitSubJobsInBatches(jobs, SiriusJobs.getCPUThreads() * 4).forEach(JJob::takeResult);
 
@@ -252,13 +257,17 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
 
 //            int counter = 0;
             for (TreeComputationJob job : jobs) {
-                results.add(job.awaitResult());
+                final ExactResult r = job.awaitResult();
+                if (r != null)
+                    results.add(r);
                 checkForInterruption();
                 /*if (++counter % 100 == 0) {
                     checkForInterruption();
                     checkTimeout();
                 }*/
             }
+            if (pruning.getNumberOfPrunedCandidates() > 0)
+                logDebug("Skipped " + pruning.getNumberOfPrunedCandidates() + " of " + jobs.size() + " candidates by score upper bound.");
             results.sort(Collections.reverseOrder());
             final int treeSizeCheck = Math.min(results.size(), MIN_NUMBER_OF_TREES_CHECK_FOR_INTENSITY);
             if (tss == null || checkForTreeQuality(results.subList(0, treeSizeCheck))) {
@@ -476,11 +485,21 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         private TreeBuilder treeBuilder;
         private DoubleEndWeightedQueue2<ExactResult> graphCache;
         private Decomposition decomposition;
+        private ScoreBoundPruning pruning;
 
         public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition) {
+            this(treeBuilder, graphCache, decomposition, null);
+        }
+
+        /**
+         * @param pruning if not null, the tree is not computed (and null is returned) if its score upper bound
+         *                cannot reach the best trees computed so far
+         */
+        public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition, ScoreBoundPruning pruning) {
             this.treeBuilder = treeBuilder;
             this.graphCache = graphCache;
             this.decomposition = decomposition;
+            this.pruning = pruning;
         }
 
 
@@ -488,10 +507,16 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
         protected ExactResult compute() throws Exception {
             final FGraph graph = treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder ? analyzer.buildGraphWithoutReduction(pinput, decomposition) : analyzer.buildGraph(pinput, decomposition);
             checkForInterruption();
+            if (pruning != null && pruning.canBePruned(decomposition.getIon(), ScoreBoundPruning.upperBound(graph))) {
+                tick();
+                return null;
+            }
 //            System.err.println(Objects.toString(treeBuilder));
             final FTree tree = treeBuilder.computeTree().withTimeLimit(Math.min(restTimeSec(), secsPerTree)).solve(pinput, graph).tree;
             checkForInterruption();
             final ExactResult er = new ExactResult(decomposition, null, tree, tree.getTreeWeight());
+            if (pruning != null)
+                pruning.add(er);
             if (graphCache != null) {
                 double score = graphCache.getWeightLowerbound();
                 if (tree.getTreeWeight() > score) {
@@ -514,6 +539,7 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
             this.treeBuilder = null;
             this.graphCache = null;
             this.decomposition = null;
+            this.pruning = null;
         }
 
         @Override
@@ -524,6 +550,73 @@ public class FasterTreeComputationInstance extends BasicMasterJJob<FasterTreeCom
 
 
 
+    /**
+     * Tracks the best tree scores computed so far (overall and per ionization) and decides whether a candidate
+     * can be skipped because an upper bound on its tree score cannot reach them.
+     */
+    protected static class ScoreBoundPruning {
+        private final DoubleEndWeightedQueue2<ExactResult> best;
+        private final Map<Ionization, DoubleEndWeightedQueue2<ExactResult>> bestPerIonization;
+        private final int numberPerIonization;
+        private final AtomicInteger pruned = new AtomicInteger(0);
+
+        protected ScoreBoundPruning(int number, int numberPerIonization) {
+            this.best = new DoubleEndWeightedQueue2<>(number, Comparator.naturalOrder());
+            this.bestPerIonization = new HashMap<>();
+            this.numberPerIonization = numberPerIonization;
+        }
+
+        protected synchronized void add(ExactResult result) {
+            best.add(result, result.score);
+            if (numberPerIonization > 0)
+                bestPerIonization.computeIfAbsent(result.decomposition.getIon(), k -> new DoubleEndWeightedQueue2<>(numberPerIonization, Comparator.naturalOrder()))
+                        .add(result, result.score);
+        }
+
+        protected synchronized boolean canBePruned(Ionization ionization, double upperBound) {
+            if (upperBound >= best.getWeightLowerbound())
+                return false;
+            if (numberPerIonization > 0) {
+                final DoubleEndWeightedQueue2<ExactResult> perIon = bestPerIonization.get(ionization);
+                if (perIon == null || upperBound >= perIon.getWeightLowerbound())
+                    return false;
+            }
+            pruned.incrementAndGet();
+            return true;
+        }
+
+        protected int getNumberOfPrunedCandidates() {
+            return pruned.get();
+        }
+
+        /**
+         * A tree contains at most one fragment per color and each fragment has exactly one incoming edge.
+         * Hence, the root edge plus the best positive incoming edge of each other color is an upper bound on the
+         * score of any tree in the graph.
+         */
+        protected static double upperBound(FGraph graph) {
+            final Fragment pseudoRoot = graph.getRoot();
+            double rootScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < pseudoRoot.getOutDegree(); ++i)
+                rootScore = Math.max(rootScore, pseudoRoot.getOutgoingEdge(i).getWeight());
+
+            int maxColor = 0;
+            for (Fragment f : graph.getFragmentsWithoutRoot())
+                maxColor = Math.max(maxColor, f.getColor());
+            final double[] bestPerColor = new double[maxColor + 1];
+            for (Fragment f : graph.getFragmentsWithoutRoot()) {
+                for (int i = 0; i < f.getInDegree(); ++i) {
+                    final Loss l = f.getIncomingEdge(i);
+                    if (l.getSource() != pseudoRoot && l.getWeight() > bestPerColor[f.getColor()])
+                        bestPerColor[f.getColor()] = l.getWeight();
+                }
+            }
+            double bound = rootScore;
+            for (double b : bestPerColor) bound += b;
+            return bound;
+        }
+    }
+
     /*private void checkTimeout() {
         final long time = System.currentTimeMillis();
         final int elapsedTime = (int) ((time - startTime) / 1000);
@@ -33,17 +33,17 @@ import de.unijena.bioinf.sirius.PeakAnnotation;
 import de.unijena.bioinf.sirius.ProcessedInput;
 import de.unijena.bioinf.sirius.ProcessedPeak;
 import de.unijena.bioinf.sirius.annotations.DecompositionList;
+import gnu.trove.list.array.TIntArrayList;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.*;
 
 /**
  * @author Kai Dührkop
  */
 public class SubFormulaGraphBuilder implements GraphBuilder {
 
+    private final Map<ProcessedInput, Workspace> workspaces = Collections.synchronizedMap(new WeakHashMap<>());
+
     @Override
     public FGraph initializeEmptyGraph(ProcessedInput input) {
         final FGraph graph = new FGraph();
@@ -83,49 +83,151 @@ public class SubFormulaGraphBuilder implements GraphBuilder {
 
         // TODO: funktioniert nicht mit verschiedenen IonModes....
         MolecularFormula pmd;
+        final List<Fragment> roots = new ArrayList<>(graph.getFragmentsWithoutRoot());
         {
-            final Iterator<Fragment> roots = graph.getFragmentsWithoutRoot().iterator();
-            pmd = roots.next().getFormula();
-            while (roots.hasNext()) {
-                pmd = pmd.union(roots.next().getFormula());
+            final Iterator<Fragment> iter = roots.iterator();
+            pmd = iter.next().getFormula();
+            while (iter.hasNext()) {
+                pmd = pmd.union(iter.next().getFormula());
             }
         }
 
-        final ArrayList<ProcessedPeak> peaks = new ArrayList<ProcessedPeak>(input.getMergedPeaks());
-        Collections.sort(peaks, new ProcessedPeak.MassComparator());
-        for (int i = peaks.size() - 1; i >= 0; --i) {
-            final ProcessedPeak peak = peaks.get(i);
-            final int pi = peak.getIndex();
-            for (Decomposition decomp : decompList.get(peak).getDecompositions()) {
+        final Workspace workspace = getWorkspace(input, decompList);
+        final Decomposition[] decompositions = workspace.decompositions;
+        final Fragment[] fragments = workspace.fragmentBuffer();
+        try {
+            for (int i = 0; i < decompositions.length; ++i) {
+                final Decomposition decomp = decompositions[i];
                 if (!allowedIonModes.contains(decomp.getIon()))
                     continue;
                 final MolecularFormula formula = decomp.getCandidate();
                 final boolean hasEdge = formula.getMass() < pmd.getMass() && pmd.isSubtractable(formula);
                 if (hasEdge) {
+                    final ProcessedPeak peak = workspace.peaks[i];
+                    final int pi = peak.getIndex();
                     Fragment newFragment = null;
-                    for (Fragment f : graph) {
-//                        if (f.isRoot() || peakAno.get(f).getIndex() == pi || !ion.get(f).equals(decomposition.getIon())) continue;
-                        if (f.isRoot() || f.getColor() == pi) continue;
+                    // fragments are visited in the order they were added to the graph: roots first, then all
+                    // subformulas of previous (heavier) peaks
+                    for (Fragment f : roots) {
+                        if (f.getColor() == pi) continue;
                         final MolecularFormula fragmentFormula = f.getFormula();
-                        assert (peaks.get(f.getColor()).getMass() > peak.getMass());
                         if (!fragmentFormula.isEmpty() && fragmentFormula.isSubtractable(formula)) {
-                            if (newFragment == null) {
-                                newFragment = graph.addFragment(decomp.getCandidate(), decomp.getIon());
-                                peakAno.set(newFragment, peak);
-                                newFragment.setColor(peak.getIndex());
-                                newFragment.setPeakId(peak.getIndex());
-                                decomposition.set(newFragment, decomp);
-                            }
+                            if (newFragment == null)
+                                newFragment = addFragment(graph, decomposition, peakAno, peak, decomp);
                             if (!validator.isForbidden(input, graph, f, newFragment))
                                 graph.addLoss(f, newFragment);
                         }
                     }
+                    for (int k = workspace.parentOffsets[i], end = workspace.parentOffsets[i + 1]; k < end; ++k) {
+                        final Fragment f = fragments[workspace.parents[k]];
+                        if (f == null) continue;
+                        if (newFragment == null)
+                            newFragment = addFragment(graph, decomposition, peakAno, peak, decomp);
+                        if (!validator.isForbidden(input, graph, f, newFragment))
+                            graph.addLoss(f, newFragment);
+                    }
+                    fragments[i] = newFragment;
                 }
             }
+        } finally {
+            Arrays.fill(fragments, 0, decompositions.length, null);
         }
         return graph;
     }
 
+    private static Fragment addFragment(FGraph graph, FragmentAnnotation<Decomposition> decomposition, FragmentAnnotation<Peak> peakAno, ProcessedPeak peak, Decomposition decomp) {
+        final Fragment newFragment = graph.addFragment(decomp.getCandidate(), decomp.getIon());
+        peakAno.set(newFragment, peak);
+        newFragment.setColor(peak.getIndex());
+        newFragment.setPeakId(peak.getIndex());
+        decomposition.set(newFragment, decomp);
+        return newFragment;
+    }
+
+    private Workspace getWorkspace(ProcessedInput input, PeakAnnotation<DecompositionList> decompList) {
+        Workspace workspace = workspaces.get(input);
+        if (workspace == null || !workspace.isValidFor(input, decompList)) {
+            workspace = new Workspace(input, decompList);
+            workspaces.put(input, workspace);
+        }
+        return workspace;
+    }
+
+    /**
+     * The subformula relation between the decompositions of different peaks does not depend on the root candidate.
+     * It is computed once per input and shared by all graphs built for this input, so that building a graph
+     * only iterates over the possible parents of each decomposition instead of over all fragments in the graph.
+     */
+    protected static final class Workspace {
+        private static final ThreadLocal<Fragment[]> FRAGMENT_BUFFER = ThreadLocal.withInitial(() -> new Fragment[0]);
+
+        // all decompositions ordered by descending peak mass
+        private final Decomposition[] decompositions;
+        private final ProcessedPeak[] peaks;
+        // parents[parentOffsets[i]..parentOffsets[i+1]) are the previous decompositions of other peaks that contain decomposition i
+        private final int[] parentOffsets;
+        private final int[] parents;
+
+        private Workspace(ProcessedInput input, PeakAnnotation<DecompositionList> decompList) {
+            final ArrayList<ProcessedPeak> sorted = new ArrayList<>(input.getMergedPeaks());
+            sorted.sort(new ProcessedPeak.MassComparator());
+            final ArrayList<Decomposition> decompositions = new ArrayList<>();
+            final ArrayList<ProcessedPeak> peaks = new ArrayList<>();
+            for (int i = sorted.size() - 1; i >= 0; --i) {
+                final ProcessedPeak peak = sorted.get(i);
+                for (Decomposition decomp : decompList.get(peak).getDecompositions()) {
+                    decompositions.add(decomp);
+                    peaks.add(peak);
+                }
+            }
+            this.decompositions = decompositions.toArray(Decomposition[]::new);
+            this.peaks = peaks.toArray(ProcessedPeak[]::new);
+
+            final TIntArrayList parents = new TIntArrayList();
+            this.parentOffsets = new int[this.decompositions.length + 1];
+            for (int i = 0; i < this.decompositions.length; ++i) {
+                parentOffsets[i] = parents.size();
+                final MolecularFormula formula = this.decompositions[i].getCandidate();
+                final int pi = this.peaks[i].getIndex();
+                for (int j = 0; j < i; ++j) {
+                    if (this.peaks[j].getIndex() == pi) continue;
+                    final MolecularFormula parentFormula = this.decompositions[j].getCandidate();
+                    if (!parentFormula.isEmpty() && parentFormula.isSubtractable(formula))
+                        parents.add(j);
+                }
+            }
+            parentOffsets[this.decompositions.length] = parents.size();
+            this.parents = parents.toArray();
+        }
+
+        private boolean isValidFor(ProcessedInput input, PeakAnnotation<DecompositionList> decompList) {
+            int k = 0;
+            for (ProcessedPeak peak : input.getMergedPeaks()) {
+                final DecompositionList list = decompList.get(peak);
+                k += list == null ? 0 : list.getDecompositions().size();
+            }
+            if (k != decompositions.length) return false;
+            for (int i = 0; i < decompositions.length; ) {
+                final ProcessedPeak peak = peaks[i];
+                for (Decomposition decomp : decompList.get(peak).getDecompositions()) {
+                    if (i >= decompositions.length || decompositions[i] != decomp || peaks[i] != peak)
+                        return false;
+                    ++i;
+                }
+            }
+            return true;
+        }
+
+        private Fragment[] fragmentBuffer() {
+            Fragment[] buffer = FRAGMENT_BUFFER.get();
+            if (buffer.length < decompositions.length) {
+                buffer = new Fragment[decompositions.length];
+                FRAGMENT_BUFFER.set(buffer);
+            }
+            return buffer;
+        }
+    }
+
     /*
 
     @Override
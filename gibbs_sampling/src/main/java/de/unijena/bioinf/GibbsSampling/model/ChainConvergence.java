@@ -0,0 +1,142 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.GibbsSampling.model;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Convergence diagnostics for multiple Gibbs sampling chains of the same graph which are run in lockstep.
+ * Each candidate is treated as indicator variable (candidate is assigned to its compound or not).
+ * After each block of sampling rounds the per-chain frequencies of the block are collected as batch means.
+ * From these, the potential scale reduction factor R-hat (Gelman-Rubin) and a batch means estimate of the effective sample size
+ * are computed. Only primitive arrays are used, indexed by the absolute candidate index of the {@link Graph}.
+ */
+class ChainConvergence {
+    /*
+    candidates with lower pooled probability are ignored. Their estimates are noisy and hardly influence the results.
+     */
+    private static final double MIN_PROBABILITY = 0.01;
+
+    private final Graph<?> graph;
+    private final TIntHashSet fixedCompounds;
+    private final int numberOfChains;
+    // assignment frequencies of each chain at the end of the last block
+    private final int[][] lastFrequencies;
+    // sum of block frequencies and squared block frequencies over all chains and blocks
+    private final double[] sumBlockMeans, sumSquaredBlockMeans;
+    private int numberOfBlocks;
+    private int samplesPerChain;
+    private int samplesPerBlock;
+
+    private double maxRHat, minEffectiveSampleSize;
+
+    ChainConvergence(Graph<?> graph, TIntHashSet fixedCompounds, int numberOfChains) {
+        this.graph = graph;
+        this.fixedCompounds = fixedCompounds;
+        this.numberOfChains = numberOfChains;
+        this.lastFrequencies = new int[numberOfChains][graph.getSize()];
+        this.sumBlockMeans = new double[graph.getSize()];
+        this.sumSquaredBlockMeans = new double[graph.getSize()];
+    }
+
+    /**
+     * @param frequencies current assignment frequencies of each chain. All chains must have drawn the same number of samples.
+     * @param samplesPerBlock number of samples each chain has drawn since the last call
+     */
+    void addBlock(int[][] frequencies, int samplesPerBlock) {
+        if (samplesPerBlock <= 0) return;
+        this.samplesPerBlock = samplesPerBlock;
+        for (int c = 0; c < numberOfChains; ++c) {
+            final int[] current = frequencies[c], last = lastFrequencies[c];
+            for (int j = 0; j < current.length; ++j) {
+                final double mean = ((double) (current[j] - last[j])) / samplesPerBlock;
+                sumBlockMeans[j] += mean;
+                sumSquaredBlockMeans[j] += mean * mean;
+                last[j] = current[j];
+            }
+        }
+        ++numberOfBlocks;
+        samplesPerChain += samplesPerBlock;
+        computeDiagnostics();
+    }
+
+    private void computeDiagnostics() {
+        double maxRHat = 1d;
+        double minEss = Double.POSITIVE_INFINITY;
+        final int m = numberOfChains;
+        final int n = samplesPerChain;
+        final int totalBlocks = m * numberOfBlocks;
+        for (int compound = 0; compound < graph.numberOfCompounds(); ++compound) {
+            if (fixedCompounds != null && fixedCompounds.contains(compound)) continue;
+            for (int j = graph.getPeakLeftBoundary(compound); j <= graph.getPeakRightBoundary(compound); ++j) {
+                final double pooled = sumBlockMeans[j] / totalBlocks;
+                if (pooled < MIN_PROBABILITY) continue;
+
+                // R-hat from within and between chain variance of the indicator
+                if (m > 1 && n > 1) {
+                    double within = 0d, between = 0d;
+                    for (int c = 0; c < m; ++c) {
+                        final double p = ((double) lastFrequencies[c][j]) / n;
+                        within += p * (1d - p) * n / (n - 1);
+                        between += (p - pooled) * (p - pooled);
+                    }
+                    within /= m;
+                    between *= ((double) n) / (m - 1);
+                    final double rHat;
+                    if (within > 0) rHat = Math.sqrt((((double) (n - 1)) / n * within + between / n) / within);
+                    else rHat = between > 0 ? Double.POSITIVE_INFINITY : 1d;
+                    maxRHat = Math.max(maxRHat, rHat);
+                }
+
+                // effective sample size from the variance of the batch means
+                if (totalBlocks > 1) {
+                    final double variance = pooled * (1d - pooled);
+                    final double batchVariance = (sumSquaredBlockMeans[j] - totalBlocks * pooled * pooled) / (totalBlocks - 1);
+                    final double total = ((double) m) * n;
+                    final double ess = batchVariance <= 0 ? total : Math.min(total, total * variance / (samplesPerBlock * batchVariance));
+                    minEss = Math.min(minEss, ess);
+                }
+            }
+        }
+        this.maxRHat = maxRHat;
+        this.minEffectiveSampleSize = minEss;
+    }
+
+    /**
+     * @return true if R-hat of all relevant candidates is at most maxRHat and their effective sample size at least minEffectiveSampleSize
+     */
+    boolean hasConverged(double maxRHat, double minEffectiveSampleSize) {
+        if (numberOfBlocks < 2) return false;
+        return this.maxRHat <= maxRHat && this.minEffectiveSampleSize >= minEffectiveSampleSize;
+    }
+
+    double getMaxRHat() {
+        return maxRHat;
+    }
+
+    double getMinEffectiveSampleSize() {
+        return minEffectiveSampleSize;
+    }
+
+    int getSamplesPerChain() {
+        return samplesPerChain;
+    }
+}
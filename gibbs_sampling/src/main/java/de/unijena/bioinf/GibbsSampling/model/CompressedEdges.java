@@ -0,0 +1,249 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.GibbsSampling.model;
+
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Edges of a {@link Graph} in compressed sparse row format with float weights. The edges of candidate i are stored
+ * at positions {@link #getRowStart(int)} (inclusive) to {@link #getRowEnd(int)} (exclusive), sorted by target index.
+ * <p>
+ * Graphs derived from another graph (e.g. by removing or adding candidates) are views which share the target and
+ * weight arrays of the original storage and only remap node indices. Targets of removed candidates are reported as -1
+ * by {@link #getTarget(int)} and have to be skipped. Rows which do not exist in the shared storage are kept in a small
+ * separate storage, which is addressed by positions behind the shared one.
+ */
+public class CompressedEdges {
+
+    private final int size, baseSize;
+    private final int[] rowStart, rowEnd;
+    // shared storage, targets are indices of the original graph
+    private final int[] targets;
+    private final float[] weights;
+    // maps original indices to indices of this view and vice versa, null if both are identical
+    private final int[] targetMap, baseIndex;
+    // rows which are not contained in the shared storage, targets are indices of this view
+    private final int[] extraTargets;
+    private final float[] extraWeights;
+
+    private CompressedEdges(int size, int baseSize, int[] rowStart, int[] rowEnd, int[] targets, float[] weights, int[] targetMap, int[] baseIndex, int[] extraTargets, float[] extraWeights) {
+        this.size = size;
+        this.baseSize = baseSize;
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+        this.targets = targets;
+        this.weights = weights;
+        this.targetMap = targetMap;
+        this.baseIndex = baseIndex;
+        this.extraTargets = extraTargets;
+        this.extraWeights = extraWeights;
+    }
+
+    /**
+     * Builds the compressed storage in two passes: the first counts the edges of each candidate, the second fills the
+     * arrays. The rows of the input are released as soon as they are copied.
+     */
+    static CompressedEdges compress(int[][] connections, TIntIntHashMap[] indexMap, TDoubleArrayList[] weights) {
+        final int size = connections.length;
+        final int[] rowStart = new int[size], rowEnd = new int[size];
+        int numberOfEdges = 0;
+        for (int i = 0; i < size; i++) {
+            rowStart[i] = numberOfEdges;
+            numberOfEdges += connections[i].length;
+            rowEnd[i] = numberOfEdges;
+        }
+        final int[] targets = new int[numberOfEdges];
+        final float[] edgeWeights = new float[numberOfEdges];
+        for (int i = 0; i < size; i++) {
+            final int[] row = connections[i];
+            System.arraycopy(row, 0, targets, rowStart[i], row.length);
+            Arrays.sort(targets, rowStart[i], rowEnd[i]);
+            for (int k = rowStart[i]; k < rowEnd[i]; k++) {
+                final int rel = indexMap[i].get(targets[k]);
+                edgeWeights[k] = rel < 0 ? 0f : (float)weights[i].get(rel);
+            }
+            connections[i] = null;
+            indexMap[i] = null;
+            weights[i] = null;
+        }
+        return new CompressedEdges(size, size, rowStart, rowEnd, targets, edgeWeights, null, null, new int[0], new float[0]);
+    }
+
+    /**
+     * @return number of candidates
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getRowStart(int i) {
+        return rowStart[i];
+    }
+
+    public int getRowEnd(int i) {
+        return rowEnd[i];
+    }
+
+    /**
+     * @return target candidate of the edge at the given position or -1 if the target was removed from the graph
+     */
+    public int getTarget(int k) {
+        if (k >= targets.length) return extraTargets[k - targets.length];
+        return targetMap == null ? targets[k] : targetMap[targets[k]];
+    }
+
+    public float getWeight(int k) {
+        return k >= targets.length ? extraWeights[k - targets.length] : weights[k];
+    }
+
+    /**
+     * @return weight of the edge from i to j or 0 if there is no such edge
+     */
+    public float getWeight(int i, int j) {
+        final int k = find(i, j);
+        return k < 0 ? 0f : getWeight(k);
+    }
+
+    public boolean contains(int i, int j) {
+        return find(i, j) >= 0;
+    }
+
+    public int getNumberOfConnections(int i) {
+        if (targetMap == null || rowStart[i] >= targets.length) return rowEnd[i] - rowStart[i];
+        int count = 0;
+        for (int k = rowStart[i]; k < rowEnd[i]; k++) {
+            if (targetMap[targets[k]] >= 0) ++count;
+        }
+        return count;
+    }
+
+    /**
+     * @return targets of all edges of candidate i in ascending order
+     */
+    public int[] getTargets(int i) {
+        final int[] row = new int[getNumberOfConnections(i)];
+        int n = 0;
+        for (int k = rowStart[i]; k < rowEnd[i]; k++) {
+            final int c = getTarget(k);
+            if (c >= 0) row[n++] = c;
+        }
+        return row;
+    }
+
+    public int getNumberOfEdges() {
+        long sum = 0;
+        for (int i = 0; i < size; i++) sum += getNumberOfConnections(i);
+        return (int)sum;
+    }
+
+    private int find(int i, int j) {
+        final int start = rowStart[i], end = rowEnd[i];
+        if (start == end) return -1;
+        if (start >= targets.length) {
+            final int k = Arrays.binarySearch(extraTargets, start - targets.length, end - targets.length, j);
+            return k < 0 ? -1 : k + targets.length;
+        }
+        final int base = baseIndex == null ? j : (j < baseIndex.length ? baseIndex[j] : -1);
+        if (base < 0) return -1;
+        final int k = Arrays.binarySearch(targets, start, end, base);
+        return k < 0 ? -1 : k;
+    }
+
+    /**
+     * Creates a view without the given candidates.
+     * @param oldToNew new index of each candidate or -1 if it is removed. Must be monotone for the remaining candidates.
+     */
+    CompressedEdges removeCandidates(int[] oldToNew, int newSize) {
+        final int[] newToOld = new int[newSize];
+        for (int i = 0; i < oldToNew.length; i++) {
+            if (oldToNew[i] >= 0) newToOld[oldToNew[i]] = i;
+        }
+        return remap(oldToNew, newToOld, null, null, null);
+    }
+
+    /**
+     * Creates a view in which the candidates following position lastKeptIndex are shifted to make room for the
+     * given new rows. Edges of new rows are only stored in outgoing direction.
+     * @param newRows indices of the new candidates in the view, which must be consecutive
+     * @param newTargets targets of the new candidates in ascending order
+     */
+    CompressedEdges insertCandidates(int lastKeptIndex, int[] newRows, int[][] newTargets, float[][] newWeights) {
+        final int shift = newRows.length;
+        final int[] oldToNew = new int[size];
+        for (int i = 0; i < size; i++) oldToNew[i] = i <= lastKeptIndex ? i : i + shift;
+        final int[] newToOld = new int[size + shift];
+        Arrays.fill(newToOld, -1);
+        for (int i = 0; i < size; i++) newToOld[oldToNew[i]] = i;
+        return remap(oldToNew, newToOld, newRows, newTargets, newWeights);
+    }
+
+    private CompressedEdges remap(int[] oldToNew, int[] newToOld, int[] newRows, int[][] newTargets, float[][] newWeights) {
+        final int newSize = newToOld.length;
+        // compose the index maps of this view with the new ones, the shared storage is not touched
+        final int[] newTargetMap = new int[baseSize];
+        for (int b = 0; b < baseSize; b++) {
+            final int t = targetMap == null ? b : targetMap[b];
+            newTargetMap[b] = t < 0 ? -1 : oldToNew[t];
+        }
+        final int[] newBaseIndex = new int[newSize];
+        for (int n = 0; n < newSize; n++) {
+            final int o = newToOld[n];
+            newBaseIndex[n] = o < 0 ? -1 : (baseIndex == null ? o : baseIndex[o]);
+        }
+
+        // rows outside the shared storage are small and are copied
+        final int[] newRowStart = new int[newSize], newRowEnd = new int[newSize];
+        final TIntArrayList extraT = new TIntArrayList();
+        final TFloatArrayList extraW = new TFloatArrayList();
+        for (int n = 0; n < newSize; n++) {
+            final int o = newToOld[n];
+            if (o < 0) continue;
+            if (rowStart[o] < targets.length) {
+                newRowStart[n] = rowStart[o];
+                newRowEnd[n] = rowEnd[o];
+            } else {
+                newRowStart[n] = targets.length + extraT.size();
+                for (int k = rowStart[o]; k < rowEnd[o]; k++) {
+                    final int c = oldToNew[extraTargets[k - targets.length]];
+                    if (c < 0) continue;
+                    extraT.add(c);
+                    extraW.add(extraWeights[k - targets.length]);
+                }
+                newRowEnd[n] = targets.length + extraT.size();
+            }
+        }
+        if (newRows != null) {
+            for (int r = 0; r < newRows.length; r++) {
+                newRowStart[newRows[r]] = targets.length + extraT.size();
+                extraT.add(newTargets[r]);
+                extraW.add(newWeights[r]);
+                newRowEnd[newRows[r]] = targets.length + extraT.size();
+            }
+        }
+        return new CompressedEdges(newSize, baseSize, newRowStart, newRowEnd, targets, weights, newTargetMap, newBaseIndex, extraT.toArray(), extraW.toArray());
+    }
+
+}
@@ -22,11 +22,34 @@ package de.unijena.bioinf.GibbsSampling.model;
 
 import de.unijena.bioinf.jjobs.MasterJJob;
 
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 
 public interface EdgeFilter {
     void filterEdgesAndSetThreshold(Graph var1, int var2, double[] var3);
 
+    /**
+     * Same as {@link #filterEdgesAndSetThreshold(Graph, int, double[])} for sparse scores: only the first numberOfEdges
+     * entries of indices and logEdgeScores are given, all other candidates of other compounds have the score
+     * unrelatedLogEdgeScore. The default implementation expands the scores to a dense array.
+     */
+    default void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, int[] indices, double[] logEdgeScores, int numberOfEdges, double unrelatedLogEdgeScore) {
+        filterEdgesAndSetThreshold(graph, candidateIdx, toDenseScores(graph, candidateIdx, indices, logEdgeScores, numberOfEdges, unrelatedLogEdgeScore));
+    }
+
+    static double[] toDenseScores(Graph graph, int candidateIdx, int[] indices, double[] logEdgeScores, int numberOfEdges, double unrelatedLogEdgeScore) {
+        final double[] scores = new double[graph.getSize()];
+        Arrays.fill(scores, unrelatedLogEdgeScore);
+        final int peakIdx = graph.getPeakIdx(candidateIdx);
+        for (int j = graph.getPeakLeftBoundary(peakIdx); j <= graph.getPeakRightBoundary(peakIdx); ++j) {
+            scores[j] = 0.0D;
+        }
+        for (int i = 0; i < numberOfEdges; ++i) {
+            scores[indices[i]] = logEdgeScores[i];
+        }
+        return scores;
+    }
+
     int[][] postprocessCompleteGraph(Graph var1, MasterJJob masterJJob) throws ExecutionException;
 
     void setThreshold(double var1);
@@ -45,6 +45,27 @@ public class EdgeThresholdFilter extends AbstractEdgeFilter {
         }
     }
 
+    @Override
+    public void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, int[] indices, double[] logEdgeScores, int numberOfEdges, double unrelatedLogEdgeScore) {
+        if (unrelatedLogEdgeScore < this.logThres) {
+            //unscored candidates get edges as well
+            filterEdgesAndSetThreshold(graph, candidateIdx, EdgeFilter.toDenseScores(graph, candidateIdx, indices, logEdgeScores, numberOfEdges, unrelatedLogEdgeScore));
+            return;
+        }
+        graph.setEdgeThreshold(candidateIdx, this.logThres);
+        int peakIdx = graph.getPeakIdx(candidateIdx);
+
+        for(int k = 0; k < numberOfEdges; ++k) {
+            final int i = indices[k];
+            if(peakIdx != graph.getPeakIdx(i)) {
+                double score = logEdgeScores[k];
+                if(score < this.logThres) {
+                    graph.setLogWeight(candidateIdx, i, this.logThres - score);
+                }
+            }
+        }
+    }
+
     public void setThreshold(double threshold) {
         this.logThres = threshold;
     }
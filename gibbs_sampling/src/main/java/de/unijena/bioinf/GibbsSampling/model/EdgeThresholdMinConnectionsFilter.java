@@ -69,33 +69,7 @@ public class EdgeThresholdMinConnectionsFilter extends LocalEdgeFilter {
                     minThresholdPerPeak[peakIdxOther] = Math.min(minThresholdPerPeak[peakIdxOther], score);
                 }
             }
-            double[] minValues = new double[minimumConnectionCount + 1];
-            int K = 0, j = 0;
-            for (; K < minThresholdPerPeak.length; ++K) {
-                if (minThresholdPerPeak[K] < 0) {
-                    minValues[j++] = minThresholdPerPeak[K];
-                    if (j >= minValues.length)
-                        break;
-                }
-            }
-            insertionSort(minValues);
-            currentThreshold = minValues[minValues.length - 1];
-            if (currentThreshold > this.basicThreshold) {
-                for (int k = K; k < minThresholdPerPeak.length; ++k) {
-                    if (minThresholdPerPeak[k] <= currentThreshold) {
-                        minValues[minValues.length - 1] = minThresholdPerPeak[k];
-                        insertionSort(minValues);
-                        currentThreshold = minValues[minValues.length - 1];
-                        if (currentThreshold <= this.basicThreshold)
-                            break;
-                    }
-                }
-            }
-
-
-            if (currentThreshold < this.basicThreshold) {
-                currentThreshold = this.basicThreshold;
-            }
+            currentThreshold = thresholdFromBestScorePerPeak(minThresholdPerPeak);
         } else currentThreshold = 0d;
 
 
@@ -113,6 +87,79 @@ public class EdgeThresholdMinConnectionsFilter extends LocalEdgeFilter {
         graph.setEdgeThreshold(candidateIdx, currentThreshold);
     }
 
+    @Override
+    public void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, int[] indices, double[] logEdgeScores, int numberOfEdges, double unrelatedLogEdgeScore) {
+        //same as the dense version. Unscored candidates are skipped, as long as they neither lower the threshold nor get an edge.
+        if (unrelatedLogEdgeScore < 0) {
+            filterEdgesAndSetThreshold(graph, candidateIdx, EdgeFilter.toDenseScores(graph, candidateIdx, indices, logEdgeScores, numberOfEdges, unrelatedLogEdgeScore));
+            return;
+        }
+        int peakIdx = graph.getPeakIdx(candidateIdx);
+        double currentThreshold;
+        if (minimumConnectionCount < graph.getSize()) {
+            double[] minThresholdPerPeak = new double[graph.numberOfCompounds()];
+            for (int k = 0; k < numberOfEdges; ++k) {
+                int peakIdxOther = graph.getPeakIdx(indices[k]);
+                if (peakIdx != peakIdxOther) {
+                    double score = logEdgeScores[k];
+                    if (score >= 0) continue;
+                    minThresholdPerPeak[peakIdxOther] = Math.min(minThresholdPerPeak[peakIdxOther], score);
+                }
+            }
+            currentThreshold = thresholdFromBestScorePerPeak(minThresholdPerPeak);
+        } else currentThreshold = 0d;
+
+        if (unrelatedLogEdgeScore < currentThreshold) {
+            //unscored candidates get edges as well
+            filterEdgesAndSetThreshold(graph, candidateIdx, EdgeFilter.toDenseScores(graph, candidateIdx, indices, logEdgeScores, numberOfEdges, unrelatedLogEdgeScore));
+            return;
+        }
+
+        for (int k = 0; k < numberOfEdges; ++k) {
+            final int i = indices[k];
+            if (peakIdx != graph.getPeakIdx(i)) {
+                double score = logEdgeScores[k];
+                if (score >= currentThreshold) continue;
+
+                graph.setLogWeight(candidateIdx, i, currentThreshold - score);
+            }
+        }
+
+        graph.setEdgeThreshold(candidateIdx, currentThreshold);
+    }
+
+    private double thresholdFromBestScorePerPeak(double[] minThresholdPerPeak) {
+        double currentThreshold;
+        double[] minValues = new double[minimumConnectionCount + 1];
+        int K = 0, j = 0;
+        for (; K < minThresholdPerPeak.length; ++K) {
+            if (minThresholdPerPeak[K] < 0) {
+                minValues[j++] = minThresholdPerPeak[K];
+                if (j >= minValues.length)
+                    break;
+            }
+        }
+        insertionSort(minValues);
+        currentThreshold = minValues[minValues.length - 1];
+        if (currentThreshold > this.basicThreshold) {
+            for (int k = K; k < minThresholdPerPeak.length; ++k) {
+                if (minThresholdPerPeak[k] <= currentThreshold) {
+                    minValues[minValues.length - 1] = minThresholdPerPeak[k];
+                    insertionSort(minValues);
+                    currentThreshold = minValues[minValues.length - 1];
+                    if (currentThreshold <= this.basicThreshold)
+                        break;
+                }
+            }
+        }
+
+
+        if (currentThreshold < this.basicThreshold) {
+            currentThreshold = this.basicThreshold;
+        }
+        return currentThreshold;
+    }
+
     private static void insertionSort(double[] xs) {
         for (int i=0; i<xs.length; i++) {
             for (int j=i; j>0 && xs[j-1]>xs[j]; j--) {
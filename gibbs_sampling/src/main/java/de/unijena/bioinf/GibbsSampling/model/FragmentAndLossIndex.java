@@ -0,0 +1,161 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.GibbsSampling.model;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaEncodingError;
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.procedure.TIntProcedure;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inverted index from fragment and loss formulas to the candidates explaining them. It enumerates for a candidate all
+ * other candidates sharing at least a given number of fragments and losses, in time proportional to the number of
+ * shared fragments and losses instead of the number of candidates.
+ * Fragments and losses are counted with multiplicity, the same way as the merge in
+ * {@link de.unijena.bioinf.GibbsSampling.model.scorer.CommonFragmentAndLossScorer} counts them.
+ */
+public class FragmentAndLossIndex {
+
+    private final MolecularFormulaPacker packer;
+    // for each formula: pairs of candidate index and number of occurrences
+    private final TLongObjectHashMap<int[]> fragmentPostings, lossPostings;
+    // for each candidate: distinct packed formulas and their number of occurrences
+    private final long[][] fragmentKeys, lossKeys;
+    private final int[][] fragmentCounts, lossCounts;
+
+    private FragmentAndLossIndex(MolecularFormulaPacker packer, TLongObjectHashMap<int[]> fragmentPostings, TLongObjectHashMap<int[]> lossPostings, long[][] fragmentKeys, int[][] fragmentCounts, long[][] lossKeys, int[][] lossCounts) {
+        this.packer = packer;
+        this.fragmentPostings = fragmentPostings;
+        this.lossPostings = lossPostings;
+        this.fragmentKeys = fragmentKeys;
+        this.fragmentCounts = fragmentCounts;
+        this.lossKeys = lossKeys;
+        this.lossCounts = lossCounts;
+    }
+
+    /**
+     * @param candidates candidates in the order of the graph (see {@link Graph#getPossibleFormulas1D()})
+     * @return the index or null if the formulas cannot be packed into 64 bit
+     */
+    @Nullable
+    public static FragmentAndLossIndex build(FragmentsCandidate[] candidates) {
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        for (FragmentsCandidate c : candidates) {
+            for (FragmentWithIndex f : c.getFragments()) formulas.add(f.getFormula());
+            for (FragmentWithIndex l : c.getLosses()) formulas.add(l.getFormula());
+        }
+        final MolecularFormulaPacker packer;
+        try {
+            packer = MolecularFormulaPacker.newPackerFor(formulas.toArray(new MolecularFormula[0]));
+        } catch (FormulaEncodingError e) {
+            LoggerFactory.getLogger(FragmentAndLossIndex.class).warn("Cannot pack fragment formulas, candidate pairs are not pruned: " + e.getMessage());
+            return null;
+        }
+
+        final long[][] fragmentKeys = new long[candidates.length][], lossKeys = new long[candidates.length][];
+        final int[][] fragmentCounts = new int[candidates.length][], lossCounts = new int[candidates.length][];
+        for (int i = 0; i < candidates.length; i++) {
+            if (!count(packer, candidates[i].getFragments(), fragmentKeys, fragmentCounts, i)
+                    || !count(packer, candidates[i].getLosses(), lossKeys, lossCounts, i)) {
+                LoggerFactory.getLogger(FragmentAndLossIndex.class).warn("Cannot pack fragment formulas, candidate pairs are not pruned.");
+                return null;
+            }
+        }
+        return new FragmentAndLossIndex(packer, invert(fragmentKeys, fragmentCounts), invert(lossKeys, lossCounts), fragmentKeys, fragmentCounts, lossKeys, lossCounts);
+    }
+
+    private static boolean count(MolecularFormulaPacker packer, FragmentWithIndex[] fragments, long[][] keys, int[][] counts, int candidate) {
+        final TLongIntHashMap map = new TLongIntHashMap(fragments.length, 0.75f, -1, 0);
+        for (FragmentWithIndex f : fragments) {
+            final long key = packer.tryEncode(f.getFormula());
+            if (key == -1) return false;
+            map.adjustOrPutValue(key, 1, 1);
+        }
+        keys[candidate] = map.keys();
+        counts[candidate] = map.values();
+        return true;
+    }
+
+    private static TLongObjectHashMap<int[]> invert(long[][] keys, int[][] counts) {
+        final TLongIntHashMap sizes = new TLongIntHashMap();
+        for (long[] ks : keys) {
+            for (long k : ks) sizes.adjustOrPutValue(k, 2, 2);
+        }
+        final TLongObjectHashMap<int[]> postings = new TLongObjectHashMap<>(sizes.size());
+        final TLongIntHashMap fill = new TLongIntHashMap(sizes.size());
+        for (int i = 0; i < keys.length; i++) {
+            for (int k = 0; k < keys[i].length; k++) {
+                int[] list = postings.get(keys[i][k]);
+                if (list == null) {
+                    list = new int[sizes.get(keys[i][k])];
+                    postings.put(keys[i][k], list);
+                }
+                final int pos = fill.adjustOrPutValue(keys[i][k], 2, 2) - 2;
+                list[pos] = i;
+                list[pos + 1] = counts[i][k];
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * Calls the procedure for each other candidate which shares at least minimumShared fragments and losses with the
+     * given candidate, in ascending order.
+     * @param sharedBuffer buffer with one zero-initialized entry per candidate. It is zero again when the method returns.
+     */
+    public void forEachCandidateSharing(int candidate, int minimumShared, int[] sharedBuffer, TIntArrayList touchedBuffer, TIntProcedure procedure) {
+        touchedBuffer.resetQuick();
+        collect(candidate, fragmentKeys[candidate], fragmentCounts[candidate], fragmentPostings, sharedBuffer, touchedBuffer);
+        collect(candidate, lossKeys[candidate], lossCounts[candidate], lossPostings, sharedBuffer, touchedBuffer);
+        touchedBuffer.sort();
+        boolean proceed = true;
+        for (int k = 0; k < touchedBuffer.size(); k++) {
+            final int j = touchedBuffer.getQuick(k);
+            if (proceed && sharedBuffer[j] >= minimumShared) proceed = procedure.execute(j);
+            sharedBuffer[j] = 0;
+        }
+    }
+
+    private static void collect(int candidate, long[] keys, int[] counts, TLongObjectHashMap<int[]> postings, int[] shared, TIntArrayList touched) {
+        for (int k = 0; k < keys.length; k++) {
+            final int[] list = postings.get(keys[k]);
+            for (int p = 0; p < list.length; p += 2) {
+                final int j = list[p];
+                if (j == candidate) continue;
+                if (shared[j] == 0) touched.add(j);
+                shared[j] += Math.min(counts[k], list[p + 1]);
+            }
+        }
+    }
+
+    public int numberOfCandidates() {
+        return fragmentKeys.length;
+    }
+
+}
@@ -32,6 +32,8 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
     public static final int DEFAULT_CORRELATION_STEPSIZE = 10;
     private static final boolean OUTPUT_SAMPLE_PROBABILITY = false;
     protected Graph<C> graph;
+    // edges of the graph in compressed sparse row format, used in the sampling loop
+    private final CompressedEdges edges;
     public static final boolean iniAssignMostLikely = true;
     private int burnInRounds;
     private int currentRound;
@@ -43,6 +45,10 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
     double[] posteriorProbs;
     double[] posteriorProbSums;
     private Random random;
+    // preallocated buffers reused in every round
+    private int[] ordering;
+    private final BitSet toUpdate = new BitSet();
+    private int nextRound;
 
 
     /*
@@ -69,10 +75,19 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
     }
 
     public GibbsMFCorrectionNetwork(Graph graph, TIntHashSet fixedCompounds) {
+        this(graph, fixedCompounds, new Random());
+    }
+
+    /**
+     * @param random random number generator exclusively used by this network
+     */
+    public GibbsMFCorrectionNetwork(Graph graph, TIntHashSet fixedCompounds, Random random) {
         super(JobType.CPU);
         this.graph = graph;
+        this.edges = this.graph.getEdges();
         this.fixedCompounds = fixedCompounds==null?new TIntHashSet():fixedCompounds;
-        this.random = new Random();
+        this.random = random;
+        this.ordering = new int[this.graph.numberOfCompounds()];
         this.setActive();
     }
 
@@ -133,10 +148,10 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
             int peak = graph.getPeakIdx(i);
             if (isFixed(fixedCompounds, peak)) continue;
 
-            int[] conn = this.graph.getConnections(i);
-            for(int j = 0; j < conn.length; ++j) {
-                if(this.active[conn[j]]) {
-                    this.addActiveEdge(conn[j], i);
+            for(int k = edges.getRowStart(i); k < edges.getRowEnd(i); ++k) {
+                final int c = edges.getTarget(k);
+                if(c >= 0 && this.active[c]) {
+                    this.addActiveEdge(c, i, this.graph.getLogWeight(c, i));
                     ++this.activeEdgeCounter[i];
                 }
             }
@@ -170,61 +185,94 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
     protected Scored<C>[][] compute() throws Exception {
         if (maxSteps<0 || burnIn<0) throw new IllegalArgumentException("number of iterations steps not set.");
         updateProgress(0, maxSteps+burnIn, 0);
+        startSampling(burnIn);
+
+        for(int i = 0; i < burnIn + maxSteps; ++i) {
+            final boolean changed = sampleRound();
+
+            checkForInterruption();
+            if (DEBUG && !changed) System.out.println("nothing changed in step "+i);
+
+            updateProgress(0, maxSteps+burnIn, i+1);
+//            if((i % step == 0 && i>0) || i == (burnIn+maxSteps-1)) {
+//                logInfo("step "+((double)(((i+1)*100/(maxSteps+burnIn))))+"%");
+//
+//            }
+        }
+        return getChosenFormulas();
+    }
+
+    /**
+     * resets the assignment and all counts. Samples are counted after the given number of burn-in rounds.
+     */
+    void startSampling(int burnIn) {
         setActive();
         this.burnInRounds = burnIn;
-        int iterationStepLength = this.graph.numberOfCompounds();
-        double sampleProbability;
-
-        int step = (burnIn + maxSteps)/10;
+        this.nextRound = 0;
+    }
 
-        for(int i = 0; i < burnIn + maxSteps; ++i) {
-            this.currentRound = i;
-            boolean changed = false;
-            int[] randomOrdering = getRandomOrdering(iterationStepLength);
+    /**
+     * continues sampling for the given number of rounds. Used to run multiple chains in lockstep, see {@link GibbsParallel}.
+     */
+    void sampleRounds(int rounds) {
+        for (int i = 0; i < rounds; ++i) {
+            sampleRound();
+        }
+    }
 
-            if (OUTPUT_SAMPLE_PROBABILITY) {
-                if (i%10!=0) continue;
+    /**
+     * samples each compound once in random order.
+     * @return true if any assignment changed
+     */
+    private boolean sampleRound() {
+        final int i = nextRound++;
+        this.currentRound = i;
+        boolean changed = false;
+        shuffleOrdering();
+
+        if (OUTPUT_SAMPLE_PROBABILITY) {
+            if (i%10!=0) return false;
 //                ...
-                double overallProb = 0d;
-                int isCorrect = 0;
-                for (int j = 0; j < active.length; j++) {
-                    if (active[j]){
-                        if (((StandardCandidate)this.graph.getPossibleFormulas1D(j).getCandidate()).isCorrect()){
-                            ++isCorrect;
-                        }
-                        double score = this.graph.getCandidateScore(j);
-
-
-                        for (int k = 0; k < active.length; k++) {
-                            if (j==k || !active[k]) continue;
-                            score += this.graph.getLogWeight(k, j)/2;
-                        }
-
-                        overallProb += score;
+            double overallProb = 0d;
+            int isCorrect = 0;
+            for (int j = 0; j < active.length; j++) {
+                if (active[j]){
+                    if (((StandardCandidate)this.graph.getPossibleFormulas1D(j).getCandidate()).isCorrect()){
+                        ++isCorrect;
                     }
+                    double score = this.graph.getCandidateScore(j);
 
-                }
-                System.out.println("posterior probability: "+overallProb+" | correct "+isCorrect);
-            }
 
+                    for (int k = 0; k < active.length; k++) {
+                        if (j==k || !active[k]) continue;
+                        score += this.graph.getLogWeight(k, j)/2;
+                    }
 
-            for(int runtime = 0; runtime < randomOrdering.length; ++runtime) {
-                if(this.iterationStep(randomOrdering[runtime])) {
-                    changed = true;
+                    overallProb += score;
                 }
+
             }
+            System.out.println("posterior probability: "+overallProb+" | correct "+isCorrect);
+        }
 
 
-            checkForInterruption();
-            if (DEBUG && !changed) System.out.println("nothing changed in step "+i);
+        for(int runtime = 0; runtime < ordering.length; ++runtime) {
+            if(this.iterationStep(ordering[runtime])) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
 
-            updateProgress(0, maxSteps+burnIn, i+1);
-//            if((i % step == 0 && i>0) || i == (burnIn+maxSteps-1)) {
-//                logInfo("step "+((double)(((i+1)*100/(maxSteps+burnIn))))+"%");
-//
-//            }
+    /**
+     * Fisher-Yates shuffle of all compound indices into the preallocated ordering buffer
+     */
+    private void shuffleOrdering() {
+        for (int i = 0; i < ordering.length; ++i) {
+            final int j = random.nextInt(i + 1);
+            ordering[i] = ordering[j];
+            ordering[j] = i;
         }
-        return getChosenFormulas();
     }
 
     public String[] getIds() {
@@ -345,6 +393,20 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
         return this.getFormulasSortedByScoring(this.overallAssignmentFreq);
     }
 
+    /**
+     * @return how often each candidate was sampled after burn-in. The array is updated during sampling.
+     */
+    int[] getAssignmentFrequencies() {
+        return this.overallAssignmentFreq;
+    }
+
+    /**
+     * @param assignmentFreq sampling frequencies, e.g. summed over multiple chains of the same graph
+     */
+    Scored<C>[][] getFormulasSortedByFrequency(int[] assignmentFreq) {
+        return this.getFormulasSortedByScoring(assignmentFreq);
+    }
+
     private boolean iterationStep(int peakIdx) {
         int[] b = this.graph.getPeakBoundaries(peakIdx);
         int min = b[0];
@@ -363,20 +425,22 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
         if(relCurrentActive == relIndex) {
             return false;
         } else {
-            BitSet toUpdate = new BitSet();
-            int[] c = this.graph.getConnections(absCurrentActive);
-            for (int conjugate : c) {
+            toUpdate.clear();
+            for (int k = edges.getRowStart(absCurrentActive), end = edges.getRowEnd(absCurrentActive); k < end; ++k) {
+                final int conjugate = edges.getTarget(k);
+                if (conjugate < 0) continue;
                 final int corrspondingPeakIdx = this.graph.getPeakIdx(conjugate);
                 if (isFixed(fixedCompounds, corrspondingPeakIdx)) continue;
-                this.removeActiveEdge(absCurrentActive, conjugate);
+                this.removeActiveEdge(absCurrentActive, conjugate, edges.getWeight(k));
                 toUpdate.set(corrspondingPeakIdx);
             }
 
-            c = this.graph.getConnections(absIdx);
-            for (int conjugate : c) {
+            for (int k = edges.getRowStart(absIdx), end = edges.getRowEnd(absIdx); k < end; ++k) {
+                final int conjugate = edges.getTarget(k);
+                if (conjugate < 0) continue;
                 final int corrspondingPeakIdx = this.graph.getPeakIdx(conjugate);
                 if (isFixed(fixedCompounds, corrspondingPeakIdx)) continue;
-                this.addActiveEdge(absIdx, conjugate);
+                this.addActiveEdge(absIdx, conjugate, edges.getWeight(k));
                 toUpdate.set(corrspondingPeakIdx);
             }
 
@@ -396,19 +460,21 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
     }
 
 
-    private void removeActiveEdge(int outgoing, int incoming) {
+    /**
+     * @param weight log weight of the edge from outgoing to incoming
+     */
+    private void removeActiveEdge(int outgoing, int incoming, double weight) {
         if (USE_MAX_PRIOR_PROBABILITY) {
-            final double removedWeight = this.graph.getLogWeight(outgoing, incoming);
+            final double removedWeight = weight;
             final double currentWeight = this.priorProb[incoming];
             if (removedWeight==currentWeight){
                 //find 2nd best score
                 double max = 0; //no active edge = 0;
-                int[] conn = this.graph.getConnections(incoming);
-                for(int j = 0; j < conn.length; ++j) {
-                    final int c = conn[j];
-                    if(this.active[c] && c!=outgoing) {
-                        final double weight = graph.getLogWeight(c, incoming);
-                        if (weight>max) max = weight;
+                for(int k = edges.getRowStart(incoming); k < edges.getRowEnd(incoming); ++k) {
+                    final int c = edges.getTarget(k);
+                    if(c >= 0 && this.active[c] && c!=outgoing) {
+                        final double w = graph.getLogWeight(c, incoming);
+                        if (w>max) max = w;
                     }
                 }
 
@@ -419,25 +485,28 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
 
         } else {
             if (USE_SQRT_PRIOR_PROBABILITY){
-                this.priorProb[incoming] -= Math.sqrt(this.graph.getLogWeight(outgoing, incoming));
+                this.priorProb[incoming] -= Math.sqrt(weight);
             } else {
-                this.priorProb[incoming] -= (this.graph.getLogWeight(outgoing, incoming));
+                this.priorProb[incoming] -= weight;
             }
         }
     }
 
-    private void addActiveEdge(int outgoing, int incoming) {
+    /**
+     * @param weight log weight of the edge from outgoing to incoming
+     */
+    private void addActiveEdge(int outgoing, int incoming, double weight) {
         if (USE_MAX_PRIOR_PROBABILITY) {
-            final double newWeight = this.graph.getLogWeight(outgoing, incoming);
+            final double newWeight = weight;
             final double currentWeight = this.priorProb[incoming];
             if (newWeight>currentWeight){
                 this.priorProb[incoming] = newWeight;
             }
         } else {
             if (USE_SQRT_PRIOR_PROBABILITY){
-                this.priorProb[incoming] += Math.sqrt(this.graph.getLogWeight(outgoing, incoming));
+                this.priorProb[incoming] += Math.sqrt(weight);
             } else {
-                this.priorProb[incoming] += (this.graph.getLogWeight(outgoing, incoming));
+                this.priorProb[incoming] += weight;
             }
         }
     }
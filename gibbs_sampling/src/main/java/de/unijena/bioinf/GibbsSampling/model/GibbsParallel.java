@@ -21,6 +21,7 @@
 package de.unijena.bioinf.GibbsSampling.model;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
+import de.unijena.bioinf.ChemistryBase.math.XoRoShiRo128PlusPlus;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.BasicMasterJJob;
 import de.unijena.bioinf.jjobs.JobProgressEvent;
@@ -35,6 +36,17 @@ import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 public class GibbsParallel<C extends Candidate<?>> extends BasicMasterJJob<CompoundResult<C>[]> implements JobProgressEventListener {
+    public static final double DEFAULT_MAX_RHAT = 1.05;
+    public static final double DEFAULT_MIN_EFFECTIVE_SAMPLE_SIZE = 400;
+    /*
+    with convergence stopping, chains which did not converge after the given number of iteration steps are run up to this factor longer
+     */
+    public static final int MAX_ITERATION_FACTOR = 4;
+    /*
+    number of samples each chain draws between two convergence checks
+     */
+    private static final int SAMPLES_PER_BLOCK = 10;
+
     private int repetitions;
     private final List<GibbsMFCorrectionNetwork> gibbsNetworks;
     private Scored<C>[][] sampling;
@@ -43,10 +55,16 @@ public class GibbsParallel<C extends Candidate<?>> extends BasicMasterJJob<Compo
     private int currentProgress;
     private int step;
 
+    private final TIntHashSet fixedCompounds;
+    private boolean convergenceStopping = false;
+    private double maxRHat = DEFAULT_MAX_RHAT;
+    private double minEffectiveSampleSize = DEFAULT_MIN_EFFECTIVE_SAMPLE_SIZE;
+
     public GibbsParallel(Graph<C> graph, int repetitions, TIntHashSet fixedCompounds) throws ExecutionException {
         super(JobType.CPU);
         this.repetitions = repetitions;
         this.graph = graph;
+        this.fixedCompounds = fixedCompounds;
         this.gibbsNetworks = init(repetitions, fixedCompounds);
     }
 
@@ -56,13 +74,35 @@ public class GibbsParallel<C extends Candidate<?>> extends BasicMasterJJob<Compo
 
     private List<GibbsMFCorrectionNetwork> init(int size, TIntHashSet fixedCompounds){
         List<GibbsMFCorrectionNetwork> networkList = new ArrayList<>();
+        //each chain gets its own non-overlapping random stream
+        final XoRoShiRo128PlusPlus random = new XoRoShiRo128PlusPlus();
         int i = 0;
         while(i++ < size) {
-            networkList.add(new GibbsMFCorrectionNetwork(graph, fixedCompounds));
+            networkList.add(new GibbsMFCorrectionNetwork(graph, fixedCompounds, random.split()));
         }
         return networkList;
     }
 
+    /**
+     * Run all repetitions as chains in lockstep and stop as soon as they agree (R-hat) and enough effectively
+     * independent samples are drawn (effective sample size), evaluated for all candidates with a posterior probability of at least 1%.
+     * The number of iteration steps set via {@link #setIterationSteps(int, int)} then only is a guideline:
+     * easy datasets terminate earlier, hard ones run up to {@link #MAX_ITERATION_FACTOR} times longer.
+     */
+    public void setConvergenceStopping(double maxRHat, double minEffectiveSampleSize) {
+        this.convergenceStopping = true;
+        this.maxRHat = maxRHat;
+        this.minEffectiveSampleSize = minEffectiveSampleSize;
+    }
+
+    public void setConvergenceStopping(boolean convergenceStopping) {
+        this.convergenceStopping = convergenceStopping;
+    }
+
+    public boolean isConvergenceStopping() {
+        return convergenceStopping;
+    }
+
 
     private void combineResults() {
         TObjectDoubleHashMap[] samplingCombined = this.createMap(graph.numberOfCompounds());
@@ -137,6 +177,7 @@ public class GibbsParallel<C extends Candidate<?>> extends BasicMasterJJob<Compo
     @Override
     protected CompoundResult<C>[] compute() throws Exception {
         if (maxSteps<0 || burnIn<0) throw new IllegalArgumentException("Number of iterations steps not set.");
+        if (convergenceStopping) return computeUntilConverged();
         final int maxStepProportioned = maxSteps / this.repetitions;
         maxProgress = maxStepProportioned*repetitions+burnIn*repetitions;
         currentProgress = 0;
@@ -169,6 +210,75 @@ public class GibbsParallel<C extends Candidate<?>> extends BasicMasterJJob<Compo
     }
 
 
+    private CompoundResult<C>[] computeUntilConverged() throws ExecutionException {
+        final int maxStepProportioned = maxSteps / this.repetitions;
+        final int maxSamplingSteps = maxStepProportioned * MAX_ITERATION_FACTOR;
+        final int blockSteps = GibbsMFCorrectionNetwork.DEFAULT_CORRELATION_STEPSIZE * SAMPLES_PER_BLOCK;
+        maxProgress = burnIn + maxSamplingSteps;
+        updateProgress(0, maxProgress, 0, "Sample probabilities");
+
+        for (GibbsMFCorrectionNetwork gibbsNetwork : gibbsNetworks) {
+            gibbsNetwork.startSampling(burnIn);
+        }
+        //samples are drawn every DEFAULT_CORRELATION_STEPSIZE steps after burn-in. Hence, all following blocks contain the same number of samples.
+        int steps = burnIn + 1;
+        runChains(steps);
+
+        final ChainConvergence convergence = new ChainConvergence(graph, fixedCompounds, gibbsNetworks.size());
+        final int[][] frequencies = new int[gibbsNetworks.size()][];
+        for (int c = 0; c < frequencies.length; c++) {
+            frequencies[c] = gibbsNetworks.get(c).getAssignmentFrequencies();
+        }
+        boolean converged = false;
+        while (steps - burnIn - 1 < maxSamplingSteps) {
+            checkForInterruption();
+            runChains(blockSteps);
+            steps += blockSteps;
+            convergence.addBlock(frequencies, SAMPLES_PER_BLOCK);
+            updateProgress(0, maxProgress, Math.min(steps, maxProgress));
+            if (convergence.hasConverged(maxRHat, minEffectiveSampleSize)) {
+                converged = true;
+                break;
+            }
+        }
+        if (converged) {
+            logInfo("Sampling converged after " + steps + " steps per chain (R-hat " + convergence.getMaxRHat() + ", effective sample size " + convergence.getMinEffectiveSampleSize() + ").");
+        } else {
+            logWarn("Sampling did not converge after " + steps + " steps per chain (R-hat " + convergence.getMaxRHat() + ", effective sample size " + convergence.getMinEffectiveSampleSize() + ").");
+        }
+
+        //all chains have drawn the same number of samples, so summing their frequencies equals averaging their probabilities
+        final int[] combined = new int[graph.getSize()];
+        for (int[] frequency : frequencies) {
+            for (int j = 0; j < combined.length; j++) {
+                combined[j] += frequency[j];
+            }
+        }
+        this.sampling = gibbsNetworks.get(0).getFormulasSortedByFrequency(combined);
+
+        checkForInterruption();
+        return createCompoundResults();
+    }
+
+    /**
+     * continue all chains in parallel for the given number of steps. Chains do not share any state.
+     */
+    private void runChains(final int steps) throws ExecutionException {
+        final List<BasicJJob<Object>> jobs = new ArrayList<>(gibbsNetworks.size());
+        for (final GibbsMFCorrectionNetwork gibbsNetwork : gibbsNetworks) {
+            jobs.add(submitSubJob(new BasicJJob<Object>(JobType.CPU) {
+                @Override
+                protected Object compute() throws Exception {
+                    gibbsNetwork.sampleRounds(steps);
+                    return "";
+                }
+            }));
+        }
+        for (BasicJJob<Object> job : jobs) {
+            job.awaitResult();
+        }
+    }
+
     protected CompoundResult<C>[] createCompoundResults(){
         final String[] ids = graph.getIds();
         final CompoundResult<C>[] results = new CompoundResult[ids.length];
@@ -22,6 +22,7 @@ package de.unijena.bioinf.GibbsSampling.model;
 
 import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TFloatArrayList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
@@ -33,10 +34,13 @@ import java.util.*;
 import java.util.function.Consumer;
 
 public class Graph<C extends Candidate<?>> {
-    protected final TIntIntHashMap[] indexMap;
-    protected final TDoubleArrayList[] weights;
+    // edges while the graph is built. They are released by compressEdges()
+    protected TIntIntHashMap[] indexMap;
+    protected TDoubleArrayList[] weights;
     protected double[] edgeThresholds;
     protected int[][] connections;
+    // edges of the finished graph
+    protected volatile CompressedEdges edges;
     protected int[] boundaries;
     private int[] formulaIdxToPeakIdx;
     protected int size;
@@ -104,7 +108,7 @@ public class Graph<C extends Candidate<?>> {
         return graph;
     }
 
-    private Graph(String[] ids, Scored<C>[][] possibleFormulas, TIntIntHashMap[] indexMap, TDoubleArrayList[] weights, int[][] connections, double[] edgeThresholds) {
+    private Graph(String[] ids, Scored<C>[][] possibleFormulas, CompressedEdges edges, double[] edgeThresholds) {
         this.ids = ids;
         this.possibleFormulas = possibleFormulas;
         InitData initData = this.setUp(possibleFormulas);
@@ -112,10 +116,8 @@ public class Graph<C extends Candidate<?>> {
         this.formulaIdxToPeakIdx = initData.formulaIdxToPeakIdx;
         this.possibleFormulas1D = initData.possibleFormulas1D;
         this.size = this.possibleFormulas1D.length;
-        this.indexMap = indexMap;
-        this.weights = weights;
+        this.edges = edges;
         this.edgeThresholds = edgeThresholds;
-        this.connections = connections;
 //        this.edgeScorers = edgeScorers;
 //        this.edgeFilter = edgeFilter;
     }
@@ -141,25 +143,56 @@ public class Graph<C extends Candidate<?>> {
 
     }
 
+    /**
+     * Converts the edges into the compressed sparse row format and releases the hash maps used while building the
+     * graph. Afterwards, weights cannot be changed anymore. Must not be called while other threads access the graph.
+     */
+    public synchronized void compressEdges() {
+        if (edges != null) return;
+        if (connections == null) throw new IllegalStateException("connections are not set.");
+        final CompressedEdges compressed = CompressedEdges.compress(connections, indexMap, weights);
+        this.connections = null;
+        this.indexMap = null;
+        this.weights = null;
+        this.edges = compressed;
+    }
+
+    public boolean isCompressed() {
+        return edges != null;
+    }
+
+    /**
+     * @return edges in compressed sparse row format. Compresses the edges if this was not done before.
+     */
+    public CompressedEdges getEdges() {
+        if (edges == null) compressEdges();
+        return edges;
+    }
+
     public double getLogWeight(int i, int j) {
+        if (edges != null) return edges.getWeight(i, j);
         int relJ = this.indexMap[i].get(j);
         return relJ < 0?0.0D:this.weights[i].get(relJ);
     }
 
     public int getNumberOfConnections(int i) {
+        if (edges != null) return edges.getNumberOfConnections(i);
         return this.weights[i].size();
     }
 
     public int[] getLogWeightConnections(int i) {
+        if (edges != null) return edges.getTargets(i);
         return this.indexMap[i].keys();
     }
 
     public boolean hasLogWeightConnections(int i, int j) {
+        if (edges != null) return edges.contains(i, j);
         return this.indexMap[i].containsKey(j);
     }
 
     public void setLogWeight(int i, int j, double weight) {
         assert !Double.isNaN(weight);
+        if (edges != null) throw new IllegalStateException("edges are already compressed.");
 
         int relJ = this.indexMap[i].get(j);
         if(relJ < 0) {
@@ -180,10 +213,17 @@ public class Graph<C extends Candidate<?>> {
     }
 
     public int[][] getConnections() {
-        return this.connections;
+        if (edges == null) return this.connections;
+        final int[][] connections = new int[size][];
+        for (int i = 0; i < size; i++) connections[i] = edges.getTargets(i);
+        return connections;
     }
 
+    /**
+     * for a compressed graph a new array is created on each call. Use {@link #getEdges()} for frequent access.
+     */
     public int[] getConnections(int index) {
+        if (edges != null) return edges.getTargets(index);
         return this.connections[index];
     }
 
@@ -309,6 +349,7 @@ public class Graph<C extends Candidate<?>> {
 
 
     protected void thinOutGraph() {
+        if (edges != null) throw new IllegalStateException("edges are already compressed.");
         final double probToKeep = Math.log(1e-6);
         int numberOfDeleted = 0;
         boolean changed = true;
@@ -508,7 +549,7 @@ public class Graph<C extends Candidate<?>> {
     }
 
     protected boolean isSymmetricSparse() {
-        return isSymmetricSparse(connections);
+        return isSymmetricSparse(getConnections());
     }
 
     private boolean isSymmetricSparse(int[][] connections) {
@@ -593,7 +634,7 @@ public class Graph<C extends Candidate<?>> {
     }
 
     protected boolean arePeaksConnected(){
-        return arePeaksConnected(connections);
+        return arePeaksConnected(getConnections());
     }
 
     private boolean arePeaksConnected(int[][] connections){
@@ -683,17 +724,11 @@ public class Graph<C extends Candidate<?>> {
         int rightPos = getPeakRightBoundary(compoundIndex);
         int newLength = replacementCandidatesResorted.length;
         int newSize = getSize()-oldLength+newLength;
-        TIntIntHashMap[] indexMap2 = new TIntIntHashMap[newSize];
-        TDoubleArrayList[] weights2 = new TDoubleArrayList[newSize];
+        final CompressedEdges oldEdges = getEdges();
         double[] edgeThresholds2 = new double[newSize];
-        int[][] connections2 = new int[newSize][];
-
-
-        for(int i = 0; i < indexMap2.length; ++i) {
-            indexMap2[i] = new TIntIntHashMap(newSize / 100, 0.75F, -1, -1);
-            weights2[i] = new TDoubleArrayList(newSize / 100);
-        }
-
+        int[] newRows = new int[newLength-oldLength];
+        int[][] newTargets = new int[newRows.length][];
+        float[][] newWeights = new float[newRows.length][];
 
 
         //compute edges of new candidates
@@ -705,10 +740,10 @@ public class Graph<C extends Candidate<?>> {
             }
         }
         for (int i = oldLength; i < newLength; i++) {
-//            int pos = absStartPos+i;
             final C candidate = replacementCandidatesResorted[i].getCandidate();
             final int candidateNewIdx = absStartPos + i;
             TIntArrayList newConns = new TIntArrayList();
+            TFloatArrayList newConnWeights = new TFloatArrayList();
             for(int j = 0; j < Graph.this.getSize(); ++j) {
                 int newIdx = oldToNewIndex(j, absStartPos, oldLength, newLength);
                 //same compound index = no edge possible
@@ -726,61 +761,22 @@ public class Graph<C extends Candidate<?>> {
                     final double weight = currentThreshold - score;
                     if (weight>0){
                         //todo correct direction?
-                        indexMap2[candidateNewIdx].put(newIdx, weights2[candidateNewIdx].size());
-                        weights2[candidateNewIdx].add(weight);
-
                         newConns.add(newIdx);
+                        newConnWeights.add((float)weight);
                     }
 
 
                 }
             }
 
-            connections2[candidateNewIdx] = newConns.toArray();
-
-
-        }
-
-        //add known edges
-        for (int i = 0; i <= rightPos; i++) {
-            //new idx equals old idx i
-            int[] conns = getConnections(i);
-            int[] newConns = new int[conns.length];
-            edgeThresholds2[i] = edgeThresholds[i];
-            for (int j = 0; j < conns.length; j++) {
-                final int c = conns[j];
-                int newIdx = oldToNewIndex(c, absStartPos, oldLength, newLength);
-                double w = getLogWeight(i, c);
-                indexMap2[i].put(newIdx, weights2[i].size());
-                weights2[i].add(w);
-                newConns[j] = newIdx;
-            }
-
-            connections2[i] = newConns;
-
-        }
-        for (int i = rightPos+1; i < getSize(); i++) {
-            int newI = oldToNewIndex(i, absStartPos, oldLength, newLength);
-            int[] conns = getConnections(i);
-            int[] newConns = new int[conns.length];
-            edgeThresholds2[newI] = edgeThresholds[i];
-            for (int j = 0; j < conns.length; j++) {
-                final int c = conns[j];
-                int newIdx = oldToNewIndex(c, absStartPos, oldLength, newLength);
-                double w = getLogWeight(i, c);
-                indexMap2[newI].put(newIdx, weights2[newI].size());
-                weights2[newI].add(w);
-                newConns[j] = newIdx;
-            }
-
-            connections2[newI] = newConns;
+            newRows[i-oldLength] = candidateNewIdx;
+            newTargets[i-oldLength] = newConns.toArray();
+            newWeights[i-oldLength] = newConnWeights.toArray();
         }
 
-        for (int i = 0; i < connections2.length; i++) {
-            if (connections2[i]==null){
-                System.out.println("is null");
-            }
-
+        //known edges are shared with this graph, only their indices are shifted
+        for (int i = 0; i < getSize(); i++) {
+            edgeThresholds2[oldToNewIndex(i, absStartPos, oldLength, newLength)] = edgeThresholds[i];
         }
 
         Scored<C>[][] possibleFormulas2 = new Scored[possibleFormulas.length][];
@@ -793,7 +789,7 @@ public class Graph<C extends Candidate<?>> {
 
         }
 
-        return new Graph<C>(this.ids, possibleFormulas2, indexMap2, weights2, connections2, edgeThresholds2);
+        return new Graph<C>(this.ids, possibleFormulas2, oldEdges.insertCandidates(rightPos, newRows, newTargets, newWeights), edgeThresholds2);
 
     }
 
@@ -845,7 +841,7 @@ public class Graph<C extends Candidate<?>> {
         }
 
 
-        return new Graph<C>(this.ids, possibleFormulasSorted, indexMap.clone(), weights, connections.clone(), edgeThresholds);
+        return new Graph<C>(this.ids, possibleFormulasSorted, getEdges(), edgeThresholds);
 
     }
 
@@ -874,46 +870,16 @@ public class Graph<C extends Candidate<?>> {
      */
     public Graph<C> removeUnlikelyCandidates(double probabilityThreshold){
         final double logProb = Math.log(probabilityThreshold) ;
-        TIntArrayList removableCandidates = new TIntArrayList();
-        TIntIntHashMap oldToNewIndex  = new TIntIntHashMap(possibleFormulas1D.length, 0.7f, -1, -1);
-        int newIdx = 0;
+        final int[] oldToNewIndex = new int[possibleFormulas1D.length];
+        int newSize = 0;
         for (int i = 0; i < possibleFormulas1D.length; i++) {
-            if (possibleFormulas1D[i].getScore()<=logProb) removableCandidates.add(i);
-            else oldToNewIndex.put(i, newIdx++);
+            if (possibleFormulas1D[i].getScore()<=logProb) oldToNewIndex[i] = -1;
+            else oldToNewIndex[i] = newSize++;
         }
 
-
-        int newSize = getSize()-removableCandidates.size();
-        TIntIntHashMap[] indexMap2 = new TIntIntHashMap[newSize];
-        TDoubleArrayList[] weights2 = new TDoubleArrayList[newSize];
         double[] edgeThresholds2 = new double[newSize];
-        int[][] connections2 = new int[newSize][];
-
-        for(int i = 0; i < indexMap2.length; ++i) {
-            indexMap2[i] = new TIntIntHashMap(newSize / 100, 0.75F, -1, -1);
-            weights2[i] = new TDoubleArrayList(newSize / 100);
-        }
-
-
         for (int i = 0; i < getSize(); i++) {
-            if (!oldToNewIndex.containsKey(i)) continue;
-            newIdx = oldToNewIndex.get(i);
-            edgeThresholds2[newIdx] = edgeThresholds[i];
-            int[] conns = getConnections(i);
-            TIntArrayList newConns = new TIntArrayList();
-            for (int j = 0; j < conns.length; j++) {
-                int c = conns[j];
-                int newC = oldToNewIndex.get(c);
-                if (newC<0) continue;
-
-                newConns.add(newC);
-
-                double weight = getLogWeight(i, c);
-
-                indexMap2[newIdx].put(j, weights2[newIdx].size());
-                weights2[newIdx].add(weight);
-            }
-            connections2[newIdx] = newConns.toArray();
+            if (oldToNewIndex[i] >= 0) edgeThresholds2[oldToNewIndex[i]] = edgeThresholds[i];
         }
 
         Scored<C>[][] possibleFormulas2 = new Scored[possibleFormulas.length][];
@@ -922,15 +888,15 @@ public class Graph<C extends Candidate<?>> {
             List<Scored<C>> newCandidates = new ArrayList<>();
             for (int j = 0; j < candidates.length; j++) {
                 int absIdx = getAbsoluteFormulaIdx(i, j);
-                newIdx = oldToNewIndex.get(absIdx);
-                if (newIdx<0) continue;
+                if (oldToNewIndex[absIdx]<0) continue;
                 final Scored<C> candidate = candidates[j];
                 newCandidates.add(candidate);
             }
             possibleFormulas2[i] = newCandidates.toArray(new Scored[0]);
         }
 
-        return new Graph<C>(this.ids, possibleFormulas2, indexMap2, weights2, connections2, edgeThresholds2);
+        //edges are shared with this graph, removed candidates are skipped by the view
+        return new Graph<C>(this.ids, possibleFormulas2, getEdges().removeCandidates(oldToNewIndex, newSize), edgeThresholds2);
 
 
     }
@@ -24,12 +24,14 @@ import de.unijena.bioinf.ChemistryBase.algorithm.scoring.Scored;
 import de.unijena.bioinf.ChemistryBase.math.HighQualityRandom;
 import de.unijena.bioinf.GibbsSampling.model.distributions.ScoreProbabilityDistributionEstimator;
 import de.unijena.bioinf.GibbsSampling.model.distributions.ScoreProbabilityDistributionFix;
+import de.unijena.bioinf.GibbsSampling.model.scorer.CommonFragmentAndLossScorer;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.BasicMasterJJob;
 import de.unijena.bioinf.jjobs.JobProgressEvent;
 import de.unijena.bioinf.jjobs.JobProgressEventListener;
 import gnu.trove.list.TDoubleList;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.procedure.TDoubleProcedure;
 import gnu.trove.set.hash.TIntHashSet;
 import org.slf4j.LoggerFactory;
@@ -49,6 +51,13 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
     EdgeFilter edgeFilter;
     Class<C> cClass;
 
+    //candidate pairs which share less fragments and losses are not scored but get the unrelatedScore
+    private FragmentAndLossIndex fragmentAndLossIndex;
+    //disable to score all candidate pairs
+    boolean candidatePairPruning = true;
+    private int minimumSharedFragmentsAndLosses;
+    private double unrelatedScore;
+
     private int numberOfFinishedComputations = 0;
     private double step;
     private int size;
@@ -135,6 +144,8 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
                 if (GibbsMFCorrectionNetwork.DEBUG) System.out.println("thinning out graph in "+(System.currentTimeMillis()-time)+" ms");
             }
         }
+        //the graph is complete. Replace the per candidate hash maps by the compact representation used for sampling
+        graph.compressEdges();
         return graph;
     }
 
@@ -179,6 +190,8 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
 
         if (GibbsMFCorrectionNetwork.DEBUG) System.out.println("minV "+minV);
 
+        prepareCandidatePairPruning();
+
         this.edgeFilter.setThreshold(minV);
         size = graph.getSize();
         step = Math.max(size/20, 1);
@@ -210,7 +223,44 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
             job.awaitResult();
         }
         logInfo("finished computing edges after "+(System.currentTimeMillis()-start));
+        fragmentAndLossIndex = null;
+    }
+
+    /**
+     * If all edges are scored by common fragments and losses, only candidate pairs sharing enough of them can get a
+     * score different from the score of unrelated candidates. These pairs are enumerated via an inverted index.
+     */
+    private void prepareCandidatePairPruning() {
+        fragmentAndLossIndex = null;
+        if (!candidatePairPruning) return;
+        if (!FragmentsCandidate.class.isAssignableFrom(cClass) || edgeScorers.length == 0) return;
+        int minShared = Integer.MAX_VALUE;
+        double unrelated = 0d;
+        for (EdgeScorer<C> edgeScorer : edgeScorers) {
+            final CommonFragmentAndLossScorer scorer;
+            if (edgeScorer instanceof CommonFragmentAndLossScorer) {
+                scorer = (CommonFragmentAndLossScorer) edgeScorer;
+            } else if (edgeScorer instanceof ScoreProbabilityDistributionEstimator
+                    && ((ScoreProbabilityDistributionEstimator<C>) edgeScorer).getEdgeScorer() instanceof CommonFragmentAndLossScorer) {
+                scorer = (CommonFragmentAndLossScorer) ((ScoreProbabilityDistributionEstimator<C>) edgeScorer).getEdgeScorer();
+                unrelated += ((ScoreProbabilityDistributionEstimator<C>) edgeScorer).getProbabilityDistribution().toLogPvalue(0d);
+            } else {
+                return;
+            }
+            minShared = Math.min(minShared, scorer.getMinimumNumberOfSharedFragmentsAndLosses());
+        }
+        if (minShared <= 0) return;
 
+        final long start = System.currentTimeMillis();
+        final FragmentsCandidate[] candidates = new FragmentsCandidate[graph.getSize()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = (FragmentsCandidate) graph.getPossibleFormulas1D(i).getCandidate();
+        }
+        fragmentAndLossIndex = FragmentAndLossIndex.build(candidates);
+        minimumSharedFragmentsAndLosses = minShared;
+        unrelatedScore = unrelated;
+        if (fragmentAndLossIndex != null)
+            logDebug("built fragment and loss index in " + (System.currentTimeMillis() - start) + " ms. Only candidate pairs sharing at least " + minShared + " fragments and losses are scored.");
     }
 
 
@@ -297,6 +347,12 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
         private Graph<C> graph;
 
         protected int computedEdges, totalEdges;
+        private int[] sharedBuffer;
+        private TIntArrayList touchedBuffer;
+        //sparse scores of the candidates sharing enough fragments and losses with the current candidate
+        private int[] sparseIndices = new int[16];
+        private double[] sparseScores = new double[16];
+        private int numberOfSparseScores;
 
         private EdgeCalculationWorker(ConcurrentLinkedQueue<Integer> remainingCandidates, Graph<C> graph) {
             this.remainingCandidates = remainingCandidates;
@@ -310,6 +366,13 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
                 if (idx==null) continue;
                 final C candidate = graph.getPossibleFormulas1D(idx).getCandidate();
 
+                if (fragmentAndLossIndex != null) {
+                    scoreSharingCandidates(idx, candidate);
+                    edgeFilter.filterEdgesAndSetThreshold(graph, idx, sparseIndices, sparseScores, numberOfSparseScores, unrelatedScore);
+                    reportProgress(edgesPerPercentagePoint);
+                    continue;
+                }
+
                 TDoubleArrayList scores = new TDoubleArrayList(graph.getSize());
 
                 for(int j = 0; j < graph.getSize(); ++j) {
@@ -330,15 +393,47 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
 
                 edgeFilter.filterEdgesAndSetThreshold(graph, idx, scores.toArray());
 
-                ++computedEdges;
-                if (computedEdges%edgesPerPercentagePoint==0 && totalEdges>0) {
-                    logInfo(String.format("%d / %d (%d %%)", computedEdges, totalEdges, (computedEdges*100)/totalEdges));
-                }
+                reportProgress(edgesPerPercentagePoint);
                 //progess is always fired if job done
 //                checkForInterruption();
 
             }
             return null;
         }
+
+        private void reportProgress(int edgesPerPercentagePoint) {
+            ++computedEdges;
+            if (computedEdges%edgesPerPercentagePoint==0 && totalEdges>0) {
+                logInfo(String.format("%d / %d (%d %%)", computedEdges, totalEdges, (computedEdges*100)/totalEdges));
+            }
+        }
+
+        /**
+         * same scores as the exhaustive loop, but only candidates of other compounds sharing enough fragments and
+         * losses are scored. They are stored as sparse (index, score) pairs, all others would get the unrelatedScore.
+         */
+        private void scoreSharingCandidates(final int idx, final C candidate) {
+            if (sharedBuffer == null) {
+                sharedBuffer = new int[graph.getSize()];
+                touchedBuffer = new TIntArrayList();
+            }
+            numberOfSparseScores = 0;
+            final int peakIdx = graph.getPeakIdx(idx);
+            fragmentAndLossIndex.forEachCandidateSharing(idx, minimumSharedFragmentsAndLosses, sharedBuffer, touchedBuffer, j -> {
+                if (graph.getPeakIdx(j) == peakIdx) return true;
+                final C candidate2 = graph.getPossibleFormulas1D(j).getCandidate();
+                double score = 0.0D;
+                for (EdgeScorer<C> edgeScorer : edgeScorers) {
+                    score += edgeScorer.score(candidate, candidate2);
+                }
+                if (numberOfSparseScores == sparseIndices.length) {
+                    sparseIndices = Arrays.copyOf(sparseIndices, 2 * sparseIndices.length);
+                    sparseScores = Arrays.copyOf(sparseScores, 2 * sparseScores.length);
+                }
+                sparseIndices[numberOfSparseScores] = j;
+                sparseScores[numberOfSparseScores++] = score;
+                return true;
+            });
+        }
     }
 }
@@ -41,6 +41,27 @@ public class NoEdgeFilter extends AbstractEdgeFilter {
 
     }
 
+    @Override
+    public void filterEdgesAndSetThreshold(Graph graph, int candidateIdx, int[] indices, double[] logEdgeScores, int numberOfEdges, double unrelatedLogEdgeScore) {
+        if (unrelatedLogEdgeScore != 0.0D && !Double.isInfinite(unrelatedLogEdgeScore)) {
+            //unscored candidates get edges as well
+            filterEdgesAndSetThreshold(graph, candidateIdx, EdgeFilter.toDenseScores(graph, candidateIdx, indices, logEdgeScores, numberOfEdges, unrelatedLogEdgeScore));
+            return;
+        }
+        graph.setEdgeThreshold(candidateIdx, 0.0D / 0.0);
+        int peakIdx = graph.getPeakIdx(candidateIdx);
+
+        for(int k = 0; k < numberOfEdges; ++k) {
+            final int i = indices[k];
+            if(peakIdx != graph.getPeakIdx(i)) {
+                double score = logEdgeScores[k];
+                if(score != 0.0D && !Double.isInfinite(score)) {
+                    graph.setLogWeight(candidateIdx, i, score);
+                }
+            }
+        }
+    }
+
     public int[][] postprocessCompleteGraph(Graph graph, MasterJJob masterJJob) {
         return this.makeWeightsSymmetricAndCreateConnectionsArray(graph);
     }
@@ -160,6 +160,24 @@ public class TwoPhaseGibbsSampling<C extends Candidate<?>> extends BasicMasterJJ
         this.burnIn = burnIn;
     }
 
+    private boolean convergenceStopping = false;
+    private double maxRHat = GibbsParallel.DEFAULT_MAX_RHAT;
+    private double minEffectiveSampleSize = GibbsParallel.DEFAULT_MIN_EFFECTIVE_SAMPLE_SIZE;
+
+    /**
+     * stop sampling of both rounds as soon as all chains converged, see {@link GibbsParallel#setConvergenceStopping(double, double)}
+     */
+    public void setConvergenceStopping(double maxRHat, double minEffectiveSampleSize) {
+        this.convergenceStopping = true;
+        this.maxRHat = maxRHat;
+        this.minEffectiveSampleSize = minEffectiveSampleSize;
+    }
+
+    private void configureSampling(GibbsParallel<C> gibbsParallel) {
+        gibbsParallel.setIterationSteps(maxSteps, burnIn);
+        if (convergenceStopping) gibbsParallel.setConvergenceStopping(maxRHat, minEffectiveSampleSize);
+    }
+
     @Override
     protected ZodiacResult<C> compute() throws Exception {
         if (maxSteps<0 || burnIn<0) throw new IllegalArgumentException("number of iterations steps not set.");
@@ -169,7 +187,7 @@ public class TwoPhaseGibbsSampling<C extends Candidate<?>> extends BasicMasterJJ
         logInfo("Running ZODIAC with "+firstRoundIds.length+" of "+ids.length+" compounds.");
         Graph.validateAndThrowError(graph, this::logWarn);
         gibbsParallel = new GibbsParallel<>(graph, repetitions);
-        gibbsParallel.setIterationSteps(maxSteps, burnIn);
+        configureSampling(gibbsParallel);
         long start = System.currentTimeMillis();
         submitSubJob(gibbsParallel);
         checkForInterruption();
@@ -205,7 +223,7 @@ public class TwoPhaseGibbsSampling<C extends Candidate<?>> extends BasicMasterJJ
             Graph.validateAndThrowError(graph, this::logWarn);
 
             gibbsParallel = new GibbsParallel<>(graph, repetitions, fixedIds);
-            gibbsParallel.setIterationSteps(maxSteps, burnIn);
+            configureSampling(gibbsParallel);
             submitSubJob(gibbsParallel);
 
             results2 = gibbsParallel.awaitResult();
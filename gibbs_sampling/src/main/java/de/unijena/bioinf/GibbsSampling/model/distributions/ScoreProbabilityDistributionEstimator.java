@@ -223,6 +223,10 @@ public class ScoreProbabilityDistributionEstimator<C extends Candidate<?>> imple
         return this.scoreProbabilityDistribution;
     }
 
+    public EdgeScorer<C> getEdgeScorer() {
+        return edgeScorer;
+    }
+
     public void clean() {
         this.edgeScorer.clean();
     }
@@ -513,6 +513,25 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         return 1;
     }
 
+    /**
+     * upper bound on {@link #scoreMatchedFragments(FragmentWithIndex, FragmentWithIndex)}
+     */
+    protected double maximumMatchScore() {
+        return 1;
+    }
+
+    /**
+     * Candidates which share less fragments and losses (counted as in {@link #scoreCommons(FragmentWithIndex[], FragmentWithIndex[])})
+     * are guaranteed to be scored 0.
+     * @return minimum number of shared fragments and losses, 0 if no candidate pair can be excluded
+     */
+    public int getMinimumNumberOfSharedFragmentsAndLosses() {
+        if (MINIMUM_NUMBER_MATCHED_PEAKS_LOSSES <= 0) return 0;
+        final double max = maximumMatchScore();
+        if (Double.isInfinite(max)) return 1;
+        return (int)Math.floor(MINIMUM_NUMBER_MATCHED_PEAKS_LOSSES / max) + 1;
+    }
+
 
     static class PeakWithExplanation implements Comparable<PeakWithExplanation>{
         MolecularFormula[] formulas;
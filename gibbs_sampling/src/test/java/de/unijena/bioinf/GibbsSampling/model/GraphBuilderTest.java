@@ -94,6 +94,46 @@ public class GraphBuilderTest {
 
     }
 
+    @Test
+    public void testCandidatePairPruningKeepsEdges() throws Exception {
+        final Path exampleDir = Paths.get(getClass().getResource("/tiny-example").getFile());
+        final Graph<FragmentsCandidate> pruned = buildGraph(ExamplePreparationUtils.readData(exampleDir), true);
+        final Graph<FragmentsCandidate> exhaustive = buildGraph(ExamplePreparationUtils.readData(exampleDir), false);
+
+        assertEquals(exhaustive.getSize(), pruned.getSize());
+        assertArrayEquals(exhaustive.edgeThresholds, pruned.edgeThresholds, 1e-12);
+        for (int i = 0; i < exhaustive.getSize(); i++) {
+            final int[] expected = exhaustive.connections[i].clone();
+            final int[] actual = pruned.connections[i].clone();
+            Arrays.sort(expected);
+            Arrays.sort(actual);
+            assertArrayEquals(expected, actual);
+            for (int j : expected) {
+                assertEquals(exhaustive.getLogWeight(i, j), pruned.getLogWeight(i, j), 1e-12);
+            }
+        }
+    }
+
+    private Graph<FragmentsCandidate> buildGraph(Map<Ms2Experiment, List<FTree>> data, boolean candidatePairPruning) throws Exception {
+        EdgeFilter edgeFilter = new EdgeThresholdMinConnectionsFilter(0.5, 1, 1);
+        CommonFragmentAndLossScorer c = new CommonFragmentAndLossScorerNoiseIntensityWeighted(0);
+        EdgeScorer[] edgeScorers = new EdgeScorer[]{new ScoreProbabilityDistributionFix(c, new LogNormalDistribution(true), 0.9)};
+        NodeScorer[] nodeScorers = new NodeScorer[]{new StandardNodeScorer(true, 1d)};
+
+        String[] ids = data.keySet().stream().map(Ms2Experiment::getName).toArray(String[]::new);
+        FragmentsCandidate[][] candidates = data.entrySet().stream()
+                .map(e -> FragmentsCandidate.createAllCandidateInstances(e.getValue(), e.getKey()).toArray(new FragmentsCandidate[0]))
+                .toArray(FragmentsCandidate[][]::new);
+
+        GraphBuilder<FragmentsCandidate> graphBuilder = GraphBuilder.createGraphBuilder(ids, candidates, nodeScorers, edgeScorers, edgeFilter, FragmentsCandidate.class);
+        graphBuilder.candidatePairPruning = candidatePairPruning;
+        graphBuilder.registerJobManager(SiriusJobs.getGlobalJobManager());
+        graphBuilder.setState(JJob.JobState.RUNNING);
+        graphBuilder.calculateWeight();
+        graphBuilder.setConnections();
+        return graphBuilder.graph;
+    }
+
     private void assertAfterCalculatingWeights(Graph<FragmentsCandidate> graph) {
         double[][] weights = new double[][]{
                 new double[]{0.6836898487475431, 0.6836898487475431},
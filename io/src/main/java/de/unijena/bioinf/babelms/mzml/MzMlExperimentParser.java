@@ -20,7 +20,7 @@
 
 package de.unijena.bioinf.babelms.mzml;
 
-import de.unijena.bioinf.io.lcms.MzMLParser;
+import de.unijena.bioinf.io.lcms.MzMLStaxParser;
 import de.unijena.bioinf.model.lcms.LCMSRun;
 
 import java.io.BufferedReader;
@@ -43,6 +43,6 @@ public class MzMlExperimentParser extends AbstractMzParser {
 
     @Override
     protected LCMSRun parseToLCMSRun(BufferedReader sourceReader, URI source) throws IOException {
-        return new MzMLParser().parse(currentSource, inMemoryStorage);
+        return new MzMLStaxParser().parse(currentSource, inMemoryStorage);
     }
 }
@@ -0,0 +1,101 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.io.lcms;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes base64 encoded (and optionally zlib compressed) binary arrays of mzML and mzXML files.
+ * All methods are stateless and can be called concurrently.
+ */
+final class BinaryArrayDecoder {
+
+    enum Encoding {
+        FLOAT32(Float.BYTES), FLOAT64(Double.BYTES), INT32(Integer.BYTES), INT64(Long.BYTES);
+
+        final int bytes;
+
+        Encoding(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private BinaryArrayDecoder() {
+    }
+
+    /**
+     * @param expectedBytes size hint for the decompressed data, may be 0 if unknown
+     */
+    static ByteBuffer decodeBytes(String base64, boolean zlib, ByteOrder order, int expectedBytes) throws IOException {
+        byte[] bytes = Base64.getMimeDecoder().decode(base64);
+        if (zlib) bytes = inflate(bytes, expectedBytes);
+        return ByteBuffer.wrap(bytes).order(order);
+    }
+
+    static double[] decode(String base64, Encoding encoding, boolean zlib, ByteOrder order, int expectedLength) throws IOException {
+        return toDoubles(decodeBytes(base64, zlib, order, expectedLength * encoding.bytes), encoding);
+    }
+
+    static double[] toDoubles(ByteBuffer buffer, Encoding encoding) {
+        final double[] values = new double[buffer.remaining() / encoding.bytes];
+        switch (encoding) {
+            case FLOAT32:
+                for (int i = 0; i < values.length; ++i) values[i] = buffer.getFloat();
+                break;
+            case FLOAT64:
+                buffer.asDoubleBuffer().get(values);
+                break;
+            case INT32:
+                for (int i = 0; i < values.length; ++i) values[i] = buffer.getInt();
+                break;
+            case INT64:
+                for (int i = 0; i < values.length; ++i) values[i] = buffer.getLong();
+                break;
+        }
+        return values;
+    }
+
+    private static byte[] inflate(byte[] compressed, int expectedBytes) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] out = new byte[Math.max(expectedBytes, 2 * compressed.length + 64)];
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == out.length) out = Arrays.copyOf(out, 2 * out.length);
+                final int written = inflater.inflate(out, size, out.length - size);
+                if (written == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                size += written;
+            }
+            return size == out.length ? out : Arrays.copyOf(out, size);
+        } catch (DataFormatException e) {
+            throw new IOException("Cannot decompress binary data array", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
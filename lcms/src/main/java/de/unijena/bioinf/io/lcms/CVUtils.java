@@ -27,22 +27,32 @@ import java.util.HashMap;
 public class CVUtils {
 
     public static double getTimeInSeconds(CVParam param) {
+        return getTimeInSeconds(param.getValue(), param.getUnitAccession(), param.getUnitName(), param);
+    }
+
+    public static long getTimeInMilliseconds(CVParam param) {
+        return Math.round(getTimeInSeconds(param)*1000d);
+    }
+
+    /**
+     * Same as {@link #getTimeInMilliseconds(CVParam)} for the raw attributes of a cvParam element.
+     */
+    public static long getTimeInMilliseconds(String value, String unitAccession, String unitName) {
+        return Math.round(getTimeInSeconds(value, unitAccession, unitName, value)*1000d);
+    }
+
+    private static double getTimeInSeconds(String value, String unitAccession, String unitName, Object param) {
         TimeUnit timeUnit;
-        if (param.getUnitAccession()!=null) {
-            timeUnit = getTimeUnit(param.getUnitAccession());
-        } else if (param.getUnitName()!=null) {
-            timeUnit = getTimeUnit(param.getUnitName());
+        if (unitAccession!=null) {
+            timeUnit = getTimeUnit(unitAccession);
+        } else if (unitName!=null) {
+            timeUnit = getTimeUnit(unitName);
         } else {
             throw new IllegalArgumentException("Unknown time unit for " + param);
         }
-        String value = param.getValue();
         return Double.parseDouble(value) * timeUnit.inSeconds;
     }
 
-    public static long getTimeInMilliseconds(CVParam param) {
-        return Math.round(getTimeInSeconds(param)*1000d);
-    }
-
     private final static HashMap<String, TimeUnit> term2time;
     static {
         term2time = new HashMap<>();
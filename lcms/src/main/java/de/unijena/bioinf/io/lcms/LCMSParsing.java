@@ -42,6 +42,6 @@ public class LCMSParsing {
     }
 
     public static LCMSRun parseRunFromMzMl(File source, SpectrumStorage storage) throws IOException {
-        return new MzMLParser().parse(source, storage);
+        return new MzMLStaxParser().parse(source, storage);
     }
 }
@@ -0,0 +1,408 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.io.lcms;
+
+import de.unijena.bioinf.ChemistryBase.data.DataSource;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.IsolationWindow;
+import de.unijena.bioinf.ChemistryBase.ms.MsInstrumentation;
+import de.unijena.bioinf.ChemistryBase.ms.lcms.MsDataSourceReference;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.lcms.SpectrumStorage;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Polarity;
+import de.unijena.bioinf.model.lcms.Precursor;
+import de.unijena.bioinf.model.lcms.Scan;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Streaming mzML parser based on StAX. In contrast to {@link MzMLParser} no object model of the file is created:
+ * scan metadata is read on the fly and the binary data arrays are decoded by a {@link ScanDecodingPipeline},
+ * which writes the peaks directly into the {@link SpectrumStorage}. Only a bounded window of scans is kept in memory.
+ * <p>
+ * Precursor scan references are resolved against the spectra read so far, so references to later spectra
+ * are set to -1.
+ */
+public class MzMLStaxParser implements LCMSParser {
+
+    @Override
+    public LCMSRun parse(File file, SpectrumStorage storage) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            return parse(new DataSource(file), in, storage);
+        } catch (Throwable w) {
+            LoggerFactory.getLogger(MzMLStaxParser.class).error("Error when parsing file: " + file.getName());
+            throw w;
+        }
+    }
+
+    public LCMSRun parse(URI source, SpectrumStorage storage) throws IOException {
+        try (InputStream in = new BufferedInputStream(source.toURL().openStream())) {
+            return parse(new DataSource(source), in, storage);
+        }
+    }
+
+    public LCMSRun parse(@NotNull DataSource source, @NotNull InputStream in, @NotNull SpectrumStorage storage) throws IOException {
+        final LCMSRun run = new LCMSRun(source);
+        final ScanDecodingPipeline pipeline = new ScanDecodingPipeline(run, storage);
+        try {
+            final XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            final XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                final Context context = new Context();
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+                    switch (reader.getLocalName()) {
+                        case "mzML":
+                            context.mzMlId = reader.getAttributeValue(null, "id");
+                            break;
+                        case "instrumentConfiguration":
+                            readInstrumentConfiguration(reader, context.instruments);
+                            break;
+                        case "run":
+                            context.runId = reader.getAttributeValue(null, "id");
+                            context.defaultInstrument = reader.getAttributeValue(null, "defaultInstrumentConfigurationRef");
+                            break;
+                        case "spectrum":
+                            final SpectrumElement spectrum = readSpectrum(reader, context.idToIndex);
+                            if (spectrum != null) pipeline.submit(spectrum::decode);
+                            break;
+                        case "chromatogramList":
+                            // chromatograms are not used. Stop reading here, indexedmzML only appends the offset index.
+                            pipeline.finish();
+                            return finish(run, source, context);
+                    }
+                }
+                pipeline.finish();
+                return finish(run, source, context);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | RuntimeException e) {
+            pipeline.cancel();
+            throw new IOException(e);
+        } catch (IOException e) {
+            pipeline.cancel();
+            throw e;
+        }
+    }
+
+    private static final class Context {
+        private String mzMlId, runId, defaultInstrument;
+        private final Map<String, String> instruments = new HashMap<>();
+        private final Map<String, Integer> idToIndex = new HashMap<>();
+    }
+
+    private LCMSRun finish(LCMSRun run, DataSource source, Context context) {
+        {
+            // get source location oO
+            URI s = source.getURI();
+            URI parent = s.getPath().endsWith("/") ? s.resolve("..") : s.resolve(".");
+            String fileName = parent.relativize(s).toString();
+            run.setReference(new MsDataSourceReference(parent, fileName, context.runId, context.mzMlId));
+        }
+        //instrumentationstuff
+        final String instrumentInfo = context.instruments.getOrDefault(context.defaultInstrument == null ? "" : context.defaultInstrument, "");
+        run.setInstrument(Arrays.stream(MsInstrumentation.Instrument.values()).map(i -> (MsInstrumentation) i)
+                .filter(i -> i.isInstrument(instrumentInfo)).findFirst().orElse(MsInstrumentation.Unknown)
+        );
+        return run;
+    }
+
+    /**
+     * Collects the params of the instrument configuration and its analyzers, like {@link MzMLParser} does.
+     */
+    private void readInstrumentConfiguration(XMLStreamReader reader, Map<String, String> instruments) throws XMLStreamException {
+        final String id = reader.getAttributeValue(null, "id");
+        final List<String> list = new ArrayList<>();
+        int depth = 0, analyzerDepth = -1;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                ++depth;
+                final String name = reader.getLocalName();
+                if (name.equals("analyzer")) analyzerDepth = depth;
+                final boolean relevant = depth == 1 || (analyzerDepth >= 0 && depth == analyzerDepth + 1);
+                if (relevant && name.equals("cvParam")) list.add(reader.getAttributeValue(null, "name"));
+                else if (relevant && name.equals("userParam")) list.add(reader.getAttributeValue(null, "value"));
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 0) break;
+                if (depth == analyzerDepth) analyzerDepth = -1;
+                --depth;
+            }
+        }
+        if (id != null) instruments.put(id, String.join(", ", list));
+    }
+
+    private SpectrumElement readSpectrum(XMLStreamReader reader, Map<String, Integer> idToIndex) throws XMLStreamException {
+        final SpectrumElement spec = new SpectrumElement();
+        spec.id = reader.getAttributeValue(null, "id");
+        spec.index = Integer.parseInt(reader.getAttributeValue(null, "index"));
+        final String arrayLength = reader.getAttributeValue(null, "defaultArrayLength");
+        spec.defaultArrayLength = arrayLength == null ? 0 : Integer.parseInt(arrayLength);
+        final ArrayDeque<String> path = new ArrayDeque<>();
+        int scans = 0, precursors = 0, selectedIons = 0;
+        BinaryArray array = null;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                final String name = reader.getLocalName();
+                final String parent = path.isEmpty() ? "spectrum" : path.peek();
+                switch (name) {
+                    case "cvParam":
+                        final boolean firstPrecursor = precursors == 1;
+                        switch (parent) {
+                            case "spectrum":
+                                spec.spectrumParam(reader);
+                                break;
+                            case "scan":
+                                if (scans == 1 && "MS:1000016".equals(reader.getAttributeValue(null, "accession")))
+                                    spec.retentionTimeMillis = CVUtils.getTimeInMilliseconds(reader.getAttributeValue(null, "value"), reader.getAttributeValue(null, "unitAccession"), reader.getAttributeValue(null, "unitName"));
+                                break;
+                            case "isolationWindow":
+                                if (firstPrecursor) spec.isolationWindowParam(reader);
+                                break;
+                            case "selectedIon":
+                                if (firstPrecursor && selectedIons == 1) spec.selectedIonParam(reader);
+                                break;
+                            case "activation":
+                                if (firstPrecursor && "MS:1000045".equals(reader.getAttributeValue(null, "accession")))
+                                    spec.collisionEnergy = Double.parseDouble(reader.getAttributeValue(null, "value"));
+                                break;
+                            case "binaryDataArray":
+                                if (array != null) array.param(reader.getAttributeValue(null, "accession"));
+                                break;
+                        }
+                        break;
+                    case "scan":
+                        ++scans;
+                        break;
+                    case "precursor":
+                        if (++precursors == 1) spec.precursorRef = reader.getAttributeValue(null, "spectrumRef");
+                        break;
+                    case "isolationWindow":
+                        if (precursors == 1) spec.hasIsolationWindow = true;
+                        break;
+                    case "selectedIon":
+                        if (precursors == 1) ++selectedIons;
+                        break;
+                    case "binaryDataArray":
+                        array = new BinaryArray();
+                        break;
+                    case "binary":
+                        if (array != null) array.base64 = reader.getElementText();
+                        // getElementText consumes the end element
+                        continue;
+                }
+                path.push(name);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (path.isEmpty()) break; // end of spectrum
+                final String name = path.pop();
+                if (name.equals("binaryDataArray") && array != null) {
+                    if (array.type == BinaryArray.MZ) spec.mzArray = array;
+                    else if (array.type == BinaryArray.INTENSITY) spec.intensityArray = array;
+                    array = null;
+                }
+            }
+        }
+        if (spec.id != null) idToIndex.put(spec.id, spec.index);
+
+        if (!spec.skipList.isEmpty()){
+            LoggerFactory.getLogger(getClass()).debug("Spectrum with ID '" + spec.id  + "' contains parameters that indicate non Mass Spectrometry data (e.g. EMR spectra). Skipping! Parameters: " + String.join(", ", spec.skipList));
+            return null;
+        }
+        if (spec.msLevel == null && spec.polarity == Polarity.UNKNOWN){
+            LoggerFactory.getLogger(getClass()).warn("Spectrum with ID '" + spec.id  + "' does neither contain mslevel nor polarity information. Spectrum is likely to not be an Mass Spectrum. Skipping this entry.");
+            return null;
+        }
+        if (spec.msLevel == null)
+            spec.msLevel = 1;
+        if (spec.msLevel > 1 && precursors > 0) {
+            spec.precursorIndex = spec.precursorRef == null ? -1 : idToIndex.getOrDefault(spec.precursorRef, -1);
+            if (Double.isNaN(spec.collisionEnergy)) spec.collisionEnergy = 0d;
+        } else {
+            spec.hasPrecursor = false;
+            spec.collisionEnergy = Double.NaN;
+        }
+        return spec;
+    }
+
+    private static final class BinaryArray {
+        private static final int UNKNOWN = 0, MZ = 1, INTENSITY = 2;
+
+        private int type = UNKNOWN;
+        private BinaryArrayDecoder.Encoding encoding = BinaryArrayDecoder.Encoding.FLOAT64;
+        private boolean zlib = false, unsupportedCompression = false;
+        private String base64;
+
+        private void param(String accession) {
+            if (accession == null) return;
+            switch (accession) {
+                case "MS:1000514": type = MZ; break;
+                case "MS:1000515": type = INTENSITY; break;
+                case "MS:1000521": encoding = BinaryArrayDecoder.Encoding.FLOAT32; break;
+                case "MS:1000523": encoding = BinaryArrayDecoder.Encoding.FLOAT64; break;
+                case "MS:1000519": encoding = BinaryArrayDecoder.Encoding.INT32; break;
+                case "MS:1000522": encoding = BinaryArrayDecoder.Encoding.INT64; break;
+                case "MS:1000574": zlib = true; break;
+                case "MS:1000576": zlib = false; break;
+                default:
+                    // numpress and other compressions
+                    if (accession.startsWith("MS:10026") || accession.startsWith("MS:10027")) unsupportedCompression = true;
+            }
+        }
+
+        private double[] decode(int expectedLength) throws IOException {
+            if (base64 == null || unsupportedCompression) return null;
+            return BinaryArrayDecoder.decode(base64, encoding, zlib, ByteOrder.LITTLE_ENDIAN, expectedLength);
+        }
+    }
+
+    /**
+     * Metadata and encoded data of one spectrum element. Decoding happens in {@link #decode()}.
+     */
+    private static final class SpectrumElement {
+        private String id;
+        private int index, defaultArrayLength;
+        private Polarity polarity = Polarity.UNKNOWN;
+        private Integer msLevel = null;
+        private boolean centroided = true;
+        private final List<String> skipList = new ArrayList<>(0);
+        private long retentionTimeMillis = 0L;
+
+        private boolean hasPrecursor = true, hasIsolationWindow = false;
+        private String precursorRef;
+        private int precursorIndex = -1, chargeState = 0;
+        private double collisionEnergy = Double.NaN, targetMz = Double.NaN, lowerOffset = 0, upperOffset = 0,
+                selectedIonMz = Double.NaN, precursorIntensity = Double.NaN;
+
+        private BinaryArray mzArray, intensityArray;
+
+        private void spectrumParam(XMLStreamReader reader) {
+            final String accession = reader.getAttributeValue(null, "accession");
+            if (accession == null) return;
+            switch (accession) {
+                case "MS:1000129":
+                case "MS:1000076":
+                    polarity = Polarity.NEGATIVE;
+                    break;
+                case "MS:1000130":
+                case "MS:1000077":
+                    polarity = Polarity.POSITIVE;
+                    break;
+                case "MS:1000511":
+                    msLevel = Integer.parseInt(reader.getAttributeValue(null, "value"));
+                    break;
+                case "MS:1000127":
+                    centroided = true;
+                    break;
+                case "MS:1000128":
+                    centroided = false;
+                    break;
+                // add to skiplist
+                case "MS:1000804":
+                    skipList.add(accession);
+                    break;
+            }
+        }
+
+        private void isolationWindowParam(XMLStreamReader reader) {
+            final String accession = reader.getAttributeValue(null, "accession");
+            if (accession == null) return;
+            switch (accession) {
+                case "MS:1000827": // isolation window target m/z
+                    targetMz = Double.parseDouble(reader.getAttributeValue(null, "value"));
+                    break;
+                case "MS:1000828":
+                    lowerOffset = Double.parseDouble(reader.getAttributeValue(null, "value"));
+                    break;
+                case "MS:1000829":
+                    upperOffset = Double.parseDouble(reader.getAttributeValue(null, "value"));
+                    break;
+            }
+        }
+
+        private void selectedIonParam(XMLStreamReader reader) {
+            final String accession = reader.getAttributeValue(null, "accession");
+            if (accession == null) return;
+            switch (accession) {
+                case "MS:1000744": // selected ion m/z
+                    selectedIonMz = Double.parseDouble(reader.getAttributeValue(null, "value"));
+                    break;
+                case "MS:1000042": // intensity
+                    precursorIntensity = Double.parseDouble(reader.getAttributeValue(null, "value"));
+                    break;
+                case "MS:1000041": // charge state
+                    chargeState = Integer.parseInt(reader.getAttributeValue(null, "value"));
+                    break;
+            }
+        }
+
+        private ScanDecodingPipeline.DecodedScan decode() throws IOException {
+            double[] mz = mzArray == null ? null : mzArray.decode(defaultArrayLength);
+            double[] intensities = intensityArray == null ? null : intensityArray.decode(defaultArrayLength);
+            if (mz == null || intensities == null) {
+                LoggerFactory.getLogger(MzMLStaxParser.class).warn("No spectrum data found in Spectrum with id: " + id);
+                mz = new double[0];
+                intensities = new double[0];
+            }
+            final SimpleSpectrum spec = Spectrums.getBaselined(Spectrums.wrap(mz, intensities), 0);
+
+            final Scan scan = new Scan(
+                    index,
+                    polarity,
+                    retentionTimeMillis, //retention time
+                    Double.isFinite(collisionEnergy) ? new CollisionEnergy(collisionEnergy) : CollisionEnergy.none(), //collision energy
+                    spec.size(),
+                    Spectrums.calculateTIC(spec),
+                    centroided,
+                    makePrecursor()
+            );
+            return new ScanDecodingPipeline.DecodedScan(scan, spec);
+        }
+
+        private Precursor makePrecursor() {
+            if (!hasPrecursor)
+                return null;
+            final IsolationWindow w = hasIsolationWindow ? IsolationWindow.fromOffsets(lowerOffset, upperOffset) : new IsolationWindow(0, Double.NaN);
+            //use isolation target m/z if available
+            //(it happens that the instrument targets the +2 isotope peak but the selected ion m/z is the monoisotopic m/z)
+            final double mz = !Double.isNaN(targetMz) ? targetMz : selectedIonMz;
+            return new Precursor(precursorIndex, mz, precursorIntensity, chargeState, w);
+        }
+    }
+}
@@ -38,10 +38,16 @@ public class MzXMLParser implements LCMSParser{
     @Override
     public LCMSRun parse(File file, SpectrumStorage storage) throws IOException {
         final LCMSRun run = new LCMSRun(new DataSource(file));
+        final MzXMLSaxParser handler = new MzXMLSaxParser(run, storage);
         try {
-            SAXParserFactory.newInstance().newSAXParser().parse(file,new MzXMLSaxParser(run, storage));
+            SAXParserFactory.newInstance().newSAXParser().parse(file,handler);
+            handler.finish();
         } catch (SAXException|ParserConfigurationException e) {
+            handler.cancel();
             throw new IOException(e);
+        } catch (IOException e) {
+            handler.cancel();
+            throw e;
         }
         run.setReference(new MsDataSourceReference(file.getParentFile().toURI(), file.getName(), null, null));
         return run;
@@ -49,10 +55,16 @@ public class MzXMLParser implements LCMSParser{
 
     public LCMSRun parse(DataSource source, InputSource input, SpectrumStorage storage) throws IOException {
         final LCMSRun run = new LCMSRun(source);
+        final MzXMLSaxParser handler = new MzXMLSaxParser(run, storage);
         try {
-            SAXParserFactory.newInstance().newSAXParser().parse(input,new MzXMLSaxParser(run, storage));
+            SAXParserFactory.newInstance().newSAXParser().parse(input,handler);
+            handler.finish();
         } catch (SAXException|ParserConfigurationException e) {
+            handler.cancel();
             throw new IOException(e);
+        } catch (IOException e) {
+            handler.cancel();
+            throw e;
         }
         {
             // get source location
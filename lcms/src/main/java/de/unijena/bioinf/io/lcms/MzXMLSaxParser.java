@@ -26,7 +26,6 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import de.unijena.bioinf.lcms.SpectrumStorage;
 import de.unijena.bioinf.model.lcms.*;
-import gnu.trove.list.array.TByteArrayList;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -36,15 +35,10 @@ import javax.xml.datatype.DatatypeFactory;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.DoubleBuffer;
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Calendar;
 import java.util.List;
 import java.util.function.Function;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 class MzXMLSaxParser extends DefaultHandler {
 
@@ -54,9 +48,7 @@ class MzXMLSaxParser extends DefaultHandler {
     private LCMSRun lcms;
     private SpectrumStorage storage;
     private final DatatypeFactory datatypeFactory;
-
-    private final TByteArrayList totalBuffer = new TByteArrayList(1024);
-    private byte[] bytebuffer;
+    private final ScanDecodingPipeline pipeline;
 
     public MzXMLSaxParser(LCMSRun run, SpectrumStorage storage) throws IOException {
         this.stack = new ArrayList<>();
@@ -64,7 +56,7 @@ class MzXMLSaxParser extends DefaultHandler {
         this.handler = new RootHandler();
         this.storage = storage;
         this.buffer = new StringBuilder();
-        this.bytebuffer = new byte[1024];
+        this.pipeline = new ScanDecodingPipeline(run, storage);
         try {
             this.datatypeFactory = DatatypeFactory.newInstance();
         } catch (DatatypeConfigurationException e) {
@@ -72,6 +64,20 @@ class MzXMLSaxParser extends DefaultHandler {
         }
     }
 
+    /**
+     * Waits until all scans are decoded and written into the storage. Has to be called after parsing.
+     */
+    public void finish() throws IOException {
+        pipeline.finish();
+    }
+
+    /**
+     * Cancels decoding of pending scans, e.g. after a parsing error.
+     */
+    public void cancel() {
+        pipeline.cancel();
+    }
+
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
         handler.enterElement(qName,attributes);
@@ -122,7 +128,7 @@ class MzXMLSaxParser extends DefaultHandler {
 
         public abstract void enterElement(String elementName, Attributes attrs);
 
-        public abstract void leaveElement(String elementName, String content);
+        public abstract void leaveElement(String elementName, String content) throws SAXException;
 
         public void push(Handler h) {
             stack.add(this);
@@ -212,7 +218,7 @@ class MzXMLSaxParser extends DefaultHandler {
         int precursorScanNumber, charge;
         double precursorIntensity, isolationWindowWidth, precursorMz;
 
-        double[] mzArray, intensityArray;
+        String peaks;
 
         boolean zlib;
 
@@ -247,13 +253,32 @@ class MzXMLSaxParser extends DefaultHandler {
         }
 
         @Override
-        public void leaveElement(String elementName, String content) {
+        public void leaveElement(String elementName, String content) throws SAXException {
             if (elementName.equals("precursorMz")) {
                 precursorMz = Double.parseDouble(content);
                 listen(false);
             } else if (elementName.equals("peaks")) {
-                ByteBuffer W = ByteBuffer.wrap(zlib ? decompress(content) : Base64.getDecoder().decode(content));
-                W.order(ByteOrder.BIG_ENDIAN);
+                // decoding is done by the pipeline
+                peaks = content;
+                listen(false);
+            } else if (elementName.equals("scan")) {
+                try {
+                    pipeline.submit(this::decode);
+                } catch (IOException e) {
+                    throw new SAXException(e);
+                }
+                listen(false);
+                pop();
+            }
+        }
+
+        private ScanDecodingPipeline.DecodedScan decode() throws IOException {
+            final double[] mzArray, intensityArray;
+            if (peaks == null || peaks.isEmpty()) {
+                mzArray = new double[0];
+                intensityArray = new double[0];
+            } else {
+                final ByteBuffer W = BinaryArrayDecoder.decodeBytes(peaks, zlib, ByteOrder.BIG_ENDIAN, npeaks * 16);
                 if (precision==0) {
                     // estimate precision from length...
                     if (W.capacity() == (npeaks*16))
@@ -261,59 +286,30 @@ class MzXMLSaxParser extends DefaultHandler {
                     else
                         precision = 1;
                 }
-                if (precision==1) {
-                    FloatBuffer f = W.asFloatBuffer();
-                    this.mzArray = new double[f.limit()>>1];
-                    this.intensityArray = new double[f.limit()>>1];
-                    for (int i=0; i < mzArray.length; ++i) {
-                        mzArray[i] = f.get();
-                        intensityArray[i] = f.get();
-                    }
-                } else {
-                    DoubleBuffer f = W.asDoubleBuffer();
-                    this.mzArray = new double[f.limit()>>1];
-                    this.intensityArray = new double[f.limit()>>1];
-                    for (int i=0; i < mzArray.length; ++i) {
-                        mzArray[i] = f.get();
-                        intensityArray[i] = f.get();
-                    }
+                final double[] values = BinaryArrayDecoder.toDoubles(W, precision == 1 ? BinaryArrayDecoder.Encoding.FLOAT32 : BinaryArrayDecoder.Encoding.FLOAT64);
+                mzArray = new double[values.length>>1];
+                intensityArray = new double[values.length>>1];
+                for (int i=0; i < mzArray.length; ++i) {
+                    mzArray[i] = values[2*i];
+                    intensityArray[i] = values[2*i+1];
                 }
-            } else if (elementName.equals("scan")) {
-                SimpleSpectrum spectrum = new SimpleSpectrum(mzArray, intensityArray);
-                double TIC = 0d;
-                boolean zeroIntensity = false;
-                for (double value : intensityArray) {
-                    TIC += value;
-                    zeroIntensity = zeroIntensity || value==0;
-                }
-                if (zeroIntensity) {
-                    spectrum = Spectrums.getBaselined(spectrum,0);
-                }
-                Precursor prec;
-                if (msLevel>1) {
-                    prec = new Precursor(precursorScanNumber,precursorMz,precursorIntensity,charge,isolationWindowWidth);
-                } else prec = null;
-                final Scan scan = new Scan(scanNumber,polarity,retentionTime,collisionEnergy,spectrum.size(), TIC, centroided, prec);
-                storage.add(scan, spectrum);
-                lcms.addScan(scan);
-                listen(false);
-                pop();
             }
-        }
-
-        private byte[] decompress(String content) {
-            totalBuffer.clearQuick();
-            final Inflater inflater = new Inflater();
-            inflater.setInput(Base64.getDecoder().decode(content));
-            while (true){
-                try {
-                    int written = inflater.inflate(bytebuffer);
-                    if (written==0) return totalBuffer.toArray();
-                    else totalBuffer.add(bytebuffer,0,written);
-                } catch (DataFormatException e) {
-                    throw new RuntimeException(e);
-                }
+            SimpleSpectrum spectrum = new SimpleSpectrum(mzArray, intensityArray);
+            double TIC = 0d;
+            boolean zeroIntensity = false;
+            for (double value : intensityArray) {
+                TIC += value;
+                zeroIntensity = zeroIntensity || value==0;
+            }
+            if (zeroIntensity) {
+                spectrum = Spectrums.getBaselined(spectrum,0);
             }
+            Precursor prec;
+            if (msLevel>1) {
+                prec = new Precursor(precursorScanNumber,precursorMz,precursorIntensity,charge,isolationWindowWidth);
+            } else prec = null;
+            final Scan scan = new Scan(scanNumber,polarity,retentionTime,collisionEnergy,spectrum.size(), TIC, centroided, prec);
+            return new ScanDecodingPipeline.DecodedScan(scan, spectrum);
         }
 
     }
@@ -0,0 +1,158 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.io.lcms;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.lcms.SpectrumStorage;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Scan;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decodes the binary data of scans in the global CPU pool while the parser thread continues reading the file.
+ * Decoded scans are added to the {@link SpectrumStorage} and the {@link LCMSRun} by the parser thread in the order
+ * they were submitted. At most {@link #getWindowSize()} scans are pending at once, so the memory needed for
+ * encoded and decoded scans is bounded independent of the file size.
+ * <p>
+ * The parser thread never waits for decoding jobs that are still queued: if the oldest scan was not picked up by a
+ * worker yet, the parser decodes it itself. So parsing inside a pool thread cannot block the pool on its own jobs.
+ */
+class ScanDecodingPipeline {
+
+    static final class DecodedScan {
+        final Scan scan;
+        final SimpleSpectrum spectrum;
+
+        DecodedScan(Scan scan, SimpleSpectrum spectrum) {
+            this.scan = scan;
+            this.spectrum = spectrum;
+        }
+    }
+
+    @FunctionalInterface
+    interface ScanDecoder {
+        /**
+         * @return the decoded scan or null if the scan should be skipped
+         */
+        DecodedScan decode() throws Exception;
+    }
+
+    private final LCMSRun run;
+    private final SpectrumStorage storage;
+    private final int windowSize;
+    private final ArrayDeque<PendingScan> pending;
+
+    ScanDecodingPipeline(LCMSRun run, SpectrumStorage storage) {
+        this(run, storage, 4 * SiriusJobs.getCPUThreads());
+    }
+
+    ScanDecodingPipeline(LCMSRun run, SpectrumStorage storage, int windowSize) {
+        this.run = run;
+        this.storage = storage;
+        this.windowSize = Math.max(1, windowSize);
+        this.pending = new ArrayDeque<>(this.windowSize);
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Schedules decoding of a scan. Blocks until the oldest pending scan is written if the window is full.
+     */
+    void submit(ScanDecoder decoder) throws IOException {
+        while (pending.size() >= windowSize)
+            writeOldest();
+        final FutureTask<DecodedScan> task = new FutureTask<>(decoder::decode);
+        pending.addLast(new PendingScan(task, SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<Object>(JJob.JobType.CPU) {
+            @Override
+            protected Object compute() {
+                // no-op if the parser thread decoded the scan already
+                task.run();
+                return "";
+            }
+        })));
+    }
+
+    /**
+     * Writes all pending scans.
+     */
+    void finish() throws IOException {
+        while (!pending.isEmpty())
+            writeOldest();
+    }
+
+    /**
+     * Cancels all pending scans, e.g. after a parsing error.
+     */
+    void cancel() {
+        pending.forEach(PendingScan::cancel);
+        pending.clear();
+    }
+
+    private void writeOldest() throws IOException {
+        final PendingScan oldest = pending.pollFirst();
+        final DecodedScan decoded;
+        try {
+            // decodes in this thread if no worker started the scan yet, otherwise waits for the running worker only
+            oldest.task.run();
+            decoded = oldest.task.get();
+        } catch (ExecutionException e) {
+            cancel();
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException | CancellationException e) {
+            cancel();
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Decoding of scans was interrupted.");
+        } finally {
+            // the job is a no-op now, do not keep it in the queue
+            oldest.job.cancel(false);
+        }
+        if (decoded != null) {
+            storage.add(decoded.scan, decoded.spectrum);
+            run.addScan(decoded.scan);
+        }
+    }
+
+    private static final class PendingScan {
+        private final FutureTask<DecodedScan> task;
+        private final BasicJJob<Object> job;
+
+        private PendingScan(FutureTask<DecodedScan> task, BasicJJob<Object> job) {
+            this.task = task;
+            this.job = job;
+        }
+
+        private void cancel() {
+            task.cancel(true);
+            job.cancel(false);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import de.unijena.bioinf.model.lcms.*;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
@@ -54,28 +55,28 @@ public class ChromatogramBuilder {
 
     public Optional<ChromatographicPeak> detectFirst(Range<Integer> scanRange, int middle, double mz) {
         // pick most intensive peak in scan range
+        final Ms1PeakIndex index = sample.getMs1Index();
+        final double a = dev.absoluteFor(mz);
         int left = middle;
         int right = middle+1;
         while (scanRange.contains(left) || scanRange.contains(right)) {
             if (scanRange.contains(left)) {
-                final Optional<Scan> t = sample.run.getScanByNumber(left);
-                if (t.isPresent() && !t.get().isMsMs()) {
-                    final SimpleSpectrum spectrum = sample.storage.getScan(t.get());
-                    int i = Spectrums.mostIntensivePeakWithin(spectrum, mz, dev);
+                final int position = index.positionOf(left);
+                if (position >= 0) {
+                    int i = index.mostIntensivePeak(position, mz - a, mz + a);
                     if (i>=0) {
-                        Optional<ChromatographicPeak> peak = buildTrace(spectrum, new ScanPoint(t.get(), spectrum.getMzAt(i), spectrum.getIntensityAt(i)));
+                        Optional<ChromatographicPeak> peak = buildTrace(new ScanPoint(index.getScanAt(position), index.getMzAt(i), index.getIntensityAt(i)));
                         if (peak.isPresent()) return peak;
                     }
                 }
                 --left;
             }
             if (scanRange.contains(right)) {
-                final Optional<Scan> t = sample.run.getScanByNumber(right);
-                if (t.isPresent() && !t.get().isMsMs()) {
-                    final SimpleSpectrum spectrum = sample.storage.getScan(t.get());
-                    int i = Spectrums.mostIntensivePeakWithin(spectrum, mz, dev);
+                final int position = index.positionOf(right);
+                if (position >= 0) {
+                    int i = index.mostIntensivePeak(position, mz - a, mz + a);
                     if (i>=0) {
-                        Optional<ChromatographicPeak> peak = buildTrace(spectrum, new ScanPoint(t.get(), spectrum.getMzAt(i), spectrum.getIntensityAt(i)));
+                        Optional<ChromatographicPeak> peak = buildTrace(new ScanPoint(index.getScanAt(position), index.getMzAt(i), index.getIntensityAt(i)));
                         if (peak.isPresent()) return peak;
                     }
                 }
@@ -88,29 +89,24 @@ public class ChromatogramBuilder {
 
     public Optional<ChromatographicPeak> detect(Range<Integer> scanRange, double mz) {
         // pick most intensive peak in scan range
-        ScanPoint best = null;
-        SimpleSpectrum bestSpec = null;
-        for (Scan s : sample.run.getScans(scanRange.lowerEndpoint(), scanRange.upperEndpoint()).values()) {
-            if (!s.isMsMs() && scanRange.contains(s.getIndex())) {
-                final SimpleSpectrum spectrum = sample.storage.getScan(s);
-                int i = Spectrums.mostIntensivePeakWithin(spectrum, mz, dev);
-                if (i>=0) {
-                    if (best==null || spectrum.getIntensityAt(i) > best.getIntensity()) {
-                        best = new ScanPoint(s, spectrum.getMzAt(i), spectrum.getIntensityAt(i));
-                        bestSpec = spectrum;
-                    }
-                }
-            }
-        }
-        if (best==null) return Optional.empty();
-        return buildTrace(bestSpec, best);
+        final Ms1PeakIndex index = sample.getMs1Index();
+        int from = index.positionOf(scanRange.lowerEndpoint());
+        if (from < 0) from = -from - 1;
+        else if (!scanRange.contains(scanRange.lowerEndpoint())) ++from;
+        int to = index.positionOf(scanRange.upperEndpoint());
+        if (to < 0) to = -to - 2;
+        else if (!scanRange.contains(scanRange.upperEndpoint())) --to;
+        final double a = dev.absoluteFor(mz);
+        final int best = index.mostIntensivePeak(from, to, mz - a, mz + a);
+        if (best < 0) return Optional.empty();
+        return buildTrace(new ScanPoint(index.getScanOfPeak(best), index.getMzAt(best), index.getIntensityAt(best)));
     }
 
     public void detectWithFallback(Scan startingPoint, double mz, Consumer<ChromatographicPeak> whenTraceFound, Consumer<ScanPoint> whenPeakFound, Runnable whenNothingFound) {
         final SimpleSpectrum spectrum = sample.storage.getScan(startingPoint);
         int i = Spectrums.mostIntensivePeakWithin(spectrum, mz, dev);
         if (i>=0) {
-            Optional<ChromatographicPeak> trace = buildTrace(spectrum, new ScanPoint(startingPoint, spectrum.getMzAt(i), spectrum.getIntensityAt(i)));
+            Optional<ChromatographicPeak> trace = buildTrace(new ScanPoint(startingPoint, spectrum.getMzAt(i), spectrum.getIntensityAt(i)));
             if (trace.isPresent()) {
                 whenTraceFound.accept(trace.get());
             } else {
@@ -161,41 +157,36 @@ public class ChromatogramBuilder {
 
     private Optional<ChromatographicPeak> buildTraceOrReturnEmpty(int i, SimpleSpectrum spectrum, Scan startingPoint) {
         if (i >=0) {
-            return buildTrace(spectrum, new ScanPoint(startingPoint, spectrum.getMzAt(i), spectrum.getIntensityAt(i)));
+            return buildTrace(new ScanPoint(startingPoint, spectrum.getMzAt(i), spectrum.getIntensityAt(i)));
         } else {
             return Optional.empty(); // no chromatographic peak detected
         }
     }
 
-    private Optional<ChromatographicPeak> buildTrace(SimpleSpectrum spectrum, ScanPoint scanPoint) {
+    private Optional<ChromatographicPeak> buildTrace(ScanPoint scanPoint) {
         Optional<ChromatographicPeak> peak = cache.retrieve(scanPoint);
         if (peak.isPresent()) {
             return peak;
         }
+        final Ms1PeakIndex index = sample.getMs1Index();
+        final TIntArrayList buffer = new TIntArrayList();
         final MutableChromatographicPeak rightTrace = new MutableChromatographicPeak();
         final MutableChromatographicPeak leftTrace = new MutableChromatographicPeak();
         rightTrace.extendRight(scanPoint);
         leftTrace.extendRight(scanPoint);
+        final int position = index.positionOf(scanPoint.getScanNumber());
         // extend to the right
-        for (Scan scan  : sample.run.getScansAfter(scanPoint.getScanNumber()).values()) {
-            if (!scan.isMsMs()) {
-                if (tryToExtend(rightTrace, scan)) {
-                    // go on!
-                } else {
-                    // cannot extend further...
-                    break;
-                }
+        for (int p = position >= 0 ? position + 1 : -position - 1; p < index.numberOfScans(); ++p) {
+            if (!tryToExtend(rightTrace, index, p, buffer)) {
+                // cannot extend further...
+                break;
             }
         }
         // extend to the left
-        for (Scan scan  : sample.run.getScansBefore(scanPoint.getScanNumber()).values()) {
-            if (!scan.isMsMs()) {
-                if (tryToExtend(leftTrace, scan)) {
-                    // go on!
-                } else {
-                    // cannot extend further...
-                    break;
-                }
+        for (int p = position >= 0 ? position - 1 : -position - 2; p >= 0; --p) {
+            if (!tryToExtend(leftTrace, index, p, buffer)) {
+                // cannot extend further...
+                break;
             }
         }
         MutableChromatographicPeak concat = MutableChromatographicPeak.concat(leftTrace, rightTrace);
@@ -492,36 +483,34 @@ public class ChromatogramBuilder {
         return extrema;
     }
 
-    private boolean tryToExtend(MutableChromatographicPeak trace, Scan scan) {
+    private boolean tryToExtend(MutableChromatographicPeak trace, Ms1PeakIndex index, int scanPosition, TIntArrayList buffer) {
         final ScanPoint previous = trace.getRightEdge();
-        final SimpleSpectrum spec = sample.storage.getScan(scan);
+        final Scan scan = index.getScanAt(scanPosition);
         final double mz = previous.getMass();
         final double intensity = previous.getIntensity();
         final double mzStd = Math.pow(dev.absoluteFor(mz)/2d,2);
         final double intVar = 1d;
         final double noiseLevel = sample.ms1NoiseModel.getNoiseLevel(scan.getIndex(),mz);
-        final int start = Spectrums.indexOfFirstPeakWithin(spec, mz, dev);
-        if (start < 0) return false;
-        int end;
-        for (end=start; end < spec.size(); ++end) {
-            if (!dev.inErrorWindow(mz, spec.getMzAt(end)) /*|| spec.getIntensityAt(end) < noiseLevel*/)
-                break;
-        }
-        if (end-start == 1) {
-            trace.extendRight(new ScanPoint(scan, spec.getMzAt(start), spec.getIntensityAt(start)));
+        final double window = dev.absoluteFor(mz);
+        buffer.resetQuick();
+        final int found = index.peaksInScan(scanPosition, mz - window, mz + window, buffer);
+        if (found == 1) {
+            final int peak = buffer.getQuick(0);
+            trace.extendRight(new ScanPoint(scan, index.getMzAt(peak), index.getIntensityAt(peak)));
             return true;
-        } else if (end <= start) {
+        } else if (found <= 0) {
             return false;
         } else {
-            int bestIndex=start; double bestScore = 0d;
-            for (int k=start; k < end; ++k) {
-                double sc = score(spec.getMzAt(k)-mz, Math.log((noiseLevel+spec.getIntensityAt(k))/(noiseLevel+intensity)), mzStd, intVar);
+            int bestIndex=buffer.getQuick(0); double bestScore = 0d;
+            for (int k=0; k < found; ++k) {
+                final int peak = buffer.getQuick(k);
+                double sc = score(index.getMzAt(peak)-mz, Math.log((noiseLevel+index.getIntensityAt(peak))/(noiseLevel+intensity)), mzStd, intVar);
                 if (sc > bestScore) {
-                    bestIndex = k;
+                    bestIndex = peak;
                     bestScore = sc;
                 }
             }
-            trace.extendRight(new ScanPoint(scan, spec.getMzAt(bestIndex), spec.getIntensityAt(bestIndex)));
+            trace.extendRight(new ScanPoint(scan, index.getMzAt(bestIndex), index.getIntensityAt(bestIndex)));
             return true;
         }
     }
@@ -35,7 +35,9 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import de.unijena.bioinf.io.lcms.LCMSParsing;
 import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.jjobs.JobManager;
 import de.unijena.bioinf.jjobs.ProgressJJob;
@@ -57,6 +59,7 @@ import org.apache.commons.math3.distribution.LaplaceDistribution;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -475,6 +478,8 @@ public class LCMSProccessingInstance {
         for (FragmentedIon ion : ions) {
             fitPeakShape(sample, ion);
         }
+        // the peak index is only needed again for gap filling, so it is rebuild there on demand
+        sample.dropMs1Index();
     }
 
     public PeakShape fitPeakShape(ProcessedSample sample, FragmentedIon ion) {
@@ -525,6 +530,96 @@ public class LCMSProccessingInstance {
         }
     }
 
+    public BasicJJob<List<ProcessedSample>> addAndDetectFeaturesInParallel(List<File> runs) {
+        return addAndDetectFeaturesInParallel(runs, SiriusJobs.getCPUThreads(), true);
+    }
+
+    /**
+     * Parses the given runs, builds their noise models, detects features and segments the MS/MS of each run
+     * concurrently on the global job manager. Parsing runs in the IO pool while decoding and feature detection
+     * run in the CPU pool, so parsing of one run overlaps with feature detection of others.
+     * <p>
+     * The spectra of each run are kept in a {@link MemoryFileStorage} which is spilled to disc as soon as the
+     * features of the run are detected. At most maxSamplesInMemory runs are processed (and therefore held in memory)
+     * at once. Runs that cannot be parsed or contain no MS/MS (if enforced) are skipped with a warning.
+     *
+     * @return job returning the processed samples in the order of the given runs
+     */
+    public BasicJJob<List<ProcessedSample>> addAndDetectFeaturesInParallel(List<File> runs, int maxSamplesInMemory, boolean enforceMs2) {
+        if (maxSamplesInMemory < 1)
+            throw new IllegalArgumentException("At least one sample has to be held in memory but maxSamplesInMemory is " + maxSamplesInMemory);
+        return new BasicMasterJJob<List<ProcessedSample>>(JJob.JobType.SCHEDULER) {
+            @Override
+            protected List<ProcessedSample> compute() throws Exception {
+                final ArrayDeque<BasicJJob<ProcessedSample>> running = new ArrayDeque<>(maxSamplesInMemory);
+                final List<ProcessedSample> processed = new ArrayList<>(runs.size());
+                for (File run : runs) {
+                    checkForInterruption();
+                    // the oldest sample is usually the first one that is done
+                    while (running.size() >= maxSamplesInMemory)
+                        addIfPresent(processed, running.pollFirst().takeResult());
+                    running.addLast(submitSubJob(new SampleJob(run, enforceMs2)));
+                }
+                while (!running.isEmpty())
+                    addIfPresent(processed, running.pollFirst().takeResult());
+
+                // keep the order of the input, independent of which sample was done first
+                synchronized (LCMSProccessingInstance.this) {
+                    samples.removeAll(processed);
+                    samples.addAll(processed);
+                }
+                return processed;
+            }
+
+            private void addIfPresent(List<ProcessedSample> processed, ProcessedSample sample) {
+                if (sample != null) processed.add(sample);
+            }
+        };
+    }
+
+    private class SampleJob extends BasicMasterJJob<ProcessedSample> {
+        private final File file;
+        private final boolean enforceMs2;
+
+        private SampleJob(File file, boolean enforceMs2) {
+            super(JobType.IO);
+            this.file = file;
+            this.enforceMs2 = enforceMs2;
+        }
+
+        @Override
+        protected ProcessedSample compute() throws Exception {
+            final MemoryFileStorage storage = new MemoryFileStorage();
+            final LCMSRun parsed;
+            try {
+                parsed = LCMSParsing.parseRun(file, storage);
+            } catch (IOException e) {
+                LoggerFactory.getLogger(LCMSProccessingInstance.class).error("Error while parsing run " + file + ": " + e.getMessage(), e);
+                storage.close();
+                return null;
+            }
+            checkForInterruption();
+            return submitSubJob(new BasicJJob<ProcessedSample>(JobType.CPU) {
+                @Override
+                protected ProcessedSample compute() throws Exception {
+                    final ProcessedSample sample;
+                    try {
+                        sample = addSample(parsed, storage, enforceMs2);
+                    } catch (InvalidInputData e) {
+                        LoggerFactory.getLogger(LCMSProccessingInstance.class).warn("Error while processing run " + file + ": " + e.getMessage());
+                        storage.close();
+                        return null;
+                    }
+                    detectFeatures(sample);
+                    // spill the sample to disc
+                    storage.backOnDisc();
+                    storage.dropBuffer();
+                    return sample;
+                }
+            }).takeResult();
+        }
+    }
+
     public Cluster alignAndGapFilling() {
         return alignAndGapFilling(null);
     }
@@ -581,6 +676,7 @@ public class LCMSProccessingInstance {
         clusterJob = new GapFilling().gapFillingInParallel(this, cluster.deleteRowsWithNoMsMs(), error.getScale(),cluster.estimatePeakShapeError(), Quality.GOOD);
         manager.submitJob(clusterJob);
         cluster = clusterJob.takeResult();
+        samples.forEach(ProcessedSample::dropMs1Index);
 
         if (jobWithProgress!=null) jobWithProgress.updateProgress(0, maxProgress, currentProgress++, "Estimate parameters and start second alignment");
         clusterJob = new Aligner2(error).align(samples);
@@ -602,6 +698,7 @@ public class LCMSProccessingInstance {
         clusterJob = new GapFilling().gapFillingInParallel(this, cluster, error.getScale(), cluster.estimatePeakShapeError(), Quality.DECENT);
         manager.submitJob(clusterJob);
         cluster = clusterJob.takeResult();
+        samples.forEach(ProcessedSample::dropMs1Index);
 
 
         final double finalError = cluster.estimateError(true);
@@ -23,68 +23,142 @@ package de.unijena.bioinf.lcms;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import de.unijena.bioinf.model.lcms.Scan;
-import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntLongHashMap;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Stores spectra in a temporary file. Spectra are added to an in-memory buffer first (see {@link #keepInMemory()})
+ * and appended to the file on {@link #backOnDisc()}.
+ * <p>
+ * Records are addressed by long offsets and the file is mapped in segments of at most 1 GB, such that the storage
+ * is not limited to 2 GB. Reads only use absolute accessors on the mapped segments and are therefore lock free
+ * and can be done concurrently from many threads. Reads must not overlap with {@link #backOnDisc()}.
+ * Decoded spectra are kept in a bounded LRU cache.
+ */
 public class MemoryFileStorage implements SpectrumStorage {
 
-    private final TIntIntHashMap offsets;
-    private MappedByteBuffer buffer;
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    private final TIntLongHashMap offsets;
+    private final Map<Integer, SimpleSpectrum> cache;
+    private volatile MappedByteBuffer[] segments;
     private InMemoryStorage tempStorage;
     protected boolean dirty = false;
     private FileChannel writableChannel;
-    private int totalSize;
+    private long totalSize;
+    // the largest record in bytes. Segments overlap by this size, so no record spans two segments.
+    private int maxRecordSize;
 
     public MemoryFileStorage() throws IOException {
-        this.offsets = new TIntIntHashMap();
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize maximal number of decoded spectra that are cached. 0 disables the cache.
+     */
+    public MemoryFileStorage(int cacheSize) throws IOException {
+        if (cacheSize < 0) throw new IllegalArgumentException("Cache size must not be negative but was " + cacheSize);
+        this.offsets = new TIntLongHashMap(64, 0.5f, -1, -1L);
         this.tempStorage = new InMemoryStorage();
+        this.cache = cacheSize == 0 ? null : new LinkedHashMap<>(Math.min(cacheSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, SimpleSpectrum> eldest) {
+                return size() > cacheSize;
+            }
+        };
     }
 
     public void keepInMemory() {
         this.tempStorage = new InMemoryStorage();
     }
 
-    public void backOnDisc() throws IOException {
+    /**
+     * Appends all spectra added since the last call to the temporary file. Spectra already on disc are not rewritten.
+     */
+    public synchronized void backOnDisc() throws IOException {
         if (dirty) {
-            int totalSize = 0;
+            long bytes = 0;
+            int maxRecord = maxRecordSize;
             for (SimpleSpectrum s : tempStorage.scan2spectrum.valueCollection()) {
-                totalSize += s.size();
+                final int record = recordSize(s);
+                bytes += record;
+                maxRecord = Math.max(maxRecord, record);
             }
-            final int bytes = totalSize * 8 + tempStorage.scan2spectrum.size() * 4;
-            if (writableChannel!=null) {
-                writableChannel.close();
+            if (writableChannel == null) {
+                writableChannel = FileChannel.open(File.createTempFile("sirius_spectrum", ".binary").toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
             }
-            writableChannel = FileChannel.open(File.createTempFile("sirius_spectrum", ".binary").toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
-            this.buffer = writableChannel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            final ByteBuffer out = ByteBuffer.allocate((int) Math.min(Math.max(bytes, maxRecord), 1 << 20));
+            final long[] position = new long[]{totalSize};
+            final IOException[] error = new IOException[1];
             tempStorage.scan2spectrum.forEachEntry((i, s) -> {
-                offsets.put(i, buffer.position());
-                buffer.putInt(s.size());
-                for (int j = 0; j < s.size(); ++j) {
-                    buffer.putFloat((float) s.getMzAt(j));
+                try {
+                    final int record = recordSize(s);
+                    final ByteBuffer target;
+                    if (record > out.capacity()) {
+                        // write the pending records first, the offset of the large record has to follow them
+                        flush(out, position);
+                        target = ByteBuffer.allocate(record);
+                    } else {
+                        target = out;
+                        if (target.remaining() < record) flush(target, position);
+                    }
+                    offsets.put(i, position[0] + target.position());
+                    target.putInt(s.size());
+                    for (int j = 0; j < s.size(); ++j) {
+                        target.putFloat((float) s.getMzAt(j));
+                    }
+                    for (int j = 0; j < s.size(); ++j) {
+                        target.putFloat((float) s.getIntensityAt(j));
+                    }
+                    if (target != out) flush(target, position);
+                    if (cache != null) synchronized (cache) {
+                        cache.remove(i);
+                    }
+                    return true;
+                } catch (IOException e) {
+                    error[0] = e;
+                    return false;
                 }
-                for (int j = 0; j < s.size(); ++j) {
-                    buffer.putFloat((float) s.getIntensityAt(j));
-                }
-                return true;
             });
-            this.totalSize = buffer.position();
-            this.buffer.rewind();
+            if (error[0] != null) throw error[0];
+            flush(out, position);
+            this.totalSize = position[0];
+            this.maxRecordSize = maxRecord;
+            this.segments = null;
         }
         this.tempStorage = null;
         this.dirty = false;
     }
 
-    public void dropBuffer() {
-        if (buffer!=null) {
-            buffer.force();
+    private void flush(ByteBuffer buffer, long[] position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            position[0] += writableChannel.write(buffer, position[0]);
+        buffer.clear();
+    }
+
+    private static int recordSize(SimpleSpectrum s) {
+        return Integer.BYTES + s.size() * 2 * Float.BYTES;
+    }
+
+    /**
+     * Unmaps the file and clears the cache of decoded spectra. The file is mapped again on the next read.
+     */
+    public synchronized void dropBuffer() {
+        this.segments = null;
+        if (cache != null) synchronized (cache) {
+            cache.clear();
         }
-        this.buffer = null;
     }
 
     @Override
@@ -97,38 +171,67 @@ public class MemoryFileStorage implements SpectrumStorage {
 
     @Override
     public SimpleSpectrum getScan(Scan scan) {
-        if (tempStorage!=null) {
-            final SimpleSpectrum scan1 = tempStorage.getScan(scan);
+        final InMemoryStorage temp = tempStorage;
+        if (temp!=null) {
+            final SimpleSpectrum scan1 = temp.getScan(scan);
             if (scan1 != null) return scan1;
         }
-        return readFromMemory(scan);
+        if (cache != null) {
+            final SimpleSpectrum cached;
+            synchronized (cache) {
+                cached = cache.get(scan.getIndex());
+            }
+            if (cached != null) return cached;
+        }
+        final SimpleSpectrum spectrum = readFromMemory(scan);
+        if (spectrum != null && cache != null) synchronized (cache) {
+            cache.put(scan.getIndex(), spectrum);
+        }
+        return spectrum;
     }
 
-    private synchronized SimpleSpectrum readFromMemory(Scan scan) {
-        final int offset = offsets.get(scan.getIndex());
+    private SimpleSpectrum readFromMemory(Scan scan) {
+        final long offset = offsets.get(scan.getIndex());
         if (offset < 0) return null;
-        if (buffer==null) {
-            try {
-                buffer = writableChannel.map(FileChannel.MapMode.PRIVATE, 0, totalSize);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        final MappedByteBuffer segment = segments()[(int) (offset / SEGMENT_SIZE)];
+        int pos = (int) (offset % SEGMENT_SIZE);
+        final int size = segment.getInt(pos);
+        pos += Integer.BYTES;
+        final float[] mz = new float[size], ints = new float[size];
+        for (int k = 0; k < size; ++k, pos += Float.BYTES) mz[k] = segment.getFloat(pos);
+        for (int k = 0; k < size; ++k, pos += Float.BYTES) ints[k] = segment.getFloat(pos);
+        return new SimpleSpectrum(Spectrums.getAlreadyOrderedSpectrum(Spectrums.wrap(mz, ints)));
+    }
+
+    private MappedByteBuffer[] segments() {
+        MappedByteBuffer[] mapped = segments;
+        if (mapped == null) {
+            synchronized (this) {
+                mapped = segments;
+                if (mapped == null) {
+                    try {
+                        mapped = new MappedByteBuffer[(int) ((totalSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                        for (int k = 0; k < mapped.length; ++k) {
+                            final long start = (long) k * SEGMENT_SIZE;
+                            mapped[k] = writableChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(totalSize - start, (long) SEGMENT_SIZE + maxRecordSize));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    segments = mapped;
+                }
             }
         }
-        buffer.position(offset);
-        final int size = buffer.getInt();
-        final FloatBuffer floats = buffer.asFloatBuffer();
-        final float[] mz = new float[size], ints = new float[size];
-        floats.get(mz);
-        floats.get(ints);
-        final SimpleSpectrum spectrum = new SimpleSpectrum(Spectrums.getAlreadyOrderedSpectrum(Spectrums.wrap(mz, ints)));
-        if (tempStorage!=null) tempStorage.add(scan, spectrum);
-        return spectrum;
+        return mapped;
     }
 
     @Override
-    public void close() throws IOException {
-        writableChannel.close();
-        buffer=null;
+    public synchronized void close() throws IOException {
+        if (writableChannel != null) writableChannel.close();
+        segments=null;
         writableChannel=null;
+        if (cache != null) synchronized (cache) {
+            cache.clear();
+        }
     }
 }
@@ -0,0 +1,229 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.lcms;
+
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Scan;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.procedure.TIntProcedure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * All centroids of the MS1 scans of a run, stored in primitive columns. Peaks are binned by m/z and sorted by
+ * retention time (i.e. by scan) and m/z within each bin, such that a range query in m/z and retention time
+ * only touches the peaks of a few bins and never decodes a spectrum.
+ * <p>
+ * Peaks are addressed by a peak id, scans by their position in the list of MS1 scans. The index is immutable
+ * after construction and can be queried concurrently.
+ * <p>
+ * m/z and intensities are stored as float, the rounding error of the m/z (below 0.1 ppm) is far below the mass
+ * accuracy of any instrument. Retention time lookups that do not need any peak are answered by {@link ScanHeaderIndex}.
+ */
+public class Ms1PeakIndex {
+
+    protected static final double BIN_WIDTH = 0.05;
+
+    // all MS1 scans ordered by scan number
+    private final Scan[] scans;
+    private final int[] scanNumbers;
+    private final long[] retentionTimes;
+
+    private final double minMz;
+    private final int[] binOffsets;
+    private final int[] peakScan;
+    private final float[] peakMz, peakIntensity;
+
+    public static Ms1PeakIndex build(LCMSRun run, SpectrumStorage storage) {
+        return new Ms1PeakIndex(run, storage);
+    }
+
+    protected Ms1PeakIndex(LCMSRun run, SpectrumStorage storage) {
+        final ArrayList<Scan> ms1 = new ArrayList<>();
+        for (Scan s : run) {
+            if (!s.isMsMs()) ms1.add(s);
+        }
+        this.scans = ms1.toArray(Scan[]::new);
+        this.scanNumbers = new int[scans.length];
+        this.retentionTimes = new long[scans.length];
+
+        // collect all peaks in scan order. Peaks of one spectrum are ordered by m/z.
+        final TIntArrayList scanColumn = new TIntArrayList();
+        final TFloatArrayList mzColumn = new TFloatArrayList(), intensityColumn = new TFloatArrayList();
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < scans.length; ++i) {
+            scanNumbers[i] = scans[i].getIndex();
+            retentionTimes[i] = scans[i].getRetentionTime();
+            final SimpleSpectrum spectrum = storage.getScan(scans[i]);
+            if (spectrum == null) continue;
+            for (int j = 0; j < spectrum.size(); ++j) {
+                final float mz = (float) spectrum.getMzAt(j);
+                scanColumn.add(i);
+                mzColumn.add(mz);
+                intensityColumn.add((float) spectrum.getIntensityAt(j));
+                min = Math.min(min, mz);
+                max = Math.max(max, mz);
+            }
+        }
+        final int n = mzColumn.size();
+        this.minMz = n == 0 ? 0d : min;
+        final int numberOfBins = n == 0 ? 0 : bin(max) + 1;
+
+        // counting sort by bin. It is stable, so each bin stays ordered by scan and m/z.
+        this.binOffsets = new int[numberOfBins + 1];
+        for (int i = 0; i < n; ++i) ++binOffsets[bin(mzColumn.getQuick(i)) + 1];
+        for (int b = 0; b < numberOfBins; ++b) binOffsets[b + 1] += binOffsets[b];
+        final int[] insert = Arrays.copyOf(binOffsets, numberOfBins);
+        this.peakScan = new int[n];
+        this.peakMz = new float[n];
+        this.peakIntensity = new float[n];
+        for (int i = 0; i < n; ++i) {
+            final int j = insert[bin(mzColumn.getQuick(i))]++;
+            peakScan[j] = scanColumn.getQuick(i);
+            peakMz[j] = mzColumn.getQuick(i);
+            peakIntensity[j] = intensityColumn.getQuick(i);
+        }
+    }
+
+    private int bin(double mz) {
+        return (int) ((mz - minMz) / BIN_WIDTH);
+    }
+
+    public int numberOfScans() {
+        return scans.length;
+    }
+
+    public int numberOfPeaks() {
+        return peakMz.length;
+    }
+
+    public Scan getScanAt(int scanPosition) {
+        return scans[scanPosition];
+    }
+
+    /**
+     * @return the position of the MS1 scan with the given scan number, or (-(insertion point) - 1) if there is no such scan.
+     */
+    public int positionOf(int scanNumber) {
+        return Arrays.binarySearch(scanNumbers, scanNumber);
+    }
+
+    public double getMzAt(int peakId) {
+        return peakMz[peakId];
+    }
+
+    public double getIntensityAt(int peakId) {
+        return peakIntensity[peakId];
+    }
+
+    public int getScanPositionAt(int peakId) {
+        return peakScan[peakId];
+    }
+
+    public Scan getScanOfPeak(int peakId) {
+        return scans[peakScan[peakId]];
+    }
+
+    /**
+     * Visits all peaks within the given m/z range of all MS1 scans with the given positions (both inclusive).
+     * Peaks are visited bin by bin, within a bin ordered by scan and m/z. The procedure may return false to stop.
+     */
+    public void forEachPeak(double mzLow, double mzHigh, int fromScanPosition, int toScanPosition, TIntProcedure procedure) {
+        if (peakMz.length == 0 || mzHigh < mzLow || toScanPosition < fromScanPosition) return;
+        final int fromBin = Math.max(0, bin(mzLow)), toBin = Math.min(binOffsets.length - 2, bin(mzHigh));
+        for (int b = fromBin; b <= toBin; ++b) {
+            final int end = binOffsets[b + 1];
+            for (int i = firstPeakOfScan(b, fromScanPosition); i < end && peakScan[i] <= toScanPosition; ++i) {
+                final float mz = peakMz[i];
+                if (mz >= mzLow && mz <= mzHigh && !procedure.execute(i)) return;
+            }
+        }
+    }
+
+    /**
+     * Visits all peaks within the given m/z range of all MS1 scans within the given retention time range (both inclusive).
+     * Assumes that MS1 scans are ordered by retention time.
+     */
+    public void forEachPeak(double mzLow, double mzHigh, long rtFrom, long rtTo, TIntProcedure procedure) {
+        int from = lowerBound(retentionTimes, rtFrom, false);
+        int to = lowerBound(retentionTimes, rtTo, true) - 1;
+        forEachPeak(mzLow, mzHigh, from, to, procedure);
+    }
+
+    /**
+     * Adds the ids of all peaks of the given scan within the given m/z range to the buffer, ordered by m/z.
+     * @return number of added peaks
+     */
+    public int peaksInScan(int scanPosition, double mzLow, double mzHigh, TIntArrayList buffer) {
+        final int before = buffer.size();
+        forEachPeak(mzLow, mzHigh, scanPosition, scanPosition, buffer::add);
+        return buffer.size() - before;
+    }
+
+    /**
+     * @return the id of the most intensive peak within the given m/z range of the given scan, or -1 if there is no such peak.
+     * Among equally intensive peaks the one with lowest m/z is chosen.
+     */
+    public int mostIntensivePeak(int scanPosition, double mzLow, double mzHigh) {
+        return mostIntensivePeak(scanPosition, scanPosition, mzLow, mzHigh);
+    }
+
+    /**
+     * @return the id of the most intensive peak within the given m/z range of all scans in the given position range,
+     * or -1 if there is no such peak. Among equally intensive peaks the one of the earliest scan and lowest m/z is chosen.
+     */
+    public int mostIntensivePeak(int fromScanPosition, int toScanPosition, double mzLow, double mzHigh) {
+        final int[] best = new int[]{-1};
+        forEachPeak(mzLow, mzHigh, fromScanPosition, toScanPosition, i -> {
+            final int b = best[0];
+            if (b < 0 || peakIntensity[i] > peakIntensity[b] || (peakIntensity[i] == peakIntensity[b] && peakScan[i] < peakScan[b]))
+                best[0] = i;
+            return true;
+        });
+        return best[0];
+    }
+
+    // first index of a peak in the given bin with scan position >= the given one
+    private int firstPeakOfScan(int bin, int scanPosition) {
+        int low = binOffsets[bin], high = binOffsets[bin + 1];
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (peakScan[mid] < scanPosition) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // first index with value >= key (or > key if exclusive)
+    static int lowerBound(long[] values, long key, boolean exclusive) {
+        int low = 0, high = values.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (values[mid] < key || (exclusive && values[mid] == key)) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+}
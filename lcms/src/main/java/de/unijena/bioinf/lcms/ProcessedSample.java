@@ -72,6 +72,11 @@ public class ProcessedSample implements Annotated<DataAnnotation> {
     //the runs window to use (may be estimated), if an MS2 scan does not specify a window
     protected IsolationWindow defaultMs2IsolationWindow;
 
+    // index of all MS1 peaks, build on first use and released after feature detection
+    private volatile Ms1PeakIndex ms1Index;
+    // scan numbers and retention times of all scans
+    private final ScanHeaderIndex scanHeaders;
+
     ProcessedSample(LCMSRun run, NoiseModel ms1NoiseModel, Ms2NoiseStatistics ms2NoiseModel, ChromatogramCache chromatogramCache, SpectrumStorage storage) {
         this.run = run;
         this.ms1NoiseModel = ms1NoiseModel;
@@ -81,6 +86,7 @@ public class ProcessedSample implements Annotated<DataAnnotation> {
         this.storage = storage;
         this.builder = new ChromatogramBuilder(this);
         this.ions = new ArrayList<>();
+        this.scanHeaders = new ScanHeaderIndex(run);
         this.maxRT = run.getScans().stream().max(Comparator.comparingLong(Scan::getRetentionTime)).map(x->x.getRetentionTime()).orElse(1l);
         this.recalibrationFunction = new Identity();
         this.annotations = new Annotations<>();
@@ -291,7 +297,37 @@ public class ProcessedSample implements Annotated<DataAnnotation> {
         return false;
     }
 
+    /**
+     * @return the index of all MS1 peaks of this sample. It is build from the spectrum storage on first access.
+     */
+    public Ms1PeakIndex getMs1Index() {
+        Ms1PeakIndex index = ms1Index;
+        if (index == null) {
+            synchronized (this) {
+                index = ms1Index;
+                if (index == null) {
+                    index = Ms1PeakIndex.build(run, storage);
+                    ms1Index = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Releases the index of MS1 peaks, e.g. after feature detection or when the spectra of this sample are
+     * spilled to disc. It is build again on the next access.
+     */
+    public void dropMs1Index() {
+        ms1Index = null;
+    }
+
     public NavigableMap<Integer,Scan> findScansByRT(Range<Long> rt) {
+        if (scanHeaders.isSortedByRetentionTime()) {
+            final int[] scanNumbers = scanHeaders.findScanNumbersByRT(rt);
+            if (scanNumbers == null) return new TreeMap<>();
+            return run.getScans(scanNumbers[0], scanNumbers[1]);
+        }
         // stupid java =/
         Scan a=null, b=null;
         for (Scan s : run.getScans()) {
@@ -303,6 +339,7 @@ public class ProcessedSample implements Annotated<DataAnnotation> {
                 break;
             }
         }
+        if (a==null) return new TreeMap<>();
         if (b == null) b = run.getScanByNumber(run.scanRange().upperEndpoint()).get();
         return run.getScans(a.getIndex(), b.getIndex());
     }
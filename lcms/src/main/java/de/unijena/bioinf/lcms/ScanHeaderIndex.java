@@ -0,0 +1,70 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.lcms;
+
+import com.google.common.collect.BoundType;
+import com.google.common.collect.Range;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Scan;
+
+/**
+ * Scan numbers and retention times of all scans (including MS/MS) of a run, ordered by scan number.
+ * Answers retention time lookups without touching any spectrum, so it is kept for the whole lifetime of a sample
+ * while the much larger {@link Ms1PeakIndex} is released after feature detection.
+ */
+public class ScanHeaderIndex {
+
+    private final int[] scanNumbers;
+    private final long[] retentionTimes;
+    private final boolean sortedByRetentionTime;
+
+    public ScanHeaderIndex(LCMSRun run) {
+        this.scanNumbers = new int[run.getScans().size()];
+        this.retentionTimes = new long[scanNumbers.length];
+        boolean sorted = true;
+        int k = 0;
+        for (Scan s : run) {
+            scanNumbers[k] = s.getIndex();
+            retentionTimes[k] = s.getRetentionTime();
+            if (k > 0 && retentionTimes[k] < retentionTimes[k - 1]) sorted = false;
+            ++k;
+        }
+        this.sortedByRetentionTime = sorted;
+    }
+
+    public boolean isSortedByRetentionTime() {
+        return sortedByRetentionTime;
+    }
+
+    /**
+     * Finds the scan numbers of the first scan within the given retention time range and of the first scan after it
+     * which is outside of the range (or the last scan of the run).
+     * @return the scan numbers {from, to} or null if no scan is within the range or the scans are not ordered by retention time.
+     */
+    public int[] findScanNumbersByRT(Range<Long> rt) {
+        if (!sortedByRetentionTime || scanNumbers.length == 0) return null;
+        final int a = rt.hasLowerBound() ? Ms1PeakIndex.lowerBound(retentionTimes, rt.lowerEndpoint(), rt.lowerBoundType() == BoundType.OPEN) : 0;
+        if (a >= retentionTimes.length || !rt.contains(retentionTimes[a])) return null;
+        final int b = rt.hasUpperBound() ? Ms1PeakIndex.lowerBound(retentionTimes, rt.upperEndpoint(), rt.upperBoundType() == BoundType.CLOSED) : retentionTimes.length;
+        return new int[]{scanNumbers[a], scanNumbers[Math.min(b, scanNumbers.length - 1)]};
+    }
+
+}
@@ -49,7 +49,9 @@ import de.unijena.bionf.spectral_alignment.IntensityWeightedSpectralAlignment;
 import de.unijena.bionf.spectral_alignment.SpectralSimilarity;
 import gnu.trove.iterator.TLongFloatIterator;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntLongHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.map.hash.TLongFloatHashMap;
@@ -429,22 +431,122 @@ public class Aligner {
 
     }
 
+    /**
+     * number of most similar samples each sample is aligned with when building the guide tree of cohorts with more than
+     * {@link Aligner2#EXHAUSTIVE_GUIDE_TREE_LIMIT} samples.
+     */
+    public static final int GUIDE_TREE_NEIGHBOURS = 8;
+
     public Cluster upgma(List<ProcessedSample> samples, double errorTerm, boolean useAllFeatures) {
-        return new UPGMA(errorTerm, useAllFeatures).cluster(samples);
+        return new UPGMA(errorTerm, useAllFeatures, guideTreeNeighbours(samples, errorTerm)).cluster(samples);
     }
 
     public BasicJJob<Cluster> upgmaInParallel(List<ProcessedSample> samples, double errorTerm, boolean useAllFeatures) {
-        return new UPGMA(errorTerm, useAllFeatures).makeParallelClusterJobs(samples);
+        return new UPGMA(errorTerm, useAllFeatures, guideTreeNeighbours(samples, errorTerm)).makeParallelClusterJobs(samples);
+    }
+
+    /**
+     * Instead of aligning all pairs of samples, each sample is only aligned with the samples that share the most
+     * features with it (by m/z and retention time). The number of shared features is counted with a m/z sweep, which
+     * is much cheaper than an alignment.
+     * @return for each sample its {@link #GUIDE_TREE_NEIGHBOURS} most similar samples, or null if the cohort is small
+     * enough to align all pairs.
+     */
+    private Map<ProcessedSample, Set<ProcessedSample>> guideTreeNeighbours(List<ProcessedSample> samples, double errorTerm) {
+        if (samples.size() <= Aligner2.EXHAUSTIVE_GUIDE_TREE_LIMIT) return null;
+        final double[][] masses = new double[samples.size()][], rts = new double[samples.size()][];
+        for (int k=0; k < masses.length; ++k) {
+            final ProcessedSample sample = samples.get(k);
+            masses[k] = new double[sample.ions.size()];
+            rts[k] = new double[sample.ions.size()];
+            for (int i=0; i < masses[k].length; ++i) {
+                masses[k][i] = sample.ions.get(i).getMass();
+                rts[k][i] = sample.getRecalibratedRT(sample.ions.get(i).getRetentionTime());
+            }
+        }
+        final TIntIntHashMap[] shared = sharedFeatureCounts(masses, rts, new Deviation(20), 4*errorTerm);
+        final Map<ProcessedSample, Set<ProcessedSample>> neighbours = new HashMap<>();
+        for (int a=0; a < masses.length; ++a) {
+            final int[] best = mostSharingSamples(shared, a, GUIDE_TREE_NEIGHBOURS);
+            for (int b : best) {
+                // neighbourhood is symmetric, otherwise a sample might not be linked to its best partner
+                neighbours.computeIfAbsent(samples.get(a), x -> new HashSet<>()).add(samples.get(b));
+                neighbours.computeIfAbsent(samples.get(b), x -> new HashSet<>()).add(samples.get(a));
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * Counts for each pair of samples a &gt; b the features of a that have a partner in b, i.e. a feature of b within
+     * the mass deviation of the feature's mass and within the retention time window. The count is stored for both
+     * samples of the pair. All features are put into one mass sorted index, so only pairs of samples that actually
+     * share features are visited.
+     * @return for each sample a map from the index of each sample sharing features with it to the number of shared features
+     */
+    static TIntIntHashMap[] sharedFeatureCounts(double[][] masses, double[][] rts, Deviation dev, double rtWindow) {
+        int total = 0;
+        for (double[] m : masses) total += m.length;
+        final double[] allMasses = new double[total], allRts = new double[total];
+        final int[] sampleOf = new int[total];
+        for (int s=0, offset=0; s < masses.length; offset += masses[s].length, ++s) {
+            System.arraycopy(masses[s], 0, allMasses, offset, masses[s].length);
+            System.arraycopy(rts[s], 0, allRts, offset, rts[s].length);
+            Arrays.fill(sampleOf, offset, offset + masses[s].length, s);
+        }
+        final MassSortedIndex index = new MassSortedIndex(allMasses, allRts);
+        final TIntIntHashMap[] shared = new TIntIntHashMap[masses.length];
+        for (int s=0; s < shared.length; ++s) shared[s] = new TIntIntHashMap();
+        // last feature that found a partner in the sample, so a feature with several partners in a sample counts once
+        final int[] lastFeature = new int[masses.length];
+        Arrays.fill(lastFeature, -1);
+        for (int i=0; i < total; ++i) {
+            final int feature = i, a = sampleOf[i];
+            index.forEachCandidate(allMasses[i], dev.absoluteFor(allMasses[i]), allRts[i], rtWindow, c -> {
+                final int b = sampleOf[c];
+                if (b < a && lastFeature[b] != feature) {
+                    lastFeature[b] = feature;
+                    shared[a].adjustOrPutValue(b, 1, 1);
+                    shared[b].adjustOrPutValue(a, 1, 1);
+                }
+                return true;
+            });
+        }
+        return shared;
+    }
+
+    /**
+     * @return the k samples sharing the most features with sample a, ties are broken by the lower sample index.
+     * If less than k samples share features with a, the remaining ones are filled up with the lowest sample indizes.
+     */
+    static int[] mostSharingSamples(TIntIntHashMap[] shared, int a, int k) {
+        final TIntIntHashMap counts = shared[a];
+        final Integer[] partners = Arrays.stream(counts.keys()).boxed().toArray(Integer[]::new);
+        Arrays.sort(partners, (x,y)->{
+            final int c = Integer.compare(counts.get(y), counts.get(x));
+            return c!=0 ? c : Integer.compare(x, y);
+        });
+        final int size = Math.min(k, shared.length - 1);
+        final int[] best = new int[size];
+        int added = 0;
+        for (int p=0; p < partners.length && added < size; ++p) best[added++] = partners[p];
+        for (int b=0; b < shared.length && added < size; ++b) {
+            if (b != a && !counts.containsKey(b)) best[added++] = b;
+        }
+        return best;
     }
 
 
     private class UPGMA extends HierarchicalClustering<ProcessedSample, Cluster, Cluster> {
         private final double errorTerm;
         private final boolean useAllFeatures;
+        // null if all pairs are aligned
+        private final Map<ProcessedSample, Set<ProcessedSample>> neighbours;
         private boolean firstTime = true;
-        public UPGMA(double errorTerm, boolean useAllFeatures) {
+        public UPGMA(double errorTerm, boolean useAllFeatures, Map<ProcessedSample, Set<ProcessedSample>> neighbours) {
             this.errorTerm = errorTerm;
             this.useAllFeatures = useAllFeatures;
+            this.neighbours = neighbours;
         }
 
         @Override
@@ -454,17 +556,32 @@ public class Aligner {
 
         @Override
         public Cluster merge(Cluster cluster, Cluster left, Cluster right, double score) {
-            return cluster;
+            // clusters without neighbouring samples are only aligned if nothing else is left
+            return cluster != null ? cluster : align(left, right, errorTerm, useAllFeatures, true);
         }
 
         @Override
         public Cluster preMerge(Cluster left, Cluster right) {
+            if (!areNeighbours(left, right)) return null;
             return align(left,right, errorTerm, useAllFeatures, true);
         }
 
         @Override
         public double getScore(Cluster preMerged, Cluster left, Cluster right) {
-            return preMerged.score;
+            // worse than any alignment but still better than the initial maximum of the clustering
+            return preMerged == null ? -Double.MAX_VALUE : preMerged.score;
+        }
+
+        private boolean areNeighbours(Cluster left, Cluster right) {
+            if (neighbours == null) return true;
+            for (ProcessedSample s : left.mergedSamples) {
+                final Set<ProcessedSample> ns = neighbours.get(s);
+                if (ns == null) continue;
+                for (ProcessedSample t : right.mergedSamples) {
+                    if (ns.contains(t)) return true;
+                }
+            }
+            return false;
         }
     }
 
@@ -561,12 +678,8 @@ public class Aligner {
         final SparseScoreMatrix scores = new SparseScoreMatrix(Float.NEGATIVE_INFINITY);
         computePairwiseCosine(scores, leftFeatures, rightFeatures, errorTerm, useAll);
         final TreeSet<ScoredAligned> set = new TreeSet<>();
-        for (int i=0; i  < leftFeatures.size(); ++i) {
-            for (int j=0; j < rightFeatures.size(); ++j) {
-                final float score = scores.lookup(i,j);
-                if (score > 0) set.add(new ScoredAligned(i,j,score));
-            }
-        }
+        // only the candidate pairs found by the m/z sweep are stored in the matrix
+        scores.forEachPositive((i,j,score)->set.add(new ScoredAligned(i,j,score)));
         double totalScore = 0d;
         final BitSet alignedLeft = new BitSet(leftFeatures.size()), alignedRight = new BitSet(rightFeatures.size());
         final List<AlignedFeatures> alignedFeatures =new ArrayList<>(leftFeatures.size());
@@ -674,9 +787,14 @@ public class Aligner {
     private void computePairwiseCosine2(SparseScoreMatrix scores, List<AlignedFeatures> left, List<AlignedFeatures> right, float errorTerm, boolean useAll ) {
         final Deviation dev = new Deviation(30);
         final double gamma = 1d / (2d * errorTerm * errorTerm);
+        final MassSortedIndex rightIndex = MassSortedIndex.of(right);
+        final TIntArrayList candidates = new TIntArrayList();
         for (int i = 0; i < left.size(); ++i) {
             final AlignedFeatures l = left.get(i);
-            for (int j = 0; j < right.size(); ++j) {
+            candidates.clear();
+            rightIndex.forEachCandidate(l.getMass(), 2*dev.absoluteFor(l.getMass()), l.rt, 5*errorTerm, candidates::add);
+            for (int c = 0; c < candidates.size(); ++c) {
+                final int j = candidates.getQuick(c);
                 final AlignedFeatures r = right.get(j);
                 if (dev.inErrorWindow(l.getMass(), r.getMass()) && Math.abs(l.rt - r.rt) < 5 * errorTerm) {
                     final float value = (float)Math.exp(-gamma * (l.rt-r.rt)*(l.rt-r.rt));
@@ -703,9 +821,15 @@ public class Aligner {
                 rr.add(null);
             } else rr.add(r.getRepresentativeIon().getMsMs());
         }
+        // sweep over the m/z sorted right features instead of comparing all pairs
+        final MassSortedIndex rightIndex = MassSortedIndex.of(right);
+        final TIntArrayList candidates = new TIntArrayList();
         for (int i=0; i < left.size(); ++i) {
             final AlignedFeatures l = left.get(i);
-            for (int j=0; j < right.size(); ++j) {
+            candidates.clear();
+            rightIndex.forEachCandidate(l.getMass(), 2*dev.absoluteFor(l.getMass()), l.rt, 4*errorTerm, candidates::add);
+            for (int c=0; c < candidates.size(); ++c) {
+                final int j = candidates.getQuick(c);
                 final AlignedFeatures r = right.get(j);
                 if (dev.inErrorWindow(l.getMass(), r.getMass()) && Math.abs(l.rt-r.rt) < 4*errorTerm && l.chargeStateIsNotDifferent(r)) {
                     double error = errorTerm*0.66;
@@ -810,6 +934,19 @@ public class Aligner {
             return map.get(key);
         }
 
+        private void forEachPositive(EntryProcedure procedure) {
+            final TLongFloatIterator iter = map.iterator();
+            while (iter.hasNext()) {
+                iter.advance();
+                if (iter.value() > 0)
+                    procedure.execute((int)(iter.key() >>> 32), (int)iter.key(), iter.value());
+            }
+        }
+
+        private interface EntryProcedure {
+            void execute(int i, int j, float value);
+        }
+
     }
 
     public int prealignAndFeatureCutoff(List<ProcessedSample> samples, double errorTerm, int threshold) {
@@ -27,9 +27,7 @@ import de.unijena.bioinf.jjobs.BasicMasterJJob;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.lcms.ProcessedSample;
 import de.unijena.bioinf.model.lcms.FragmentedIon;
-import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.map.hash.TIntObjectHashMap;
-import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
 import org.apache.commons.math3.distribution.LaplaceDistribution;
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.distribution.RealDistribution;
@@ -51,33 +49,79 @@ public class Aligner2 {
 
     protected double minRetentionTimeError = 3000;
 
+    /**
+     * cohorts with at most this many samples are aligned by scoring every remaining sample against the consensus in
+     * each round. Larger cohorts only rescore the most promising candidates, see {@link #setGuideTreeCandidates(int)}
+     */
+    public static final int EXHAUSTIVE_GUIDE_TREE_LIMIT = 32;
+
+    /**
+     * number of samples realigned per round for cohorts above {@link #EXHAUSTIVE_GUIDE_TREE_LIMIT}. It is fixed, so
+     * that the alignment does not depend on the machine it runs on.
+     */
+    public static final int DEFAULT_GUIDE_TREE_CANDIDATES = 8;
+
+    protected int guideTreeCandidates = -1;
+
+    /**
+     * Sets how many of the remaining samples are realigned against the running consensus in each round of the
+     * progressive alignment. The order is guided by the score each sample achieved in its last alignment, so only
+     * O(n*k) instead of O(n^2) sample alignments are computed. A value of 0 aligns all remaining samples in each round,
+     * a negative value (default) does so only for cohorts up to {@link #EXHAUSTIVE_GUIDE_TREE_LIMIT} samples.
+     */
+    public void setGuideTreeCandidates(int guideTreeCandidates) {
+        this.guideTreeCandidates = guideTreeCandidates;
+    }
+
+    public int getGuideTreeCandidates() {
+        return guideTreeCandidates;
+    }
+
+    private int candidatesPerRound(int numberOfSamples) {
+        if (guideTreeCandidates > 0) return guideTreeCandidates;
+        if (guideTreeCandidates == 0 || numberOfSamples <= EXHAUSTIVE_GUIDE_TREE_LIMIT) return Integer.MAX_VALUE;
+        return DEFAULT_GUIDE_TREE_CANDIDATES;
+    }
+
     public BasicMasterJJob<Cluster> align(List<ProcessedSample> samples) {
         return new BasicMasterJJob<Cluster>(JJob.JobType.SCHEDULER) {
             @Override
             protected Cluster compute() throws Exception {
-                final TIntObjectHashMap<TIntArrayList> mass2msms = new TIntObjectHashMap<TIntArrayList>();
                 final ArrayList<ProcessedSample> xs = new ArrayList<>(samples);
                 xs.sort(Comparator.comparingInt((ProcessedSample u) -> u.ions.size()).reversed());
+                final int candidatesPerRound = candidatesPerRound(xs.size());
                 AlignedFeatures[] features = init(xs.get(0));
                 xs.remove(0);
+                // score of the last alignment of each remaining sample against the consensus. Scores of samples that
+                // were not realigned in the current round are outdated but still guide which samples are realigned next
+                final TObjectDoubleHashMap<ProcessedSample> lastScore = new TObjectDoubleHashMap<>(xs.size(), 0.75f, Double.POSITIVE_INFINITY);
                 final ArrayList<BasicJJob<AlignmentResult>> subjobs = new ArrayList<>();
                 double totalScore = 0d;
                 while (xs.size()>0) {
-                    mass2msms.clear();
+                    checkForInterruption();
                     subjobs.clear();
-                    addFeatures(mass2msms,features);
-                    for (int j=0; j < xs.size(); ++j) {
+                    final AlignedFeatures[] F = features;
+                    final MassSortedIndex index = MassSortedIndex.of(F);
+                    final int n = Math.min(xs.size(), candidatesPerRound);
+                    // stable sort: samples which were never aligned keep their order and come first
+                    if (n < xs.size()) xs.sort(Comparator.comparingDouble(lastScore::get).reversed());
+                    for (int j=0; j < n; ++j) {
                         int J = j;
-                        final AlignedFeatures[] F = features;
                         subjobs.add(submitSubJob(new BasicJJob<AlignmentResult>() {
                             @Override
                             protected AlignmentResult compute() throws Exception {
-                                return computeAlignment(J, F, xs.get(J), mass2msms);
+                                return computeAlignment(J, F, xs.get(J), index);
                             }
                         }));
                     }
-                    final AlignmentResult results = subjobs.stream().map(JJob::takeResult).max(AlignmentResult::compareTo).get();
+                    AlignmentResult results = null;
+                    for (BasicJJob<AlignmentResult> job : subjobs) {
+                        final AlignmentResult r = job.takeResult();
+                        lastScore.put(r.mergedSample, r.score);
+                        if (results == null || r.compareTo(results) > 0) results = r;
+                    }
                     features = merge(features, results);
+                    lastScore.remove(results.mergedSample);
                     xs.remove(results.index);
                     totalScore += results.score;
                 }
@@ -117,35 +161,16 @@ public class Aligner2 {
 
     }
 
-    private void addFeatures(TIntObjectHashMap<TIntArrayList> mass2msms, AlignedFeatures[] features) {
-        for (int i=0; i < features.length; ++i) {
-            final AlignedFeatures f = features[i];
-            int l = (int)Math.floor(f.getMass()*10), h = (int)Math.ceil(f.getMass()*10);
-            if (!mass2msms.containsKey(l)) mass2msms.put(l,new TIntArrayList());
-            mass2msms.get(l).add(i);
-            if (l!=h) {
-                if (!mass2msms.containsKey(h)) mass2msms.put(h, new TIntArrayList());
-                mass2msms.get(h).add(i);
-            }
-        }
-    }
-
-    protected AlignmentResult computeAlignment(int index, AlignedFeatures[] left, ProcessedSample right, TIntObjectHashMap<TIntArrayList> mass2msms) {
+    protected AlignmentResult computeAlignment(int index, AlignedFeatures[] left, ProcessedSample right, MassSortedIndex leftIndex) {
         final TreeSet<Alignment> possibleAlignments = new TreeSet<>();
         final ArrayList<FragmentedIon> allIons = new ArrayList<>(right.ions);
         allIons.addAll(right.gapFilledIons);
-        final TIntHashSet candidates = new TIntHashSet();
+        final double rtWindow = maxRetentionError();
         for (int i = 0; i < allIons.size(); ++i) {
             final int I = i;
-            candidates.clear();
             final FragmentedIon ion = allIons.get(i);
-            int l = (int)Math.floor(ion.getMass()*10), h = (int)Math.ceil(ion.getMass()*10);
-            TIntArrayList cs = mass2msms.get(l);
-            if (cs!=null) cs.forEach(c->{candidates.add(c); return true;});
-            cs = mass2msms.get(h);
-            if (cs!=null) cs.forEach(c->{candidates.add(c); return true;});
-            //////////////////////////
-            candidates.forEach(c->{
+            // the window is widened as the deviation is relative to the feature mass; getScore checks the exact bounds
+            leftIndex.forEachCandidate(ion.getMass(), 2*dev.absoluteFor(ion.getMass()), right.getRecalibratedRT(ion.getRetentionTime()), rtWindow, c->{
                 final AlignedFeatures f = left[c];
                 final float score = getScore(f, right, ion);
                 if (score > 0) possibleAlignments.add(new Alignment(c, I, score));
@@ -0,0 +1,109 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.lcms.align;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the shared feature counts that select the guide tree neighbours of {@link Aligner} on synthetic cohorts:
+ * counting all pairs of samples and features against the m/z sweep of {@link Aligner#sharedFeatureCounts}.
+ * Reports the running times and every sample pair or neighbourhood for which both differ.
+ * Usage: AlignmentBenchmark [samples] [features per sample] [seed]
+ */
+public class AlignmentBenchmark {
+
+    public static void main(String[] args) {
+        final int samples = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int featuresPerSample = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 42L;
+        final Deviation dev = new Deviation(20);
+        final double rtWindow = 3000;
+
+        // each sample contains a random subset of a shared compound pool with some m/z and retention time noise.
+        // Sample groups draw from different parts of the pool, so some samples share much more features than others
+        final Random random = new Random(seed);
+        final int poolSize = featuresPerSample * 4, groups = 5;
+        final double[] poolMass = new double[poolSize], poolRt = new double[poolSize];
+        for (int k=0; k < poolSize; ++k) {
+            poolMass[k] = 100 + random.nextDouble() * 900;
+            poolRt[k] = random.nextDouble() * 20 * 60000;
+        }
+        final double[][] masses = new double[samples][featuresPerSample], rts = new double[samples][featuresPerSample];
+        for (int s=0; s < samples; ++s) {
+            final int groupOffset = (s % groups) * poolSize / (2 * groups);
+            for (int k=0; k < featuresPerSample; ++k) {
+                final int c = (groupOffset + random.nextInt(poolSize / 2)) % poolSize;
+                masses[s][k] = poolMass[c] + random.nextGaussian() * dev.absoluteFor(poolMass[c]) / 3d;
+                rts[s][k] = poolRt[c] + random.nextGaussian() * rtWindow / 3d;
+            }
+        }
+
+        long time = System.nanoTime();
+        final int[][] bruteForce = new int[samples][samples];
+        for (int a=0; a < samples; ++a) {
+            for (int b=0; b < a; ++b) {
+                int count = 0;
+                for (int i=0; i < featuresPerSample; ++i) {
+                    final double window = dev.absoluteFor(masses[a][i]);
+                    for (int j=0; j < featuresPerSample; ++j) {
+                        if (Math.abs(masses[a][i] - masses[b][j]) <= window && Math.abs(rts[a][i] - rts[b][j]) <= rtWindow) {
+                            ++count;
+                            break;
+                        }
+                    }
+                }
+                bruteForce[a][b] = bruteForce[b][a] = count;
+            }
+        }
+        final long bruteForceTime = System.nanoTime() - time;
+        time = System.nanoTime();
+        final TIntIntHashMap[] sweep = Aligner.sharedFeatureCounts(masses, rts, dev, rtWindow);
+        final long sweepTime = System.nanoTime() - time;
+
+        int differentCounts = 0, differentNeighbourhoods = 0;
+        for (int a=0; a < samples; ++a) {
+            for (int b=0; b < samples; ++b) {
+                if (a != b && bruteForce[a][b] != sweep[a].get(b)) ++differentCounts;
+            }
+            if (!Arrays.equals(bruteForceNeighbours(bruteForce, a, Aligner.GUIDE_TREE_NEIGHBOURS), Aligner.mostSharingSamples(sweep, a, Aligner.GUIDE_TREE_NEIGHBOURS)))
+                ++differentNeighbourhoods;
+        }
+
+        System.out.println(String.format(Locale.US, "%d samples with %d features each", samples, featuresPerSample));
+        System.out.println(String.format(Locale.US, "all pairs counting:  %8.1f ms", bruteForceTime / 1e6));
+        System.out.println(String.format(Locale.US, "m/z sweep counting:  %8.1f ms", sweepTime / 1e6));
+        System.out.println(String.format(Locale.US, "sample pairs with different counts: %d, samples with different neighbours: %d", differentCounts, differentNeighbourhoods));
+    }
+
+    // stable sort by descending count, as done for the guide tree before the sweep was introduced
+    private static int[] bruteForceNeighbours(int[][] shared, int a, int k) {
+        final Integer[] order = new Integer[shared.length];
+        for (int b=0; b < order.length; ++b) order[b] = b;
+        Arrays.sort(order, (x,y)->Integer.compare(shared[a][y], shared[a][x]));
+        return Arrays.stream(order).mapToInt(Integer::intValue).filter(b -> b != a).limit(k).toArray();
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.lcms.align;
+
+import gnu.trove.procedure.TIntProcedure;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Feature positions sorted by m/z and retention time. Partners of a feature are found by a binary search for the
+ * lower end of its mass window followed by a sweep to the upper end, so matching two feature lists costs
+ * O((n+m) log m + candidates) instead of O(n*m).
+ */
+final class MassSortedIndex {
+
+    private final int[] order;
+    private final double[] masses, rts;
+
+    MassSortedIndex(double[] masses, double[] rts) {
+        final Integer[] idx = new Integer[masses.length];
+        for (int k=0; k < idx.length; ++k) idx[k] = k;
+        Arrays.sort(idx, (a,b)->{
+            final int c = Double.compare(masses[a], masses[b]);
+            return c!=0 ? c : Double.compare(rts[a], rts[b]);
+        });
+        this.order = new int[idx.length];
+        this.masses = new double[idx.length];
+        this.rts = new double[idx.length];
+        for (int k=0; k < idx.length; ++k) {
+            order[k] = idx[k];
+            this.masses[k] = masses[idx[k]];
+            this.rts[k] = rts[idx[k]];
+        }
+    }
+
+    static MassSortedIndex of(List<AlignedFeatures> features) {
+        final double[] masses = new double[features.size()], rts = new double[features.size()];
+        for (int k=0; k < masses.length; ++k) {
+            masses[k] = features.get(k).getMass();
+            rts[k] = features.get(k).rt;
+        }
+        return new MassSortedIndex(masses, rts);
+    }
+
+    static MassSortedIndex of(AlignedFeatures[] features) {
+        return of(Arrays.asList(features));
+    }
+
+    /**
+     * Calls the procedure with the original index of each feature whose mass is within mass +- massWindow and whose
+     * retention time is within rt +- rtWindow. Stops as soon as the procedure returns false.
+     */
+    boolean forEachCandidate(double mass, double massWindow, double rt, double rtWindow, TIntProcedure procedure) {
+        final double upper = mass + massWindow;
+        for (int k = lowerBound(mass - massWindow); k < masses.length && masses[k] <= upper; ++k) {
+            if (Math.abs(rts[k] - rt) <= rtWindow && !procedure.execute(order[k])) return false;
+        }
+        return true;
+    }
+
+    private int lowerBound(double mass) {
+        int lo = 0, hi = masses.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (masses[mid] < mass) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+}
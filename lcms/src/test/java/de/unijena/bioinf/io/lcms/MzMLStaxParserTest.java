@@ -0,0 +1,60 @@
+package de.unijena.bioinf.io.lcms;
+
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.lcms.InMemoryStorage;
+import de.unijena.bioinf.model.lcms.LCMSRun;
+import de.unijena.bioinf.model.lcms.Precursor;
+import de.unijena.bioinf.model.lcms.Scan;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MzMLStaxParserTest {
+
+    @Test
+    public void testParityWithMzMLParser() throws Exception {
+        final File file = new File(getClass().getResource("/parity_sample.mzML").toURI());
+        final InMemoryStorage expectedStorage = new InMemoryStorage(), actualStorage = new InMemoryStorage();
+        final LCMSRun expected = new MzMLParser().parse(file, expectedStorage);
+        final LCMSRun actual = new MzMLStaxParser().parse(file, actualStorage);
+
+        assertEquals(expected.getInstrument(), actual.getInstrument());
+        assertEquals(expected.getReference().getRunId(), actual.getReference().getRunId());
+        assertEquals(expected.getReference().getMzmlId(), actual.getReference().getMzmlId());
+
+        final List<Scan> expectedScans = new ArrayList<>(expected.getScans()), actualScans = new ArrayList<>(actual.getScans());
+        assertEquals(4, expectedScans.size());
+        assertEquals(expectedScans.size(), actualScans.size());
+        for (int i = 0; i < expectedScans.size(); i++) {
+            final Scan e = expectedScans.get(i), a = actualScans.get(i);
+            assertEquals(e.getIndex(), a.getIndex());
+            assertEquals(e.getPolarity(), a.getPolarity());
+            assertEquals(e.getRetentionTime(), a.getRetentionTime());
+            assertEquals(e.getCollisionEnergy().toString(), a.getCollisionEnergy().toString());
+            assertEquals(e.getNumberOfPeaks(), a.getNumberOfPeaks());
+            assertEquals(e.getTIC(), a.getTIC(), 1e-9);
+            assertEquals(e.isCentroided(), a.isCentroided());
+            assertEquals(e.isMsMs(), a.isMsMs());
+            if (e.isMsMs()) {
+                final Precursor ep = e.getPrecursor(), ap = a.getPrecursor();
+                assertEquals(ep.getIndex(), ap.getIndex());
+                assertEquals(ep.getMass(), ap.getMass(), 0d);
+                assertEquals(ep.getIntensity(), ap.getIntensity(), 0d);
+                assertEquals(ep.getCharge(), ap.getCharge());
+                assertEquals(ep.getIsolationWindowWidth(), ap.getIsolationWindowWidth(), 0d);
+                assertEquals(ep.getIsolationWindowOffset(), ap.getIsolationWindowOffset(), 0d);
+            }
+
+            final SimpleSpectrum es = expectedStorage.getScan(e), as = actualStorage.getScan(a);
+            assertEquals(es.size(), as.size());
+            for (int k = 0; k < es.size(); k++) {
+                assertEquals(es.getMzAt(k), as.getMzAt(k), 0d);
+                assertEquals(es.getIntensityAt(k), as.getIntensityAt(k), 0d);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package de.unijena.bioinf.lcms;
+
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.model.lcms.Polarity;
+import de.unijena.bioinf.model.lcms.Scan;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryFileStorageTest {
+
+    @Test
+    public void testRoundTripWithRecordLargerThanWriteBuffer() throws Exception {
+        final Random random = new Random(1);
+        final List<Scan> scans = new ArrayList<>();
+        final List<SimpleSpectrum> spectra = new ArrayList<>();
+        // cache disabled, so every read goes to the file
+        try (MemoryFileStorage storage = new MemoryFileStorage(0)) {
+            for (int round = 0; round < 2; ++round) {
+                storage.keepInMemory();
+                for (int i = 0; i < 60; ++i) {
+                    // one spectrum per round needs more than 1 MiB and does not fit into the write buffer
+                    final int peaks = i == 30 ? 200000 : 1 + random.nextInt(50);
+                    final Scan scan = new Scan(scans.size(), Polarity.POSITIVE, scans.size(), CollisionEnergy.none(), peaks, 0d, true);
+                    final SimpleSpectrum spectrum = randomSpectrum(random, peaks);
+                    storage.add(scan, spectrum);
+                    scans.add(scan);
+                    spectra.add(spectrum);
+                }
+                storage.backOnDisc();
+            }
+            for (int i = 0; i < scans.size(); ++i) {
+                final SimpleSpectrum expected = spectra.get(i), actual = storage.getScan(scans.get(i));
+                assertEquals(expected.size(), actual.size());
+                for (int k = 0; k < expected.size(); ++k) {
+                    assertEquals((float) expected.getMzAt(k), actual.getMzAt(k), 0d);
+                    assertEquals((float) expected.getIntensityAt(k), actual.getIntensityAt(k), 0d);
+                }
+            }
+        }
+    }
+
+    private static SimpleSpectrum randomSpectrum(Random random, int peaks) {
+        final double[] mz = new double[peaks], intensities = new double[peaks];
+        double current = 50;
+        for (int k = 0; k < peaks; ++k) {
+            current += 0.001 + random.nextDouble();
+            mz[k] = current;
+            intensities[k] = 1 + random.nextDouble() * 1000;
+        }
+        return new SimpleSpectrum(mz, intensities);
+    }
+}
@@ -23,84 +23,53 @@ package de.unijena.bioinf.MassDecomposer.Chemistry;
 
 import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * caches decomposer and corresponding alphabet. If a dataset contains a small number of different alphabets,
  * the cache creates for each such alphabet an own decomposer instead of creating a new one each time the alphabet changes.
+ * <p>
+ * Lookups of cached alphabets do not lock. If a new alphabet exceeds the cache size, the least recently used
+ * decomposer is evicted. Decomposers are initialized outside of the map operations.
+ * The extended residue tables of evicted decomposers may be persisted by {@link de.unijena.bioinf.MassDecomposer.ERTFileCache}.
  */
 public class DecomposerCache {
 
-    private ChemicalAlphabet[] alphabets;
-    private MassToFormulaDecomposer[] decomposers;
-    private AtomicInteger[] useCounter;
-    private int dirtyState;
-    private int size;
-
-    private ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentHashMap<ChemicalAlphabet, Entry> decomposers;
+    private final int size;
 
     public DecomposerCache(int size) {
-        this.alphabets = new ChemicalAlphabet[size];
-        this.decomposers = new MassToFormulaDecomposer[size];
-        this.useCounter = new AtomicInteger[size];
-        this.dirtyState = 0;
-        for (int k=0; k < size; ++k) useCounter[k] = new AtomicInteger(0);
-        this.size = 0;
+        if (size < 1) throw new IllegalArgumentException("Cache size must be at least 1 but was " + size);
+        this.decomposers = new ConcurrentHashMap<>(2 * size);
+        this.size = size;
     }
 
     public MassToFormulaDecomposer getDecomposer(ChemicalAlphabet alphabet) {
-        while (true) {
-            int state = dirtyState;
-            MassToFormulaDecomposer d = findDecomposer(alphabet,state);
-            if (d == null) {
-                lock.lock();
-                try {
-                    if (state == dirtyState) {
-                        //System.err.println(this.toString() + " will decompose " + alphabet + " from " + Thread.currentThread().getName() + " with state " + state);
-                        d = addNewDecomposer(alphabet);
-                    } else {
-                        //System.err.println(this.toString() + " STATE CHANGED " + alphabet + " from " + Thread.currentThread().getName() + " with state " + state);
-                        continue;
-                    }
-                } finally {
-                    lock.unlock();
-                }
-                return d;
-            } else if (state == dirtyState) return d;
+        Entry entry = decomposers.get(alphabet);
+        if (entry == null) {
+            entry = decomposers.computeIfAbsent(alphabet, Entry::new);
+            if (decomposers.size() > size) evictLeastRecentlyUsed(entry);
         }
+        entry.lastUsed = System.nanoTime();
+        // initialization happens outside of the map, so that concurrent lookups of other alphabets are not blocked.
+        entry.decomposer.init();
+        return entry.decomposer;
     }
 
-    private MassToFormulaDecomposer findDecomposer(ChemicalAlphabet alphabet, int state) {
-        for (int i=0; i < size; ++i) {
-            if (alphabets[i].equals(alphabet)) {
-                useCounter[i].incrementAndGet();
-                return decomposers[i];
+    /*
+    linear scan over the few cached entries. Only called if a new alphabet is added to a full cache. Concurrent
+    evictions may remove one entry too much, which is cheaper than locking every lookup.
+     */
+    private void evictLeastRecentlyUsed(Entry keep) {
+        while (decomposers.size() > size) {
+            Map.Entry<ChemicalAlphabet, Entry> eldest = null;
+            for (Map.Entry<ChemicalAlphabet, Entry> e : decomposers.entrySet()) {
+                if (e.getValue() != keep && (eldest == null || e.getValue().lastUsed < eldest.getValue().lastUsed))
+                    eldest = e;
             }
-        }
-        //System.err.println("Search " + alphabet + " in " + Arrays.toString(alphabets) + " without success at state " + state + " in thread " + Thread.currentThread().getName() );
-        return null;
-    }
-
-    private MassToFormulaDecomposer addNewDecomposer(ChemicalAlphabet alphabet) {
-        ++dirtyState;
-        try {
-        if (size < alphabets.length) {
-            decomposers[size] = new MassToFormulaDecomposer(alphabet);
-            decomposers[size].init();
-            alphabets[size] = alphabet;
-            return decomposers[size++];
-        } else {
-            int mindex = 0;
-            for (int i=1; i < useCounter.length; ++i)
-                if (useCounter[i].get() < useCounter[mindex].get()) mindex = i;
-            decomposers[mindex] =  new MassToFormulaDecomposer(alphabet);
-            decomposers[mindex].init();
-            alphabets[mindex] = alphabet;
-            return decomposers[mindex];
-        } } finally {
-            ++dirtyState;
-            //System.err.println(alphabet.toString() + " IS ADDED BY " + Thread.currentThread().getName() + " with state " + dirtyState);
+            if (eldest == null) return;
+            decomposers.remove(eldest.getKey(), eldest.getValue());
         }
     }
 
@@ -108,4 +77,13 @@ public class DecomposerCache {
         this(10);
     }
 
+    private static final class Entry {
+        private final MassToFormulaDecomposer decomposer;
+        private volatile long lastUsed = System.nanoTime();
+
+        private Entry(ChemicalAlphabet alphabet) {
+            this.decomposer = new MassToFormulaDecomposer(alphabet);
+        }
+    }
+
 }
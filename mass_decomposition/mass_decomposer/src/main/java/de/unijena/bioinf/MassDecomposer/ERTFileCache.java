@@ -0,0 +1,170 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.MassDecomposer;
+
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.lang.ref.SoftReference;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * File based cache for extended residue tables (ERTs). An ERT only depends on the discretized masses of the
+ * alphabet, which are used as key. Tables are written to a temporary file and atomically moved to their final
+ * location, so the cache directory can be shared by several JVMs on the same node. Tables are read via memory mapping.
+ * Each table is read only once per JVM. All decomposers with the same alphabet masses share the loaded table, which
+ * is never modified after creation.
+ * <p>
+ * The global cache is configured with the property {@link #CACHE_DIRECTORY_KEY}. If it is not set, ERTs are not persisted.
+ */
+public class ERTFileCache {
+    public static final String CACHE_DIRECTORY_KEY = "de.unijena.bioinf.MassDecomposer.ertCacheDirectory";
+
+    private static final int MAGIC = 0x45525431; // ERT1
+    private static final int VERSION = 1;
+
+    private static volatile ERTFileCache globalCache;
+
+    @Nullable
+    public static ERTFileCache getGlobalCache() {
+        ERTFileCache cache = globalCache;
+        if (cache == null) {
+            synchronized (ERTFileCache.class) {
+                cache = globalCache;
+                if (cache == null) {
+                    final String dir = PropertyManager.getProperty(CACHE_DIRECTORY_KEY);
+                    cache = new ERTFileCache(dir == null || dir.isBlank() ? null : Path.of(dir));
+                    globalCache = cache;
+                }
+            }
+        }
+        return cache.directory == null ? null : cache;
+    }
+
+    public static void setGlobalCache(@Nullable ERTFileCache cache) {
+        globalCache = cache == null ? new ERTFileCache(null) : cache;
+    }
+
+    @Nullable
+    private final Path directory;
+    // tables that were already loaded or stored by this JVM. Soft references, so they can be dropped under memory pressure.
+    private final ConcurrentHashMap<String, SoftReference<long[][]>> loaded = new ConcurrentHashMap<>();
+
+    public ERTFileCache(@Nullable Path directory) {
+        this.directory = directory;
+    }
+
+    @Nullable
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param integerMasses discretized masses of the alphabet in the order used by the decomposer
+     * @return the cached ERT or null if it is not cached (or cannot be read)
+     */
+    @Nullable
+    public long[][] load(@NotNull long[] integerMasses) {
+        final Path file = fileFor(integerMasses);
+        final SoftReference<long[][]> ref = loaded.get(Arrays.toString(integerMasses));
+        final long[][] shared = ref == null ? null : ref.get();
+        if (shared != null)
+            return shared;
+        if (!Files.isRegularFile(file))
+            return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return null;
+            final int rows = buffer.getInt(), cols = buffer.getInt();
+            if (cols != integerMasses.length)
+                return null;
+            for (long mass : integerMasses)
+                if (buffer.getLong() != mass) return null;
+            if (buffer.remaining() < (long) rows * cols * Long.BYTES)
+                return null;
+            final LongBuffer values = buffer.asLongBuffer();
+            final long[][] ert = new long[rows][cols];
+            for (long[] row : ert)
+                values.get(row);
+            loaded.put(Arrays.toString(integerMasses), new SoftReference<>(ert));
+            return ert;
+        } catch (IOException | RuntimeException e) {
+            LoggerFactory.getLogger(ERTFileCache.class).warn("Could not read cached ERT from '" + file + "'. Recomputing it.", e);
+            return null;
+        }
+    }
+
+    public void store(@NotNull long[] integerMasses, @NotNull long[][] ert) {
+        final Path file = fileFor(integerMasses);
+        loaded.put(Arrays.toString(integerMasses), new SoftReference<>(ert));
+        Path tmp = null;
+        try {
+            Files.createDirectories(directory);
+            tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ert.length);
+                out.writeInt(integerMasses.length);
+                for (long mass : integerMasses)
+                    out.writeLong(mass);
+                final ByteBuffer row = ByteBuffer.allocate(integerMasses.length * Long.BYTES);
+                for (long[] r : ert) {
+                    row.clear();
+                    row.asLongBuffer().put(r);
+                    out.write(row.array());
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LoggerFactory.getLogger(ERTFileCache.class).warn("Could not store ERT in '" + file + "'.", e);
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private Path fileFor(long[] integerMasses) {
+        long hash = 1125899906842597L;
+        for (long mass : integerMasses)
+            hash = 31 * hash + mass;
+        return directory.resolve("ert_" + integerMasses.length + "_" + Long.toHexString(hash) + ".bin");
+    }
+}
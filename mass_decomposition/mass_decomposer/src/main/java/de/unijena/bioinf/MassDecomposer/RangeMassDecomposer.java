@@ -537,6 +537,29 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
 
     @Override
     protected void calcERT() {
+        final ERTFileCache cache = ERTFileCache.getGlobalCache();
+        final long[] integerMasses = cache == null ? null : weights.stream().mapToLong(Weight::getIntegerMass).toArray();
+        if (cache != null) {
+            final long[][] cached = cache.load(integerMasses);
+            if (cached != null && cached.length == weights.get(0).getIntegerMass()) {
+                setBaseERT(cached);
+                return;
+            }
+        }
+        final long[][] ERT = computeBaseERT();
+        if (cache != null)
+            cache.store(integerMasses, ERT);
+        setBaseERT(ERT);
+    }
+
+    private synchronized void setBaseERT(long[][] ERT) {
+        if (this.ERTs.length == 0) {
+            this.ERT = ERT;
+            this.ERTs = new long[][][]{ERT};
+        }
+    }
+
+    private long[][] computeBaseERT() {
         long firstLongVal = weights.get(0).getIntegerMass();
         long[][] ERT = new long[(int) firstLongVal][weights.size()];
         int r, argmin;
@@ -583,11 +606,6 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
                 }
             } // end for p
         } // end for j
-        synchronized (this) {
-            if (this.ERTs.length == 0) {
-                this.ERT = ERT;
-                this.ERTs = new long[][][]{ERT};
-            }
-        }
+        return ERT;
     }
 }
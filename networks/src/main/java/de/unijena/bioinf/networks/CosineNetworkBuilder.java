@@ -0,0 +1,250 @@
+package de.unijena.bioinf.networks;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bionf.spectral_alignment.AbstractSpectralAlignment;
+import de.unijena.bionf.spectral_alignment.CosineQuerySpectrum;
+import de.unijena.bionf.spectral_alignment.CosineQueryUtils;
+import de.unijena.bionf.spectral_alignment.SpectralSimilarity;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds a molecular network from the pairwise cosine similarities of MS/MS spectra without storing a similarity matrix.
+ * Spectra are sorted by precursor m/z and split into tiles of consecutive spectra. Tiles are processed in parallel, and
+ * tiles whose precursor masses differ too much are skipped completely. Within a tile, pairs are discarded by their precursor
+ * difference and, for one to one alignments, the number of shared peaks before they are aligned. Only edges above the
+ * threshold are added to the network.
+ */
+public class CosineNetworkBuilder implements NetworkBuilder {
+    public static final int DEFAULT_TILE_SIZE = 128;
+
+    private final CosineQueryUtils cosineUtils;
+    private final float threshold;
+    private final double maxPrecursorDifference;
+    private final int minSharedPeaks;
+    private final boolean useLosses;
+    private int tileSize = DEFAULT_TILE_SIZE;
+
+    /**
+     * @param cosineUtils            used to compute the similarities. The spectra have to be created with the same instance.
+     * @param threshold              minimum similarity of an edge
+     * @param maxPrecursorDifference maximum precursor m/z difference of an edge. Double.POSITIVE_INFINITY to allow all pairs.
+     * @param minSharedPeaks         minimum number of shared peaks of an edge
+     * @param useLosses              use the mean of the cosine of fragments and of losses, see {@link CosineQueryUtils#cosineProductWithLosses(CosineQuerySpectrum, CosineQuerySpectrum)}
+     */
+    public CosineNetworkBuilder(CosineQueryUtils cosineUtils, float threshold, double maxPrecursorDifference, int minSharedPeaks, boolean useLosses) {
+        this.cosineUtils = cosineUtils;
+        this.threshold = threshold;
+        this.maxPrecursorDifference = maxPrecursorDifference;
+        this.minSharedPeaks = minSharedPeaks;
+        this.useLosses = useLosses;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        if (tileSize <= 0) throw new IllegalArgumentException("tile size must be positive: " + tileSize);
+        this.tileSize = tileSize;
+    }
+
+    @Override
+    public MolecularNetwork addEdgesFromSimilarityMatrix(MolecularNetwork.NetworkBuilder network, float[][] similarityMatrix) {
+        for (int i = 0; i < similarityMatrix.length; ++i) {
+            for (int j = i + 1; j < similarityMatrix.length; ++j) {
+                if (similarityMatrix[i][j] >= threshold)
+                    network.addEdge(i, j, new SpectralSimilarityEdge(similarityMatrix[i][j], 0));
+            }
+        }
+        return network.done(true);
+    }
+
+    /**
+     * @param network nodes of the network. The i-th spectrum belongs to the node with vertex id i.
+     */
+    public MolecularNetwork addEdgesFromSpectra(MolecularNetwork.NetworkBuilder network, List<CosineQuerySpectrum> spectra) throws ExecutionException {
+        return SiriusJobs.getGlobalJobManager().submitJob(makeNetworkJob(network, spectra)).awaitResult();
+    }
+
+    /**
+     * @param network nodes of the network. The i-th spectrum belongs to the node with vertex id i.
+     */
+    public BasicJJob<MolecularNetwork> makeNetworkJob(MolecularNetwork.NetworkBuilder network, List<CosineQuerySpectrum> spectra) {
+        return new BasicMasterJJob<MolecularNetwork>(JJob.JobType.SCHEDULER) {
+            @Override
+            protected MolecularNetwork compute() throws Exception {
+                final Tiles tiles = new Tiles(spectra);
+                final AtomicInteger nextTile = new AtomicInteger();
+                final int workers = Math.max(1, Math.min(SiriusJobs.getCPUThreads(), tiles.size()));
+                final List<BasicJJob<Object>> jobs = new ArrayList<>(workers);
+                for (int w = 0; w < workers; ++w) {
+                    jobs.add(submitSubJob(new BasicJJob<Object>(JobType.CPU) {
+                        @Override
+                        protected Object compute() throws Exception {
+                            final EdgeBuffer edges = new EdgeBuffer();
+                            for (int t = nextTile.getAndIncrement(); t < tiles.size(); t = nextTile.getAndIncrement()) {
+                                tiles.computeEdges(t, edges);
+                                synchronized (network) {
+                                    edges.flushTo(network);
+                                }
+                                checkForInterruption();
+                            }
+                            return "";
+                        }
+                    }));
+                }
+                for (BasicJJob<Object> job : jobs) job.awaitResult();
+                logDebug(tiles.size() + " tiles of " + spectra.size() + " spectra processed.");
+                return network.done(true);
+            }
+        };
+    }
+
+    /**
+     * spectra in precursor order, with their peaks in contiguous primitive arrays
+     */
+    private class Tiles {
+        private final List<CosineQuerySpectrum> spectra;
+        private final int[] order;
+        private final double[] precursors;
+        private final AbstractSpectralAlignment alignment;
+        // the shared peaks can only be bounded for alignments matching each peak at most once
+        private final boolean prefilterSharedPeaks;
+        // peaks in compressed sparse row format: peaks of the i-th spectrum are at offsets[i]..offsets[i+1]-1
+        private final int[] offsets, lossOffsets;
+        private final double[] mzs, lossMzs;
+        // pairs of blocks of the tiles to compute, encoded as (row block << 32 | column block)
+        private final TLongArrayList tiles;
+
+        private Tiles(List<CosineQuerySpectrum> spectra) {
+            this.spectra = spectra;
+            this.alignment = cosineUtils.getSpectralAlignmentMethod();
+            this.prefilterSharedPeaks = minSharedPeaks > 0 && alignment.isOneToOne();
+            final int n = spectra.size();
+            this.order = new int[n];
+            final Integer[] sorted = new Integer[n];
+            for (int i = 0; i < n; ++i) sorted[i] = i;
+            Arrays.sort(sorted, Comparator.comparingDouble(i -> spectra.get(i).getPrecursorMz()));
+            this.precursors = new double[n];
+            this.offsets = new int[n + 1];
+            this.lossOffsets = useLosses ? new int[n + 1] : null;
+            final TDoubleArrayList mzList = new TDoubleArrayList(), lossMzList = new TDoubleArrayList();
+            for (int i = 0; i < n; ++i) {
+                order[i] = sorted[i];
+                final CosineQuerySpectrum spectrum = spectra.get(order[i]);
+                precursors[i] = spectrum.getPrecursorMz();
+                offsets[i] = mzList.size();
+                for (int k = 0; k < spectrum.size(); ++k) mzList.add(spectrum.getMzAt(k));
+                if (useLosses) {
+                    lossOffsets[i] = lossMzList.size();
+                    //skip negative peaks of inversed spectra
+                    for (int k = 0; k < spectrum.getInverseSpectrum().size(); ++k) {
+                        if (spectrum.getInverseSpectrum().getMzAt(k) >= 0.5d)
+                            lossMzList.add(spectrum.getInverseSpectrum().getMzAt(k));
+                    }
+                }
+            }
+            offsets[n] = mzList.size();
+            this.mzs = mzList.toArray();
+            if (useLosses) lossOffsets[n] = lossMzList.size();
+            this.lossMzs = useLosses ? lossMzList.toArray() : null;
+
+            this.tiles = new TLongArrayList();
+            final int blocks = (n + tileSize - 1) / tileSize;
+            for (int a = 0; a < blocks; ++a) {
+                final double lastPrecursorOfA = precursors[Math.min(n, (a + 1) * tileSize) - 1];
+                for (int b = a; b < blocks; ++b) {
+                    if (precursors[b * tileSize] - lastPrecursorOfA > maxPrecursorDifference) break;
+                    tiles.add(((long) a << 32) | b);
+                }
+            }
+        }
+
+        private int size() {
+            return tiles.size();
+        }
+
+        private void computeEdges(int tile, EdgeBuffer edges) {
+            final int a = (int) (tiles.get(tile) >>> 32), b = (int) tiles.get(tile);
+            final int rowEnd = Math.min(precursors.length, (a + 1) * tileSize);
+            final int columnEnd = Math.min(precursors.length, (b + 1) * tileSize);
+            for (int i = a * tileSize; i < rowEnd; ++i) {
+                for (int j = (a == b ? i + 1 : b * tileSize); j < columnEnd; ++j) {
+                    //precursors are sorted, so all following columns differ even more
+                    if (precursors[j] - precursors[i] > maxPrecursorDifference) break;
+                    if (!mayShareEnoughPeaks(i, j)) continue;
+                    final CosineQuerySpectrum left = spectra.get(order[i]), right = spectra.get(order[j]);
+                    final SpectralSimilarity similarity = useLosses ? cosineUtils.cosineProductWithLosses(left, right) : cosineUtils.cosineProduct(left, right);
+                    if (similarity.similarity >= threshold && similarity.shardPeaks >= minSharedPeaks)
+                        edges.add(order[i], order[j], (float) similarity.similarity, similarity.shardPeaks);
+                }
+            }
+        }
+
+        private boolean mayShareEnoughPeaks(int i, int j) {
+            if (!prefilterSharedPeaks) return true;
+            if (countSharedPeaks(mzs, offsets[i], offsets[i + 1], offsets[j], offsets[j + 1]) >= minSharedPeaks)
+                return true;
+            return useLosses && countSharedPeaks(lossMzs, lossOffsets[i], lossOffsets[i + 1], lossOffsets[j], lossOffsets[j + 1]) >= minSharedPeaks;
+        }
+
+        /**
+         * size of a maximum one to one matching of peaks within the maximum allowed difference of the alignment. Stops
+         * counting at minSharedPeaks. This is an upper bound on the shared peaks of a one to one alignment.
+         */
+        private int countSharedPeaks(double[] mz, int i, int leftEnd, int j, int rightEnd) {
+            int count = 0;
+            while (i < leftEnd && j < rightEnd) {
+                final double difference = mz[i] - mz[j];
+                if (Math.abs(difference) <= alignment.getMaxAllowedDifference(Math.min(mz[i], mz[j]))) {
+                    if (++count >= minSharedPeaks) return count;
+                    ++i;
+                    ++j;
+                } else if (difference < 0) {
+                    ++i;
+                } else {
+                    ++j;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * edges of one worker, flushed into the network after each tile
+     */
+    private static class EdgeBuffer {
+        private final TIntArrayList left = new TIntArrayList(), right = new TIntArrayList(), sharedPeaks = new TIntArrayList();
+        private final TFloatArrayList similarities = new TFloatArrayList();
+
+        private void add(int u, int v, float similarity, int shared) {
+            left.add(u);
+            right.add(v);
+            similarities.add(similarity);
+            sharedPeaks.add(shared);
+        }
+
+        private void flushTo(MolecularNetwork.NetworkBuilder network) {
+            for (int k = 0; k < left.size(); ++k) {
+                network.addEdge(left.getQuick(k), right.getQuick(k), new SpectralSimilarityEdge(similarities.getQuick(k), sharedPeaks.getQuick(k)));
+            }
+            left.resetQuick();
+            right.resetQuick();
+            similarities.resetQuick();
+            sharedPeaks.resetQuick();
+        }
+    }
+}
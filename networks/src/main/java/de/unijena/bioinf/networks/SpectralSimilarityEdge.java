@@ -0,0 +1,23 @@
+package de.unijena.bioinf.networks;
+
+/**
+ * edge between two compounds with similar MS/MS spectra
+ */
+public class SpectralSimilarityEdge extends EdgeType {
+
+    protected float similarity;
+    protected int sharedPeaks;
+
+    public SpectralSimilarityEdge(float similarity, int sharedPeaks) {
+        this.similarity = similarity;
+        this.sharedPeaks = sharedPeaks;
+    }
+
+    public float getSimilarity() {
+        return similarity;
+    }
+
+    public int getSharedPeaks() {
+        return sharedPeaks;
+    }
+}
@@ -0,0 +1,105 @@
+package de.unijena.bioinf.networks;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bionf.spectral_alignment.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class CosineNetworkBuilderTest {
+
+    @Test
+    public void testOneToOneAlignmentEdgesEqualAllPairs() throws Exception {
+        assertEdgesEqualAllPairs(new IntensityWeightedSpectralAlignment(new Deviation(10, 0.01)));
+    }
+
+    @Test
+    public void testGaussianAlignmentEdgesEqualAllPairs() throws Exception {
+        assertEdgesEqualAllPairs(new GaussianSpectralAlignment(new Deviation(10, 0.01)));
+    }
+
+    private void assertEdgesEqualAllPairs(AbstractSpectralAlignment alignment) throws Exception {
+        final CosineQueryUtils cosineUtils = new CosineQueryUtils(alignment);
+        final List<CosineQuerySpectrum> spectra = analogFamilies(cosineUtils, new Random(7), 15, 10);
+        final float threshold = 0.3f;
+        final double maxPrecursorDifference = 50d;
+        final int minSharedPeaks = 3;
+        for (boolean useLosses : new boolean[]{false, true}) {
+            final CosineNetworkBuilder builder = new CosineNetworkBuilder(cosineUtils, threshold, maxPrecursorDifference, minSharedPeaks, useLosses);
+            builder.setTileSize(16);
+            final MolecularNetwork network = builder.addEdgesFromSpectra(nodes(spectra), spectra);
+
+            final Set<String> expected = new TreeSet<>();
+            for (int i = 0; i < spectra.size(); ++i) {
+                for (int j = i + 1; j < spectra.size(); ++j) {
+                    if (Math.abs(spectra.get(i).getPrecursorMz() - spectra.get(j).getPrecursorMz()) > maxPrecursorDifference)
+                        continue;
+                    final SpectralSimilarity similarity = useLosses
+                            ? cosineUtils.cosineProductWithLosses(spectra.get(i), spectra.get(j))
+                            : cosineUtils.cosineProduct(spectra.get(i), spectra.get(j));
+                    if (similarity.similarity >= threshold && similarity.shardPeaks >= minSharedPeaks)
+                        expected.add(i + "-" + j);
+                }
+            }
+            final Set<String> actual = new TreeSet<>();
+            for (int i = 0; i < spectra.size(); ++i) {
+                final NetworkNode node = network.getNode(i);
+                for (NetworkEdge edge : node.getEdges()) {
+                    final int j = edge.other(node).getVertexId();
+                    if (i < j) actual.add(i + "-" + j);
+                }
+            }
+            assertFalse("test data yields no edges", expected.isEmpty());
+            assertEquals(expected, actual);
+        }
+    }
+
+    private static MolecularNetwork.NetworkBuilder nodes(List<CosineQuerySpectrum> spectra) {
+        final MolecularNetwork.NetworkBuilder network = new MolecularNetwork.NetworkBuilder();
+        for (int i = 0; i < spectra.size(); ++i)
+            network.addNode(String.valueOf(i), spectra.get(i).getPrecursorMz());
+        return network;
+    }
+
+    /*
+    molecular families of analogs: all members of a family share the fragments of a parent compound, but carry one of
+    a few modifications (e.g. CH2 or O) that shifts the precursor and the fragments containing the modification site.
+    So members with the same modification match by fragments, members with different modifications partially by
+    neutral losses, and families with close precursor masses give pairs without edges.
+     */
+    private static List<CosineQuerySpectrum> analogFamilies(CosineQueryUtils cosineUtils, Random random, int families, int membersPerFamily) {
+        final double[] modifications = new double[]{0d, 2.01565, 14.01565, 15.99491, 42.01057};
+        final List<CosineQuerySpectrum> spectra = new ArrayList<>(families * membersPerFamily);
+        for (int f = 0; f < families; ++f) {
+            final double precursor = 200 + 300 * random.nextDouble();
+            final double[] fragments = new double[4 + random.nextInt(6)];
+            final boolean[] hasModificationSite = new boolean[fragments.length];
+            for (int k = 0; k < fragments.length; ++k) {
+                fragments[k] = 50 + (precursor - 70) * random.nextDouble();
+                hasModificationSite[k] = random.nextBoolean();
+            }
+            for (int m = 0; m < membersPerFamily; ++m) {
+                final double shift = modifications[random.nextInt(modifications.length)];
+                final TreeSet<Double> masses = new TreeSet<>();
+                for (int k = 0; k < fragments.length; ++k) {
+                    if (random.nextDouble() < 0.2) continue; // fragment not detected
+                    masses.add((hasModificationSite[k] ? fragments[k] + shift : fragments[k]) + 0.002 * random.nextGaussian());
+                }
+                masses.add(50 + (precursor - 70) * random.nextDouble()); // noise peak
+                final double[] mz = masses.stream().mapToDouble(Double::doubleValue).toArray();
+                final double[] intensities = new double[mz.length];
+                for (int k = 0; k < mz.length; ++k) intensities[k] = 0.05 + random.nextDouble();
+                spectra.add(cosineUtils.createQueryWithIntensityTransformation(new SimpleSpectrum(mz, intensities), precursor + shift, true));
+            }
+        }
+        return spectra;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman, Fleming Kretschmer and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Binary project level index of all {@link CompoundContainerId}s stored in {@link PSLocations#COMPOUND_INDEX}.
+ * Allows opening a project-space without reading the {@link SiriusLocations#COMPOUND_INFO} of every compound.
+ * <p>
+ * The index is split into {@link #BUCKETS} files by directory name, so a flush only rewrites the buckets containing
+ * changed compounds. Each entry stores the modification time of the compound info it was read from. An entry is
+ * only used if the compound info still has this modification time, so compound infos that have been changed, added
+ * or removed outside of the project-space are read again.
+ */
+final class CompoundContainerIndex {
+    static final int MAGIC = 0x53504349; // SPCI
+    static final int VERSION = 2;
+    static final int BUCKETS = 64;
+
+    private CompoundContainerIndex() {
+    }
+
+    static final class Entry {
+        final CompoundContainerId id;
+        final long infoModified;
+
+        Entry(@NotNull CompoundContainerId id, long infoModified) {
+            this.id = id;
+            this.infoModified = infoModified;
+        }
+    }
+
+    static int bucketOf(@NotNull String directoryName) {
+        return Math.floorMod(directoryName.hashCode(), BUCKETS);
+    }
+
+    static String bucketLocation(int bucket) {
+        return PSLocations.COMPOUND_INDEX + "." + bucket;
+    }
+
+    static void write(@NotNull OutputStream out, @NotNull Collection<Entry> entries) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(entries.size());
+        for (Entry entry : entries) {
+            data.writeUTF(entry.id.getDirectoryName());
+            data.writeLong(entry.infoModified);
+            final Map<String, String> kv = entry.id.asKeyValuePairs();
+            data.writeShort(kv.size());
+            for (Map.Entry<String, String> e : kv.entrySet()) {
+                data.writeUTF(e.getKey());
+                data.writeUTF(e.getValue());
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * @return the entries of one bucket or null if the bucket has an unknown format
+     */
+    @Nullable
+    static List<Entry> read(@NotNull InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC || data.readInt() != VERSION)
+            return null;
+        final int size = data.readInt();
+        final List<Entry> entries = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final String dirName = data.readUTF();
+            final long infoModified = data.readLong();
+            final int numberOfEntries = data.readUnsignedShort();
+            final Map<String, String> kv = new HashMap<>(numberOfEntries * 2);
+            for (int j = 0; j < numberOfEntries; j++)
+                kv.put(data.readUTF(), data.readUTF());
+            entries.add(new Entry(CompoundContainerId.fromKeyValuePairs(dirName, kv), infoModified));
+        }
+        return entries;
+    }
+}
@@ -58,6 +58,11 @@ public class PathProjectSpaceIO implements ProjectIO {
         return fs.exists(resolve(relativePath));
     }
 
+    @Override
+    public long lastModified(String relativePath) throws IOException {
+        return fs.readFile(resolve(relativePath), p -> Files.getLastModifiedTime(p).toMillis());
+    }
+
 
     @Override
     public <T> T inDirectory(String relativePath, IOFunctions.IOCallable<T> ioAction) throws IOException {
@@ -0,0 +1,117 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.ms.annotations.DataAnnotation;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Iterator over the compounds of a project-space that reads the next compounds in parallel using IO jobs of the
+ * global job manager. At most readAhead compounds are loaded ahead of the consumer. The iteration order
+ * is the same as for {@link CompoundContainerIterator}.
+ * <p>
+ * Compounds are read with the per-container read locks of the project-space, so writes to compounds that
+ * are already loaded ahead are not reflected in the returned container.
+ * Call {@link #close()} if the iteration is not completed to cancel the pending read jobs.
+ */
+public class PrefetchingCompoundContainerIterator implements Iterator<CompoundContainer>, AutoCloseable {
+
+    private final SiriusProjectSpace space;
+    private final Iterator<CompoundContainerId> sourceIterator;
+    private final Predicate<CompoundContainer> filter;
+    private final Class<? extends DataAnnotation>[] components;
+    private final int readAhead;
+
+    private final ArrayDeque<JJob<CompoundContainer>> pending;
+    private CompoundContainer next = null;
+
+    @SafeVarargs
+    public PrefetchingCompoundContainerIterator(@NotNull SiriusProjectSpace space, int readAhead, @Nullable Predicate<CompoundContainerId> prefilter, @Nullable Predicate<CompoundContainer> filter, @NotNull Class<? extends DataAnnotation>... components) {
+        if (readAhead < 1)
+            throw new IllegalArgumentException("Read ahead must be at least 1 but was " + readAhead);
+        this.space = space;
+        this.sourceIterator = prefilter != null ? this.space.filteredIterator(prefilter) : this.space.iterator();
+        this.filter = filter != null ? filter : (c) -> true;
+        this.components = components;
+        this.readAhead = readAhead;
+        this.pending = new ArrayDeque<>(readAhead);
+        fill();
+    }
+
+    private void fill() {
+        while (pending.size() < readAhead && sourceIterator.hasNext()) {
+            final CompoundContainerId cid = sourceIterator.next();
+            pending.add(SiriusJobs.getGlobalJobManager().submitJob(new BasicJJob<CompoundContainer>(JJob.JobType.IO) {
+                @Override
+                protected CompoundContainer compute() {
+                    try {
+                        final CompoundContainer c = space.getCompound(cid, components);
+                        if (filter.test(c))
+                            return c;
+                        LoggerFactory.getLogger(PrefetchingCompoundContainerIterator.class).info("Skipping instance " + cid.getDirectoryName() + " because it does not match the Filter criterion.");
+                    } catch (IOException e) {
+                        LoggerFactory.getLogger(PrefetchingCompoundContainerIterator.class).debug("Could not parse Compound with ID '" + cid.getDirectoryName() + "' Skipping it!", e);
+                        LoggerFactory.getLogger(PrefetchingCompoundContainerIterator.class).error("Could not parse Compound with ID '" + cid.getDirectoryName() + "' Skipping it!");
+                    }
+                    return null;
+                }
+            }));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !pending.isEmpty()) {
+            next = pending.poll().getResult();
+            fill();
+        }
+        return next != null;
+    }
+
+    @Override
+    public CompoundContainer next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        try {
+            return next;
+        } finally {
+            next = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        pending.forEach(j -> j.cancel(false));
+        pending.clear();
+        next = null;
+    }
+}
@@ -66,6 +66,15 @@ public interface ProjectIO {
 
     public boolean exists(String relativePath) throws IOException;
 
+    /**
+     * Modification time of the given file. The values are only comparable with each other, not with system time.
+     *
+     * @return modification time or -1 if it cannot be determined by this implementation
+     */
+    public default long lastModified(String relativePath) throws IOException {
+        return -1;
+    }
+
     public <A extends ProjectSpaceProperty> Optional<A> getProjectSpaceProperty(Class<A> klass);
 
     public <T> T inDirectory(String relativePath, IOFunctions.IOCallable<T> ioAction) throws IOException;
@@ -61,7 +61,10 @@ public class ProjectSpaceConfiguration {
     public <ID extends ProjectSpaceContainerId, Container extends ProjectSpaceContainer<ID>, Component>
     void registerComponent(Class<Container> container, Class<Component> componentClass, ComponentSerializer<ID, Container, Component> serializer) {
         componentSerializers.put(componentClass, serializer);
-        containerComponents.computeIfAbsent(container, (n)->new ArrayList<>()).add(componentClass);
+        // registering a component again replaces its serializer
+        final List<Class> components = containerComponents.computeIfAbsent(container, (n)->new ArrayList<>());
+        if (!components.contains(componentClass))
+            components.add(componentClass);
     }
 
     @SuppressWarnings("unchecked")
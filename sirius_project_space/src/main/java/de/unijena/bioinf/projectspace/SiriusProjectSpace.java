@@ -26,7 +26,6 @@ import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
 import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
-import de.unijena.bioinf.ChemistryBase.ms.DetectedAdducts;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
 import de.unijena.bioinf.ChemistryBase.utils.IterableWithSize;
@@ -40,6 +39,7 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.Callable;
@@ -52,11 +52,18 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.IntFunction;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class SiriusProjectSpace implements IterableWithSize<CompoundContainerId>, AutoCloseable {
 
     private final ReadWriteLock idLock = new ReentrantReadWriteLock();
     private final Map<String, CompoundContainerId> ids;
+    private final Object indexLock = new Object();
+    // directories whose compound info changed since the compound index has been written
+    private final Set<String> indexDirtyDirectories = ConcurrentHashMap.newKeySet();
+    // modification time of the compound info of each directory as known to the compound index
+    private final Map<String, Long> indexedInfoModified = new ConcurrentHashMap<>();
     protected final ProjectSpaceConfiguration configuration;
     protected final AtomicInteger compoundCounter;
     private final ConcurrentHashMap<Class<? extends ProjectSpaceProperty>, ProjectSpaceProperty> projectSpaceProperties;
@@ -123,47 +130,41 @@ public class SiriusProjectSpace implements IterableWithSize<CompoundContainerId>
         idLock.readLock().lock();
         try {
             ids.clear();
-            maxIndex = 0;
             // if compression format definition does not exist in ps, use null to let IOProvider decide which
             // CompressionFormat represents the pre CompressionFormat times configuration
             ioProvider.setCompressionFormat(getProjectSpaceProperty(CompressionFormat.class).orElse(null));
 
             final ProjectReader reader = ioProvider.newReader(this::getProjectSpaceProperty);
-            for (String dir : reader.listDirs("*")) {
-                int idx = reader.inDirectory(dir, () -> {
-                    if (reader.exists(SiriusLocations.COMPOUND_INFO)) {
-                        final Map<String, String> keyValues = reader.keyValues(SiriusLocations.COMPOUND_INFO);
-                        final int index = Integer.parseInt(keyValues.getOrDefault("index", "-1"));
-                        final String name = keyValues.getOrDefault("name", "");
-                        final String dirName = Path.of(dir).getFileName().toString();
-                        final Double ionMass = Optional.ofNullable(keyValues.get("ionMass")).map(Double::parseDouble).orElse(null);
-                        final RetentionTime rt = Optional.ofNullable(keyValues.get("rt")).map(RetentionTime::fromStringValue).orElse(null);
-
-                        final PrecursorIonType ionType = Optional.ofNullable(keyValues.get("ionType"))
-                                .flatMap(PrecursorIonType::parsePrecursorIonType).orElse(null);
-
-                        final Double confidenceScore = Optional.ofNullable(keyValues.get("confidenceScore")).map(Double::parseDouble).orElse(null);
-
-                        final String featureId = keyValues.get("featureId");
-
-                        final CompoundContainerId cid = new CompoundContainerId(dirName, name, index, ionMass, ionType, rt, confidenceScore, featureId);
-
-                        cid.setDetectedAdducts(
-                                Optional.ofNullable(keyValues.get("detectedAdducts")).map(DetectedAdducts::fromString).orElse(null));
-
-                        cid.setRankingScoreTypes(
-                                Optional.ofNullable(keyValues.get(CompoundContainerId.RANKING_KEY))
-                                        .flatMap(FormulaResultRankingScore::parseFromString).map(FormulaResultRankingScore::value)
-                                        .orElse(Collections.emptyList()));
-
-                        ids.put(dirName, cid);
-                        return index;
+            final List<String> dirs = reader.listDirs("*");
+
+            final Map<String, CompoundContainerIndex.Entry> indexed = readIndex(reader);
+            indexedInfoModified.clear();
+            int reread = 0;
+            for (String dir : dirs) {
+                final String dirName = Path.of(dir).getFileName().toString();
+                final CompoundContainerIndex.Entry entry = indexed.remove(dirName);
+                final boolean read = reader.inDirectory(dir, () -> {
+                    if (!reader.exists(SiriusLocations.COMPOUND_INFO)) {
+                        if (entry != null) indexDirtyDirectories.add(dirName);
+                        return false;
                     }
-
-                    return -1;
+                    final long modified = reader.lastModified(SiriusLocations.COMPOUND_INFO);
+                    indexedInfoModified.put(dirName, modified);
+                    if (entry != null && modified != -1 && entry.infoModified == modified) {
+                        ids.put(dirName, entry.id);
+                        return false;
+                    }
+                    ids.put(dirName, CompoundContainerId.fromKeyValuePairs(dirName, reader.keyValues(SiriusLocations.COMPOUND_INFO)));
+                    indexDirtyDirectories.add(dirName);
+                    return true;
                 });
-                maxIndex = Math.max(idx, maxIndex);
+                if (read) ++reread;
             }
+            // directories that have been removed
+            indexDirtyDirectories.addAll(indexed.keySet());
+            if (reread > 0)
+                LoggerFactory.getLogger(getClass()).info("Read " + reread + " compound infos that are missing or outdated in the compound index.");
+            maxIndex = Math.max(0, ids.values().stream().mapToInt(CompoundContainerId::getCompoundIndex).max().orElse(0));
         } finally {
             idLock.readLock().unlock();
         }
@@ -173,13 +174,97 @@ public class SiriusProjectSpace implements IterableWithSize<CompoundContainerId>
         fireProjectSpaceChange(ProjectSpaceEvent.OPENED);
     }
 
+    /**
+     * @return the entries of all readable index buckets by directory name. Missing or unreadable buckets are
+     * marked dirty, so their compounds are read from the compound infos and the buckets are rewritten.
+     */
+    private Map<String, CompoundContainerIndex.Entry> readIndex(ProjectReader reader) {
+        final Map<String, CompoundContainerIndex.Entry> indexed = new HashMap<>();
+        for (int bucket = 0; bucket < CompoundContainerIndex.BUCKETS; bucket++) {
+            final String location = CompoundContainerIndex.bucketLocation(bucket);
+            try {
+                if (!reader.exists(location))
+                    continue;
+                final List<CompoundContainerIndex.Entry> entries = reader.binaryFile(location, CompoundContainerIndex::read);
+                if (entries == null) {
+                    LoggerFactory.getLogger(getClass()).info("Compound index bucket " + location + " has an unknown format. Rebuilding it from compound directories.");
+                    continue;
+                }
+                entries.forEach(e -> indexed.put(e.id.getDirectoryName(), e));
+            } catch (IOException | RuntimeException e) {
+                LoggerFactory.getLogger(getClass()).warn("Could not read compound index bucket " + location + ". Rebuilding it from compound directories.", e);
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Marks the compound index entry of the given directory as changed, so that its bucket is rewritten on the next flush.
+     * Until then, the entry is detected as outdated by the modification time of the compound info.
+     */
+    private void markIndexDirty(@NotNull String directoryName) {
+        indexDirtyDirectories.add(directoryName);
+    }
+
+    /**
+     * Rewrites the index buckets containing changed compounds. The index is only written if the project location
+     * is writable. Projects opened from a read-only location fall back to reading the compound infos on every open.
+     */
+    private void writeIndexIfDirty() throws IOException {
+        if (indexDirtyDirectories.isEmpty())
+            return;
+        final Path location = ioProvider.getLocation();
+        if (location != null && !Files.isWritable(location)) {
+            LoggerFactory.getLogger(getClass()).debug("Project-space location '" + location + "' is not writable. Skipping compound index.");
+            return;
+        }
+        idLock.readLock().lock();
+        try {
+            synchronized (indexLock) {
+                // removed before writing, so changes during the flush mark their directory again
+                final List<String> changed = new ArrayList<>(indexDirtyDirectories);
+                indexDirtyDirectories.removeAll(changed);
+                final ProjectReader reader = ioProvider.newReader(this::getProjectSpaceProperty);
+                final BitSet buckets = new BitSet(CompoundContainerIndex.BUCKETS);
+                for (String dirName : changed) {
+                    buckets.set(CompoundContainerIndex.bucketOf(dirName));
+                    final String info = Path.of(dirName).resolve(SiriusLocations.COMPOUND_INFO).toString();
+                    if (ids.containsKey(dirName) && reader.exists(info))
+                        indexedInfoModified.put(dirName, reader.lastModified(info));
+                    else
+                        indexedInfoModified.remove(dirName);
+                }
+                final List<List<CompoundContainerIndex.Entry>> entries = new ArrayList<>(CompoundContainerIndex.BUCKETS);
+                for (int bucket = 0; bucket < CompoundContainerIndex.BUCKETS; bucket++)
+                    entries.add(new ArrayList<>());
+                for (CompoundContainerId cid : ids.values()) {
+                    final int bucket = CompoundContainerIndex.bucketOf(cid.getDirectoryName());
+                    final Long modified = indexedInfoModified.get(cid.getDirectoryName());
+                    if (buckets.get(bucket) && modified != null)
+                        entries.get(bucket).add(new CompoundContainerIndex.Entry(cid, modified));
+                }
+                final ProjectWriter writer = ioProvider.newWriter(this::getProjectSpaceProperty);
+                // single file index of older versions
+                writer.deleteIfExists(PSLocations.COMPOUND_INDEX);
+                for (int bucket = buckets.nextSetBit(0); bucket >= 0; bucket = buckets.nextSetBit(bucket + 1)) {
+                    final List<CompoundContainerIndex.Entry> bucketEntries = entries.get(bucket);
+                    writer.binaryFile(CompoundContainerIndex.bucketLocation(bucket), out -> CompoundContainerIndex.write(out, bucketEntries));
+                }
+            }
+        } finally {
+            idLock.readLock().unlock();
+        }
+    }
+
     public void flush() throws IOException {
+        writeIndexIfDirty();
         ioProvider.flush();
     }
 
     public void close() throws IOException {
         withAllWriteLockedDo(() -> {
             try {
+                writeIndexIfDirty();
                 idLock.writeLock().lock();
                 try {
                     this.ids.clear();
@@ -450,6 +535,7 @@ public class SiriusProjectSpace implements IterableWithSize<CompoundContainerId>
             writer = ioProvider.newWriter(this::getProjectSpaceProperty);
         writer.deleteIfExists(path);
         writer.keyValues(path, cid.asKeyValuePairs());
+        markIndexDirty(cid.getDirectoryName());
         fireProjectSpaceChange(ProjectSpaceEvent.INDEX_UPDATED);
     }
 
@@ -622,6 +708,7 @@ public class SiriusProjectSpace implements IterableWithSize<CompoundContainerId>
 
             if (removed != null) {
                 deleteContainer(CompoundContainer.class, cid);
+                markIndexDirty(cid.getDirectoryName());
                 fireContainerListeners(compoundListeners, new ContainerEvent<>(ContainerEvent.EventType.DELETED, cid, Collections.emptySet()));
                 fireProjectSpaceChange(ProjectSpaceEvent.INDEX_UPDATED);
             }
@@ -658,6 +745,7 @@ public class SiriusProjectSpace implements IterableWithSize<CompoundContainerId>
                         return false; // rename not possible target directory already exists
                     }
                     writer.move(oldId.getDirectoryName(), newDirName);
+                    markIndexDirty(oldId.getDirectoryName());
                     //change id only if move was successful
                     ids.remove(oldId.getDirectoryName());
                     oldId.rename(name, newDirName);
@@ -696,8 +784,12 @@ public class SiriusProjectSpace implements IterableWithSize<CompoundContainerId>
     @SafeVarargs
     final <Id extends ProjectSpaceContainerId, Container extends ProjectSpaceContainer<Id>>
     void updateContainer(Class<Container> klass, Container container, Class<? extends DataAnnotation>... components) throws IOException {
+        final ProjectWriter writer = ioProvider.newWriter(this::getProjectSpaceProperty);
+        // the experiment serializer rewrites the compound.info, so the persistent index is outdated
+        if (klass.equals(CompoundContainer.class) && Arrays.asList(components).contains(Ms2Experiment.class))
+            markIndexDirty(((CompoundContainerId) container.getId()).getDirectoryName());
         // write container
-        configuration.getContainerSerializer(klass).writeToProjectSpace(ioProvider.newWriter(this::getProjectSpaceProperty),
+        configuration.getContainerSerializer(klass).writeToProjectSpace(writer,
                 (w, c, f) -> {
                     // write components
                     for (Class k : components) {
@@ -746,6 +838,23 @@ public class SiriusProjectSpace implements IterableWithSize<CompoundContainerId>
         return new CompoundContainerIterator(this, prefilter, filter != null ? (c) -> filter.test(c.getAnnotationOrThrow(Ms2Experiment.class)) : null, Ms2Experiment.class);
     }
 
+    /**
+     * Stream over all compounds that pass the given filters. Compounds are read in parallel by IO jobs with a bounded
+     * read ahead (see {@link PrefetchingCompoundContainerIterator}). The stream should be closed if it is not
+     * consumed completely.
+     */
+    @SafeVarargs
+    public final Stream<CompoundContainer> compoundStream(@Nullable Predicate<CompoundContainerId> prefilter, @Nullable Predicate<CompoundContainer> filter, @NotNull Class<? extends DataAnnotation>... components) {
+        return compoundStream(2 * SiriusJobs.getCPUThreads(), prefilter, filter, components);
+    }
+
+    @SafeVarargs
+    public final Stream<CompoundContainer> compoundStream(int readAhead, @Nullable Predicate<CompoundContainerId> prefilter, @Nullable Predicate<CompoundContainer> filter, @NotNull Class<? extends DataAnnotation>... components) {
+        final PrefetchingCompoundContainerIterator it = new PrefetchingCompoundContainerIterator(this, readAhead, prefilter, filter, components);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(it::close);
+    }
+
     public int size() {
         return compoundCounter.get();
     }
@@ -83,6 +83,14 @@ public class Zip4JProjectSpaceIO implements ProjectIO {
         return withReadLock(() -> zipLocation.getFileHeader(resolve(relativePath).toString()) != null);
     }
 
+    @Override
+    public long lastModified(String relativePath) throws IOException {
+        return withReadLock(() -> {
+            final FileHeader header = resolveHeader(relativePath);
+            return header == null ? -1 : header.getLastModifiedTime();
+        });
+    }
+
     @Override //no log because it is not persistent
     public <A extends ProjectSpaceProperty> Optional<A> getProjectSpaceProperty(Class<A> klass) {
         return (Optional<A>) propertyGetter.apply((Class<ProjectSpaceProperty>) klass);
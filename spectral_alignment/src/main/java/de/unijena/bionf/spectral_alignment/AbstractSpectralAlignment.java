@@ -43,6 +43,10 @@ public abstract class AbstractSpectralAlignment {
     }
 
 
+    public Deviation getDeviation() {
+        return deviation;
+    }
+
     public abstract SpectralSimilarity score(OrderedSpectrum<Peak> left, OrderedSpectrum<Peak> right);
 
     /**
@@ -242,6 +246,21 @@ public abstract class AbstractSpectralAlignment {
 
     protected abstract double maxAllowedDifference(double mz);
 
+    /**
+     * @return maximum m/z difference of two peaks of mass mz (or higher) to be matched
+     */
+    public double getMaxAllowedDifference(double mz) {
+        return maxAllowedDifference(mz);
+    }
+
+    /**
+     * @return true if each peak matches at most one peak in the other spectrum. Then, the number of shared peaks is
+     * bounded by the size of a one to one matching of peaks within {@link #getMaxAllowedDifference(double)}.
+     */
+    public boolean isOneToOne() {
+        return false;
+    }
+
 
     private static class MatchesMatrix {
         private int leftN, rightN;
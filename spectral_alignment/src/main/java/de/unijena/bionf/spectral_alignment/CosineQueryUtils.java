@@ -38,6 +38,10 @@ public class CosineQueryUtils {
         this.spectralAlignmentMethod = spectralAlignmentMethod;
     }
 
+    public AbstractSpectralAlignment getSpectralAlignmentMethod() {
+        return spectralAlignmentMethod;
+    }
+
     /**
      * create a query for cosine computation
      * @param spectrum
@@ -47,4 +47,9 @@ public class IntensityWeightedSpectralAlignment extends AbstractSpectralAlignmen
     protected double maxAllowedDifference(double mz) {
         return deviation.absoluteFor(mz);
     }
+
+    @Override
+    public boolean isOneToOne() {
+        return true;
+    }
 }
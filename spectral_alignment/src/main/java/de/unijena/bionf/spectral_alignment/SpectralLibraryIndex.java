@@ -0,0 +1,536 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bionf.spectral_alignment;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.SimplePeak;
+import de.unijena.bioinf.ChemistryBase.ms.utils.OrderedSpectrum;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import gnu.trove.list.array.TIntArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index of reference spectra for searching many queries against a large spectral library.
+ * <p>
+ * References are stored in primitive arrays, sorted by precursor m/z, such that all references within a precursor window
+ * are found by binary search. Additionally, the most intense peaks of each reference are stored in an inverted index
+ * from m/z bins to references. A reference is only aligned to a query if both share a minimum number of peaks in this
+ * index. Scores are the same as computed by {@link CosineQueryUtils#cosineProduct(CosineQuerySpectrum, CosineQuerySpectrum)}
+ * with the spectral alignment the index was built with.
+ * <p>
+ * As only the most intense peaks of each reference are indexed (10 by default), searching with a minimum number of shared
+ * peaks is approximate: a reference whose matching peaks are not among its indexed peaks is never aligned, even if its
+ * score would place it among the top k. Search with minSharedPeaks = 0 for exact results within the precursor window.
+ * <p>
+ * The index can be written to disk and memory mapped. File layout (little endian):
+ * <pre>
+ * int magic, int format version, int number of references n, int number of peaks p, int first bin, int number of bins b,
+ * int number of postings q, int unused, double bin width
+ * double[n] precursor m/z
+ * double[n] self similarity
+ * int[n]    index of the reference in the list the index was built from
+ * int[n+1]  peak offsets
+ * double[p] peak m/z
+ * double[p] peak intensities
+ * int[b+1]  posting offsets
+ * int[q]    postings: references (by position in precursor order) with an indexed peak in the bin
+ * </pre>
+ * Each section must be smaller than 2 GB.
+ */
+public class SpectralLibraryIndex {
+    public static final int MAGIC = 0x53534c31; // SSL1
+    public static final int FORMAT_VERSION = 1;
+    public static final int DEFAULT_INDEXED_PEAKS = 10;
+    public static final double DEFAULT_BIN_WIDTH = 0.01;
+
+    private static final int HEADER_BYTES = 8 * Integer.BYTES + Double.BYTES;
+
+    private final AbstractSpectralAlignment spectralAlignment;
+    private final int size;
+    private final DoubleBuffer precursorMz, selfSimilarity, peakMz, peakIntensity;
+    private final IntBuffer referenceIndex, peakOffsets, postingOffsets, postings;
+    private final int firstBin, numberOfBins;
+    private final double binWidth;
+
+    private SpectralLibraryIndex(AbstractSpectralAlignment spectralAlignment, double binWidth, int firstBin, int numberOfBins, DoubleBuffer precursorMz, DoubleBuffer selfSimilarity, IntBuffer referenceIndex, IntBuffer peakOffsets, DoubleBuffer peakMz, DoubleBuffer peakIntensity, IntBuffer postingOffsets, IntBuffer postings) {
+        this.spectralAlignment = spectralAlignment;
+        this.size = precursorMz.limit();
+        this.binWidth = binWidth;
+        this.firstBin = firstBin;
+        this.numberOfBins = numberOfBins;
+        this.precursorMz = precursorMz;
+        this.selfSimilarity = selfSimilarity;
+        this.referenceIndex = referenceIndex;
+        this.peakOffsets = peakOffsets;
+        this.peakMz = peakMz;
+        this.peakIntensity = peakIntensity;
+        this.postingOffsets = postingOffsets;
+        this.postings = postings;
+    }
+
+    public static SpectralLibraryIndex build(@NotNull List<CosineQuerySpectrum> references, @NotNull AbstractSpectralAlignment spectralAlignment) {
+        return build(references, spectralAlignment, DEFAULT_BIN_WIDTH, DEFAULT_INDEXED_PEAKS);
+    }
+
+    /**
+     * @param references    reference spectra, created with the same {@link CosineQueryUtils} as the queries
+     * @param binWidth      width of the m/z bins of the inverted index
+     * @param indexedPeaks  number of most intense peaks per reference which are added to the inverted index
+     */
+    public static SpectralLibraryIndex build(@NotNull List<CosineQuerySpectrum> references, @NotNull AbstractSpectralAlignment spectralAlignment, double binWidth, int indexedPeaks) {
+        if (binWidth <= 0) throw new IllegalArgumentException("bin width must be positive: " + binWidth);
+        final int n = references.size();
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(i -> references.get(i).getPrecursorMz()));
+
+        final double[] precursors = new double[n], selfSimilarities = new double[n];
+        final int[] indices = new int[n], offsets = new int[n + 1];
+        int numberOfPeaks = 0;
+        for (int k = 0; k < n; k++) {
+            final CosineQuerySpectrum reference = references.get(order[k]);
+            precursors[k] = reference.getPrecursorMz();
+            selfSimilarities[k] = reference.getSelfSimilarity();
+            indices[k] = order[k];
+            offsets[k] = numberOfPeaks;
+            numberOfPeaks += reference.size();
+        }
+        offsets[n] = numberOfPeaks;
+
+        final double[] mzs = new double[numberOfPeaks], intensities = new double[numberOfPeaks];
+        final int[][] bins = new int[n][];
+        int minBin = Integer.MAX_VALUE, maxBin = Integer.MIN_VALUE;
+        for (int k = 0; k < n; k++) {
+            final CosineQuerySpectrum reference = references.get(order[k]);
+            for (int i = 0; i < reference.size(); i++) {
+                mzs[offsets[k] + i] = reference.getMzAt(i);
+                intensities[offsets[k] + i] = reference.getIntensityAt(i);
+            }
+            bins[k] = indexedBins(reference, binWidth, indexedPeaks);
+            if (bins[k].length > 0) {
+                minBin = Math.min(minBin, bins[k][0]);
+                maxBin = Math.max(maxBin, bins[k][bins[k].length - 1]);
+            }
+        }
+        if (minBin > maxBin) {
+            minBin = 0;
+            maxBin = -1;
+        }
+
+        //inverted index in compressed sparse row format. References are visited in precursor order, so each posting list is sorted.
+        final int numberOfBins = maxBin - minBin + 1;
+        final int[] binOffsets = new int[numberOfBins + 1];
+        for (int[] b : bins) {
+            for (int bin : b) ++binOffsets[bin - minBin + 1];
+        }
+        for (int b = 0; b < numberOfBins; b++) binOffsets[b + 1] += binOffsets[b];
+        final int[] postingList = new int[binOffsets[numberOfBins]];
+        final int[] fill = Arrays.copyOf(binOffsets, numberOfBins);
+        for (int k = 0; k < n; k++) {
+            for (int bin : bins[k]) postingList[fill[bin - minBin]++] = k;
+            bins[k] = null;
+        }
+
+        return new SpectralLibraryIndex(spectralAlignment, binWidth, minBin, numberOfBins, DoubleBuffer.wrap(precursors), DoubleBuffer.wrap(selfSimilarities),
+                IntBuffer.wrap(indices), IntBuffer.wrap(offsets), DoubleBuffer.wrap(mzs), DoubleBuffer.wrap(intensities), IntBuffer.wrap(binOffsets), IntBuffer.wrap(postingList));
+    }
+
+    /**
+     * @return sorted distinct bins of the most intense peaks
+     */
+    private static int[] indexedBins(CosineQuerySpectrum spectrum, double binWidth, int indexedPeaks) {
+        final Integer[] byIntensity = new Integer[spectrum.size()];
+        for (int i = 0; i < byIntensity.length; i++) byIntensity[i] = i;
+        Arrays.sort(byIntensity, (a, b) -> Double.compare(spectrum.getIntensityAt(b), spectrum.getIntensityAt(a)));
+        final TIntArrayList bins = new TIntArrayList(Math.min(indexedPeaks, byIntensity.length));
+        for (int i = 0; i < byIntensity.length && i < indexedPeaks; i++) {
+            bins.add(bin(spectrum.getMzAt(byIntensity[i]), binWidth));
+        }
+        bins.sort();
+        final TIntArrayList distinct = new TIntArrayList(bins.size());
+        for (int i = 0; i < bins.size(); i++) {
+            if (i == 0 || bins.getQuick(i) != bins.getQuick(i - 1)) distinct.add(bins.getQuick(i));
+        }
+        return distinct.toArray();
+    }
+
+    private static int bin(double mz, double binWidth) {
+        return (int) Math.floor(mz / binWidth);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param position position of the reference in precursor order
+     * @return index of the reference in the list the index was built from
+     */
+    public int getReferenceIndex(int position) {
+        return referenceIndex.get(position);
+    }
+
+    public double getPrecursorMz(int position) {
+        return precursorMz.get(position);
+    }
+
+    /**
+     * @return peaks of the reference at the given position in precursor order. The spectrum is a view on the index.
+     */
+    public OrderedSpectrum<Peak> getSpectrum(int position) {
+        return new ReferenceSpectrum(peakOffsets.get(position), peakOffsets.get(position + 1));
+    }
+
+    /**
+     * Searches the query against all references. Not thread-safe because of the shared buffer, use {@link #makeSearchJob(List, Deviation, int, int)}
+     * to search many queries in parallel.
+     * @param precursorDeviation only references whose precursor m/z is within this deviation are scored. null to score all references (analog search)
+     * @param minSharedPeaks     minimum number of query peaks matching an indexed peak of the reference. 0 to align all references in the precursor window.
+     *                           Values above 0 make the result approximate, see {@link SpectralLibraryIndex}
+     * @param k                  number of best hits to report
+     * @return at most k hits sorted by decreasing similarity
+     */
+    public List<Hit> search(@NotNull CosineQuerySpectrum query, @Nullable Deviation precursorDeviation, int minSharedPeaks, int k) {
+        return search(query, precursorDeviation, minSharedPeaks, k, new SearchBuffer(size));
+    }
+
+    private List<Hit> search(CosineQuerySpectrum query, Deviation precursorDeviation, int minSharedPeaks, int k, SearchBuffer buffer) {
+        if (k <= 0) return Collections.emptyList();
+        int from = 0, to = size;
+        if (precursorDeviation != null) {
+            final double window = precursorDeviation.absoluteFor(query.getPrecursorMz());
+            from = lowerBound(query.getPrecursorMz() - window);
+            to = upperBound(query.getPrecursorMz() + window);
+        }
+        final PriorityQueue<Hit> best = new PriorityQueue<>(k + 1);
+        if (minSharedPeaks <= 0) {
+            for (int position = from; position < to; ++position) {
+                offer(best, k, query, position);
+            }
+        } else {
+            collectSharedPeaks(query, from, to, buffer);
+            final int[] shared = buffer.sharedPeaks;
+            final TIntArrayList touched = buffer.touched;
+            for (int i = 0; i < touched.size(); ++i) {
+                final int position = touched.getQuick(i);
+                if (shared[position] >= minSharedPeaks) offer(best, k, query, position);
+                shared[position] = 0;
+                buffer.lastQueryPeak[position] = 0;
+            }
+        }
+        final List<Hit> hits = new ArrayList<>(best);
+        hits.sort(Collections.reverseOrder());
+        return hits;
+    }
+
+    /**
+     * counts for each reference in [from, to) the number of query peaks matching one of its indexed bins. A query peak
+     * whose tolerance window covers several indexed bins of the same reference is counted once.
+     */
+    private void collectSharedPeaks(CosineQuerySpectrum query, int from, int to, SearchBuffer buffer) {
+        final int[] shared = buffer.sharedPeaks, lastQueryPeak = buffer.lastQueryPeak;
+        final TIntArrayList touched = buffer.touched;
+        touched.resetQuick();
+        for (int i = 0; i < query.size(); ++i) {
+            final double mz = query.getMzAt(i);
+            final double allowedDifference = spectralAlignment.maxAllowedDifference(mz);
+            final int lastBin = Math.min(bin(mz + allowedDifference, binWidth) - firstBin, numberOfBins - 1);
+            for (int b = Math.max(bin(mz - allowedDifference, binWidth) - firstBin, 0); b <= lastBin; ++b) {
+                final int end = postingOffsets.get(b + 1);
+                for (int p = lowerBound(postings, postingOffsets.get(b), end, from); p < end; ++p) {
+                    final int position = postings.get(p);
+                    if (position >= to) break;
+                    if (lastQueryPeak[position] == i + 1) continue;
+                    lastQueryPeak[position] = i + 1;
+                    if (shared[position]++ == 0) touched.add(position);
+                }
+            }
+        }
+    }
+
+    private void offer(PriorityQueue<Hit> best, int k, CosineQuerySpectrum query, int position) {
+        final SpectralSimilarity similarity = spectralAlignment.score(query.spectrum, getSpectrum(position));
+        final double cosine = similarity.similarity / Math.sqrt(query.getSelfSimilarity() * selfSimilarity.get(position));
+        if (best.size() < k) {
+            best.add(new Hit(referenceIndex.get(position), precursorMz.get(position), new SpectralSimilarity(cosine, similarity.shardPeaks)));
+        } else if (cosine > best.peek().similarity.similarity) {
+            best.poll();
+            best.add(new Hit(referenceIndex.get(position), precursorMz.get(position), new SpectralSimilarity(cosine, similarity.shardPeaks)));
+        }
+    }
+
+    /**
+     * Searches all queries in parallel, see {@link #search(CosineQuerySpectrum, Deviation, int, int)}.
+     * @return for each query its hits, in the order of the queries
+     */
+    public BasicJJob<List<List<Hit>>> makeSearchJob(@NotNull List<CosineQuerySpectrum> queries, @Nullable Deviation precursorDeviation, int minSharedPeaks, int k) {
+        return new BasicMasterJJob<List<List<Hit>>>(JJob.JobType.SCHEDULER) {
+            @Override
+            protected List<List<Hit>> compute() throws Exception {
+                final List<Hit>[] results = new List[queries.size()];
+                final AtomicInteger next = new AtomicInteger();
+                final int workers = Math.max(1, Math.min(SiriusJobs.getCPUThreads(), queries.size()));
+                final List<BasicJJob<Object>> jobs = new ArrayList<>(workers);
+                for (int w = 0; w < workers; ++w) {
+                    jobs.add(submitSubJob(new BasicJJob<Object>(JobType.CPU) {
+                        @Override
+                        protected Object compute() throws Exception {
+                            //each worker reuses its own buffer for all of its queries
+                            final SearchBuffer buffer = new SearchBuffer(size);
+                            for (int q = next.getAndIncrement(); q < queries.size(); q = next.getAndIncrement()) {
+                                results[q] = search(queries.get(q), precursorDeviation, minSharedPeaks, k, buffer);
+                                checkForInterruption();
+                            }
+                            return "";
+                        }
+                    }));
+                }
+                for (BasicJJob<Object> job : jobs) job.awaitResult();
+                return Arrays.asList(results);
+            }
+        };
+    }
+
+    private int lowerBound(double mz) {
+        int low = 0, high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (precursorMz.get(mid) < mz) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private int upperBound(double mz) {
+        int low = 0, high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (precursorMz.get(mid) <= mz) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int lowerBound(IntBuffer values, int from, int to, int value) {
+        int low = from, high = to;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (values.get(mid) < value) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Writes the index to the given file. It can be loaded with {@link #map(Path, AbstractSpectralAlignment)}.
+     */
+    public void write(@NotNull Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(size).putInt(peakMz.limit()).putInt(firstBin).putInt(numberOfBins)
+                    .putInt(postings.limit()).putInt(0).putDouble(binWidth);
+            header.flip();
+            writeFully(channel, header);
+            final ByteBuffer chunk = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            write(channel, chunk, precursorMz);
+            write(channel, chunk, selfSimilarity);
+            write(channel, chunk, referenceIndex);
+            write(channel, chunk, peakOffsets);
+            write(channel, chunk, peakMz);
+            write(channel, chunk, peakIntensity);
+            write(channel, chunk, postingOffsets);
+            write(channel, chunk, postings);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer chunk, DoubleBuffer values) throws IOException {
+        for (int i = 0; i < values.limit(); ) {
+            chunk.clear();
+            for (; i < values.limit() && chunk.remaining() >= Double.BYTES; ++i) chunk.putDouble(values.get(i));
+            chunk.flip();
+            writeFully(channel, chunk);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer chunk, IntBuffer values) throws IOException {
+        for (int i = 0; i < values.limit(); ) {
+            chunk.clear();
+            for (; i < values.limit() && chunk.remaining() >= Integer.BYTES; ++i) chunk.putInt(values.get(i));
+            chunk.flip();
+            writeFully(channel, chunk);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Memory maps an index written by {@link #write(Path)}. The data is not copied into the heap.
+     * @param spectralAlignment has to be the same alignment method the index was built with
+     */
+    public static SpectralLibraryIndex map(@NotNull Path file, @NotNull AbstractSpectralAlignment spectralAlignment) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long fileSize = channel.size();
+            if (fileSize < HEADER_BYTES) throw new IOException("File is not a spectral library index.");
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) throw new IOException("File is not a spectral library index.");
+            if (header.getInt(4) != FORMAT_VERSION)
+                throw new IOException("Unsupported spectral library index version: " + header.getInt(4));
+            final int n = header.getInt(8), numberOfPeaks = header.getInt(12), firstBin = header.getInt(16),
+                    numberOfBins = header.getInt(20), numberOfPostings = header.getInt(24);
+            final double binWidth = header.getDouble(32);
+
+            final long[] position = new long[]{HEADER_BYTES};
+            final DoubleBuffer precursors = mapDoubles(channel, position, n, fileSize);
+            final DoubleBuffer selfSimilarities = mapDoubles(channel, position, n, fileSize);
+            final IntBuffer indices = mapInts(channel, position, n, fileSize);
+            final IntBuffer offsets = mapInts(channel, position, n + 1, fileSize);
+            final DoubleBuffer mzs = mapDoubles(channel, position, numberOfPeaks, fileSize);
+            final DoubleBuffer intensities = mapDoubles(channel, position, numberOfPeaks, fileSize);
+            final IntBuffer binOffsets = mapInts(channel, position, numberOfBins + 1, fileSize);
+            final IntBuffer postingList = mapInts(channel, position, numberOfPostings, fileSize);
+            return new SpectralLibraryIndex(spectralAlignment, binWidth, firstBin, numberOfBins, precursors, selfSimilarities, indices, offsets, mzs, intensities, binOffsets, postingList);
+        }
+    }
+
+    private static DoubleBuffer mapDoubles(FileChannel channel, long[] position, int length, long fileSize) throws IOException {
+        return map(channel, position, (long) length * Double.BYTES, fileSize).asDoubleBuffer();
+    }
+
+    private static IntBuffer mapInts(FileChannel channel, long[] position, int length, long fileSize) throws IOException {
+        return map(channel, position, (long) length * Integer.BYTES, fileSize).asIntBuffer();
+    }
+
+    private static ByteBuffer map(FileChannel channel, long[] position, long bytes, long fileSize) throws IOException {
+        if (position[0] + bytes > fileSize) throw new IOException("Spectral library index is truncated.");
+        final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position[0], bytes).order(ByteOrder.LITTLE_ENDIAN);
+        position[0] += bytes;
+        return buffer;
+    }
+
+    public static class Hit implements Comparable<Hit> {
+        /**
+         * index of the reference in the list the library index was built from
+         */
+        public final int referenceIndex;
+        public final double precursorMz;
+        public final SpectralSimilarity similarity;
+
+        public Hit(int referenceIndex, double precursorMz, SpectralSimilarity similarity) {
+            this.referenceIndex = referenceIndex;
+            this.precursorMz = precursorMz;
+            this.similarity = similarity;
+        }
+
+        @Override
+        public int compareTo(@NotNull Hit o) {
+            return Double.compare(similarity.similarity, o.similarity.similarity);
+        }
+
+        @Override
+        public String toString() {
+            return referenceIndex + ": " + similarity;
+        }
+    }
+
+    /**
+     * per thread buffer to count shared peaks without allocating memory for each query
+     */
+    private static class SearchBuffer {
+        private final int[] sharedPeaks;
+        //1 + index of the query peak which was last counted for a reference, 0 if none
+        private final int[] lastQueryPeak;
+        private final TIntArrayList touched = new TIntArrayList();
+
+        private SearchBuffer(int size) {
+            this.sharedPeaks = new int[size];
+            this.lastQueryPeak = new int[size];
+        }
+    }
+
+    /**
+     * view on the peaks of a reference
+     */
+    private class ReferenceSpectrum implements OrderedSpectrum<Peak> {
+        private final int offset, size;
+
+        private ReferenceSpectrum(int from, int to) {
+            this.offset = from;
+            this.size = to - from;
+        }
+
+        @Override
+        public double getMzAt(int index) {
+            return peakMz.get(offset + index);
+        }
+
+        @Override
+        public double getIntensityAt(int index) {
+            return peakIntensity.get(offset + index);
+        }
+
+        @Override
+        public Peak getPeakAt(int index) {
+            return new SimplePeak(getMzAt(index), getIntensityAt(index));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Peak> iterator() {
+            return new Iterator<Peak>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public Peak next() {
+                    if (index >= size) throw new NoSuchElementException();
+                    return getPeakAt(index++);
+                }
+            };
+        }
+    }
+}
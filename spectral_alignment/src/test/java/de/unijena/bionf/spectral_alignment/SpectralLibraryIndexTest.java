@@ -0,0 +1,117 @@
+package de.unijena.bionf.spectral_alignment;
+
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class SpectralLibraryIndexTest {
+
+    private final CosineQueryUtils cosineUtils = new CosineQueryUtils(new IntensityWeightedSpectralAlignment(new Deviation(10, 0.01)));
+
+    @Test
+    public void testExactSearchEqualsBruteForce() {
+        final Random random = new Random(11);
+        final List<CosineQuerySpectrum> references = randomSpectra(random, 300);
+        final List<CosineQuerySpectrum> queries = randomSpectra(random, 30);
+        final SpectralLibraryIndex index = SpectralLibraryIndex.build(references, cosineUtils.getSpectralAlignmentMethod());
+        for (Deviation precursorDeviation : new Deviation[]{null, new Deviation(10, 20)}) {
+            for (CosineQuerySpectrum query : queries) {
+                assertHitsEqual(bruteForce(references, query, precursorDeviation, 5, false), index.search(query, precursorDeviation, 0, 5));
+            }
+        }
+    }
+
+    @Test
+    public void testSharedPeakFilterWithAllPeaksIndexedEqualsBruteForce() {
+        final Random random = new Random(13);
+        final List<CosineQuerySpectrum> references = randomSpectra(random, 300);
+        final List<CosineQuerySpectrum> queries = randomSpectra(random, 30);
+        final SpectralLibraryIndex index = SpectralLibraryIndex.build(references, cosineUtils.getSpectralAlignmentMethod(), SpectralLibraryIndex.DEFAULT_BIN_WIDTH, Integer.MAX_VALUE);
+        //every reference with a positive score shares at least one peak with the query, so it is never filtered out
+        for (CosineQuerySpectrum query : queries) {
+            assertHitsEqual(bruteForce(references, query, null, 5, true), positive(index.search(query, null, 1, 5)));
+        }
+    }
+
+    @Test
+    public void testApproximateSearchReportsExactScores() {
+        final Random random = new Random(17);
+        final List<CosineQuerySpectrum> references = randomSpectra(random, 300);
+        final List<CosineQuerySpectrum> queries = randomSpectra(random, 30);
+        final SpectralLibraryIndex index = SpectralLibraryIndex.build(references, cosineUtils.getSpectralAlignmentMethod());
+        for (CosineQuerySpectrum query : queries) {
+            final List<SpectralLibraryIndex.Hit> hits = index.search(query, null, 2, 5);
+            for (SpectralLibraryIndex.Hit hit : hits) {
+                assertEquals(cosineUtils.cosineProduct(query, references.get(hit.referenceIndex)).similarity, hit.similarity.similarity, 1e-9);
+            }
+            //filtered hits can never be better than the exact top k
+            final List<SpectralLibraryIndex.Hit> exact = bruteForce(references, query, null, 5, false);
+            for (int i = 0; i < hits.size(); i++)
+                assertTrue(hits.get(i).similarity.similarity <= exact.get(i).similarity.similarity + 1e-9);
+        }
+    }
+
+    @Test
+    public void testQueryPeakIsCountedOnce() {
+        //both reference peaks are in different bins within the tolerance window of the single query peak
+        final CosineQuerySpectrum reference = cosineUtils.createQueryWithIntensityTransformation(new SimpleSpectrum(new double[]{100.000, 100.015}, new double[]{1, 1}), 300, true);
+        final CosineQuerySpectrum query = cosineUtils.createQueryWithIntensityTransformation(new SimpleSpectrum(new double[]{100.008}, new double[]{1}), 300, true);
+        final SpectralLibraryIndex index = SpectralLibraryIndex.build(List.of(reference), cosineUtils.getSpectralAlignmentMethod());
+        assertEquals(1, index.search(query, null, 1, 5).size());
+        assertTrue(index.search(query, null, 2, 5).isEmpty());
+    }
+
+    private List<SpectralLibraryIndex.Hit> bruteForce(List<CosineQuerySpectrum> references, CosineQuerySpectrum query, Deviation precursorDeviation, int k, boolean onlyPositive) {
+        final List<SpectralLibraryIndex.Hit> hits = new ArrayList<>();
+        for (int r = 0; r < references.size(); r++) {
+            final CosineQuerySpectrum reference = references.get(r);
+            if (precursorDeviation != null && Math.abs(reference.getPrecursorMz() - query.getPrecursorMz()) > precursorDeviation.absoluteFor(query.getPrecursorMz()))
+                continue;
+            final SpectralSimilarity similarity = cosineUtils.cosineProduct(query, reference);
+            if (!onlyPositive || similarity.similarity > 0)
+                hits.add(new SpectralLibraryIndex.Hit(r, reference.getPrecursorMz(), similarity));
+        }
+        hits.sort((a, b) -> Double.compare(b.similarity.similarity, a.similarity.similarity));
+        return hits.subList(0, Math.min(k, hits.size()));
+    }
+
+    private static List<SpectralLibraryIndex.Hit> positive(List<SpectralLibraryIndex.Hit> hits) {
+        final List<SpectralLibraryIndex.Hit> positive = new ArrayList<>();
+        for (SpectralLibraryIndex.Hit hit : hits)
+            if (hit.similarity.similarity > 0) positive.add(hit);
+        return positive;
+    }
+
+    //compares scores only, as references with equal scores may be reported in any order
+    private static void assertHitsEqual(List<SpectralLibraryIndex.Hit> expected, List<SpectralLibraryIndex.Hit> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).similarity.similarity, actual.get(i).similarity.similarity, 1e-9);
+    }
+
+    //spectra draw their peaks from a small set of fragment masses, so that many pairs share peaks
+    private List<CosineQuerySpectrum> randomSpectra(Random random, int n) {
+        final double[] fragments = new double[40];
+        final Random fragmentRandom = new Random(3);
+        for (int k = 0; k < fragments.length; ++k) fragments[k] = 50 + 150 * fragmentRandom.nextDouble();
+        final List<CosineQuerySpectrum> spectra = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final TreeSet<Double> masses = new TreeSet<>();
+            final int size = 3 + random.nextInt(15);
+            while (masses.size() < size)
+                masses.add(fragments[random.nextInt(fragments.length)] + 0.004 * random.nextGaussian());
+            final double[] mz = masses.stream().mapToDouble(Double::doubleValue).toArray();
+            final double[] intensities = new double[mz.length];
+            for (int k = 0; k < mz.length; ++k) intensities[k] = 0.05 + random.nextDouble();
+            spectra.add(cosineUtils.createQueryWithIntensityTransformation(new SimpleSpectrum(mz, intensities), 250 + 100 * random.nextDouble(), true));
+        }
+        return spectra;
+    }
+}
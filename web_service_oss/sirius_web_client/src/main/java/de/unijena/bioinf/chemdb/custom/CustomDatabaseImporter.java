@@ -30,6 +30,7 @@ import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.chemdb.*;
 import de.unijena.bioinf.fingerid.fingerprints.FixedFingerprinter;
 import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
 import de.unijena.bioinf.jjobs.JJob;
 import de.unijena.bioinf.storage.blob.file.FileBlobStorage;
 import de.unijena.bioinf.webapi.WebAPI;
@@ -42,6 +43,9 @@ import org.openscience.cdk.interfaces.IChemModel;
 import org.openscience.cdk.interfaces.IChemSequence;
 import org.openscience.cdk.io.ISimpleChemObjectReader;
 import org.openscience.cdk.io.ReaderFactory;
+import org.openscience.cdk.io.formats.MDLV2000Format;
+import org.openscience.cdk.io.formats.SDFFormat;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmilesGenerator;
 import org.openscience.cdk.smiles.SmilesParser;
@@ -54,7 +58,10 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -72,6 +79,30 @@ public class CustomDatabaseImporter {
     private final List<Molecule> moleculeBuffer;
     private static final int molBufferSize = 1000;
 
+    // full molecule buffers are processed by MoleculeBatchJJobs while parsing continues. Parsing blocks if
+    // too many batches are pending, so memory usage stays bounded if parsing is faster than fingerprinting.
+    private static final int maxPendingBatches = 4;
+    private final Semaphore pendingBatchSlots = new Semaphore(maxPendingBatches);
+    private final ConcurrentLinkedQueue<MoleculeBatchJJob> pendingBatches = new ConcurrentLinkedQueue<>();
+
+    // full fingerprint buffers are handed over to a single writer job, so the fingerprint workers do not wait for each
+    // other on the database lock. Workers block if too many buffers are waiting for the writer.
+    private static final int maxPendingWrites = 4;
+    private final Semaphore pendingWriteSlots = new Semaphore(maxPendingWrites);
+    private final ConcurrentLinkedQueue<List<FingerprintCandidate>> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writerActive = new AtomicBoolean(false);
+    private final ConcurrentLinkedQueue<WriterJJob> writerJobs = new ConcurrentLinkedQueue<>();
+    // first write error, reported when the buffer is flushed
+    private final AtomicReference<IOException> writeError = new AtomicReference<>();
+
+    // throughput statistics
+    private final long importStart = System.currentTimeMillis();
+    private final AtomicLong moleculesProcessed = new AtomicLong(0);
+    private final AtomicLong compoundsDownloaded = new AtomicLong(0);
+    private final AtomicLong fingerprintsComputed = new AtomicLong(0);
+
+    private FileBlobStorage webCacheStorage = null;
+
     final protected ConcurrentLinkedQueue<FingerprintCalculator> freeFingerprinter = new ConcurrentLinkedQueue<>();
     protected SmilesGenerator smilesGen;
     protected SmilesParser smilesParser;
@@ -156,7 +187,15 @@ public class CustomDatabaseImporter {
         try (InputStream stream = new FileInputStream(file)) {
             reader = factory.createReader(stream);
         }
-        if (reader != null) {
+        if (reader != null && (reader.getFormat() instanceof SDFFormat || reader.getFormat() instanceof MDLV2000Format)) {
+            // stream sd files instead of reading the whole file into memory
+            try (IteratingSDFReader sdf = new IteratingSDFReader(new FileInputStream(file), SilentChemObjectBuilder.getInstance())) {
+                while (sdf.hasNext()) {
+                    checkCancellation();
+                    addMolecule(new Molecule(sdf.next()));
+                }
+            }
+        } else if (reader != null) {
             try (InputStream stream = new FileInputStream(file)) {
                 try {
                     reader.setReader(stream);
@@ -201,118 +240,66 @@ public class CustomDatabaseImporter {
 
 
     protected void addMolecule(Molecule mol) throws IOException {
+        final List<Molecule> batch;
         synchronized (moleculeBuffer) {
             moleculeBuffer.add(mol);
             for (Listener l : listeners) l.newMoleculeBufferSize(moleculeBuffer.size());
-            if (moleculeBuffer.size() > molBufferSize) {
-                flushMoleculeBuffer();
-            }
-        }
-    }
-
-    private void flushMoleculeBuffer() throws IOException {
-        // start downloading
-        if (moleculeBuffer.size() > 0) {
-            final ConcurrentHashMap<String, Comp> dict = new ConcurrentHashMap<>(moleculeBuffer.size());
-            try {
-                for (Molecule c : moleculeBuffer) {
-                    checkCancellation();
-                    final String inchi2d;
-                    try {
-                        inchi2d = InChISMILESUtils.getInchi(c.container).in2D;
-                        Comp comp = new Comp(inchi2d);
-                        comp.molecule = c;
-                        dict.put(inchi2d, comp);
-                    } catch (CDKException | IllegalArgumentException e) {
-                        CustomDatabase.logger.error(e.getMessage(), e);
-                    }
-                }
-            } catch (IllegalArgumentException e) {
-                CustomDatabase.logger.error(e.getMessage(), e);
-            }
+            if (moleculeBuffer.size() <= molBufferSize)
+                return;
+            batch = new ArrayList<>(moleculeBuffer);
             moleculeBuffer.clear();
-            CustomDatabase.logger.info("Try downloading compounds");
-            try {
-                lookupAndAnnotateFingerprints(dict);
-            } catch (Exception e) {
-                CustomDatabase.logger.error(e.getMessage(), e);
-            }
-
-            List<BasicJJob<FingerprintCandidate>> jobs = dict.values().stream().map(c -> new BasicJJob<FingerprintCandidate>() {
-                @Override
-                protected FingerprintCandidate compute() throws Exception {
-                    FingerprintCalculator fcalc = null;
-                    try {
-                        fcalc = getFingerprintCalculator();
-                        FingerprintCandidate fc = fcalc.computeCompound(c.molecule, c.candidate);
-                        addToBuffer(fc);
-                        return fc;
-                    } finally {
-                        if (fcalc != null)
-                            freeFingerprinter.offer(fcalc);
-                    }
-                }
-            }).collect(Collectors.toList());
-
-            List<BasicJJob<FingerprintCandidate>> batches = SiriusJobs.getGlobalJobManager().submitJobsInBatches(jobs);
-
-            jobs.forEach(j -> {
-                try {
-                    if (shutdown.get()) {
-                        batches.forEach(JJob::cancel);
-                        checkCancellation();
-                    }
-                    j.awaitResult();
-                } catch (ExecutionException e) {
-                    CustomDatabase.logger.error(e.getMessage(), e);
-                }
-            });
-
-            for (Listener l : listeners) l.newMoleculeBufferSize(0);
         }
+        submitMoleculeBatch(batch);
     }
 
-    private void lookupAndAnnotateFingerprints(final ConcurrentHashMap<String, Comp> dict) throws IOException {
-        Set<MolecularFormula> formulasToSearch = new HashSet<>();
+    private void submitMoleculeBatch(List<Molecule> batch) {
         checkCancellation();
         try {
-            for (String in : dict.keySet())
-                formulasToSearch.add(InChIs.extractNeutralFormulaByAdjustingHsOrThrow(in));
-        } catch (UnknownElementException e) {
-            throw new IOException(e);
+            pendingBatchSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Import Interrupted");
         }
+        pendingBatches.removeIf(JJob::isFinished);
+        pendingBatches.add(SiriusJobs.getGlobalJobManager().submitJob(new MoleculeBatchJJob(batch)));
+    }
 
-        checkCancellation();
-        List<JJob<Boolean>> jobs = formulasToSearch.stream().map(formula -> new BasicJJob<Boolean>() {
-            @Override
-            protected Boolean compute() throws Exception {
-                api.consumeStructureDB(DataSource.ALL.flag(), new FileBlobStorage(SearchableDatabases.getWebDatabaseCacheDirectory()), db -> {
-                    List<FingerprintCandidate> cans = db.lookupStructuresAndFingerprintsByFormula(formula);
-                    for (FingerprintCandidate can : cans) {
-                        Comp toAdd = dict.get(can.getInchi().in2D);
-                        if (toAdd != null) {
-                            toAdd.candidate = can;
-                            CustomDatabase.logger.info(toAdd.candidate.getInchi().in2D + " downloaded");
-                        }
-                    }
-                });
-                return true;
-            }
-        }.asCPU()).collect(Collectors.toList());
-
-        List<JJob<Boolean>> batches = SiriusJobs.getGlobalJobManager().submitJobsInBatches(jobs);
+    private void flushMoleculeBuffer() {
+        final List<Molecule> batch;
+        synchronized (moleculeBuffer) {
+            batch = new ArrayList<>(moleculeBuffer);
+            moleculeBuffer.clear();
+        }
+        if (!batch.isEmpty())
+            submitMoleculeBatch(batch);
 
-        jobs.forEach(j -> {
+        MoleculeBatchJJob job;
+        while ((job = pendingBatches.poll()) != null) {
             try {
                 if (shutdown.get()) {
-                    batches.forEach(JJob::cancel);
+                    job.cancel();
+                    pendingBatches.forEach(JJob::cancel);
                     checkCancellation();
                 }
-                j.awaitResult();
+                job.awaitResult();
             } catch (ExecutionException e) {
-                CustomDatabase.logger.error("Error during Download", e);
+                CustomDatabase.logger.error(e.getMessage(), e);
             }
-        });
+        }
+        for (Listener l : listeners) l.newMoleculeBufferSize(0);
+    }
+
+    private synchronized FileBlobStorage getWebCacheStorage() throws IOException {
+        if (webCacheStorage == null)
+            webCacheStorage = new FileBlobStorage(SearchableDatabases.getWebDatabaseCacheDirectory());
+        return webCacheStorage;
+    }
+
+    private void logThroughput() {
+        final long processed = moleculesProcessed.get();
+        final double seconds = Math.max(1, System.currentTimeMillis() - importStart) / 1000d;
+        CustomDatabase.logger.info(String.format("Processed %d structures (%d downloaded, %d fingerprints computed) with %.1f structures/s.",
+                processed, compoundsDownloaded.get(), fingerprintsComputed.get(), processed / seconds));
     }
 
     private FingerprintCalculator getFingerprintCalculator() {
@@ -322,25 +309,97 @@ public class CustomDatabaseImporter {
         return calc;
     }
 
-    private void addToBuffer(FingerprintCandidate fingerprintCandidate) throws IOException {
+    private void addToBuffer(FingerprintCandidate fingerprintCandidate) {
+        List<FingerprintCandidate> full = null;
         synchronized (buffer) {
             buffer.add(fingerprintCandidate);
             for (Listener l : listeners) {
                 l.newFingerprintBufferSize(buffer.size());
                 l.newInChI(fingerprintCandidate.getInchi());
             }
-            if (buffer.size() > bufferSize)
-                flushBuffer();
+            if (buffer.size() > bufferSize) {
+                full = new ArrayList<>(buffer);
+                buffer.clear();
+            }
         }
+        if (full != null)
+            handOverToWriter(full);
     }
 
     public void flushBuffer() throws IOException {
         flushMoleculeBuffer();
+        writeBuffer();
+    }
+
+    /**
+     * Hands the remaining buffer over to the writer and waits until all pending buffers are written.
+     */
+    private void writeBuffer() throws IOException {
         final ArrayList<FingerprintCandidate> candidates;
         synchronized (buffer) {
             candidates = new ArrayList<>(buffer);
             buffer.clear();
         }
+        if (!candidates.isEmpty())
+            handOverToWriter(candidates);
+
+        WriterJJob writer;
+        while ((writer = writerJobs.poll()) != null) {
+            try {
+                writer.awaitResult();
+            } catch (ExecutionException e) {
+                throw new IOException("Error while writing compounds to " + database.name(), e.getCause());
+            }
+        }
+        final IOException error = writeError.getAndSet(null);
+        if (error != null)
+            throw error;
+    }
+
+    private void handOverToWriter(List<FingerprintCandidate> candidates) {
+        try {
+            pendingWriteSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Import Interrupted");
+        }
+        pendingWrites.add(candidates);
+        if (writerActive.compareAndSet(false, true)) {
+            writerJobs.removeIf(JJob::isFinished);
+            writerJobs.add(SiriusJobs.getGlobalJobManager().submitJob(new WriterJJob()));
+        }
+    }
+
+    /**
+     * Writes pending buffers until the queue is empty. At most one writer is active at a time.
+     */
+    private class WriterJJob extends BasicJJob<Boolean> {
+        private WriterJJob() {
+            super(JobType.IO);
+        }
+
+        @Override
+        protected Boolean compute() throws Exception {
+            do {
+                List<FingerprintCandidate> candidates;
+                while ((candidates = pendingWrites.poll()) != null) {
+                    try {
+                        writeCandidates(candidates);
+                    } catch (IOException e) {
+                        CustomDatabase.logger.error(e.getMessage(), e);
+                        writeError.compareAndSet(null, e);
+                    } finally {
+                        pendingWriteSlots.release();
+                    }
+                }
+                writerActive.set(false);
+                // a buffer handed over after the queue was drained but before the flag was reset has no writer yet
+            } while (!pendingWrites.isEmpty() && writerActive.compareAndSet(false, true));
+            return true;
+        }
+    }
+
+    private void writeCandidates(List<FingerprintCandidate> candidates) throws IOException {
         synchronized (database) {
             final Multimap<MolecularFormula, FingerprintCandidate> candidatePerFormula = ArrayListMultimap.create();
             for (FingerprintCandidate fc : candidates) {
@@ -377,6 +436,154 @@ public class CustomDatabaseImporter {
         }
     }
 
+    /**
+     * Processes one buffer of parsed molecules: computes InChIs, looks up already known compounds in the
+     * structure db and computes fingerprints of the remaining ones. Each stage runs in parallel.
+     */
+    private class MoleculeBatchJJob extends BasicMasterJJob<Integer> {
+        private final List<Molecule> molecules;
+        // permit of pendingBatchSlots acquired when this batch was submitted. A batch cancelled before it starts is
+        // never cleaned up, and a running one is both cancelled and cleaned up, so the flag keeps the permit count exact.
+        private final AtomicBoolean slotReleased = new AtomicBoolean(false);
+
+        private MoleculeBatchJJob(List<Molecule> molecules) {
+            super(JobType.SCHEDULER);
+            this.molecules = molecules;
+        }
+
+        @Override
+        protected Integer compute() throws Exception {
+            final ConcurrentHashMap<String, Comp> dict = computeInChIs();
+            CustomDatabase.logger.info("Try downloading compounds");
+            try {
+                lookupAndAnnotateFingerprints(dict);
+            } catch (Exception e) {
+                CustomDatabase.logger.error(e.getMessage(), e);
+            }
+            computeFingerprints(dict);
+            moleculesProcessed.addAndGet(molecules.size());
+            logThroughput();
+            return dict.size();
+        }
+
+        @Override
+        public void cancel(boolean mayInterruptIfRunning) {
+            super.cancel(mayInterruptIfRunning);
+            // a batch cancelled before it runs is never cleaned up
+            releaseSlot();
+        }
+
+        @Override
+        protected void cleanup() {
+            super.cleanup();
+            releaseSlot();
+        }
+
+        private void releaseSlot() {
+            if (slotReleased.compareAndSet(false, true))
+                pendingBatchSlots.release();
+        }
+
+        private ConcurrentHashMap<String, Comp> computeInChIs() {
+            final ConcurrentHashMap<String, Comp> dict = new ConcurrentHashMap<>(molecules.size());
+            final int chunkSize = Math.max(1, (molecules.size() + jobManager.getCPUThreads() - 1) / jobManager.getCPUThreads());
+            final List<BasicJJob<Boolean>> jobs = new ArrayList<>();
+            for (int from = 0; from < molecules.size(); from += chunkSize) {
+                final List<Molecule> chunk = molecules.subList(from, Math.min(molecules.size(), from + chunkSize));
+                jobs.add(submitSubJob(new BasicJJob<Boolean>() {
+                    @Override
+                    protected Boolean compute() throws Exception {
+                        for (Molecule c : chunk) {
+                            checkCancellation();
+                            try {
+                                final String inchi2d = InChISMILESUtils.getInchi(c.container).in2D;
+                                Comp comp = new Comp(inchi2d);
+                                comp.molecule = c;
+                                dict.put(inchi2d, comp);
+                            } catch (CDKException | IllegalArgumentException e) {
+                                CustomDatabase.logger.error(e.getMessage(), e);
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            awaitJobs(jobs, "Error when computing InChIs");
+            return dict;
+        }
+
+        private void lookupAndAnnotateFingerprints(final ConcurrentHashMap<String, Comp> dict) throws IOException {
+            Set<MolecularFormula> formulasToSearch = new HashSet<>();
+            checkCancellation();
+            try {
+                for (String in : dict.keySet())
+                    formulasToSearch.add(InChIs.extractNeutralFormulaByAdjustingHsOrThrow(in));
+            } catch (UnknownElementException e) {
+                throw new IOException(e);
+            }
+
+            checkCancellation();
+            final FileBlobStorage cacheStorage = getWebCacheStorage();
+            List<BasicJJob<Boolean>> jobs = formulasToSearch.stream().map(formula -> new BasicJJob<Boolean>(JobType.WEBSERVICE) {
+                @Override
+                protected Boolean compute() throws Exception {
+                    api.consumeStructureDB(DataSource.ALL.flag(), cacheStorage, db -> {
+                        List<FingerprintCandidate> cans = db.lookupStructuresAndFingerprintsByFormula(formula);
+                        for (FingerprintCandidate can : cans) {
+                            Comp toAdd = dict.get(can.getInchi().in2D);
+                            if (toAdd != null) {
+                                toAdd.candidate = can;
+                                compoundsDownloaded.incrementAndGet();
+                                CustomDatabase.logger.debug(toAdd.candidate.getInchi().in2D + " downloaded");
+                            }
+                        }
+                    });
+                    return true;
+                }
+            }).collect(Collectors.toList());
+
+            submitSubJobsInBatches(jobs, jobManager.getCPUThreads());
+            awaitJobs(jobs, "Error during Download");
+        }
+
+        private void computeFingerprints(final ConcurrentHashMap<String, Comp> dict) {
+            List<BasicJJob<FingerprintCandidate>> jobs = dict.values().stream().map(c -> new BasicJJob<FingerprintCandidate>() {
+                @Override
+                protected FingerprintCandidate compute() throws Exception {
+                    FingerprintCalculator fcalc = null;
+                    try {
+                        fcalc = getFingerprintCalculator();
+                        FingerprintCandidate fc = fcalc.computeCompound(c.molecule, c.candidate);
+                        if (c.candidate == null)
+                            fingerprintsComputed.incrementAndGet();
+                        addToBuffer(fc);
+                        return fc;
+                    } finally {
+                        if (fcalc != null)
+                            freeFingerprinter.offer(fcalc);
+                    }
+                }
+            }).collect(Collectors.toList());
+
+            submitSubJobsInBatches(jobs, jobManager.getCPUThreads());
+            awaitJobs(jobs, null);
+        }
+
+        private void awaitJobs(List<? extends JJob<?>> jobs, String errorMessage) {
+            for (JJob<?> j : jobs) {
+                try {
+                    if (shutdown.get()) {
+                        jobs.forEach(JJob::cancel);
+                        checkCancellation();
+                    }
+                    j.awaitResult();
+                } catch (ExecutionException e) {
+                    CustomDatabase.logger.error(errorMessage == null ? e.getMessage() : errorMessage, e);
+                }
+            }
+        }
+    }
+
     private void checkCancellation() {
         if (shutdown.get())
             throw new CancellationException("Import Cancelled");
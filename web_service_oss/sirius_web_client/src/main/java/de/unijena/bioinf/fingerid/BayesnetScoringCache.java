@@ -0,0 +1,369 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.FingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.utils.IOFunctions;
+import de.unijena.bioinf.fingerid.blast.BayesianScoringUtils;
+import de.unijena.bioinf.fingerid.blast.BayesnetScoring;
+import de.unijena.bioinf.fingerid.blast.BayesnetScoringBuilder;
+import de.unijena.bioinf.fingerid.predictor_types.PredictorType;
+import de.unijena.bioinf.ms.properties.PropertyManager;
+import de.unijena.bioinf.ms.rest.model.covtree.CovtreeJobInput;
+import de.unijena.bioinf.ms.rest.model.fingerid.FingerIdData;
+import de.unijena.bioinf.ms.webapi.WebJJob;
+import de.unijena.bioinf.storage.blob.BlobStorage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Process wide cache for formula specific {@link BayesnetScoring}s (covariance trees) that is shared by all
+ * {@link FingerblastJJob}s. Scorings are keyed by molecular formula, {@link PredictorType} and fingerprint version (see {@link #versionId}).
+ * <p>
+ * Concurrent requests for the same key are deduplicated: only one job queries the web service for a missing scoring
+ * and only one covtree job is submitted per formula, all other jobs wait for the same request or depend on the same
+ * covtree job. The in memory cache is bounded (least recently used scorings are dropped). If a {@link BlobStorage} is
+ * set, every scoring is additionally written to it and dropped scorings are reloaded from there instead of being
+ * fetched again.
+ */
+public class BayesnetScoringCache {
+    public static final int DEFAULT_MAX_SIZE = PropertyManager.getInteger("de.unijena.bioinf.fingerid.covtree.cacheSize", 1000);
+
+    private static final BayesnetScoringCache INSTANCE = new BayesnetScoringCache(DEFAULT_MAX_SIZE);
+
+    public static BayesnetScoringCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final LinkedHashMap<Key, BayesnetScoring> scorings;
+    private final ConcurrentHashMap<Key, CompletableFuture<BayesnetScoring>> pendingRequests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Key, CovtreeEntry> pendingCovtrees = new ConcurrentHashMap<>();
+    @Nullable
+    private volatile BlobStorage spillStorage;
+
+    public BayesnetScoringCache(final int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("Cache size must be positive but was " + maxSize);
+        this.scorings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, BayesnetScoring> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param spillStorage storage to which scorings are written and from which evicted scorings are reloaded.
+     *                     null disables spilling.
+     */
+    public void setSpillStorage(@Nullable BlobStorage spillStorage) {
+        this.spillStorage = spillStorage;
+    }
+
+    @Nullable
+    public BlobStorage getSpillStorage() {
+        return spillStorage;
+    }
+
+    public synchronized int size() {
+        return scorings.size();
+    }
+
+    public synchronized void clear() {
+        scorings.clear();
+    }
+
+    /**
+     * Returns the scorings for the given formulas. Missing scorings are requested with the given fetcher, which is
+     * called at most once with the formulas that are neither cached nor requested by another job at the moment.
+     * Formulas that are requested by another job are awaited.
+     *
+     * @param fetcher retrieves the scorings for the given formulas from the web service. Returns null for formulas
+     *                without precomputed scoring.
+     * @return scorings in order of the given formulas. null if there is no scoring for the formula yet and a covtree
+     * job has to be submitted (see {@link #getOrSubmitCovtreeJob}).
+     */
+    public BayesnetScoring[] getScorings(@NotNull PredictorType predictorType, @NotNull FingerIdData csi, @NotNull List<MolecularFormula> formulas,
+                                         @NotNull IOFunctions.IOFunction<List<MolecularFormula>, BayesnetScoring[]> fetcher) throws IOException, InterruptedException {
+        final BayesnetScoring[] result = new BayesnetScoring[formulas.size()];
+        final Map<Key, CompletableFuture<BayesnetScoring>> owned = new LinkedHashMap<>();
+        final Map<Key, CompletableFuture<BayesnetScoring>> awaited = new HashMap<>();
+        final Key[] keys = new Key[formulas.size()];
+
+        for (int i = 0; i < formulas.size(); i++) {
+            final Key key = new Key(formulas.get(i), predictorType, csi.getFingerprintVersion());
+            keys[i] = key;
+            if (owned.containsKey(key) || awaited.containsKey(key))
+                continue;
+            result[i] = lookup(key, csi);
+            if (result[i] != null || hasPendingCovtree(key))
+                continue;
+
+            final CompletableFuture<BayesnetScoring> request = new CompletableFuture<>();
+            final CompletableFuture<BayesnetScoring> other = pendingRequests.putIfAbsent(key, request);
+            if (other == null) {
+                // a request might have finished between lookup and registration
+                result[i] = lookup(key, csi);
+                if (result[i] != null) {
+                    pendingRequests.remove(key, request);
+                    request.complete(result[i]);
+                } else {
+                    owned.put(key, request);
+                }
+            } else {
+                awaited.put(key, other);
+            }
+        }
+
+        if (!owned.isEmpty()) {
+            final List<Key> ownedKeys = new ArrayList<>(owned.keySet());
+            final BayesnetScoring[] fetched;
+            try {
+                fetched = fetcher.apply(ownedKeys.stream().map(k -> k.formula).collect(Collectors.toList()));
+            } catch (IOException | RuntimeException e) {
+                // waiting jobs retry on their own
+                owned.forEach((k, f) -> {
+                    pendingRequests.remove(k, f);
+                    f.completeExceptionally(e);
+                });
+                throw e;
+            }
+            for (int i = 0; i < ownedKeys.size(); i++) {
+                final Key key = ownedKeys.get(i);
+                if (fetched[i] != null)
+                    put(key, fetched[i]);
+                final CompletableFuture<BayesnetScoring> request = owned.get(key);
+                pendingRequests.remove(key, request);
+                request.complete(fetched[i]);
+            }
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (result[i] != null)
+                continue;
+            CompletableFuture<BayesnetScoring> request = owned.get(keys[i]);
+            if (request == null)
+                request = awaited.get(keys[i]);
+            if (request == null) {
+                // either a pending covtree or a duplicate of a formula that is already resolved
+                result[i] = lookup(keys[i], csi);
+                continue;
+            }
+            try {
+                result[i] = request.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Concurrent request for covariance tree of '" + keys[i].formula + "' failed.", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the covtree job for the given formula. A new job is submitted with the given submitter only if there is
+     * no running job for this formula. Each call has to be balanced with a call of {@link #releaseCovtreeJob} if the
+     * caller is not interested in the result anymore before the job finished.
+     */
+    public WebJJob<CovtreeJobInput, ?, BayesnetScoring, ?> getOrSubmitCovtreeJob(@NotNull PredictorType predictorType, @NotNull FingerIdData csi, @NotNull MolecularFormula formula,
+                                                                                @NotNull IOFunctions.IOSupplier<WebJJob<CovtreeJobInput, ?, BayesnetScoring, ?>> submitter) throws IOException {
+        final Key key = new Key(formula, predictorType, csi.getFingerprintVersion());
+        synchronized (pendingCovtrees) {
+            CovtreeEntry entry = pendingCovtrees.get(key);
+            if (entry == null || (entry.job.isFinished() && entry.job.result() == null)) {
+                entry = new CovtreeEntry(submitter.get());
+                pendingCovtrees.put(key, entry);
+            }
+            entry.users++;
+            return entry.job;
+        }
+    }
+
+    /**
+     * Releases the covtree job for the given formula. If no other caller of {@link #getOrSubmitCovtreeJob} is waiting
+     * for it, the job is removed from the pending jobs: the scoring of a finished job is moved to the cache and
+     * an unfinished job is cancelled.
+     */
+    public void releaseCovtreeJob(@NotNull PredictorType predictorType, @NotNull FingerIdData csi, @NotNull MolecularFormula formula, boolean mayInterruptIfRunning) {
+        final Key key = new Key(formula, predictorType, csi.getFingerprintVersion());
+        final CovtreeEntry entry;
+        synchronized (pendingCovtrees) {
+            entry = pendingCovtrees.get(key);
+            if (entry == null || --entry.users > 0)
+                return;
+            pendingCovtrees.remove(key);
+            if (!entry.job.isFinished()) {
+                entry.job.cancel(mayInterruptIfRunning);
+                return;
+            }
+        }
+        final BayesnetScoring scoring = entry.job.result();
+        if (scoring != null)
+            put(key, scoring);
+    }
+
+    private boolean hasPendingCovtree(Key key) {
+        final CovtreeEntry entry = pendingCovtrees.get(key);
+        return entry != null && !entry.job.isFinished();
+    }
+
+    @Nullable
+    private BayesnetScoring lookup(Key key, FingerIdData csi) {
+        synchronized (this) {
+            final BayesnetScoring scoring = scorings.get(key);
+            if (scoring != null)
+                return scoring;
+        }
+
+        // scoring of a finished covtree job that is still referenced by other callers
+        final CovtreeEntry entry = pendingCovtrees.get(key);
+        if (entry != null && entry.job.isFinished()) {
+            final BayesnetScoring scoring = entry.job.result();
+            if (scoring != null) {
+                put(key, scoring);
+                return scoring;
+            }
+        }
+
+        return readSpilled(key, csi);
+    }
+
+    private void put(Key key, BayesnetScoring scoring) {
+        synchronized (this) {
+            scorings.put(key, scoring);
+        }
+        final BlobStorage storage = spillStorage;
+        if (storage == null)
+            return;
+        try {
+            final Path path = key.toPath();
+            if (!storage.hasBlob(path))
+                storage.withWriter(path, out -> out.write(scoring.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not write covariance tree of '" + key.formula + "' to spill storage.", e);
+        }
+    }
+
+    @Nullable
+    private BayesnetScoring readSpilled(Key key, FingerIdData csi) {
+        final BlobStorage storage = spillStorage;
+        if (storage == null)
+            return null;
+        final Path path = key.toPath();
+        try {
+            if (!storage.hasBlob(path))
+                return null;
+            final BayesnetScoring scoring;
+            try (InputStream in = storage.reader(path)) {
+                scoring = BayesnetScoringBuilder.readScoring(in, StandardCharsets.UTF_8, csi.getFingerprintVersion(),
+                        BayesianScoringUtils.calculatePseudoCount(csi.getPerformances()), BayesianScoringUtils.allowOnlyNegativeScores);
+            }
+            synchronized (this) {
+                scorings.put(key, scoring);
+            }
+            return scoring;
+        } catch (IOException e) {
+            LoggerFactory.getLogger(getClass()).warn("Could not read covariance tree of '" + key.formula + "' from spill storage.", e);
+            return null;
+        }
+    }
+
+    private static class CovtreeEntry {
+        private final WebJJob<CovtreeJobInput, ?, BayesnetScoring, ?> job;
+        private int users = 0;
+
+        private CovtreeEntry(WebJJob<CovtreeJobInput, ?, BayesnetScoring, ?> job) {
+            this.job = job;
+        }
+    }
+
+    // version ids are computed once per fingerprint version instance, usually there is one per predictor type
+    private static final Map<FingerprintVersion, String> VERSION_IDS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Identifies a fingerprint version by its type, its size and, for masked versions, the allowed indices.
+     * Two masks of the same size that select different properties get different ids.
+     * @return hex encoded prefix of the SHA-256 hash of these properties
+     */
+    static String versionId(@NotNull FingerprintVersion version) {
+        return VERSION_IDS.computeIfAbsent(version, v -> {
+            final FingerprintVersion base = (v instanceof MaskedFingerprintVersion) ? ((MaskedFingerprintVersion) v).getMaskedFingerprintVersion() : v;
+            final int[] allowed = (v instanceof MaskedFingerprintVersion) ? ((MaskedFingerprintVersion) v).allowedIndizes() : new int[0];
+            final ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * (2 + allowed.length));
+            buffer.putInt(base.size()).putInt(allowed.length);
+            for (int index : allowed) buffer.putInt(index);
+            try {
+                final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                digest.update(base.getClass().getName().getBytes(StandardCharsets.UTF_8));
+                digest.update(buffer.array());
+                final byte[] hash = digest.digest();
+                final StringBuilder id = new StringBuilder(16);
+                for (int i = 0; i < 8; i++) id.append(String.format("%02x", hash[i]));
+                return id.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not supported by this JVM.", e);
+            }
+        });
+    }
+
+    private static class Key {
+        private final MolecularFormula formula;
+        private final PredictorType predictorType;
+        private final String fpVersionId;
+
+        private Key(MolecularFormula formula, PredictorType predictorType, FingerprintVersion fpVersion) {
+            this.formula = formula;
+            this.predictorType = predictorType;
+            this.fpVersionId = versionId(fpVersion);
+        }
+
+        private Path toPath() {
+            return Path.of(predictorType.name(), fpVersionId, formula.toString() + ".tsv");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return predictorType == key.predictorType && formula.equals(key.formula) && fpVersionId.equals(key.fpVersionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(formula, predictorType, fpVersionId);
+        }
+    }
+}
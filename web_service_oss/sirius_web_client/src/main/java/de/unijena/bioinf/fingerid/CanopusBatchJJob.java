@@ -0,0 +1,90 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.ProbabilityFingerprint;
+import de.unijena.bioinf.canopus.Canopus;
+import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.BasicMasterJJob;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Predicts compound classes of many compounds at once. The compounds are split into blocks, each block is
+ * evaluated with one pass through the network (see {@link Canopus#predictFingerprints(List, List, EnumSet)})
+ * and blocks are evaluated in parallel.
+ */
+public class CanopusBatchJJob extends BasicMasterJJob<List<CanopusResult>> {
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    private final Canopus canopus;
+    private final List<MolecularFormula> formulas;
+    private final List<ProbabilityFingerprint> fingerprints;
+    private final int blockSize;
+
+    public CanopusBatchJJob(@NotNull Canopus canopus, @NotNull List<MolecularFormula> formulas, @NotNull List<ProbabilityFingerprint> fingerprints) {
+        this(canopus, formulas, fingerprints, DEFAULT_BLOCK_SIZE);
+    }
+
+    public CanopusBatchJJob(@NotNull Canopus canopus, @NotNull List<MolecularFormula> formulas, @NotNull List<ProbabilityFingerprint> fingerprints, int blockSize) {
+        super(JobType.SCHEDULER);
+        if (formulas.size() != fingerprints.size())
+            throw new IllegalArgumentException("Number of formulas and fingerprints differ: " + formulas.size() + " vs. " + fingerprints.size());
+        if (blockSize < 1)
+            throw new IllegalArgumentException("Block size must be positive but was " + blockSize);
+        this.canopus = canopus;
+        this.formulas = formulas;
+        this.fingerprints = fingerprints;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    protected List<CanopusResult> compute() throws Exception {
+        final EnumSet<Canopus.Predictable> toPredict = canopus.getNPCMask() != null
+                ? EnumSet.of(Canopus.Predictable.ClassyFire, Canopus.Predictable.NPC)
+                : EnumSet.of(Canopus.Predictable.ClassyFire);
+
+        final List<BasicJJob<ProbabilityFingerprint[][]>> blocks = new ArrayList<>();
+        for (int from = 0; from < formulas.size(); from += blockSize) {
+            final int start = from, end = Math.min(formulas.size(), from + blockSize);
+            blocks.add(submitSubJob(new BasicJJob<ProbabilityFingerprint[][]>(JobType.CPU) {
+                @Override
+                protected ProbabilityFingerprint[][] compute() throws Exception {
+                    checkForInterruption();
+                    return canopus.predictFingerprints(formulas.subList(start, end), fingerprints.subList(start, end), toPredict);
+                }
+            }));
+        }
+
+        final List<CanopusResult> results = new ArrayList<>(formulas.size());
+        for (BasicJJob<ProbabilityFingerprint[][]> block : blocks) {
+            checkForInterruption();
+            for (ProbabilityFingerprint[] fps : block.awaitResult())
+                results.add(fps.length > 1 ? new CanopusResult(fps[0], fps[1]) : new CanopusResult(fps[0]));
+        }
+        return results;
+    }
+}
@@ -20,6 +20,7 @@
 
 package de.unijena.bioinf.fingerid;
 
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.chemdb.DataSource;
 import de.unijena.bioinf.chemdb.annotations.StructureSearchDB;
@@ -45,6 +46,8 @@ import java.util.stream.Collectors;
 // this is done by the respective subtooljobs in the frontend
 public class FingerblastJJob extends BasicMasterJJob<List<FingerIdResult>> {
     public static final boolean enableConfidence = useConfidenceScore();
+    // number of best scoring candidates kept per formula if no confidence score is computed, negative to keep all
+    public static final int maxNumberOfCandidates = PropertyManager.getInteger("de.unijena.bioinf.fingerid.maxCandidates", -1);
     private final WebAPI<?> webAPI;
 
     private static boolean useConfidenceScore() {
@@ -60,7 +63,12 @@ public class FingerblastJJob extends BasicMasterJJob<List<FingerIdResult>> {
     private Ms2Experiment experiment;
     private List<FingerIdResult> idResult;
 
-    List<WebJJob<CovtreeJobInput, ?, BayesnetScoring, ?>> covtreeJobs = new ArrayList<>();
+    // formulas for which this job waits for a (possibly shared) covtree job
+    List<MolecularFormula> covtreeFormulas = new ArrayList<>();
+    private final Object covtreeLock = new Object();
+    private FingerIdData csi;
+    // shared formula jobs that have to be released when this job is finished
+    private List<FormulaJob> acquiredFormulaJobs = null;
 
     public FingerblastJJob(@NotNull CSIPredictor predictor, @NotNull WebAPI<?> webAPI) {
         this(predictor, webAPI, null);
@@ -119,8 +127,9 @@ public class FingerblastJJob extends BasicMasterJJob<List<FingerIdResult>> {
         final Map<AnnotationJJob<?, FingerIdResult>, FingerIdResult> annotationJJobs = new LinkedHashMap<>(idResult.size());
 
         // formula job: retrieve fingerprint candidates for specific MF;
-        // no SubmitSubJob needed because ist is not a CPU or IO job
-        final List<FormulaJob> formulaJobs = idResult.stream().map(fingeridInput ->
+        // jobs are shared with other instances that search the same MF at the same time,
+        // so they are submitted by the scheduler instead of as sub jobs.
+        final List<FormulaJob> formulaJobs = FormulaSearchScheduler.getInstance().acquire(idResult.stream().map(fingeridInput ->
                 new FormulaJob(
                         fingeridInput.getMolecularFormula(),
                         predictor.database,
@@ -129,9 +138,8 @@ public class FingerblastJJob extends BasicMasterJJob<List<FingerIdResult>> {
                         true,
                         experiment.getAnnotation(InjectElGordoCompounds.class)
                                 .orElse(InjectElGordoCompounds.TRUE).value ? DataSource.LIPID.flag : 0)
-        ).collect(Collectors.toList());
-
-        submitSubJobsInBatches(formulaJobs, PropertyManager.getNumberOfThreads());
+        ).collect(Collectors.toList()));
+        acquiredFormulaJobs = formulaJobs;
 
         checkForInterruption();
 
@@ -139,18 +147,18 @@ public class FingerblastJJob extends BasicMasterJJob<List<FingerIdResult>> {
                 ? new ConfidenceJJob(predictor, experiment)
                 : null;
 
-        final BayesnetScoring[] scorings = NetUtils.tryAndWait(() -> {
-            BayesnetScoring[] s = new BayesnetScoring[idResult.size()];
+        // scorings are shared between all instances, so each formula is fetched from the server only once
+        final BayesnetScoringCache scoringCache = BayesnetScoringCache.getInstance();
+        final List<MolecularFormula> formulas = idResult.stream().map(FingerIdResult::getMolecularFormula).collect(Collectors.toList());
+        csi = NetUtils.tryAndWait(() -> webAPI.getFingerIdData(predictor.predictorType), this::checkForInterruption);
+        final BayesnetScoring[] scorings = NetUtils.tryAndWait(() -> scoringCache.getScorings(predictor.predictorType, csi, formulas, missing -> {
+            BayesnetScoring[] s = new BayesnetScoring[missing.size()];
             webAPI.executeBatch((api, client) -> {
-                final FingerIdData csi = api.fingerprintClient().getFingerIdData(predictor.predictorType, client);
-                for (int i = 0; i < idResult.size(); i++) {
-                    final FingerIdResult fingeridInput = idResult.get(i);
-                    // fingerblast job: score candidate fingerprints against predicted fingerprint
-                    s[i] = api.fingerprintClient().getCovarianceScoring(predictor.predictorType, csi.getFingerprintVersion(), fingeridInput.getMolecularFormula(), csi.getPerformances(), client);
-                }
+                for (int i = 0; i < missing.size(); i++)
+                    s[i] = api.fingerprintClient().getCovarianceScoring(predictor.predictorType, csi.getFingerprintVersion(), missing.get(i), csi.getPerformances(), client);
             });
             return s;
-        }, this::checkForInterruption);
+        }), this::checkForInterruption);
 
 
         for (int i = 0; i < idResult.size(); i++) {
@@ -161,14 +169,23 @@ public class FingerblastJJob extends BasicMasterJJob<List<FingerIdResult>> {
                 blastJob = FingerblastSearchJJob.of(predictor, scorings[i], fingeridInput);
             } else {
                 // bayesnetScoring is null --> make a prepare job which computes the bayessian network (covTree) for the
-                // given molecular formula
+                // given molecular formula. Jobs of other instances with the same formula are reused.
                 blastJob = FingerblastSearchJJob.of(predictor, fingeridInput);
-                WebJJob<CovtreeJobInput, ?, BayesnetScoring, ?> covTreeJob =
-                        webAPI.submitCovtreeJob(fingeridInput.getMolecularFormula(), predictor.predictorType);
+                WebJJob<CovtreeJobInput, ?, BayesnetScoring, ?> covTreeJob = scoringCache.getOrSubmitCovtreeJob(
+                        predictor.predictorType, csi, fingeridInput.getMolecularFormula(),
+                        () -> webAPI.submitCovtreeJob(fingeridInput.getMolecularFormula(), predictor.predictorType));
                 blastJob.addRequiredJob(covTreeJob);
-                covtreeJobs.add(covTreeJob);
+                synchronized (covtreeLock) {
+                    if (covtreeFormulas != null)
+                        covtreeFormulas.add(fingeridInput.getMolecularFormula());
+                    else // already cancelled
+                        scoringCache.releaseCovtreeJob(predictor.predictorType, csi, fingeridInput.getMolecularFormula(), true);
+                }
             }
 
+            // confidence needs the scores of all candidates
+            if (confidenceJJob == null && maxNumberOfCandidates >= 0)
+                blastJob.setMaxNumberOfCandidates(maxNumberOfCandidates);
             blastJob.addRequiredJob(formulaJobs.get(i));
             if (confidenceJJob != null)
                 confidenceJJob.addRequiredJob(blastJob);
@@ -222,14 +239,28 @@ public class FingerblastJJob extends BasicMasterJJob<List<FingerIdResult>> {
     @Override
     public void cancel(boolean mayInterruptIfRunning) {
         super.cancel(mayInterruptIfRunning);
-        if (covtreeJobs != null)
-            covtreeJobs.forEach(c -> c.cancel(mayInterruptIfRunning));
+        releaseCovtreeJobs(mayInterruptIfRunning);
+    }
+
+    // each covtree job has to be released exactly once, either on cancellation or on cleanup
+    private void releaseCovtreeJobs(boolean mayInterruptIfRunning) {
+        final List<MolecularFormula> toRelease;
+        synchronized (covtreeLock) {
+            toRelease = covtreeFormulas;
+            covtreeFormulas = null;
+        }
+        if (toRelease != null && csi != null)
+            toRelease.forEach(f -> BayesnetScoringCache.getInstance().releaseCovtreeJob(predictor.predictorType, csi, f, mayInterruptIfRunning));
     }
 
     @Override
     protected void cleanup() {
         super.cleanup();
-        covtreeJobs = null;
+        releaseCovtreeJobs(false);
+        if (acquiredFormulaJobs != null) {
+            FormulaSearchScheduler.getInstance().release(acquiredFormulaJobs);
+            acquiredFormulaJobs = null;
+        }
     }
 
     @Override
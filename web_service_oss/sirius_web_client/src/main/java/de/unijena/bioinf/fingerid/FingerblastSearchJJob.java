@@ -31,6 +31,7 @@ import de.unijena.bioinf.elgordo.LipidStructureMatcher;
 import de.unijena.bioinf.fingerid.blast.BayesnetScoring;
 import de.unijena.bioinf.fingerid.blast.Fingerblast;
 import de.unijena.bioinf.fingerid.blast.FingerblastResult;
+import de.unijena.bioinf.fingerid.blast.FingerblastScoring;
 import de.unijena.bioinf.fingerid.blast.parameters.ParameterStore;
 import de.unijena.bioinf.jjobs.BasicJJob;
 import de.unijena.bioinf.jjobs.JJob;
@@ -43,11 +44,10 @@ import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmilesParser;
 
 import java.io.File;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastResult> implements AnnotationJJob<FingerblastResult, FingerIdResult> {
 
@@ -56,6 +56,8 @@ public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastR
     protected BayesnetScoring bayesnetScoring = null;
     private WebWithCustomDatabase.CandidateResult candidates = null;
     private List<Scored<FingerprintCandidate>> scoredCandidates = null;
+    // number of best scoring candidates to keep, negative to keep all
+    private int maxNumberOfCandidates = -1;
 
     public FingerblastSearchJJob(@NotNull CSIPredictor predictor) {
         this(predictor, null, null, null);
@@ -95,6 +97,17 @@ public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastR
         }
     }
 
+    /**
+     * Keep only the k best scoring candidates instead of all candidates of the molecular formula. Candidates are
+     * then scored in bounded memory, but confidence scores cannot be computed from the truncated candidate list.
+     */
+    public void setMaxNumberOfCandidates(int k) {
+        notSubmittedOrThrow();
+        if (k < 0)
+            throw new IllegalArgumentException("Number of candidates to keep must not be negative but is " + k);
+        this.maxNumberOfCandidates = k;
+    }
+
     public List<Scored<FingerprintCandidate>> getAllScoredCandidates() {
         return scoredCandidates;
     }
@@ -111,20 +124,23 @@ public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastR
         checkForInterruption();
 
         // to get a prepared FingerblastScorer, an object of BayesnetScoring that is specific to the molecular formula has to be initialized
-        List<JJob<List<Scored<FingerprintCandidate>>>> scoreJobs = Fingerblast.makeScoringJobs(
-                predictor.getPreparedFingerblastScorer(ParameterStore.of(fp, bayesnetScoring)), combinedCandidates, fp);
+        final FingerblastScoring<?> scorer = predictor.getPreparedFingerblastScorer(ParameterStore.of(fp, bayesnetScoring));
+        List<JJob<List<Scored<FingerprintCandidate>>>> scoreJobs = maxNumberOfCandidates < 0
+                ? Fingerblast.makeScoringJobs(scorer, combinedCandidates, fp)
+                : Fingerblast.makeTopKScoringJobs(scorer, combinedCandidates, fp, maxNumberOfCandidates);
         checkForInterruption();
         scoreJobs.forEach(this::submitSubJob);
         checkForInterruption();
-        scoredCandidates = scoreJobs.stream().flatMap(r -> r.takeResult().stream()).sorted(Comparator.reverseOrder()).map(fpc -> new Scored<>(fpc.getCandidate(), fpc.getScore())).collect(Collectors.toList());
-        checkForInterruption();
-        scoredCandidates.forEach(sc -> postprocessCandidate(sc.getCandidate()));
+        final Stream<Scored<FingerprintCandidate>> scored = maxNumberOfCandidates < 0
+                ? scoreJobs.stream().flatMap(r -> r.takeResult().stream())
+                : Fingerblast.mergeTopK(scoreJobs, maxNumberOfCandidates).stream();
+        scoredCandidates = scored.sorted(Comparator.reverseOrder()).map(fpc -> new Scored<>(postprocessCandidate(fpc.getCandidate()), fpc.getScore())).collect(Collectors.toList());
         checkForInterruption();
 
         //create filtered result for FingerblastResult result
         Set<String> requestedCandidatesInChIs = candidates.getReqCandidatesInChIs();
         checkForInterruption();
-        final List<Scored<FingerprintCandidate>> cds = scoredCandidates.stream().
+        List<Scored<FingerprintCandidate>> cds = scoredCandidates.stream().
                 filter(sc -> requestedCandidatesInChIs.contains(sc.getCandidate().getInchiKey2D())).collect(Collectors.toList());
         checkForInterruption();
 
@@ -133,6 +149,8 @@ public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastR
                 final LipidSpecies l = ftree.getAnnotationOrThrow(LipidSpecies.class);
                 final List<DBLink> elGordoLink = List.of(new DBLink(DataSource.LIPID.realName(), l.toString()));
 
+                // candidates may be shared with other compounds (see FormulaSearchScheduler), so matched
+                // candidates are copied before annotating them.
                 List<BasicJJob<FingerprintCandidate>> lipidAnoJobs = scoredCandidates.stream().map(SScored::getCandidate).map(c -> new BasicJJob<FingerprintCandidate>() {
                     @Override
                     protected FingerprintCandidate compute() throws Exception {
@@ -142,30 +160,53 @@ public class FingerblastSearchJJob extends FingerprintDependentJJob<FingerblastR
                         LipidStructureMatcher m = new LipidStructureMatcher(l.getLipidClass(), molecule);
                         checkForInterruption();
                         if (m.isMatched()) {
-                            c.mergeBits(DataSource.LIPID.flag);
-                            c.mergeDBLinks(elGordoLink);
+                            final FingerprintCandidate annotated = new FingerprintCandidate(c, c.getFingerprint());
+                            annotated.mergeBits(DataSource.LIPID.flag);
+                            annotated.mergeDBLinks(elGordoLink);
+                            return annotated;
                         }
                         return c;
                     }
                 }).collect(Collectors.toList());
                 checkForInterruption();
-                submitSubJobsInBatchesByThreads(lipidAnoJobs, jobManager.getCPUThreads()).forEach(j -> {
+                final Map<FingerprintCandidate, FingerprintCandidate> annotated = new IdentityHashMap<>();
+                submitSubJobsInBatchesByThreads(lipidAnoJobs, jobManager.getCPUThreads());
+                for (int i = 0; i < lipidAnoJobs.size(); i++) {
                     try {
-                        j.awaitResult();
+                        final FingerprintCandidate c = lipidAnoJobs.get(i).awaitResult();
+                        if (c != scoredCandidates.get(i).getCandidate())
+                            annotated.put(scoredCandidates.get(i).getCandidate(), c);
                     } catch (ExecutionException e) {
                         logWarn("Error when annotating checking if candidate belongs to lipid class. Annotations might be incomplete!");
                     }
-                });
+                }
+                if (!annotated.isEmpty()) {
+                    scoredCandidates = replaceCandidates(scoredCandidates, annotated);
+                    cds = replaceCandidates(cds, annotated);
+                }
             }
         }
         return new FingerblastResult(cds);
     }
-    protected void postprocessCandidate(CompoundCandidate candidate) {
-        //annotate training compounds;
+
+    private static List<Scored<FingerprintCandidate>> replaceCandidates(List<Scored<FingerprintCandidate>> scored, Map<FingerprintCandidate, FingerprintCandidate> replacements) {
+        return scored.stream().map(sc -> {
+            final FingerprintCandidate r = replacements.get(sc.getCandidate());
+            return r == null ? sc : new Scored<>(r, sc.getScore());
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Annotates training compounds. Candidates may be shared with other compounds and predictors
+     * (see FormulaSearchScheduler), so they are never modified. A flagged copy is returned instead.
+     */
+    protected FingerprintCandidate postprocessCandidate(FingerprintCandidate candidate) {
         if (predictor.getTrainingStructures().isInTrainingData(candidate.getInchi())) {
-            long flags = candidate.getBitset();
-            candidate.setBitset(flags | DataSource.TRAIN.flag);
+            final FingerprintCandidate annotated = new FingerprintCandidate(candidate, candidate.getFingerprint());
+            annotated.setBitset(candidate.getBitset() | DataSource.TRAIN.flag);
+            return annotated;
         }
+        return candidate;
     }
 
     public static FingerblastSearchJJob of(@NotNull CSIPredictor predictor, @NotNull FingerIdResult input) {
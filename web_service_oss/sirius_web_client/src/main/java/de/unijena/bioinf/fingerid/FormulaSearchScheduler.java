@@ -0,0 +1,133 @@
+/*
+ *
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2020 Kai Dührkop, Markus Fleischauer, Marcus Ludwig, Martin A. Hoffman and Sebastian Böcker,
+ *  Chair of Bioinformatics, Friedrich-Schilller University.
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 3 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS. If not, see <https://www.gnu.org/licenses/lgpl-3.0.txt>
+ */
+
+package de.unijena.bioinf.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.chemdb.SearchableDatabase;
+import de.unijena.bioinf.chemdb.WebWithCustomDatabase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Deduplicates structure database lookups of all {@link FingerblastJJob}s that run at the same time.
+ * <p>
+ * Requests for the same formula and database filter share one {@link FormulaJob}, so the candidates are read and
+ * merged only once. The shared {@link WebWithCustomDatabase.CandidateResult} has to be treated as read only by all
+ * consumers. Each acquired job has to be released again when its consumer is finished; the job and its candidates
+ * are dropped as soon as no consumer is left.
+ */
+public class FormulaSearchScheduler {
+    private static final FormulaSearchScheduler INSTANCE = new FormulaSearchScheduler();
+
+    public static FormulaSearchScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    private final HashMap<Key, Entry> entries = new HashMap<>();
+
+    /**
+     * Returns a job for each of the given (not yet submitted) requests. Requests that are already scheduled are
+     * replaced by the running job, all others are submitted in order of their formula mass.
+     *
+     * @return jobs in order of the given requests
+     */
+    public synchronized List<FormulaJob> acquire(@NotNull List<FormulaJob> requests) {
+        final List<FormulaJob> jobs = new ArrayList<>(requests.size());
+        final List<FormulaJob> toSubmit = new ArrayList<>();
+        for (FormulaJob request : requests) {
+            final Key key = new Key(request);
+            Entry entry = entries.get(key);
+            if (entry == null || (entry.job.isFinished() && entry.job.result() == null)) {
+                // not scheduled yet or failed before
+                entry = new Entry(request);
+                entries.put(key, entry);
+                toSubmit.add(request);
+            }
+            entry.consumers++;
+            jobs.add(entry.job);
+        }
+
+        toSubmit.sort(Comparator.comparingDouble(j -> j.formula.getMass()));
+        toSubmit.forEach(SiriusJobs.getGlobalJobManager()::submitJob);
+        return jobs;
+    }
+
+    /**
+     * Releases jobs returned by {@link #acquire}. A job that is still running is cancelled if it has no consumers left.
+     */
+    public synchronized void release(@NotNull List<FormulaJob> jobs) {
+        for (FormulaJob job : jobs) {
+            final Key key = new Key(job);
+            final Entry entry = entries.get(key);
+            if (entry == null || entry.job != job || --entry.consumers > 0)
+                continue;
+            entries.remove(key);
+            if (!job.isFinished())
+                job.cancel(false);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final FormulaJob job;
+        private int consumers = 0;
+
+        private Entry(FormulaJob job) {
+            this.job = job;
+        }
+    }
+
+    private static class Key {
+        private final MolecularFormula formula;
+        private final WebWithCustomDatabase searchDatabase;
+        private final Set<String> dbs;
+        private final boolean includeRestAllDb;
+        private final long fakeFilterBits;
+
+        private Key(FormulaJob job) {
+            this.formula = job.formula;
+            this.searchDatabase = job.searchDatabase;
+            this.dbs = job.dbs.stream().map(SearchableDatabase::name).collect(Collectors.toSet());
+            this.includeRestAllDb = job.includeRestAllDb;
+            this.fakeFilterBits = job.fakeFilterBits;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return includeRestAllDb == key.includeRestAllDb && fakeFilterBits == key.fakeFilterBits
+                    && searchDatabase == key.searchDatabase && formula.equals(key.formula) && dbs.equals(key.dbs);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(formula, dbs, includeRestAllDb, fakeFilterBits);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package de.unijena.bioinf.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.fp.CustomFingerprintVersion;
+import de.unijena.bioinf.ChemistryBase.fp.MaskedFingerprintVersion;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class BayesnetScoringCacheTest {
+
+    private static MaskedFingerprintVersion mask(CustomFingerprintVersion version, int... disabled) {
+        final MaskedFingerprintVersion.Builder b = MaskedFingerprintVersion.buildMaskFor(version);
+        b.enableAll();
+        for (int index : disabled) b.disable(index);
+        return b.toMask();
+    }
+
+    @Test
+    public void testVersionIdDependsOnAllowedIndices() {
+        final CustomFingerprintVersion version = new CustomFingerprintVersion("test", 100);
+        // same size, different properties
+        final MaskedFingerprintVersion a = mask(version, 1, 2), b = mask(version, 3, 4);
+        assertEquals(a.size(), b.size());
+        assertNotEquals(BayesnetScoringCache.versionId(a), BayesnetScoringCache.versionId(b));
+        // equal masks of different instances share the id
+        assertEquals(BayesnetScoringCache.versionId(a), BayesnetScoringCache.versionId(mask(version, 1, 2)));
+        assertNotEquals(BayesnetScoringCache.versionId(a), BayesnetScoringCache.versionId(version));
+    }
+}
@@ -0,0 +1,99 @@
+package de.unijena.bioinf.fingerid;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.fp.*;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.canopus.Canopus;
+import de.unijena.bioinf.canopus.CanopusResult;
+import de.unijena.bioinf.canopus.dnn.ActivationFunction;
+import de.unijena.bioinf.canopus.dnn.FullyConnectedLayer;
+import de.unijena.bioinf.canopus.dnn.PlattLayer;
+import org.ejml.data.FMatrixRMaj;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CanopusBatchJJobTest {
+
+    private static final int FINGERPRINT_SIZE = 16, CLASSES = 5;
+    private static final String[] FORMULAS = {"C6H12O6", "C8H10N4O2", "C9H8O4", "C17H19NO3", "C2H6O", "C10H16N5O13P3", "C6H5Br", "C20H25N3O", "C5H5N5", "C3H7NO2S"};
+
+    private final Random random = new Random(3);
+
+    @Test
+    public void testBatchedPredictionEqualsSinglePrediction() throws Exception {
+        final Canopus canopus = syntheticCanopus();
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        final List<ProbabilityFingerprint> fingerprints = new ArrayList<>();
+        final FingerprintVersion version = MaskedFingerprintVersion.allowAll(new CustomFingerprintVersion("test", FINGERPRINT_SIZE));
+        for (String formula : FORMULAS) {
+            formulas.add(MolecularFormula.parseOrThrow(formula));
+            final double[] probabilities = new double[FINGERPRINT_SIZE];
+            for (int i = 0; i < probabilities.length; ++i) probabilities[i] = random.nextDouble();
+            fingerprints.add(new ProbabilityFingerprint(version, probabilities));
+        }
+
+        final FMatrixRMaj latent = canopus.predictLatentVectors(formulas, fingerprints);
+        assertEquals(formulas.size(), latent.numRows);
+        for (int row = 0; row < formulas.size(); ++row) {
+            final float[] expected = canopus.predictLatentVector(formulas.get(row), fingerprints.get(row));
+            assertEquals(expected.length, latent.numCols);
+            for (int i = 0; i < expected.length; ++i)
+                assertEquals(expected[i], latent.get(row, i), 1e-5f);
+        }
+
+        final EnumSet<Canopus.Predictable> toPredict = EnumSet.of(Canopus.Predictable.ClassyFire);
+        final ProbabilityFingerprint[][] batched = canopus.predictFingerprints(formulas, fingerprints, toPredict);
+        // block size 3 gives an incomplete last block
+        final List<CanopusResult> jobResults = SiriusJobs.getGlobalJobManager().submitJob(new CanopusBatchJJob(canopus, formulas, fingerprints, 3)).awaitResult();
+        assertEquals(formulas.size(), batched.length);
+        assertEquals(formulas.size(), jobResults.size());
+        for (int row = 0; row < formulas.size(); ++row) {
+            final double[] expected = canopus.predictFingerprints(formulas.get(row), fingerprints.get(row), toPredict)[0].toProbabilityArray();
+            assertArrayEquals(expected, batched[row][0].toProbabilityArray(), 1e-5);
+            assertArrayEquals(expected, jobResults.get(row).getCanopusFingerprint().toProbabilityArray(), 1e-5);
+        }
+    }
+
+    private Canopus syntheticCanopus() {
+        final int formulaFeatures = Canopus.getFormulaFeatures(MolecularFormula.parseOrThrow("C6H12O6")).length;
+        final FullyConnectedLayer[] formulaLayers = {layer(formulaFeatures, 8, new ActivationFunction.ReLu())};
+        final FullyConnectedLayer[] fingerprintLayers = {layer(FINGERPRINT_SIZE, 8, new ActivationFunction.Tanh())};
+        final FullyConnectedLayer[] innerLayers = {layer(16, 12, new ActivationFunction.SELU()), layer(12, 10, new ActivationFunction.ReLu())};
+        final FullyConnectedLayer outputLayer = layer(10, CLASSES, new ActivationFunction.Identity());
+        final PlattLayer platt = new PlattLayer(gaussians(CLASSES, -1), gaussians(CLASSES, 0));
+
+        final double[] formulaCentering = gaussians(formulaFeatures, 0), formulaScaling = gaussians(formulaFeatures, 10);
+        final double[] plattCentering = gaussians(FINGERPRINT_SIZE, 0), plattScaling = gaussians(FINGERPRINT_SIZE, 2);
+
+        final ClassyfireProperty[] classes = new ClassyfireProperty[CLASSES];
+        classes[0] = new ClassyfireProperty(0, "Chemical entities", "", -1, 0);
+        for (int i = 1; i < CLASSES; ++i)
+            classes[i] = new ClassyfireProperty(i, "class " + i, "", 0, i);
+        final MaskedFingerprintVersion classyFireMask = MaskedFingerprintVersion.allowAll(new ClassyFireFingerprintVersion(classes));
+
+        return new Canopus(formulaLayers, fingerprintLayers, innerLayers, outputLayer, platt, formulaCentering, formulaScaling,
+                plattCentering, plattScaling, classyFireMask, null, null, null, null) {
+        };
+    }
+
+    private FullyConnectedLayer layer(int nin, int nout, ActivationFunction function) {
+        final float[] w = new float[nin * nout], b = new float[nout];
+        for (int i = 0; i < w.length; ++i) w[i] = (float) (random.nextGaussian() / Math.sqrt(nin));
+        for (int i = 0; i < b.length; ++i) b[i] = (float) (random.nextGaussian() * 0.1);
+        return new FullyConnectedLayer(nin, nout, w, b, function);
+    }
+
+    // gaussian noise around the given mean, kept away from zero for scaling factors
+    private double[] gaussians(int n, double mean) {
+        final double[] values = new double[n];
+        for (int i = 0; i < n; ++i) values[i] = mean + (mean == 0 ? 0.5 : 0.1 * Math.abs(mean)) * random.nextGaussian();
+        return values;
+    }
+}